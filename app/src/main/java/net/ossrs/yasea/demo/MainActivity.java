@@ -424,12 +424,14 @@ public class MainActivity extends AppCompatActivity implements RtmpHandler.RtmpL
 
     @Override
     public void onRtmpSocketException(SocketException e) {
-        handleException(e);
+        // The publisher reconnects by itself
+        Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_SHORT).show();
     }
 
     @Override
     public void onRtmpIOException(IOException e) {
-        handleException(e);
+        // The publisher reconnects by itself
+        Toast.makeText(getApplicationContext(), e.getMessage(), Toast.LENGTH_SHORT).show();
     }
 
     @Override
@@ -3,6 +3,8 @@ package com.github.faucamp.simplertmp;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.faucamp.simplertmp.io.RtmpConnection;
+import com.github.faucamp.simplertmp.io.RtmpTransport;
+import com.github.faucamp.simplertmp.io.RtmpTransportStats;
 
 /**
  * Srs implementation of an RTMP publisher
@@ -37,16 +39,41 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.publishVideoData(data, size, dts);
     }
 
+    @Override
+    public void publishVideoData(byte[] data, int size, int dts, BufferOwner owner) {
+        rtmpConnection.publishVideoData(data, size, dts, owner);
+    }
+
     @Override
     public void publishAudioData(byte[] data, int size, int dts) {
         rtmpConnection.publishAudioData(data, size, dts);
     }
 
+    @Override
+    public void publishAudioData(byte[] data, int size, int dts, BufferOwner owner) {
+        rtmpConnection.publishAudioData(data, size, dts, owner);
+    }
+
+    @Override
+    public void publishData(byte[] data, int size, int dts) {
+        rtmpConnection.publishData(data, size, dts);
+    }
+
+    @Override
+    public void flush() {
+        rtmpConnection.flush();
+    }
+
     @Override
     public AtomicInteger getVideoFrameCacheNumber() {
         return rtmpConnection.getVideoFrameCacheNumber();
     }
 
+    @Override
+    public boolean isPublishing() {
+        return rtmpConnection.isPublishing();
+    }
+
     @Override
     public final String getServerIpAddr() {
         return rtmpConnection.getServerIpAddr();
@@ -67,4 +94,49 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.setVideoResolution(width, height);
     }
 
+    @Override
+    public void setChunkSize(int chunkSize) {
+        rtmpConnection.setChunkSize(chunkSize);
+    }
+
+    @Override
+    public void setTransportType(RtmpTransport.Type type) {
+        rtmpConnection.setTransportType(type);
+    }
+
+    @Override
+    public void setFastStart(boolean enabled) {
+        rtmpConnection.setFastStart(enabled);
+    }
+
+    @Override
+    public RtmpTransportStats getTransportStats() {
+        return rtmpConnection.getTransportStats();
+    }
+
+    @Override
+    public void setPingInterval(int intervalMillis) {
+        rtmpConnection.setPingInterval(intervalMillis);
+    }
+
+    @Override
+    public void setAudioSource(AudioSource source) {
+        rtmpConnection.setAudioSource(source);
+    }
+
+    @Override
+    public void setAggregation(int budgetMillis) {
+        rtmpConnection.setAggregation(budgetMillis);
+    }
+
+    @Override
+    public void setPacing(float multiplier, int burstBytes) {
+        rtmpConnection.setPacing(multiplier, burstBytes);
+    }
+
+    @Override
+    public void setPacingTargetBitrate(int bitsPerSecond) {
+        rtmpConnection.setPacingTargetBitrate(bitsPerSecond);
+    }
+
 }
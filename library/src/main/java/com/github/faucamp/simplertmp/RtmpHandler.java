@@ -28,12 +28,39 @@ public class RtmpHandler extends Handler {
     private static final int MSG_RTMP_ILLEGAL_ARGUMENT_EXCEPTION = 11;
     private static final int MSG_RTMP_ILLEGAL_STATE_EXCEPTION = 12;
 
+    private static final int MSG_RTMP_STREAMING_SNAPSHOT = 13;
+
     private WeakReference<RtmpListener> mWeakListener;
+    private volatile int mEventInterval = StreamingEventCoalescer.DEFAULT_INTERVAL_MS;
 
     public RtmpHandler(RtmpListener listener) {
         mWeakListener = new WeakReference<>(listener);
     }
 
+    /**
+     * set how often the streaming, fps and bitrate callbacks come, instead of the streaming ones for
+     * every frame. Applies from the next connection.
+     * @param intervalMillis interval in milliseconds
+     */
+    public void setEventInterval(int intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid event interval " + intervalMillis);
+        }
+        mEventInterval = intervalMillis;
+    }
+
+    public int getEventInterval() {
+        return mEventInterval;
+    }
+
+    /**
+     * report what was sent during the last interval, with the streaming, fps and bitrate callbacks of
+     * the media sent, as a single message.
+     */
+    public void notifyRtmpStreaming(StreamingEventCoalescer.Snapshot snapshot) {
+        obtainMessage(MSG_RTMP_STREAMING_SNAPSHOT, snapshot).sendToTarget();
+    }
+
     public void notifyRtmpConnecting(String msg) {
         obtainMessage(MSG_RTMP_CONNECTING, msg).sendToTarget();
     }
@@ -133,6 +160,18 @@ public class RtmpHandler extends Handler {
             case MSG_RTMP_ILLEGAL_STATE_EXCEPTION:
                 listener.onRtmpIllegalStateException((IllegalStateException) msg.obj);
                 break;
+            case MSG_RTMP_STREAMING_SNAPSHOT:
+                StreamingEventCoalescer.Snapshot snapshot = (StreamingEventCoalescer.Snapshot) msg.obj;
+                if (snapshot.getVideoFrames() > 0) {
+                    listener.onRtmpVideoStreaming();
+                    listener.onRtmpVideoFpsChanged(snapshot.getVideoFps());
+                    listener.onRtmpVideoBitrateChanged(snapshot.getVideoBitrate());
+                }
+                if (snapshot.getAudioFrames() > 0) {
+                    listener.onRtmpAudioStreaming();
+                    listener.onRtmpAudioBitrateChanged(snapshot.getAudioBitrate());
+                }
+                break;
             default:
                 throw new RuntimeException("unknown msg " + msg.what);
         }
@@ -0,0 +1,63 @@
+package com.github.faucamp.simplertmp;
+
+/**
+ * Simple RTMP player, receiving the audio/video of a stream as FLV tag bodies
+ */
+public interface RtmpPlayer {
+
+    /**
+     * Receives the media of the stream played, on the thread reading from the connection
+     */
+    interface MediaListener {
+        /**
+         * @param data FLV video tag body, only valid during the call
+         * @param size video tag body size (not the whole length of byte array)
+         * @param dts video decoding timestamp
+         */
+        void onVideoData(byte[] data, int size, int dts);
+
+        /**
+         * @param data FLV audio tag body, only valid during the call
+         * @param size audio tag body size (not the whole length of byte array)
+         * @param dts audio timestamp
+         */
+        void onAudioData(byte[] data, int size, int dts);
+    }
+
+    /**
+     * Issues an RTMP "connect" command and wait for the response.
+     *
+     * @param url specify the RTMP url
+     * @return If succeeded return true else return false
+     */
+    boolean connect(String url);
+
+    /**
+     * Issues RTMP "createStream" and "play" commands and wait for the stream to start.
+     *
+     * @param bufferLengthMillis buffer length announced to the server with SetBufferLength
+     * @return If succeeded return true else return false
+     * @throws IllegalStateException if the client is not connected to a RTMP server
+     */
+    boolean play(int bufferLengthMillis);
+
+    /**
+     * Stop and close the current RTMP playing client.
+     */
+    void close();
+
+    /**
+     * set where the media received go, before {@link #play(int)}
+     */
+    void setMediaListener(MediaListener listener);
+
+    /**
+     * tell whether media are being received, false once the connection to the server was lost
+     */
+    boolean isPlaying();
+
+    /**
+     * obtain the bytes received on the current, or last, connection, handshake included
+     */
+    long getBytesReceived();
+}
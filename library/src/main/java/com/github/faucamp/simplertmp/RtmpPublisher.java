@@ -1,5 +1,8 @@
 package com.github.faucamp.simplertmp;
 
+import com.github.faucamp.simplertmp.io.RtmpTransport;
+import com.github.faucamp.simplertmp.io.RtmpTransportStats;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -11,6 +14,33 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author francois, leo
  */
 public interface RtmpPublisher {
+
+    /**
+     * Audio frames waiting to be published, polled between the chunks of a large video message so
+     * that audio does not wait for a whole key frame to be sent
+     */
+    interface AudioSource {
+        /**
+         * @return dts of the next audio frame ready to be published, or -1 if there is none
+         */
+        int peekAudioDts();
+
+        /**
+         * publish the next audio frame through {@link RtmpPublisher#publishAudioData(byte[], int, int)}
+         */
+        void publishAudio();
+    }
+
+    /**
+     * Owner of the array of a media message, which the connection may go on writing from after the
+     * publish call returned: retained meanwhile, and released once the bytes are out or dropped
+     */
+    interface BufferOwner {
+        void retain();
+
+        void release();
+    }
+
     /**
      * Issues an RTMP "connect" command and wait for the response.
      *
@@ -42,6 +72,14 @@ public interface RtmpPublisher {
      */
     void publishVideoData(byte[] data, int size, int dts);
 
+    /**
+     * publish a video content packet to server, without waiting for it to be written out
+     *
+     * @param owner retained while the connection still writes from data, null to be done with data on
+     *              return as {@link #publishVideoData(byte[], int, int)} is
+     */
+    void publishVideoData(byte[] data, int size, int dts, BufferOwner owner);
+
     /**
      * publish an audio content packet to server
      *
@@ -51,11 +89,38 @@ public interface RtmpPublisher {
      */
     void publishAudioData(byte[] data, int size, int dts);
 
+    /**
+     * publish an audio content packet to server, without waiting for it to be written out
+     *
+     * @param owner see {@link #publishVideoData(byte[], int, int, BufferOwner)}
+     */
+    void publishAudioData(byte[] data, int size, int dts, BufferOwner owner);
+
+    /**
+     * publish an AMF0 data message to server, such as onMetaData or a cue point, in order with the
+     * audio/video packets
+     *
+     * @param data AMF0 encoded message, its handler name first
+     * @param size message byte size (not the whole length of byte array)
+     * @param dts stream timestamp of the message
+     */
+    void publishData(byte[] data, int size, int dts);
+
+    /**
+     * write out audio/video packets still buffered, called when the sender has no more frame queued
+     */
+    void flush();
+
     /**
      * obtain video frame number cached in publisher
      */
     AtomicInteger getVideoFrameCacheNumber();
 
+    /**
+     * tell whether audio/video can be published, false once the connection to the server was lost
+     */
+    boolean isPublishing();
+
     /**
      * obtain the IP address of the peer if any
      */
@@ -79,4 +144,73 @@ public interface RtmpPublisher {
      */
     void setVideoResolution(int width, int height);
 
+    /**
+     * set the outgoing chunk size, announced to the server right after "connect"
+     * and applied on the next connection
+     *
+     * @param chunkSize chunk size in bytes, between 128 and 65536
+     */
+    void setChunkSize(int chunkSize);
+
+    /**
+     * send audio and video messages no larger than the chunk size as RTMP aggregate messages, several
+     * FLV tags in one message. Each one goes out once its tags span the budget, or by the next
+     * {@link #flush()} once it waited as long
+     *
+     * @param budgetMillis longest time a tag may wait for the next ones, 0 (default) disables aggregation
+     */
+    void setAggregation(int budgetMillis);
+
+    /**
+     * select the transport used by the next connection
+     *
+     * @param type blocking socket streams (default) or socket channel with gathering writes
+     */
+    void setTransportType(RtmpTransport.Type type);
+
+    /**
+     * shorten the connection setup of the next connection: the server addresses are raced happy
+     * eyeballs style, "connect" goes out with the last handshake packet and "releaseStream",
+     * "FCPublish" and "createStream" in a single write
+     *
+     * @param enabled true to enable, false (default) for one blocking step after the other
+     */
+    void setFastStart(boolean enabled);
+
+    /**
+     * obtain the statistics of the current, or last, connection
+     *
+     * @return bytes sent and acknowledged, RTT and delivered bitrate, null before the first connection
+     */
+    RtmpTransportStats getTransportStats();
+
+    /**
+     * send a ping every so often while publishing, to measure the round trip time to the server
+     *
+     * @param intervalMillis ping interval in milliseconds, 0 (default) disables pings
+     */
+    void setPingInterval(int intervalMillis);
+
+    /**
+     * interleave audio between the chunks of video messages larger than the chunk size
+     *
+     * @param source audio waiting to be published, null (default) sends each video message at once
+     */
+    void setAudioSource(AudioSource source);
+
+    /**
+     * pace audio/video to smooth out the bursts of key frames
+     *
+     * @param multiplier pacing rate over the target bitrate, 0 (default) disables pacing
+     * @param burstBytes bytes that may go out at once after an idle period
+     */
+    void setPacing(float multiplier, int burstBytes);
+
+    /**
+     * set the bitrate pacing follows, typically the encoder's
+     *
+     * @param bitsPerSecond target bitrate of audio and video, 0 (default) follows the measured bitrate
+     */
+    void setPacingTargetBitrate(int bitsPerSecond);
+
 }
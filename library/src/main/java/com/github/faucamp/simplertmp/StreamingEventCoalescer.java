@@ -0,0 +1,166 @@
+package com.github.faucamp.simplertmp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the per-frame events of a stream into periodic snapshots
+ *
+ * Frames are only counted as they are sent, with atomic counters. The first frame after the interval
+ * elapsed closes it: a snapshot of the counters, with the frame and bit rates over the interval, goes
+ * to the sink on the thread of that frame. Nothing goes to the sink while no frame is sent. States
+ * checked for every frame, such as a weak network, are reported on change only through an {@link Edge}.
+ *
+ * It depends on nothing Android, the time is a parameter.
+ */
+public class StreamingEventCoalescer {
+
+    /** Snapshot interval unless set otherwise, in ms */
+    public static final int DEFAULT_INTERVAL_MS = 1000;
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    /** Receives the snapshots */
+    public interface Sink {
+        /**
+         * @param snapshot what was sent during the interval just closed
+         */
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    /** Frames and bytes sent during an interval */
+    public static final class Snapshot {
+        private final long durationNanos;
+        private final long videoFrames;
+        private final long videoBytes;
+        private final long audioFrames;
+        private final long audioBytes;
+
+        Snapshot(long durationNanos, long videoFrames, long videoBytes, long audioFrames, long audioBytes) {
+            this.durationNanos = durationNanos;
+            this.videoFrames = videoFrames;
+            this.videoBytes = videoBytes;
+            this.audioFrames = audioFrames;
+            this.audioBytes = audioBytes;
+        }
+
+        /** @return length of the interval, in ms */
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        }
+
+        public long getVideoFrames() {
+            return videoFrames;
+        }
+
+        public long getAudioFrames() {
+            return audioFrames;
+        }
+
+        /** @return video frames per second */
+        public double getVideoFps() {
+            return (double) videoFrames * TimeUnit.SECONDS.toNanos(1) / durationNanos;
+        }
+
+        /** @return video bitrate in bps */
+        public double getVideoBitrate() {
+            return (double) videoBytes * 8 * TimeUnit.SECONDS.toNanos(1) / durationNanos;
+        }
+
+        /** @return audio bitrate in bps */
+        public double getAudioBitrate() {
+            return (double) audioBytes * 8 * TimeUnit.SECONDS.toNanos(1) / durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ms: video %d frames %.1f fps %.0f bps, audio %d frames %.0f bps",
+                getDurationMillis(), videoFrames, getVideoFps(), getVideoBitrate(), audioFrames, getAudioBitrate());
+        }
+    }
+
+    /** A two-valued state, of which only the changes are to be reported */
+    public static final class Edge {
+        private final AtomicBoolean state = new AtomicBoolean();
+
+        /**
+         * @param value the state now, set by any thread
+         * @return true for the single caller which changed it, which reports the change
+         */
+        public boolean set(boolean value) {
+            return state.compareAndSet(!value, value);
+        }
+
+        public boolean get() {
+            return state.get();
+        }
+    }
+
+    private final Sink sink;
+    private volatile long intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MS);
+    private final AtomicLong intervalStartNanos = new AtomicLong(NOT_STARTED);
+    private final AtomicLong videoFrames = new AtomicLong();
+    private final AtomicLong videoBytes = new AtomicLong();
+    private final AtomicLong audioFrames = new AtomicLong();
+    private final AtomicLong audioBytes = new AtomicLong();
+
+    public StreamingEventCoalescer(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param intervalMillis time between two snapshots, in ms
+     */
+    public void setInterval(int intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid snapshot interval " + intervalMillis);
+        }
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * Counts a video frame sent
+     *
+     * @param nowNanos monotonic time in nanoseconds
+     */
+    public void onVideoFrame(int bytes, long nowNanos) {
+        videoFrames.incrementAndGet();
+        videoBytes.addAndGet(bytes);
+        closeIntervalIfDue(nowNanos);
+    }
+
+    /**
+     * Counts an audio frame sent
+     *
+     * @param nowNanos monotonic time in nanoseconds
+     */
+    public void onAudioFrame(int bytes, long nowNanos) {
+        audioFrames.incrementAndGet();
+        audioBytes.addAndGet(bytes);
+        closeIntervalIfDue(nowNanos);
+    }
+
+    /** Forgets the interval going on, for a new connection */
+    public void reset() {
+        intervalStartNanos.set(NOT_STARTED);
+        videoFrames.set(0);
+        videoBytes.set(0);
+        audioFrames.set(0);
+        audioBytes.set(0);
+    }
+
+    private void closeIntervalIfDue(long nowNanos) {
+        long start = intervalStartNanos.get();
+        if (start == NOT_STARTED) {
+            intervalStartNanos.compareAndSet(NOT_STARTED, nowNanos);
+            return;
+        }
+        long duration = nowNanos - start;
+        // A single thread wins the interval, frames counted meanwhile by others go to the next one
+        if (duration < intervalNanos || !intervalStartNanos.compareAndSet(start, nowNanos)) {
+            return;
+        }
+        sink.onSnapshot(new Snapshot(duration, videoFrames.getAndSet(0), videoBytes.getAndSet(0),
+            audioFrames.getAndSet(0), audioBytes.getAndSet(0)));
+    }
+}
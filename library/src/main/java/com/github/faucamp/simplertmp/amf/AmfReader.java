@@ -0,0 +1,204 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming AMF0 reader, decoding values straight from a buffer
+ *
+ * Numbers, booleans and strings are read without going through {@link AmfData} instances, strings
+ * being decoded from ASCII into a reusable character array; {@link #skipValue()} steps over anything
+ * without allocating. {@link #readValue()} builds the {@link AmfData} tree of a value for the code
+ * working on those.
+ */
+public final class AmfReader {
+
+    private static final byte OBJECT_END = 0x09;
+
+    private ByteBuffer buffer;
+    private char[] chars = new char[64];
+
+    /** Reads from the position of <code>buffer</code> up to its limit */
+    public AmfReader reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    /** Reads <code>length</code> bytes of <code>array</code> from <code>offset</code> */
+    public AmfReader reset(byte[] array, int offset, int length) {
+        if (buffer == null || !buffer.hasArray() || buffer.array() != array || buffer.isReadOnly()) {
+            buffer = ByteBuffer.wrap(array);
+        }
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return this;
+    }
+
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /** @return the type of the next value, without reading it */
+    public AmfType peekType() throws IOException {
+        need(1);
+        return typeOf(buffer.get(buffer.position()));
+    }
+
+    public double readNumber() throws IOException {
+        expect(AmfType.NUMBER);
+        need(8);
+        return buffer.getDouble();
+    }
+
+    public boolean readBoolean() throws IOException {
+        expect(AmfType.BOOLEAN);
+        need(1);
+        return buffer.get() != 0;
+    }
+
+    public String readString() throws IOException {
+        expect(AmfType.STRING);
+        return readKey();
+    }
+
+    /** Reads an object key, that is a string without its type marker */
+    public String readKey() throws IOException {
+        need(2);
+        int length = buffer.getShort() & 0xffff;
+        need(length);
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get();
+            // Like new String(bytes, "ASCII")
+            chars[i] = b >= 0 ? (char) b : '\uFFFD';
+        }
+        return new String(chars, 0, length);
+    }
+
+    /** Steps over the next value, whatever its type */
+    public void skipValue() throws IOException {
+        AmfType type = peekType();
+        buffer.get();
+        switch (type) {
+            case NUMBER:
+                skip(8);
+                break;
+            case BOOLEAN:
+                skip(1);
+                break;
+            case STRING:
+                need(2);
+                skip(buffer.getShort() & 0xffff);
+                break;
+            case MAP:
+                // Same as an object after the count
+                skip(4);
+                skipProperties();
+                break;
+            case OBJECT:
+                skipProperties();
+                break;
+            case ARRAY:
+                need(4);
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    skipValue();
+                }
+                break;
+            default:
+                // NULL and UNDEFINED are their type marker only
+                break;
+        }
+    }
+
+    /** Reads the next value as an {@link AmfData} tree */
+    public AmfData readValue() throws IOException {
+        AmfType type = peekType();
+        switch (type) {
+            case NUMBER:
+                return new AmfNumber(readNumber());
+            case BOOLEAN:
+                return new AmfBoolean(readBoolean());
+            case STRING:
+                return new AmfString(readString());
+            case OBJECT:
+                buffer.get();
+                return readProperties(new AmfObject());
+            case MAP:
+                buffer.get();
+                skip(4);
+                return readProperties(new AmfMap());
+            case ARRAY:
+                buffer.get();
+                need(4);
+                AmfArray array = new AmfArray();
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    array.getItems().add(readValue());
+                }
+                return array;
+            case NULL:
+                buffer.get();
+                return new AmfNull();
+            default:
+                buffer.get();
+                return new AmfUndefined();
+        }
+    }
+
+    private void skipProperties() throws IOException {
+        while (!readObjectEnd()) {
+            need(2);
+            skip(buffer.getShort() & 0xffff);
+            skipValue();
+        }
+    }
+
+    private AmfObject readProperties(AmfObject object) throws IOException {
+        while (!readObjectEnd()) {
+            String key = readKey();
+            object.setProperty(key, readValue());
+        }
+        return object;
+    }
+
+    /** Reads the object end marker, an empty key followed by the OBJECT_END type, if it comes next */
+    private boolean readObjectEnd() throws IOException {
+        need(3);
+        int pos = buffer.position();
+        if (buffer.get(pos) == 0 && buffer.get(pos + 1) == 0 && buffer.get(pos + 2) == OBJECT_END) {
+            buffer.position(pos + 3);
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(AmfType type) throws IOException {
+        need(1);
+        byte marker = buffer.get();
+        if (marker != type.getValue()) {
+            throw new IOException("Expected AMF " + type + ", got " + typeOf(marker));
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        need(length);
+        buffer.position(buffer.position() + length);
+    }
+
+    private void need(int length) throws EOFException {
+        if (buffer.remaining() < length) {
+            throw new EOFException("Truncated AMF data: " + length + " bytes needed, " + buffer.remaining() + " left");
+        }
+    }
+
+    private static AmfType typeOf(byte marker) throws IOException {
+        AmfType type = AmfType.valueOf(marker);
+        if (type == null) {
+            throw new IOException("Unknown/unimplemented AMF data type: " + marker);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.util.Arrays;
+
+/**
+ * AMF0 message encoded once, with parameters patched in at each use
+ *
+ * Everything but the parameters (command names, object keys, constant values) is encoded by the
+ * {@link Builder}; writing the message then copies those bytes and encodes the parameters in between.
+ * Parameters are numbered from 0 in the order they were declared.
+ *
+ * <pre>
+ * AmfTemplate publish = new AmfTemplate.Builder()
+ *     .string("publish").number(0).nul().stringParam().stringParam()
+ *     .build();
+ * AmfTemplate.Values values = publish.newValues();
+ * publish.writeTo(writer.reset(), values.setString(0, streamName).setString(1, "live"));
+ * </pre>
+ */
+public final class AmfTemplate {
+
+    private static final byte PARAM_NUMBER = 0;
+    private static final byte PARAM_STRING = 1;
+    private static final byte PARAM_BOOLEAN = 2;
+
+    private final byte[] constant;
+    // Offsets in constant where the parameters go
+    private final int[] paramOffsets;
+    private final byte[] paramTypes;
+
+    private AmfTemplate(byte[] constant, int[] paramOffsets, byte[] paramTypes) {
+        this.constant = constant;
+        this.paramOffsets = paramOffsets;
+        this.paramTypes = paramTypes;
+    }
+
+    public int getParamCount() {
+        return paramTypes.length;
+    }
+
+    /** @return values for the parameters, to be reused from one message to the next */
+    public Values newValues() {
+        return new Values(this);
+    }
+
+    /** Appends the message, with the parameters taken from <code>values</code> */
+    public void writeTo(AmfWriter writer, Values values) {
+        if (values.template != this) {
+            throw new IllegalArgumentException("Values of another template");
+        }
+        int pos = 0;
+        for (int i = 0; i < paramTypes.length; i++) {
+            writer.writeRaw(constant, pos, paramOffsets[i] - pos);
+            pos = paramOffsets[i];
+            switch (paramTypes[i]) {
+                case PARAM_NUMBER:
+                    writer.writeNumber(values.numbers[i]);
+                    break;
+                case PARAM_BOOLEAN:
+                    writer.writeBoolean(values.numbers[i] != 0);
+                    break;
+                default:
+                    writer.writeString(values.strings[i]);
+                    break;
+            }
+        }
+        writer.writeRaw(constant, pos, constant.length - pos);
+    }
+
+    /** Parameters of a template, null strings are written as AMF null */
+    public static final class Values {
+        private final AmfTemplate template;
+        private final double[] numbers;
+        private final CharSequence[] strings;
+
+        private Values(AmfTemplate template) {
+            this.template = template;
+            numbers = new double[template.paramTypes.length];
+            strings = new CharSequence[template.paramTypes.length];
+        }
+
+        public Values setNumber(int param, double value) {
+            check(param, PARAM_NUMBER);
+            numbers[param] = value;
+            return this;
+        }
+
+        public Values setBoolean(int param, boolean value) {
+            check(param, PARAM_BOOLEAN);
+            numbers[param] = value ? 1 : 0;
+            return this;
+        }
+
+        public Values setString(int param, CharSequence value) {
+            check(param, PARAM_STRING);
+            strings[param] = value;
+            return this;
+        }
+
+        private void check(int param, byte type) {
+            if (template.paramTypes[param] != type) {
+                throw new IllegalArgumentException("Parameter " + param + " is not of type " + type);
+            }
+        }
+    }
+
+    /** Encodes the constant part of a template, see {@link AmfWriter} for the values */
+    public static final class Builder {
+        private final AmfWriter writer = new AmfWriter(256);
+        private int[] paramOffsets = new int[8];
+        private byte[] paramTypes = new byte[8];
+        private int paramCount;
+
+        public Builder number(double value) {
+            writer.writeNumber(value);
+            return this;
+        }
+
+        public Builder bool(boolean value) {
+            writer.writeBoolean(value);
+            return this;
+        }
+
+        public Builder string(String value) {
+            writer.writeString(value);
+            return this;
+        }
+
+        public Builder nul() {
+            writer.writeNull();
+            return this;
+        }
+
+        public Builder beginObject() {
+            writer.beginObject();
+            return this;
+        }
+
+        public Builder beginEcmaArray(int count) {
+            writer.beginEcmaArray(count);
+            return this;
+        }
+
+        public Builder key(String key) {
+            writer.writeKey(key);
+            return this;
+        }
+
+        public Builder endObject() {
+            writer.endObject();
+            return this;
+        }
+
+        public Builder numberParam() {
+            return param(PARAM_NUMBER);
+        }
+
+        public Builder booleanParam() {
+            return param(PARAM_BOOLEAN);
+        }
+
+        public Builder stringParam() {
+            return param(PARAM_STRING);
+        }
+
+        private Builder param(byte type) {
+            if (paramCount == paramTypes.length) {
+                paramOffsets = Arrays.copyOf(paramOffsets, paramCount * 2);
+                paramTypes = Arrays.copyOf(paramTypes, paramCount * 2);
+            }
+            paramOffsets[paramCount] = writer.size();
+            paramTypes[paramCount] = type;
+            paramCount++;
+            return this;
+        }
+
+        public AmfTemplate build() {
+            return new AmfTemplate(Arrays.copyOf(writer.array(), writer.size()),
+                Arrays.copyOf(paramOffsets, paramCount), Arrays.copyOf(paramTypes, paramCount));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming AMF0 writer, encoding values straight into a reusable buffer
+ *
+ * Nothing is allocated per value: strings are encoded character by character, numbers with
+ * {@link ByteBuffer#putDouble(double)}. The buffer grows as needed and is kept from one message to the
+ * next; {@link #array()} and {@link #size()} give the message encoded since the last {@link #reset()}.
+ *
+ * Strings are ASCII, as everywhere else in this package.
+ */
+public final class AmfWriter {
+
+    private ByteBuffer buffer;
+
+    public AmfWriter() {
+        this(512);
+    }
+
+    public AmfWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /** Starts a new message, the previous one is overwritten */
+    public AmfWriter reset() {
+        buffer.clear();
+        return this;
+    }
+
+    /** @return the array the message is encoded in, from offset 0 */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /** @return the length of the message encoded so far */
+    public int size() {
+        return buffer.position();
+    }
+
+    /** @return the message encoded so far, as a new read-only view */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    public AmfWriter writeNumber(double value) {
+        ensure(9);
+        buffer.put(AmfType.NUMBER.getValue());
+        buffer.putDouble(value);
+        return this;
+    }
+
+    public AmfWriter writeBoolean(boolean value) {
+        ensure(2);
+        buffer.put(AmfType.BOOLEAN.getValue());
+        buffer.put((byte) (value ? 1 : 0));
+        return this;
+    }
+
+    /** Writes a string value, or null if <code>value</code> is null */
+    public AmfWriter writeString(CharSequence value) {
+        if (value == null) {
+            return writeNull();
+        }
+        ensure(1);
+        buffer.put(AmfType.STRING.getValue());
+        return writeKey(value);
+    }
+
+    /** Writes an object key, that is a string without its type marker */
+    public AmfWriter writeKey(CharSequence key) {
+        int length = key.length();
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("AMF0 string too long: " + length + " characters");
+        }
+        ensure(2 + length);
+        buffer.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            // Like String.getBytes("ASCII")
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        return this;
+    }
+
+    public AmfWriter writeNull() {
+        ensure(1);
+        buffer.put(AmfType.NULL.getValue());
+        return this;
+    }
+
+    public AmfWriter writeUndefined() {
+        ensure(1);
+        buffer.put(AmfType.UNDEFINED.getValue());
+        return this;
+    }
+
+    /** Begins an object, to be followed by key/value pairs and {@link #endObject()} */
+    public AmfWriter beginObject() {
+        ensure(1);
+        buffer.put(AmfType.OBJECT.getValue());
+        return this;
+    }
+
+    /** Begins an ECMA array, written like an object but for its count */
+    public AmfWriter beginEcmaArray(int count) {
+        ensure(5);
+        buffer.put(AmfType.MAP.getValue());
+        buffer.putInt(count);
+        return this;
+    }
+
+    /** Ends an object or an ECMA array */
+    public AmfWriter endObject() {
+        ensure(3);
+        buffer.put(AmfObject.OBJECT_END_MARKER);
+        return this;
+    }
+
+    /** Copies bytes already encoded */
+    public AmfWriter writeRaw(byte[] bytes, int offset, int length) {
+        ensure(length);
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
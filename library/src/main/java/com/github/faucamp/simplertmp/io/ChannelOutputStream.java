@@ -0,0 +1,250 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * OutputStream gathering everything written to it into a single
+ * {@link GatheringByteChannel#write(ByteBuffer[], int, int)} call.
+ *
+ * Small writes (chunk headers, control messages) are copied into a staging array, large writes (chunk
+ * payloads) are only referenced as slices of the caller's array, so a whole message goes to the socket
+ * without being copied. The ByteBuffer views over both are reused from one write to the next.
+ *
+ * On a non-blocking channel {@link #flush()} only writes what the socket accepts; the owner is expected
+ * to call {@link #writePending()} again once the channel is writable, and not to reuse arrays while
+ * {@link #isBorrowing()}.
+ *
+ * Arrays whose owner is given to {@link #commit(RtmpPublisher.BufferOwner)} are lent rather than
+ * borrowed: they stay pending until the next flush, the owner retained until they are written.
+ */
+class ChannelOutputStream extends OutputStream {
+
+    /** Writes shorter than this are copied, longer ones are referenced */
+    private static final int COPY_THRESHOLD = 512;
+    private static final int STAGING_SIZE = 16 * 1024;
+    /** Bound on the number of distinct arrays we keep views for */
+    private static final int MAX_VIEWED_ARRAYS = 64;
+
+    /** ByteBuffer views over one array, one per slice of it in the current gathering write */
+    private static final class Views {
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        int used;
+    }
+
+    private final SocketChannel channel;
+    private byte[] staging = new byte[STAGING_SIZE];
+    private int stagingStart;
+    private int stagingPos;
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    private int segmentCount;
+    private int segmentOffset;
+    // the last segment borrowed from an array without an owner.
+    private int lastBorrowedSegment = -1;
+    private RtmpPublisher.BufferOwner[] owners = new RtmpPublisher.BufferOwner[16];
+    // the last segment lent by each owner, released in order as the segments are written.
+    private int[] ownerLastSegments = new int[16];
+    private int ownerCount;
+    private int ownersReleased;
+    private final IdentityHashMap<byte[], Views> views = new IdentityHashMap<>();
+    private Views[] touched = new Views[8];
+    private int touchedCount;
+
+    ChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureStaging(1);
+        staging[stagingPos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len < COPY_THRESHOLD) {
+            ensureStaging(len);
+            System.arraycopy(b, off, staging, stagingPos, len);
+            stagingPos += len;
+        } else {
+            closeStagingRun();
+            addSegment(slice(b, off, len));
+            lastBorrowedSegment = segmentCount - 1;
+        }
+    }
+
+    /**
+     * Writes out pending data if some of it still references the caller's arrays, or lends them until
+     * written if they have an owner
+     */
+    public void commit(RtmpPublisher.BufferOwner owner) throws IOException {
+        if (!isBorrowing()) {
+            return;
+        }
+        if (owner == null) {
+            flush();
+            return;
+        }
+        owner.retain();
+        synchronized (this) {
+            if (ownerCount == owners.length) {
+                owners = Arrays.copyOf(owners, ownerCount * 2);
+                ownerLastSegments = Arrays.copyOf(ownerLastSegments, ownerCount * 2);
+            }
+            owners[ownerCount] = owner;
+            ownerLastSegments[ownerCount] = lastBorrowedSegment;
+            ownerCount++;
+        }
+        lastBorrowedSegment = -1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // A blocking channel always takes everything
+        writePending();
+    }
+
+    /**
+     * Writes as much pending data as the channel accepts.
+     *
+     * @return <code>true</code> if nothing is pending anymore
+     */
+    public boolean writePending() throws IOException {
+        closeStagingRun();
+        while (segmentOffset < segmentCount) {
+            long written = channel.write(segments, segmentOffset, segmentCount - segmentOffset);
+            while (segmentOffset < segmentCount && !segments[segmentOffset].hasRemaining()) {
+                segmentOffset++;
+            }
+            releaseOwners(segmentOffset);
+            if (written == 0 && segmentOffset < segmentCount) {
+                // Socket send buffer is full
+                return false;
+            }
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * Gives up on the pending data, releasing the owners of what was lent, once the channel is closed
+     */
+    public void discard() {
+        releaseOwners(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return <code>true</code> while pending data still references one of the caller's arrays, without
+     * an owner
+     */
+    public boolean isBorrowing() {
+        return lastBorrowedSegment >= segmentOffset;
+    }
+
+    /** @return the number of bytes not written to the channel yet */
+    public int pendingLength() {
+        int length = stagingPos - stagingStart;
+        for (int i = segmentOffset; i < segmentCount; i++) {
+            length += segments[i].remaining();
+        }
+        return length;
+    }
+
+    private void ensureStaging(int len) throws IOException {
+        if (stagingPos + len > staging.length) {
+            if (!writePending()) {
+                // Pending segments keep the full array alive, go on copying into a fresh one
+                staging = new byte[Math.max(STAGING_SIZE, len)];
+                stagingStart = 0;
+                stagingPos = 0;
+            }
+        }
+    }
+
+    /** Turns the bytes copied since the previous segment into a segment of their own */
+    private void closeStagingRun() {
+        if (stagingPos > stagingStart) {
+            addSegment(slice(staging, stagingStart, stagingPos - stagingStart));
+            stagingStart = stagingPos;
+        }
+    }
+
+    private void addSegment(ByteBuffer segment) {
+        if (segmentCount == segments.length) {
+            ByteBuffer[] grown = new ByteBuffer[segments.length * 2];
+            System.arraycopy(segments, 0, grown, 0, segmentCount);
+            segments = grown;
+        }
+        segments[segmentCount++] = segment;
+    }
+
+    private ByteBuffer slice(byte[] array, int off, int len) {
+        Views v = views.get(array);
+        if (v == null) {
+            if (views.size() >= MAX_VIEWED_ARRAYS) {
+                views.clear();
+            }
+            v = new Views();
+            views.put(array, v);
+        }
+        if (v.used == 0) {
+            if (touchedCount == touched.length) {
+                Views[] grown = new Views[touched.length * 2];
+                System.arraycopy(touched, 0, grown, 0, touchedCount);
+                touched = grown;
+            }
+            touched[touchedCount++] = v;
+        }
+        if (v.used == v.buffers.length) {
+            ByteBuffer[] grown = new ByteBuffer[v.buffers.length * 2];
+            System.arraycopy(v.buffers, 0, grown, 0, v.used);
+            v.buffers = grown;
+        }
+        ByteBuffer buffer = v.buffers[v.used];
+        if (buffer == null) {
+            buffer = ByteBuffer.wrap(array);
+            v.buffers[v.used] = buffer;
+        }
+        v.used++;
+        buffer.clear();
+        buffer.position(off);
+        buffer.limit(off + len);
+        return buffer;
+    }
+
+    /** Releases the owners of the segments before this one, whichever thread wrote or discarded them */
+    private synchronized void releaseOwners(int segment) {
+        while (ownersReleased < ownerCount && ownerLastSegments[ownersReleased] < segment) {
+            RtmpPublisher.BufferOwner owner = owners[ownersReleased];
+            owners[ownersReleased++] = null;
+            owner.release();
+        }
+        if (ownersReleased == ownerCount) {
+            ownersReleased = 0;
+            ownerCount = 0;
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = null;
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            touched[i].used = 0;
+            touched[i] = null;
+        }
+        segmentCount = 0;
+        segmentOffset = 0;
+        touchedCount = 0;
+        stagingStart = 0;
+        stagingPos = 0;
+        lastBorrowedSegment = -1;
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * RTMP transport over a blocking socket channel, sending chunk headers and payload slices with
+ * gathering writes.
+ */
+class ChannelTransport implements RtmpTransport {
+
+    private SocketChannel channel;
+    private BufferedInputStream inputStream;
+    private ChannelOutputStream outputStream;
+
+    @Override
+    public void connect(SocketAddress address, int timeout) throws IOException {
+        channel = SocketChannel.open();
+        channel.socket().connect(address, timeout);
+        inputStream = new BufferedInputStream(channel.socket().getInputStream());
+        outputStream = new ChannelOutputStream(channel);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void commit(RtmpPublisher.BufferOwner owner) throws IOException {
+        outputStream.commit(owner);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        channel.socket().setSendBufferSize(size);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        // Closed already when interrupted, or when connecting failed
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        channel.socket().shutdownInput();
+        channel.socket().shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        if (outputStream != null) {
+            outputStream.discard();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Reusable read-only stream over a range of a byte array
+ */
+class ChunkInputStream extends ByteArrayInputStream {
+
+    ChunkInputStream() {
+        super(new byte[0]);
+    }
+
+    /** Points this stream at <code>len</code> bytes of <code>buf</code> starting from <code>off</code> */
+    void reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.pos = off;
+        this.mark = off;
+        this.count = off + len;
+    }
+}
@@ -1,12 +1,13 @@
 package com.github.faucamp.simplertmp.io;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.Video;
 
 /**
  * Chunk stream channel information
@@ -21,20 +22,36 @@ public class ChunkStreamInfo {
     public static final byte RTMP_CID_OVER_STREAM = 0x05;
     public static final byte RTMP_CID_VIDEO = 0x06;
     public static final byte RTMP_CID_AUDIO = 0x07;
+    public static final byte RTMP_CID_AGGREGATE = 0x08;
     private RtmpHeader prevHeaderRx;
     private RtmpHeader prevHeaderTx;
-    private static long sessionBeginTimestamp;
-    private long realLastTimestamp = System.nanoTime() / 1000000;  // Do not use wall time!
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream(1024 * 128);
+    // Reassembly buffer of the message being received, grown to the largest message seen
+    private byte[] rxBuffer;
+    private int rxStored;
+    private final ChunkInputStream rxStream = new ChunkInputStream();
+    private Audio rxAudio;
+    private Video rxVideo;
 
     /** @return the previous header that was received on this channel, or <code>null</code> if no previous header was received */
     public RtmpHeader prevHeaderRx() {
         return prevHeaderRx;
     }
 
-    /** Sets the previous header that was received on this channel, or <code>null</code> if no previous header was sent */
+    /** Sets the previous header that was received on this channel; it is copied since the received one is updated in place */
     public void setPrevHeaderRx(RtmpHeader previousHeader) {
-        this.prevHeaderRx = previousHeader;
+        if (prevHeaderRx == null) {
+            prevHeaderRx = new RtmpHeader();
+        }
+        prevHeaderRx.copyFrom(previousHeader);
+    }
+
+    /** Reads the header of the next chunk received on this channel over the previous one */
+    RtmpHeader readHeaderRx(InputStream in, int basicHeaderByte) throws IOException {
+        if (prevHeaderRx == null) {
+            prevHeaderRx = new RtmpHeader();
+        }
+        prevHeaderRx.readFrom(in, basicHeaderByte, rxStored > 0);
+        return prevHeaderRx;
     }
 
     /** @return the previous header that was transmitted on this channel */
@@ -46,46 +63,67 @@ public class ChunkStreamInfo {
         return (prevHeaderTx != null && prevHeaderTx.getMessageType() == forMessageType);
     }
 
-    /** Sets the previous header that was transmitted on this channel */
-    public void setPrevHeaderTx(RtmpHeader prevHeaderTx) {
-        this.prevHeaderTx = prevHeaderTx;
+    /** Sets the previous header that was transmitted on this channel; it is copied since packets may be reused */
+    public void setPrevHeaderTx(RtmpHeader header) {
+        if (prevHeaderTx == null) {
+            prevHeaderTx = new RtmpHeader();
+        }
+        prevHeaderTx.copyFrom(header);
+    }
+
+    /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
+    public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
+        final int packetLength = prevHeaderRx.getPacketLength();
+        if (rxBuffer == null || rxBuffer.length < packetLength) {
+            byte[] grown = new byte[Math.max(packetLength, rxBuffer == null ? 1024 : rxBuffer.length * 2)];
+            if (rxStored > 0) {
+                System.arraycopy(rxBuffer, 0, grown, 0, rxStored);
+            }
+            rxBuffer = grown;
+        }
+        final int chunkLength = Math.min(packetLength - rxStored, chunkSize);
+        Util.readBytesUntilFull(in, rxBuffer, rxStored, chunkLength);
+        rxStored += chunkLength;
+        return (rxStored == packetLength);
     }
 
-    /** Sets the session beginning timestamp for all chunks */
-    public static void markSessionTimestampTx() {
-        sessionBeginTimestamp = System.nanoTime() / 1000000;
+    /** @return the number of bytes stored so far for the message being received */
+    public int getStoredLength() {
+        return rxStored;
     }
 
-    /** Utility method for calculating & synchronizing transmitted timestamps */
-    public long markAbsoluteTimestampTx() {
-        return System.nanoTime() / 1000000 - sessionBeginTimestamp;
+    /**
+     * @return a view over the stored packet, valid until the next chunk is stored on this channel
+     */
+    public ByteArrayInputStream getStoredPacketInputStream() {
+        rxStream.reset(rxBuffer, 0, rxStored);
+        rxStored = 0;
+        return rxStream;
     }
 
-    /** Utility method for calculating & synchronizing transmitted timestamp deltas */
-    public long markDeltaTimestampTx() {
-        long currentTimestamp = System.nanoTime() / 1000000;
-        long diffTimestamp = currentTimestamp - realLastTimestamp;
-        realLastTimestamp = currentTimestamp;
-        return diffTimestamp;
+    /** @return the array backing {@link #getStoredPacketInputStream()}, the packet starts at offset 0 */
+    byte[] getStoredPacketArray() {
+        return rxBuffer;
     }
 
-    /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
-    public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
-        final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
-        byte[] chunk = new byte[Math.min(remainingBytes, chunkSize)];
-        Util.readBytesUntilFull(in, chunk);
-        baos.write(chunk);
-        return (baos.size() == prevHeaderRx.getPacketLength());
+    /** Audio packet reused for every audio message received on this channel */
+    Audio rxAudio() {
+        if (rxAudio == null) {
+            rxAudio = new Audio(prevHeaderRx);
+        }
+        return rxAudio;
     }
 
-    public ByteArrayInputStream getStoredPacketInputStream() {
-        ByteArrayInputStream bis = new ByteArrayInputStream(baos.toByteArray());
-        baos.reset();
-        return bis;
+    /** Video packet reused for every video message received on this channel */
+    Video rxVideo() {
+        if (rxVideo == null) {
+            rxVideo = new Video(prevHeaderRx);
+        }
+        return rxVideo;
     }
-    
+
     /** Clears all currently-stored packet chunks (used when an ABORT packet is received) */
     public void clearStoredChunks() {
-        baos.reset();
+        rxStored = 0;
     }
 }
@@ -0,0 +1,349 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RTMP transport driven by an {@link RtmpEventLoop}.
+ *
+ * The socket is connected and the handshake is done in blocking mode through the streams of this
+ * transport; {@link #start(Callback)} then hands the socket over to the event loop. From there on
+ * everything touching the socket runs on the loop thread: received bytes are delivered to the callback,
+ * and other threads send through {@link #runAndWait(Runnable)}, which returns once the loop wrote the
+ * data out, or copied it, and is ready for more. That is the backpressure a publishing thread sees.
+ */
+class EventLoopTransport implements RtmpTransport {
+
+    /** Receives the events of the transport, always on the event loop thread */
+    interface Callback {
+        /**
+         * @return the number of bytes consumed, unconsumed bytes are presented again with more data
+         */
+        int onReceive(byte[] buf, int off, int len) throws IOException;
+
+        /** Called at least every {@link RtmpEventLoop#TIMER_INTERVAL_MS} */
+        void onTimer(long nowNanos);
+
+        /** @param cause <code>null</code> when the peer closed the connection */
+        void onClosed(IOException cause);
+    }
+
+    private static final int RX_BUFFER_SIZE = 64 * 1024;
+    /** A sender is held back while more than this is waiting for the socket */
+    private static final int TX_HIGH_WATERMARK = 64 * 1024;
+
+    private final RtmpEventLoop eventLoop;
+    private SocketChannel channel;
+    private BufferedInputStream inputStream;
+    private ChannelOutputStream outputStream;
+    private SelectionKey key;
+    private Callback callback;
+    private byte[] rxBuffer = new byte[RX_BUFFER_SIZE];
+    private int rxLength;
+    private ByteBuffer rxByteBuffer = ByteBuffer.wrap(rxBuffer);
+    private long lastTimerNanos;
+
+    private volatile boolean closed;
+    private volatile boolean registered;
+    private volatile boolean released;
+    private volatile boolean flushRequested;
+    /** Task of a sending thread, cleared by the loop once the data is out of the sender's hands */
+    private volatile Runnable task;
+    private boolean taskRan;
+    private Thread taskOwner;
+
+    EventLoopTransport(RtmpEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void connect(SocketAddress address, int timeout) throws IOException {
+        channel = SocketChannel.open();
+        channel.socket().connect(address, timeout);
+        inputStream = new BufferedInputStream(channel.socket().getInputStream());
+        outputStream = new ChannelOutputStream(channel);
+    }
+
+    /**
+     * Switches to non-blocking mode and hands the socket over to the event loop, no stream of this
+     * transport may be used by the caller anymore.
+     */
+    void start(Callback callback) throws IOException {
+        this.callback = callback;
+        outputStream.flush();
+        // Keep whatever the server sent right after the handshake
+        int buffered = Math.min(inputStream.available(), rxBuffer.length);
+        while (rxLength < buffered) {
+            rxLength += inputStream.read(rxBuffer, rxLength, buffered - rxLength);
+        }
+        channel.configureBlocking(false);
+        eventLoop.register(this);
+    }
+
+    boolean inEventLoop() {
+        return eventLoop.inEventLoop();
+    }
+
+    /**
+     * Runs the task on the event loop thread and waits until every array it wrote from may be reused
+     * and the socket is ready to take more. Only one thread at a time may call this.
+     *
+     * An interrupted caller gives up, and the transport is closed as an interrupted channel would be:
+     * there is no telling what of the data went out.
+     */
+    void runAndWait(Runnable r) {
+        if (closed) {
+            return;
+        }
+        taskOwner = Thread.currentThread();
+        task = r;
+        eventLoop.wakeup();
+        while (task != null && !closed) {
+            if (Thread.currentThread().isInterrupted()) {
+                closed = true;
+                eventLoop.wakeup();
+                // The loop may still be writing from the caller's arrays
+                awaitRelease();
+                break;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        task = null;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void commit(RtmpPublisher.BufferOwner owner) throws IOException {
+        if (callback == null || eventLoop.inEventLoop()) {
+            // Lent arrays stay pending, runAndWait holds the sender back until borrowed ones are written
+            outputStream.commit(owner);
+        } else {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (callback == null) {
+            // Not handed over to the event loop yet, still in blocking mode
+            outputStream.flush();
+        } else if (eventLoop.inEventLoop()) {
+            writePending();
+        } else {
+            flushRequested = true;
+            eventLoop.wakeup();
+        }
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        channel.socket().setSendBufferSize(size);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        closed = true;
+        LockSupport.unpark(taskOwner);
+        if (channel != null && channel.isOpen()) {
+            channel.socket().shutdownInput();
+            channel.socket().shutdownOutput();
+        }
+        eventLoop.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(taskOwner);
+        eventLoop.wakeup();
+        // Like joining an rx thread: the callback is not running anymore once this returns
+        awaitRelease();
+        if (channel != null) {
+            channel.close();
+        }
+        if (!registered && outputStream != null) {
+            // Never handed over to the loop, connecting may have failed before the stream existed
+            outputStream.discard();
+        }
+    }
+
+    /** Waits a while for the loop to drop this transport once closed, from any other thread */
+    private void awaitRelease() {
+        if (registered && !eventLoop.inEventLoop()) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (!released && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RtmpEventLoop.TIMER_INTERVAL_MS));
+            }
+        }
+    }
+
+    void onRegister(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        registered = true;
+        lastTimerNanos = System.nanoTime();
+        if (rxLength > 0) {
+            deliver();
+        }
+    }
+
+    void onError(IOException ioe) {
+        if (!closed) {
+            closed = true;
+            LockSupport.unpark(taskOwner);
+            callback.onClosed(ioe);
+        }
+    }
+
+    void onReadable() {
+        try {
+            if (rxLength == rxBuffer.length) {
+                // A single chunk does not fit, chunk size must have grown
+                byte[] grown = new byte[rxBuffer.length * 2];
+                System.arraycopy(rxBuffer, 0, grown, 0, rxLength);
+                rxBuffer = grown;
+                rxByteBuffer = ByteBuffer.wrap(rxBuffer);
+            }
+            rxByteBuffer.limit(rxBuffer.length).position(rxLength);
+            int read = channel.read(rxByteBuffer);
+            if (read < 0) {
+                key.cancel();
+                onError(rxLength > 0 ? new EOFException("Unexpected EOF inside an RTMP chunk") : null);
+                return;
+            }
+            rxLength += read;
+            deliver();
+        } catch (IOException ioe) {
+            key.cancel();
+            onError(ioe);
+        } catch (RuntimeException re) {
+            key.cancel();
+            onError(new IOException("Failed to handle received data", re));
+        }
+    }
+
+    private void deliver() throws IOException {
+        int consumed = callback.onReceive(rxBuffer, 0, rxLength);
+        rxLength -= consumed;
+        if (consumed > 0 && rxLength > 0) {
+            System.arraycopy(rxBuffer, consumed, rxBuffer, 0, rxLength);
+        }
+    }
+
+    void onWritable() {
+        try {
+            writePending();
+        } catch (IOException ioe) {
+            key.cancel();
+            onError(ioe);
+        } catch (RuntimeException re) {
+            key.cancel();
+            onError(new IOException("Failed to write pending data", re));
+        }
+    }
+
+    /**
+     * Runs the pending task, flush request and timer.
+     *
+     * @return <code>false</code> once this transport should be dropped from the loop
+     */
+    boolean onLoop(long now) {
+        if (closed || !key.isValid()) {
+            key.cancel();
+            release();
+            LockSupport.unpark(taskOwner);
+            return false;
+        }
+        try {
+            Runnable r = task;
+            if (r != null && !taskRan) {
+                r.run();
+                taskRan = true;
+                if (outputStream.isBorrowing() || outputStream.pendingLength() > TX_HIGH_WATERMARK) {
+                    writePending();
+                } else {
+                    // Only lent arrays left, written along with the next flush
+                    releaseSender();
+                }
+            }
+            if (flushRequested) {
+                flushRequested = false;
+                writePending();
+            }
+            if (now - lastTimerNanos >= TimeUnit.MILLISECONDS.toNanos(RtmpEventLoop.TIMER_INTERVAL_MS)) {
+                lastTimerNanos = now;
+                callback.onTimer(now);
+            }
+        } catch (IOException ioe) {
+            key.cancel();
+            onError(ioe);
+            release();
+            return false;
+        } catch (RuntimeException re) {
+            key.cancel();
+            onError(new IOException("Failed to run the event loop task", re));
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops this transport after a failure that escaped its own handlers, e.g. from the callback, so
+     * that the loop goes on with the other transports.
+     */
+    void abort(RuntimeException re) {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            onError(new IOException("Unexpected failure on the event loop", re));
+        } catch (RuntimeException again) {
+            // Closed anyway, the callback failed on the way out as well
+        } finally {
+            release();
+        }
+    }
+
+    /** Drops the pending data along with the owners of its arrays, this transport leaving the loop */
+    private void release() {
+        outputStream.discard();
+        released = true;
+    }
+
+    private void writePending() throws IOException {
+        boolean done = outputStream.writePending();
+        key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (taskRan && !outputStream.isBorrowing() && outputStream.pendingLength() <= TX_HIGH_WATERMARK) {
+            releaseSender();
+        }
+    }
+
+    private void releaseSender() {
+        // Sender may reuse its arrays and go on
+        taskRan = false;
+        task = null;
+        LockSupport.unpark(taskOwner);
+    }
+}
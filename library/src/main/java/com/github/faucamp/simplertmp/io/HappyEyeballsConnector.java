@@ -0,0 +1,148 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a transport to the first address of the server that answers, in the way of happy eyeballs
+ * (RFC 8305): addresses are tried in turn, alternating IPv6 and IPv4, each attempt getting a head
+ * start of {@link #ATTEMPT_DELAY_MS} before the next one is raced against it. A dead or filtered
+ * address family thus costs a fraction of a second instead of a whole connection timeout.
+ *
+ * Attempts which lose the race close their transport as soon as they are done.
+ */
+class HappyEyeballsConnector {
+
+    /** Connection Attempt Delay recommended by RFC 8305 */
+    static final int ATTEMPT_DELAY_MS = 250;
+
+    interface TransportFactory {
+        RtmpTransport create() throws IOException;
+    }
+
+    private final TransportFactory factory;
+    private RtmpTransport winner;
+    private IOException lastError;
+    private int failures;
+    private boolean done;
+
+    private HappyEyeballsConnector(TransportFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Resolves the host and connects to whichever of its addresses answers first.
+     *
+     * @param timeoutMillis time given to the whole race
+     */
+    static RtmpTransport connect(String host, int port, int timeoutMillis, TransportFactory factory)
+        throws IOException {
+        List<InetAddress> addresses = interleave(InetAddress.getAllByName(host));
+        if (addresses.size() == 1) {
+            RtmpTransport transport = factory.create();
+            transport.connect(new InetSocketAddress(addresses.get(0), port), timeoutMillis);
+            return transport;
+        }
+        return new HappyEyeballsConnector(factory).race(addresses, port, timeoutMillis);
+    }
+
+    /** Alternates the address families, starting with the resolver's first choice */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private synchronized RtmpTransport race(List<InetAddress> addresses, int port, int timeoutMillis)
+        throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int started = 0;
+        try {
+            while (winner == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (started == addresses.size() && failures == started)) {
+                    break;
+                }
+                // The next attempt starts when this one failed or got no answer for a while
+                long wait = remaining;
+                if (started < addresses.size()) {
+                    startAttempt(addresses.get(started++), port, timeoutMillis);
+                    wait = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MS));
+                }
+                long until = System.nanoTime() + wait;
+                int failed = failures;
+                while (winner == null && failures == failed && (wait = until - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            done = true;
+        }
+
+        if (winner == null) {
+            throw lastError != null ? lastError : new SocketTimeoutException("connect timed out");
+        }
+        return winner;
+    }
+
+    private void startAttempt(final InetAddress address, final int port, final int timeoutMillis) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RtmpTransport transport = null;
+                IOException error = null;
+                try {
+                    transport = factory.create();
+                    transport.connect(new InetSocketAddress(address, port), timeoutMillis);
+                } catch (IOException ioe) {
+                    error = ioe;
+                }
+                onAttemptDone(transport, error);
+            }
+        }, "RtmpConnect " + address.getHostAddress()).start();
+    }
+
+    private synchronized void onAttemptDone(RtmpTransport transport, IOException error) {
+        if (error == null && winner == null && !done) {
+            winner = transport;
+        } else {
+            if (error != null) {
+                lastError = error;
+                failures++;
+            }
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException ioe) {
+                    // Lost anyway
+                }
+            }
+        }
+        notifyAll();
+    }
+}
@@ -4,33 +4,39 @@ import android.util.Log;
 
 import com.github.faucamp.simplertmp.RtmpHandler;
 import com.github.faucamp.simplertmp.RtmpPublisher;
-import com.github.faucamp.simplertmp.amf.AmfMap;
-import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.StreamingEventCoalescer;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfObject;
 import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.amf.AmfTemplate;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
 import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.VariableBodyRtmpPacket;
 import com.github.faucamp.simplertmp.packets.Video;
 import com.github.faucamp.simplertmp.packets.WindowAckSize;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -45,6 +51,86 @@ public class RtmpConnection implements RtmpPublisher {
 
     private static final String TAG = "RtmpConnection";
     private static final Pattern rtmpUrlPattern = Pattern.compile("^rtmp://([^/:]+)(:(\\d+))*/([^/]+)(/(.*))*$");
+    /** Outgoing chunk size announced to the server once connected, in bytes */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    /** Protocol default, also the smallest size we announce */
+    public static final int MIN_CHUNK_SIZE = 128;
+    /** Most servers (SRS, nginx-rtmp) refuse anything larger */
+    public static final int MAX_CHUNK_SIZE = 65536;
+    /** Longest time audio/video messages may stay buffered while the sender keeps writing */
+    private static final long FLUSH_DEADLINE_NANOS = 20 * 1000 * 1000;
+    /** Window announced to the server, small enough to get several acknowledgements per second */
+    public static final int ACK_WINDOW_SIZE = 64 * 1024;
+    /**
+     * Deadlines of the media, relative to their dts: the smaller, the higher the priority. Audio due
+     * before the deadline of the video message being chunked out is sent between its chunks.
+     */
+    private static final int AUDIO_DEADLINE_MS = 0;
+    private static final int VIDEO_DEADLINE_MS = 1000;
+    /** Pending audio is looked at this often while waiting for the pacer */
+    private static final long PACING_SLICE_NANOS = 5 * 1000 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    /** Largest aggregate message, the tags added beyond go in the next one */
+    private static final int MAX_AGGREGATE_SIZE = 16 * 1024;
+
+    // Commands and metadata encoded once, parameters in the order of the comments
+    /** transaction id, app, swfUrl, tcUrl, pageUrl */
+    private static final AmfTemplate CONNECT = new AmfTemplate.Builder()
+        .string("connect").numberParam()
+        .beginObject()
+        .key("app").stringParam()
+        .key("flashVer").string("LNX 11,2,202,233") // Flash player OS: Linux, version: 11.2.202.233
+        .key("swfUrl").stringParam()
+        .key("tcUrl").stringParam()
+        .key("fpad").bool(false)
+        .key("capabilities").number(239)
+        .key("audioCodecs").number(3575)
+        .key("videoCodecs").number(252)
+        .key("videoFunction").number(1)
+        .key("pageUrl").stringParam()
+        .key("objectEncoding").number(0)
+        .endObject()
+        .build();
+    /** transaction id, stream name */
+    private static final AmfTemplate RELEASE_STREAM = new AmfTemplate.Builder()
+        .string("releaseStream").numberParam().nul().stringParam().build();
+    /** transaction id, stream name */
+    private static final AmfTemplate FC_PUBLISH = new AmfTemplate.Builder()
+        .string("FCPublish").numberParam().nul().stringParam().build();
+    /** transaction id */
+    private static final AmfTemplate CREATE_STREAM = new AmfTemplate.Builder()
+        .string("createStream").numberParam().nul().build();
+    /** stream name, publish type */
+    private static final AmfTemplate PUBLISH = new AmfTemplate.Builder()
+        .string("publish").number(0).nul().stringParam().stringParam().build();
+    private static final AmfTemplate CLOSE_STREAM = new AmfTemplate.Builder()
+        .string("closeStream").number(0).nul().build();
+    /**
+     * The onMetaData the server keeps for the players joining, width and height as parameters; also
+     * muxed as a script tag by the FLV muxer on a resolution change
+     */
+    public static final AmfTemplate SET_DATA_FRAME = new AmfTemplate.Builder()
+        .string("@setDataFrame").string("onMetaData")
+        .beginEcmaArray(10)
+        .key("duration").number(0)
+        .key("width").numberParam()
+        .key("height").numberParam()
+        .key("videodatarate").number(0)
+        .key("framerate").number(0)
+        .key("audiodatarate").number(0)
+        .key("audiosamplerate").number(44100)
+        .key("audiosamplesize").number(16)
+        .key("stereo").bool(true)
+        .key("filesize").number(0)
+        .endObject()
+        .build();
+    /** Commands are written out before the packet is sent, by whichever thread sends them */
+    private static final ThreadLocal<AmfWriter> amfWriter = new ThreadLocal<AmfWriter>() {
+        @Override
+        protected AmfWriter initialValue() {
+            return new AmfWriter();
+        }
+    };
 
     private RtmpHandler mHandler;
     private int port;
@@ -55,32 +141,101 @@ public class RtmpConnection implements RtmpPublisher {
     private String swfUrl;
     private String tcUrl;
     private String pageUrl;
-    private Socket socket;
+    private RtmpTransport.Type transportType = RtmpTransport.Type.SOCKET;
+    private volatile boolean fastStart;
+    // Commands written meanwhile go out with the next one instead of on their own
+    private volatile boolean pipelining;
+    // releaseStream, FCPublish and createStream were sent
+    private volatile boolean streamRequested;
+    private RtmpTransport transport;
+    /** Same as {@link #transport} when it is driven by the event loop */
+    private EventLoopTransport loopTransport;
     private String srsServerInfo = "";
     private String socketExceptionCause = "";
     private RtmpSessionInfo rtmpSessionInfo;
     private RtmpDecoder rtmpDecoder;
-    private BufferedInputStream inputStream;
-    private BufferedOutputStream outputStream;
+    private InputStream inputStream;
+    private CountingOutputStream outputStream;
+    private volatile RtmpTransportStats transportStats;
+    private long pingIntervalNanos;
+    private long lastPingNanos;
+    private long connectStartNanos;
+    private final Object txLock = new Object();
+    private long unflushedSinceNanos = -1;
+    // Packet handed over to the event loop by txTask, or null for a flush
+    private RtmpPacket txPacket;
+    private final Runnable txTask = new Runnable() {
+        @Override
+        public void run() {
+            if (txPacket != null) {
+                writeRtmpPacket(txPacket);
+            } else {
+                flushPending();
+            }
+        }
+    };
+    // Next chunk of the video message written by txVideoChunkTask
+    private int videoChunkOffset;
+    private final Runnable txVideoChunkTask = new Runnable() {
+        @Override
+        public void run() {
+            writeVideoChunk();
+        }
+    };
+    private volatile AudioSource audioSource;
+    private final SendPacer pacer = new SendPacer();
+    private volatile float pacingMultiplier;
+    private volatile int pacingBurstBytes;
+    private volatile int pacingTargetBitrate;
+    private volatile double videoBitrate;
+    private volatile double audioBitrate;
+    private volatile int aggregationBudgetMillis;
+    // Audio and small video tags waiting to go out together, only touched by the publishing thread
+    private final Aggregate aggregate = new Aggregate();
+    private long aggregateSinceNanos;
+    // Set while a video message which is not aggregated goes out, the audio meanwhile is not either
+    private boolean sendingVideo;
+    private final ChunkInputStream rxChunkStream = new ChunkInputStream();
     private Thread rxPacketHandler;
     private volatile boolean connected = false;
     private volatile boolean publishPermitted = false;
+    // The transport failed, nothing more can be published on this connection
+    private volatile boolean connectionLost = false;
+    // Closed on our side, what the rx thread reads fails because of it
+    private volatile boolean shuttingDown = false;
     private final Object connectingLock = new Object();
     private final Object publishLock = new Object();
     private AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
     private int currentStreamId = 0;
     private int transactionIdCounter = 0;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    // Reused for every published frame, only ever touched by the publishing thread
+    private final Video video = new Video();
+    private final Audio audio = new Audio();
+    // Owners of the arrays of video and audio while they are being sent, retained by the transport
+    // which goes on writing from them
+    private RtmpPublisher.BufferOwner videoOwner;
+    private RtmpPublisher.BufferOwner audioOwner;
+    private final Data timedData = new Data("onMetaData");
     private AmfString serverIpAddr;
     private AmfNumber serverPid;
     private AmfString serverId;
     private int videoWidth;
     private int videoHeight;
-    private int videoFrameCount;
-    private int videoDataLength;
-    private int audioFrameCount;
-    private int audioDataLength;
-    private long videoLastTimeMillis;
-    private long audioLastTimeMillis;
+    // Frames sent are counted, fps and bitrates come once per event interval of the handler
+    private final StreamingEventCoalescer streamingEvents = new StreamingEventCoalescer(new StreamingEventCoalescer.Sink() {
+        @Override
+        public void onSnapshot(StreamingEventCoalescer.Snapshot snapshot) {
+            if (snapshot.getVideoFrames() > 0) {
+                videoBitrate = snapshot.getVideoBitrate();
+            }
+            if (snapshot.getAudioFrames() > 0) {
+                audioBitrate = snapshot.getAudioBitrate();
+            }
+            updatePacingRate();
+            mHandler.notifyRtmpStreaming(snapshot);
+        }
+    });
 
     public RtmpConnection(RtmpHandler handler) {
         mHandler = handler;
@@ -94,7 +249,15 @@ public class RtmpConnection implements RtmpPublisher {
         handshake.readS0(in);
         handshake.readS1(in);
         handshake.writeC2(out);
-        out.flush();
+        if (fastStart) {
+            // "connect" and the stream requests go out along with C2, so that the stream is created
+            // one round trip earlier
+            pipelining = true;
+            sendConnect();
+            requestStream();
+        } else {
+            out.flush();
+        }
         handshake.readS2(in);
     }
 
@@ -126,18 +289,39 @@ public class RtmpConnection implements RtmpPublisher {
         Log.d(TAG, "connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", publishPath: " + streamName);
         rtmpSessionInfo = new RtmpSessionInfo();
         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-        socket = new Socket();
-        SocketAddress socketAddress = new InetSocketAddress(host, port);
+        connectStartNanos = System.nanoTime();
+        streamingEvents.setInterval(mHandler.getEventInterval());
         try {
-            socket.connect(socketAddress, 3000);
-            inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
-            Log.d(TAG, "connect(): socket connection established, doing handhake...");
+            if (fastStart) {
+                transport = HappyEyeballsConnector.connect(host, port, CONNECT_TIMEOUT_MS,
+                    new HappyEyeballsConnector.TransportFactory() {
+                        @Override
+                        public RtmpTransport create() throws IOException {
+                            return createTransport();
+                        }
+                    });
+            } else {
+                SocketAddress socketAddress = new InetSocketAddress(host, port);
+                transport = createTransport();
+                transport.connect(socketAddress, CONNECT_TIMEOUT_MS);
+            }
+            inputStream = transport.getInputStream();
+            outputStream = new CountingOutputStream(transport.getOutputStream());
+            transportStats = new RtmpTransportStats();
+            Log.d(TAG, "connect(): socket connection established in " + elapsedMillis() + "ms, doing handhake...");
             handshake(inputStream, outputStream);
-            Log.d(TAG, "connect(): handshake done");
+            Log.d(TAG, "connect(): handshake done in " + elapsedMillis() + "ms");
+            if (transport instanceof EventLoopTransport) {
+                // No rx thread, received chunks are handled on the event loop
+                loopTransport = (EventLoopTransport) transport;
+                loopTransport.start(rxCallback);
+                return rtmpConnect();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             mHandler.notifyRtmpIOException(e);
+            // Do not leave the socket behind, the caller may try again
+            shutdown();
             return false;
         }
 
@@ -159,55 +343,103 @@ public class RtmpConnection implements RtmpPublisher {
         return rtmpConnect();
     }
 
+    private RtmpTransport createTransport() throws IOException {
+        switch (transportType) {
+            case CHANNEL:
+                return new ChannelTransport();
+            case EVENT_LOOP:
+                // Handed over to the event loop once the handshake is done
+                return new EventLoopTransport(RtmpEventLoop.getDefault());
+            default:
+                return new SocketTransport();
+        }
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartNanos);
+    }
+
     private boolean rtmpConnect() {
         if (connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Already connected to RTMP server"));
             return false;
         }
 
-        // Mark session timestamp of all chunk stream information on connection.
-        ChunkStreamInfo.markSessionTimestampTx();
-
-        Log.d(TAG, "rtmpConnect(): Building 'connect' invoke packet");
-        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
-        Command invoke = new Command("connect", ++transactionIdCounter, chunkStreamInfo);
-        invoke.getHeader().setMessageStreamId(0);
-        AmfObject args = new AmfObject();
-        args.setProperty("app", appName);
-        args.setProperty("flashVer", "LNX 11,2,202,233"); // Flash player OS: Linux, version: 11.2.202.233
-        args.setProperty("swfUrl", swfUrl);
-        args.setProperty("tcUrl", tcUrl);
-        args.setProperty("fpad", false);
-        args.setProperty("capabilities", 239);
-        args.setProperty("audioCodecs", 3575);
-        args.setProperty("videoCodecs", 252);
-        args.setProperty("videoFunction", 1);
-        args.setProperty("pageUrl", pageUrl);
-        args.setProperty("objectEncoding", 0);
-        invoke.addData(args);
-        sendRtmpPacket(invoke);
-        mHandler.notifyRtmpConnecting("Connecting");
+        if (!fastStart) {
+            sendConnect();
+        }
 
         synchronized (connectingLock) {
             try {
-                connectingLock.wait(5000);
+                if (!connected) {
+                    connectingLock.wait(5000);
+                }
             } catch (InterruptedException ex) {
                 // do nothing
             }
         }
         if (!connected) {
             shutdown();
+        } else {
+            Log.d(TAG, "rtmpConnect(): connected in " + elapsedMillis() + "ms");
+            sendChunkSize();
+            sendWindowAckSize();
         }
         return connected;
     }
 
+    private void sendConnect() {
+        // Mark session timestamp of all chunk stream information on connection.
+        rtmpSessionInfo.markSessionTimestampTx();
+
+        Log.d(TAG, "rtmpConnect(): Building 'connect' invoke packet");
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
+        Command invoke = new Command("connect", ++transactionIdCounter, chunkStreamInfo);
+        invoke.getHeader().setMessageStreamId(0);
+        sendCommand(invoke, CONNECT, CONNECT.newValues().setNumber(0, invoke.getTransactionId())
+            .setString(1, appName).setString(2, swfUrl).setString(3, tcUrl).setString(4, pageUrl));
+        mHandler.notifyRtmpConnecting("Connecting");
+    }
+
+    private void sendChunkSize() {
+        Log.d(TAG, "sendChunkSize(): Sending chunk size: " + chunkSize);
+        sendRtmpPacket(new SetChunkSize(chunkSize));
+    }
+
+    private void sendWindowAckSize() {
+        // The server acknowledges every window it receives, which is what the transport stats feed on
+        Log.d(TAG, "sendWindowAckSize(): Sending acknowledgement window size: " + ACK_WINDOW_SIZE);
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+        sendRtmpPacket(new WindowAckSize(ACK_WINDOW_SIZE, chunkStreamInfo));
+    }
+
+    private void sendPingIfDue() {
+        long now = System.nanoTime();
+        if (pingIntervalNanos > 0 && now - lastPingNanos >= pingIntervalNanos) {
+            lastPingNanos = now;
+            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+            UserControl ping = new UserControl(UserControl.Type.PING_REQUEST, chunkStreamInfo);
+            // Echoed back in the pong
+            ping.setEventData((int) rtmpSessionInfo.markAbsoluteTimestampTx());
+            sendRtmpPacket(ping);
+        }
+    }
+
     @Override
     public boolean publish(String type) {
         if (type == null) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("No publish type specified"));
             return false;
         }
-        publishType = type;
+        boolean streamCreated;
+        synchronized (publishLock) {
+            publishType = type;
+            streamCreated = currentStreamId != 0;
+        }
+        if (streamCreated && streamRequested) {
+            // Created along with the connection already
+            fmlePublish();
+        }
         return createStream();
     }
 
@@ -216,48 +448,60 @@ public class RtmpConnection implements RtmpPublisher {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
             return false;
         }
-        if (currentStreamId != 0) {
-            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream object has existed"));
-            return false;
+        if (!streamRequested) {
+            if (currentStreamId != 0) {
+                mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream object has existed"));
+                return false;
+            }
+            requestStream();
         }
 
+        // Waiting for "NetStream.Publish.Start" response.
+        synchronized (publishLock) {
+            try {
+                if (!publishPermitted) {
+                    publishLock.wait(5000);
+                }
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+        if (publishPermitted) {
+            Log.d(TAG, "createStream(): publishing " + elapsedMillis() + "ms after connecting the socket");
+            mHandler.notifyRtmpConnected("Connected" + srsServerInfo);
+        } else {
+            shutdown();
+        }
+        return publishPermitted;
+    }
+
+    private void requestStream() {
+        streamRequested = true;
+        // releaseStream and FCPublish go out along with createStream
+        pipelining = true;
         Log.d(TAG, "createStream(): Sending releaseStream command...");
         // transactionId == 2
         Command releaseStream = new Command("releaseStream", ++transactionIdCounter);
         releaseStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
-        releaseStream.addData(new AmfNull());  // command object: null for "createStream"
-        releaseStream.addData(streamName);  // command object: null for "releaseStream"
-        sendRtmpPacket(releaseStream);
+        // command object: null for "releaseStream"
+        sendCommand(releaseStream, RELEASE_STREAM, RELEASE_STREAM.newValues()
+            .setNumber(0, releaseStream.getTransactionId()).setString(1, streamName));
 
         Log.d(TAG, "createStream(): Sending FCPublish command...");
         // transactionId == 3
         Command FCPublish = new Command("FCPublish", ++transactionIdCounter);
         FCPublish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
-        FCPublish.addData(new AmfNull());  // command object: null for "FCPublish"
-        FCPublish.addData(streamName);
-        sendRtmpPacket(FCPublish);
+        // command object: null for "FCPublish"
+        sendCommand(FCPublish, FC_PUBLISH, FC_PUBLISH.newValues()
+            .setNumber(0, FCPublish.getTransactionId()).setString(1, streamName));
+        pipelining = false;
 
         Log.d(TAG, "createStream(): Sending createStream command...");
         ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
         // transactionId == 4
         Command createStream = new Command("createStream", ++transactionIdCounter, chunkStreamInfo);
-        createStream.addData(new AmfNull());  // command object: null for "createStream"
-        sendRtmpPacket(createStream);
-
-        // Waiting for "NetStream.Publish.Start" response.
-        synchronized (publishLock) {
-            try {
-                publishLock.wait(5000);
-            } catch (InterruptedException ex) {
-                // do nothing
-            }
-        }
-        if (publishPermitted) {
-            mHandler.notifyRtmpConnected("Connected" + srsServerInfo);
-        } else {
-            shutdown();
-        }
-        return publishPermitted;
+        // command object: null for "createStream"
+        sendCommand(createStream, CREATE_STREAM, CREATE_STREAM.newValues().setNumber(0, createStream.getTransactionId()));
     }
 
     private void fmlePublish() {
@@ -275,10 +519,8 @@ public class RtmpConnection implements RtmpPublisher {
         Command publish = new Command("publish", 0);
         publish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
         publish.getHeader().setMessageStreamId(currentStreamId);
-        publish.addData(new AmfNull());  // command object: null for "publish"
-        publish.addData(streamName);
-        publish.addData(publishType);
-        sendRtmpPacket(publish);
+        // command object: null for "publish"
+        sendCommand(publish, PUBLISH, PUBLISH.newValues().setString(0, streamName).setString(1, publishType));
     }
 
     private void onMetaData() {
@@ -294,25 +536,14 @@ public class RtmpConnection implements RtmpPublisher {
         Log.d(TAG, "onMetaData(): Sending empty onMetaData...");
         Data metadata = new Data("@setDataFrame");
         metadata.getHeader().setMessageStreamId(currentStreamId);
-        metadata.addData("onMetaData");
-        AmfMap ecmaArray = new AmfMap();
-        ecmaArray.setProperty("duration", 0);
-        ecmaArray.setProperty("width", videoWidth);
-        ecmaArray.setProperty("height", videoHeight);
-        ecmaArray.setProperty("videodatarate", 0);
-        ecmaArray.setProperty("framerate", 0);
-        ecmaArray.setProperty("audiodatarate", 0);
-        ecmaArray.setProperty("audiosamplerate", 44100);
-        ecmaArray.setProperty("audiosamplesize", 16);
-        ecmaArray.setProperty("stereo", true);
-        ecmaArray.setProperty("filesize", 0);
-        metadata.addData(ecmaArray);
-        sendRtmpPacket(metadata);
+        sendCommand(metadata, SET_DATA_FRAME, SET_DATA_FRAME.newValues().setNumber(0, videoWidth).setNumber(1, videoHeight));
     }
 
     @Override
-    public void close() {
-        if (socket != null) {
+    public synchronized void close() {
+        // A second close finds no transport anymore and only resets again
+        if (transport != null && !connectionLost) {
+            sendAggregate();
             closeStream();
         }
         shutdown();
@@ -335,18 +566,17 @@ public class RtmpConnection implements RtmpPublisher {
         Command closeStream = new Command("closeStream", 0);
         closeStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
         closeStream.getHeader().setMessageStreamId(currentStreamId);
-        closeStream.addData(new AmfNull());
-        sendRtmpPacket(closeStream);
+        sendCommand(closeStream, CLOSE_STREAM, CLOSE_STREAM.newValues());
         mHandler.notifyRtmpStopped();
     }
 
-    private void shutdown() {
-        if (socket != null) {
+    private synchronized void shutdown() {
+        RtmpTransport transport = this.transport;
+        if (transport != null) {
+            shuttingDown = true;
             try {
-                // It will raise EOFException in handleRxPacketThread
-                socket.shutdownInput();
-                // It will raise SocketException in sendRtmpPacket
-                socket.shutdownOutput();
+                // It will raise EOFException in handleRxPacketThread and SocketException in sendRtmpPacket
+                transport.shutdown();
             } catch (IOException ioe) {
                 ioe.printStackTrace();
             }
@@ -364,7 +594,7 @@ public class RtmpConnection implements RtmpPublisher {
 
             // shutdown socket as well as its input and output stream
             try {
-                socket.close();
+                transport.close();
                 Log.d(TAG, "socket closed");
             } catch (IOException ex) {
                 Log.e(TAG, "shutdown(): failed to close socket", ex);
@@ -379,6 +609,9 @@ public class RtmpConnection implements RtmpPublisher {
     private void reset() {
         connected = false;
         publishPermitted = false;
+        connectionLost = false;
+        shuttingDown = false;
+        streamRequested = false;
         tcUrl = null;
         swfUrl = null;
         pageUrl = null;
@@ -387,18 +620,28 @@ public class RtmpConnection implements RtmpPublisher {
         publishType = null;
         currentStreamId = 0;
         transactionIdCounter = 0;
-        videoFrameCacheNumber.set(0);
         socketExceptionCause = "";
         serverIpAddr = null;
         serverPid = null;
         serverId = null;
-        socket = null;
+        transport = null;
+        loopTransport = null;
+        inputStream = null;
+        outputStream = null;
+        unflushedSinceNanos = -1;
+        aggregate.clear();
+        streamingEvents.reset();
         rtmpSessionInfo = null;
         rtmpDecoder = null;
     }
 
     @Override
     public void publishAudioData(byte[] data, int size, int dts) {
+        publishAudioData(data, size, dts, null);
+    }
+
+    @Override
+    public void publishAudioData(byte[] data, int size, int dts, RtmpPublisher.BufferOwner owner) {
         if (data == null || data.length == 0 || dts < 0) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Audio Data"));
             return;
@@ -415,17 +658,33 @@ public class RtmpConnection implements RtmpPublisher {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
             return;
         }
-        Audio audio = new Audio();
-        audio.setData(data, size);
-        audio.getHeader().setAbsoluteTimestamp(dts);
-        audio.getHeader().setMessageStreamId(currentStreamId);
-        sendRtmpPacket(audio);
-        calcAudioBitrate(audio.getHeader().getPacketLength());
-        mHandler.notifyRtmpAudioStreaming();
+        // Audio does not wait for the pacer, the video after it will
+        pacer.consume(size, System.nanoTime());
+        if (aggregationBudgetMillis > 0 && !sendingVideo) {
+            addToAggregate(RtmpHeader.MessageType.AUDIO, data, size, dts);
+        } else {
+            // What was aggregated before aggregation got disabled goes first
+            sendAggregate();
+            audio.setData(data, size);
+            audio.getHeader().setAbsoluteTimestamp(dts);
+            audio.getHeader().setMessageStreamId(currentStreamId);
+            audioOwner = owner;
+            sendRtmpPacket(audio);
+            // Do not hold on the caller's buffer
+            audio.setData(null, 0);
+            audioOwner = null;
+        }
+        sendPingIfDue();
+        streamingEvents.onAudioFrame(size, System.nanoTime());
     }
 
     @Override
     public void publishVideoData(byte[] data, int size, int dts) {
+        publishVideoData(data, size, dts, null);
+    }
+
+    @Override
+    public void publishVideoData(byte[] data, int size, int dts, RtmpPublisher.BufferOwner owner) {
         if (data == null || data.length == 0 || dts < 0) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Video Data"));
             return;
@@ -442,74 +701,304 @@ public class RtmpConnection implements RtmpPublisher {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
             return;
         }
-        Video video = new Video();
-        video.setData(data, size);
-        video.getHeader().setAbsoluteTimestamp(dts);
-        video.getHeader().setMessageStreamId(currentStreamId);
-        sendRtmpPacket(video);
+        AudioSource source = audioSource;
+        if (aggregationBudgetMillis > 0 && size <= rtmpSessionInfo.getTxChunkSize()) {
+            // Small enough to fit in a chunk anyway
+            pace(source, dts + VIDEO_DEADLINE_MS, size);
+            addToAggregate(RtmpHeader.MessageType.VIDEO, data, size, dts);
+        } else {
+            sendingVideo = true;
+            // The tags aggregated so far are older
+            sendAggregate();
+            video.setData(data, size);
+            video.getHeader().setAbsoluteTimestamp(dts);
+            video.getHeader().setMessageStreamId(currentStreamId);
+            videoOwner = owner;
+            if ((source != null || pacer.isEnabled()) && size > rtmpSessionInfo.getTxChunkSize()) {
+                sendVideoChunks(source);
+            } else {
+                pace(source, dts + VIDEO_DEADLINE_MS, size);
+                sendRtmpPacket(video);
+            }
+            video.setData(null, 0);
+            videoOwner = null;
+            sendingVideo = false;
+        }
+        sendPingIfDue();
         videoFrameCacheNumber.decrementAndGet();
-        calcVideoFpsAndBitrate(video.getHeader().getPacketLength());
-        mHandler.notifyRtmpVideoStreaming();
+        streamingEvents.onVideoFrame(size, System.nanoTime());
     }
 
-    private void calcVideoFpsAndBitrate(int length) {
-        videoDataLength += length;
-        if (videoFrameCount == 0) {
-            videoLastTimeMillis = System.nanoTime() / 1000000;
-            videoFrameCount++;
-        } else {
-            if (++videoFrameCount >= 48) {
-                long diffTimeMillis = System.nanoTime() / 1000000 - videoLastTimeMillis;
-                mHandler.notifyRtmpVideoFpsChanged((double) videoFrameCount * 1000 / diffTimeMillis);
-                mHandler.notifyRtmpVideoBitrateChanged((double) videoDataLength * 8 * 1000 / diffTimeMillis);
-                videoFrameCount = 0;
-                videoDataLength = 0;
+    @Override
+    public void publishData(byte[] data, int size, int dts) {
+        if (data == null || data.length == 0 || dts < 0) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Data"));
+            return;
+        }
+        if (!connected) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            return;
+        }
+        if (currentStreamId == 0) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
+            return;
+        }
+        if (!publishPermitted) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
+            return;
+        }
+        // The tags aggregated so far are older
+        sendAggregate();
+        // Stamped with the media timestamps, not on the chunk stream of the commands
+        timedData.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION2);
+        timedData.getHeader().setAbsoluteTimestamp(dts);
+        timedData.getHeader().setMessageStreamId(currentStreamId);
+        timedData.setBody(data, size);
+        sendRtmpPacket(timedData);
+        // Do not hold on the caller's buffer
+        timedData.setBody(null, 0);
+        sendPingIfDue();
+    }
+
+    private void addToAggregate(RtmpHeader.MessageType type, byte[] data, int size, int dts) {
+        if (aggregate.getTagCount() > 0 && (aggregate.size() + Aggregate.TAG_OVERHEAD + size > MAX_AGGREGATE_SIZE
+            || Math.abs(dts - aggregate.getFirstTagTimestamp()) > aggregationBudgetMillis)) {
+            // Full, or the tags queued would wait longer than the budget for this one
+            sendAggregate();
+        }
+        if (aggregate.getTagCount() == 0) {
+            aggregateSinceNanos = System.nanoTime();
+        }
+        aggregate.addTag(type, data, size, dts);
+        // The budget is spent once the tags span it, or in flush() if the source pauses
+        if (Math.abs(dts - aggregate.getFirstTagTimestamp()) >= aggregationBudgetMillis) {
+            sendAggregate();
+        }
+    }
+
+    private void sendAggregate() {
+        if (aggregate.getTagCount() == 0) {
+            return;
+        }
+        aggregate.getHeader().setMessageStreamId(currentStreamId);
+        sendRtmpPacket(aggregate);
+        aggregate.clear();
+    }
+
+    /** Sends a command or data packet with its body written from a template */
+    private void sendCommand(VariableBodyRtmpPacket packet, AmfTemplate template, AmfTemplate.Values values) {
+        AmfWriter writer = amfWriter.get().reset();
+        template.writeTo(writer, values);
+        packet.setBody(writer.array(), writer.size());
+        sendRtmpPacket(packet);
+    }
+
+    private void sendRtmpPacket(RtmpPacket rtmpPacket) {
+        if (loopTransport != null && loopTransport.inEventLoop()) {
+            // Replies sent while handling received packets, the loop owns the socket already
+            writeRtmpPacket(rtmpPacket);
+            return;
+        }
+        // The rx thread replies to pings while the publishing thread is writing frames
+        synchronized (txLock) {
+            if (loopTransport != null) {
+                // Returns once the loop is done with the packet's arrays
+                txPacket = rtmpPacket;
+                loopTransport.runAndWait(txTask);
+                txPacket = null;
+            } else {
+                writeRtmpPacket(rtmpPacket);
             }
         }
     }
 
-    private void calcAudioBitrate(int length) {
-        audioDataLength += length;
-        if (audioFrameCount == 0) {
-            audioLastTimeMillis = System.nanoTime() / 1000000;
-            audioFrameCount++;
-        } else {
-            if (++audioFrameCount >= 48) {
-                long diffTimeMillis = System.nanoTime() / 1000000 - audioLastTimeMillis;
-                mHandler.notifyRtmpAudioBitrateChanged((double) audioDataLength * 8 * 1000 / diffTimeMillis);
-                audioFrameCount = 0;
-                audioDataLength = 0;
+    private void sendVideoChunks(AudioSource source) {
+        int videoDeadline = video.getHeader().getAbsoluteTimestamp() + VIDEO_DEADLINE_MS;
+        int chunkSize = rtmpSessionInfo.getTxChunkSize();
+        videoChunkOffset = 0;
+        while (videoChunkOffset < video.size()) {
+            if (videoChunkOffset > 0) {
+                sendDueAudio(source, videoDeadline);
+            }
+            pace(source, videoDeadline, Math.min(chunkSize, video.size() - videoChunkOffset));
+            int offset = videoChunkOffset;
+            // Other senders may go between two chunks
+            synchronized (txLock) {
+                if (loopTransport != null) {
+                    // Returns once the chunk is out of the video array
+                    loopTransport.runAndWait(txVideoChunkTask);
+                } else {
+                    writeVideoChunk();
+                }
+            }
+            if (videoChunkOffset == offset) {
+                // Transport closed
+                break;
             }
         }
     }
 
-    private void sendRtmpPacket(RtmpPacket rtmpPacket) {
+    private void sendDueAudio(AudioSource source, int videoDeadline) {
+        if (source == null) {
+            return;
+        }
+        // Earliest deadline first, audio is published from this thread like any other frame
+        int audioDts;
+        while ((audioDts = source.peekAudioDts()) >= 0 && audioDts + AUDIO_DEADLINE_MS <= videoDeadline) {
+            source.publishAudio();
+        }
+    }
+
+    /** Waits until the pacer lets video bytes go, sending the audio falling due meanwhile */
+    private void pace(AudioSource source, int videoDeadline, int length) {
+        long delay;
+        while ((delay = pacer.delayNanos(System.nanoTime())) > 0 && connected && !connectionLost
+            && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, Math.min(delay, PACING_SLICE_NANOS));
+            sendDueAudio(source, videoDeadline);
+        }
+        pacer.consume(length, System.nanoTime());
+    }
+
+    private void updatePacingRate() {
+        float multiplier = pacingMultiplier;
+        double bitrate = pacingTargetBitrate > 0 ? pacingTargetBitrate : videoBitrate + audioBitrate;
+        pacer.setRate(multiplier > 0 ? (long) (bitrate * multiplier) : 0, pacingBurstBytes);
+    }
+
+    private void writeVideoChunk() {
+        try {
+            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(video.getHeader().getChunkStreamId());
+            videoChunkOffset = video.writeChunk(outputStream, videoChunkOffset, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+            long now = System.nanoTime();
+            transportStats.onSent(outputStream.getCount(), now);
+            commitMedia(now, videoOwner);
+        } catch (IOException ioe) {
+            // Give up on the rest of the message
+            videoChunkOffset = video.size();
+            onTxException(ioe);
+        }
+    }
+
+    private void writeRtmpPacket(RtmpPacket rtmpPacket) {
         try {
             ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-            chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-            if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
-                rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+            boolean media = rtmpPacket instanceof ContentData || rtmpPacket == timedData;
+            if (!media) {
+                rtmpPacket.getHeader().setAbsoluteTimestamp((int) rtmpSessionInfo.markAbsoluteTimestampTx());
             }
             rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+            if (rtmpPacket instanceof SetChunkSize) {
+                // Every chunk written after the SetChunkSize message uses the new size, whichever
+                // thread writes it
+                rtmpSessionInfo.setTxChunkSize(((SetChunkSize) rtmpPacket).getChunkSize());
+            }
             //Log.d(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
             if (rtmpPacket instanceof Command) {
                 rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
             }
-            outputStream.flush();
-        } catch (SocketException se) {
+            long now = System.nanoTime();
+            transportStats.onSent(outputStream.getCount(), now);
+            if (media) {
+                commitMedia(now, rtmpPacket == video ? videoOwner : rtmpPacket == audio ? audioOwner : null);
+            } else if (pipelining) {
+                // Left buffered for the next command, flushed by the deadline otherwise
+                if (unflushedSinceNanos < 0) {
+                    unflushedSinceNanos = now;
+                }
+                // but not the arrays of the packet, such as the reused body of commands
+                transport.commit(null);
+            } else {
+                flushTransport();
+            }
+        } catch (IOException ioe) {
+            onTxException(ioe);
+        }
+    }
+
+    /** @param owner of the arrays written, kept pending until the deadline if not null */
+    private void commitMedia(long now, RtmpPublisher.BufferOwner owner) throws IOException {
+        // Media may stay buffered until the sender runs out of frames or the deadline expires
+        if (unflushedSinceNanos < 0) {
+            unflushedSinceNanos = now;
+        }
+        if (now - unflushedSinceNanos >= FLUSH_DEADLINE_NANOS) {
+            flushTransport();
+        } else {
+            transport.commit(owner);
+        }
+    }
+
+    private void flushTransport() throws IOException {
+        transport.flush();
+        unflushedSinceNanos = -1;
+    }
+
+    private void flushPending() {
+        if (transport == null || unflushedSinceNanos < 0) {
+            return;
+        }
+        try {
+            flushTransport();
+        } catch (IOException ioe) {
+            onTxException(ioe);
+        }
+    }
+
+    private void onTxException(IOException ioe) {
+        connectionLost = true;
+        if (ioe instanceof SocketException) {
             // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
             // socket exception only issue one time.
-            if (!socketExceptionCause.contentEquals(se.getMessage())) {
-                socketExceptionCause = se.getMessage();
-                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+            if (!socketExceptionCause.contentEquals(ioe.getMessage())) {
+                socketExceptionCause = ioe.getMessage();
+                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) ioe);
             }
-        } catch (IOException ioe) {
+        } else {
             Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
             mHandler.notifyRtmpIOException(ioe);
         }
     }
 
+    private final EventLoopTransport.Callback rxCallback = new EventLoopTransport.Callback() {
+
+        @Override
+        public int onReceive(byte[] buf, int off, int len) throws IOException {
+            // Decode every complete chunk in place, the rest waits for more data
+            int consumed = 0;
+            int chunkLength;
+            while ((chunkLength = rtmpDecoder.peekChunkLength(buf, off + consumed, len - consumed)) > 0) {
+                rxChunkStream.reset(buf, off + consumed, chunkLength);
+                RtmpPacket rtmpPacket = rtmpDecoder.readPacket(rxChunkStream);
+                consumed += chunkLength;
+                if (rtmpPacket != null) {
+                    handleRxPacket(rtmpPacket);
+                }
+            }
+            return consumed;
+        }
+
+        @Override
+        public void onTimer(long nowNanos) {
+            if (unflushedSinceNanos >= 0 && nowNanos - unflushedSinceNanos >= FLUSH_DEADLINE_NANOS) {
+                flushPending();
+            }
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            connectionLost = true;
+            if (cause instanceof SocketException) {
+                Log.e(TAG, "Caught SocketException on the event loop, shutting down: " + cause.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) cause);
+            } else if (cause != null) {
+                Log.e(TAG, "Caught exception on the event loop, shutting down: " + cause.getMessage());
+                mHandler.notifyRtmpIOException(cause);
+            }
+        }
+    };
+
     private void handleRxPacketLoop() throws IOException {
         // Handle all queued received RTMP packets
         while (!Thread.interrupted()) {
@@ -517,69 +1006,92 @@ public class RtmpConnection implements RtmpPublisher {
                 // It will be blocked when no data in input stream buffer
                 RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
                 if (rtmpPacket != null) {
-                    //Log.d(TAG, "handleRxPacketLoop(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
-                    switch (rtmpPacket.getHeader().getMessageType()) {
-                        case ABORT:
-                            rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
-                            break;
-                        case USER_CONTROL_MESSAGE:
-                            UserControl user = (UserControl) rtmpPacket;
-                            switch (user.getType()) {
-                                case STREAM_BEGIN:
-                                    if (currentStreamId != user.getFirstEventData()) {
-                                        mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream ID error!"));
-                                    }
-                                    break;
-                                case PING_REQUEST:
-                                    ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                                    Log.d(TAG, "handleRxPacketLoop(): Sending PONG reply..");
-                                    UserControl pong = new UserControl(user, channelInfo);
-                                    sendRtmpPacket(pong);
-                                    break;
-                                case STREAM_EOF:
-                                    Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
-                                    break;
-                                default:
-                                    // Ignore...
-                                    break;
-                            }
-                            break;
-                        case WINDOW_ACKNOWLEDGEMENT_SIZE:
-                            WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
-                            int size = windowAckSize.getAcknowledgementWindowSize();
-                            Log.d(TAG, "handleRxPacketLoop(): Setting acknowledgement window size: " + size);
-                            rtmpSessionInfo.setAcknowledgmentWindowSize(size);
-                            break;
-                        case SET_PEER_BANDWIDTH:
-                            SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
-                            rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
-                            int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
-                            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                            Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: " + acknowledgementWindowsize);
-                            sendRtmpPacket(new WindowAckSize(acknowledgementWindowsize, chunkStreamInfo));
-                            // Set socket option
-                            socket.setSendBufferSize(acknowledgementWindowsize);
-                            break;
-                        case COMMAND_AMF0:
-                            handleRxInvoke((Command) rtmpPacket);
-                            break;
-                        default:
-                            Log.w(TAG, "handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
-                            break;
-                    }
+                    handleRxPacket(rtmpPacket);
                 }
             } catch (EOFException eof) {
+                connectionLost = true;
                 Thread.currentThread().interrupt();
             } catch (SocketException se) {
-                Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+                if (!shuttingDown) {
+                    Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
+                    mHandler.notifyRtmpSocketException(se);
+                }
+                // Nothing more will come from a failed socket
+                connectionLost = true;
+                Thread.currentThread().interrupt();
             } catch (IOException ioe) {
-                Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
-                mHandler.notifyRtmpIOException(ioe);
+                // Such as the ClosedByInterruptException of a channel interrupted by shutdown()
+                if (!shuttingDown) {
+                    Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
+                    mHandler.notifyRtmpIOException(ioe);
+                }
+                // A reset connection or an undecodable stream cannot be read on either
+                connectionLost = true;
+                Thread.currentThread().interrupt();
             }
         }
     }
 
+    private void handleRxPacket(RtmpPacket rtmpPacket) throws IOException {
+        //Log.d(TAG, "handleRxPacket(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
+        switch (rtmpPacket.getHeader().getMessageType()) {
+            case ABORT:
+                rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+                break;
+            case USER_CONTROL_MESSAGE:
+                UserControl user = (UserControl) rtmpPacket;
+                switch (user.getType()) {
+                    case STREAM_BEGIN:
+                        if (currentStreamId != user.getFirstEventData()) {
+                            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream ID error!"));
+                        }
+                        break;
+                    case PING_REQUEST:
+                        ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+                        Log.d(TAG, "handleRxPacket(): Sending PONG reply..");
+                        UserControl pong = new UserControl(user, channelInfo);
+                        sendRtmpPacket(pong);
+                        break;
+                    case PONG_REPLY:
+                        // Our ping timestamp, echoed
+                        long rttMillis = rtmpSessionInfo.markAbsoluteTimestampTx() - (user.getFirstEventData() & 0xffffffffL);
+                        transportStats.onPingRtt(TimeUnit.MILLISECONDS.toNanos(rttMillis));
+                        break;
+                    case STREAM_EOF:
+                        Log.i(TAG, "handleRxPacket(): Stream EOF reached, closing RTMP writer...");
+                        break;
+                    default:
+                        // Ignore...
+                        break;
+                }
+                break;
+            case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
+                int size = windowAckSize.getAcknowledgementWindowSize();
+                Log.d(TAG, "handleRxPacket(): Setting acknowledgement window size: " + size);
+                rtmpSessionInfo.setAcknowledgmentWindowSize(size);
+                break;
+            case SET_PEER_BANDWIDTH:
+                SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
+                rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
+                int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
+                // Answered with our own, smaller, window
+                sendWindowAckSize();
+                // Set socket option
+                transport.setSendBufferSize(acknowledgementWindowsize);
+                break;
+            case ACKNOWLEDGEMENT:
+                transportStats.onAcknowledgement(((Acknowledgement) rtmpPacket).getSequenceNumber(), System.nanoTime());
+                break;
+            case COMMAND_AMF0:
+                handleRxInvoke((Command) rtmpPacket);
+                break;
+            default:
+                Log.w(TAG, "handleRxPacket(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
+                break;
+        }
+    }
+
     private void handleRxInvoke(Command invoke) throws IOException {
         String commandName = invoke.getCommandName();
 
@@ -598,9 +1110,14 @@ public class RtmpConnection implements RtmpPublisher {
                 }
             } else if ("createStream".contains(method)) {
                 // Get stream id
-                currentStreamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
+                boolean publishRequested;
+                synchronized (publishLock) {
+                    currentStreamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
+                    publishRequested = publishType != null;
+                }
                 Log.d(TAG, "handleRxInvoke(): Stream ID to publish: " + currentStreamId);
-                if (streamName != null && publishType != null) {
+                // With fast start, the stream may be ready before publish() is called
+                if (streamName != null && publishRequested) {
                     fmlePublish();
                 }
             } else if ("releaseStream".contains(method)) {
@@ -651,6 +1168,11 @@ public class RtmpConnection implements RtmpPublisher {
         return videoFrameCacheNumber;
     }
 
+    @Override
+    public boolean isPublishing() {
+        return publishPermitted && !connectionLost;
+    }
+
     @Override
     public final String getServerIpAddr() {
         return serverIpAddr == null ? null : serverIpAddr.getValue();
@@ -671,4 +1193,74 @@ public class RtmpConnection implements RtmpPublisher {
         videoWidth = width;
         videoHeight = height;
     }
+
+    @Override
+    public void flush() {
+        if (aggregate.getTagCount() > 0 && connected && !connectionLost
+            && System.nanoTime() - aggregateSinceNanos >= TimeUnit.MILLISECONDS.toNanos(aggregationBudgetMillis)) {
+            sendAggregate();
+        }
+        synchronized (txLock) {
+            if (loopTransport != null) {
+                // Flushed by the loop thread, which owns the socket
+                txPacket = null;
+                loopTransport.runAndWait(txTask);
+            } else {
+                flushPending();
+            }
+        }
+    }
+
+    @Override
+    public RtmpTransportStats getTransportStats() {
+        return transportStats;
+    }
+
+    @Override
+    public void setPingInterval(int intervalMillis) {
+        pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    @Override
+    public void setAudioSource(AudioSource source) {
+        audioSource = source;
+    }
+
+    @Override
+    public void setPacing(float multiplier, int burstBytes) {
+        pacingMultiplier = multiplier;
+        pacingBurstBytes = burstBytes;
+        updatePacingRate();
+    }
+
+    @Override
+    public void setPacingTargetBitrate(int bitsPerSecond) {
+        pacingTargetBitrate = bitsPerSecond;
+        updatePacingRate();
+    }
+
+    @Override
+    public void setAggregation(int budgetMillis) {
+        aggregationBudgetMillis = Math.max(0, budgetMillis);
+    }
+
+    @Override
+    public void setTransportType(RtmpTransport.Type type) {
+        transportType = type;
+    }
+
+    @Override
+    public void setFastStart(boolean enabled) {
+        fastStart = enabled;
+    }
+
+    @Override
+    public void setChunkSize(int size) {
+        if (size < MIN_CHUNK_SIZE || size > MAX_CHUNK_SIZE) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
+                "Invalid chunk size " + size + ", must be in [" + MIN_CHUNK_SIZE + ", " + MAX_CHUNK_SIZE + "]"));
+            return;
+        }
+        chunkSize = size;
+    }
 }
@@ -1,13 +1,17 @@
 package com.github.faucamp.simplertmp.io;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
 import android.util.Log;
 
+import com.github.faucamp.simplertmp.amf.AmfReader;
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
@@ -26,32 +30,79 @@ public class RtmpDecoder {
     private static final String TAG = "RtmpDecoder";
 
     private RtmpSessionInfo rtmpSessionInfo;
+    // Commands and data are decoded straight from the reassembled message
+    private final AmfReader amfReader = new AmfReader();
 
     public RtmpDecoder(RtmpSessionInfo rtmpSessionInfo) {
         this.rtmpSessionInfo = rtmpSessionInfo;
     }
 
-    public RtmpPacket readPacket(InputStream in) throws IOException {
+    /**
+     * Computes the length of the chunk at the start of the specified bytes, header included, so that
+     * non-blocking readers only call {@link #readPacket(InputStream)} on complete chunks.
+     *
+     * @return the chunk length, or -1 if the chunk has not been received completely yet
+     */
+    public int peekChunkLength(byte[] buf, int off, int len) throws IOException {
+        if (len < 1) {
+            return -1;
+        }
+        int chunkType = (buf[off] & 0xff) >>> 6;
+        int chunkStreamId = buf[off] & 0x3f;
+        int headerLength = chunkType == 0 ? 12 : chunkType == 1 ? 8 : chunkType == 2 ? 4 : 1;
+        if (len < headerLength) {
+            return -1;
+        }
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+        RtmpHeader prevHeader = chunkStreamInfo.prevHeaderRx();
+        if (chunkType < 3) {
+            int timestamp = ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+            if (timestamp >= 0xffffff) {
+                headerLength += 4;
+            }
+        } else if (prevHeader == null) {
+            throw new IOException("Type 3 chunk without previous header on chunk stream " + chunkStreamId);
+        } else if (prevHeader.getExtendedTimestamp() != 0) {
+            headerLength += 4;
+        }
+        int packetLength;
+        if (chunkType < 2) {
+            packetLength = ((buf[off + 4] & 0xff) << 16) | ((buf[off + 5] & 0xff) << 8) | (buf[off + 6] & 0xff);
+        } else if (prevHeader == null) {
+            throw new IOException("Type 2 chunk without previous header on chunk stream " + chunkStreamId);
+        } else {
+            packetLength = prevHeader.getPacketLength();
+        }
+        // Mirrors readPacket(): messages are stored chunk by chunk
+        int payloadLength = Math.min(packetLength - chunkStreamInfo.getStoredLength(), rtmpSessionInfo.getRxChunkSize());
+        return len < headerLength + payloadLength ? -1 : headerLength + payloadLength;
+    }
 
-        RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
+    /**
+     * Reads the next chunk and returns the message it completes, if any.
+     *
+     * Chunks are reassembled in a buffer of their chunk stream and headers are parsed in place. Audio
+     * and video packets are reused per chunk stream: their data is a view over that buffer, valid until
+     * the next chunk of the same chunk stream is read, and {@link ContentData#size()} bytes long.
+     *
+     * @return the completed message, or <code>null</code> if the chunk did not complete one
+     */
+    public RtmpPacket readPacket(InputStream in) throws IOException {
+        int basicHeaderByte = in.read();
+        if (basicHeaderByte == -1) {
+            throw new EOFException("Unexpected EOF while reading RTMP packet basic header");
+        }
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(basicHeaderByte & 0x3f);
+        RtmpHeader header = chunkStreamInfo.readHeaderRx(in, basicHeaderByte);
         // Log.d(TAG, "readPacket(): header.messageType: " + header.getMessageType());
 
-        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(header.getChunkStreamId());
-        chunkStreamInfo.setPrevHeaderRx(header);
-
-        if (header.getPacketLength() > rtmpSessionInfo.getRxChunkSize()) {
-            // If the packet consists of more than one chunk,
-            // store the chunks in the chunk stream until everything is read
-            if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getRxChunkSize())) {
-                // return null because of incomplete packet
-                return null;
-            } else {
-                // stored chunks complete packet, get the input stream of the chunk stream
-                in = chunkStreamInfo.getStoredPacketInputStream();
-            }
+        // Store the chunks in the chunk stream until the packet is complete
+        if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getRxChunkSize())) {
+            // return null because of incomplete packet
+            return null;
         }
+        in = chunkStreamInfo.getStoredPacketInputStream();
 
-        RtmpPacket rtmpPacket;
         switch (header.getMessageType()) {
             case SET_CHUNK_SIZE:
                 SetChunkSize setChunkSize = new SetChunkSize(header);
@@ -59,35 +110,52 @@ public class RtmpDecoder {
                 Log.d(TAG, "readPacket(): Setting chunk size to: " + setChunkSize.getChunkSize());
                 rtmpSessionInfo.setRxChunkSize(setChunkSize.getChunkSize());
                 return null;
+            case AUDIO:
+                Audio audio = chunkStreamInfo.rxAudio();
+                audio.setData(chunkStreamInfo.getStoredPacketArray(), header.getPacketLength());
+                return audio;
+            case VIDEO:
+                Video video = chunkStreamInfo.rxVideo();
+                video.setData(chunkStreamInfo.getStoredPacketArray(), header.getPacketLength());
+                return video;
+            default:
+                break;
+        }
+
+        // Other messages keep their own header, the chunk stream's one is updated by the next chunk
+        RtmpHeader messageHeader = new RtmpHeader();
+        messageHeader.copyFrom(header);
+        RtmpPacket rtmpPacket;
+        switch (messageHeader.getMessageType()) {
             case ABORT:
-                rtmpPacket = new Abort(header);
+                rtmpPacket = new Abort(messageHeader);
                 break;
             case USER_CONTROL_MESSAGE:
-                rtmpPacket = new UserControl(header);
+                rtmpPacket = new UserControl(messageHeader);
                 break;
             case WINDOW_ACKNOWLEDGEMENT_SIZE:
-                rtmpPacket = new WindowAckSize(header);
+                rtmpPacket = new WindowAckSize(messageHeader);
                 break;
             case SET_PEER_BANDWIDTH:
-                rtmpPacket = new SetPeerBandwidth(header);
-                break;
-            case AUDIO:
-                rtmpPacket = new Audio(header);
-                break;
-            case VIDEO:
-                rtmpPacket = new Video(header);
+                rtmpPacket = new SetPeerBandwidth(messageHeader);
                 break;
             case COMMAND_AMF0:
-                rtmpPacket = new Command(header);
-                break;
+                Command command = new Command(messageHeader);
+                command.readBody(amfReader.reset(chunkStreamInfo.getStoredPacketArray(), 0, messageHeader.getPacketLength()));
+                return command;
             case DATA_AMF0:
-                rtmpPacket = new Data(header);
-                break;
+                Data data = new Data(messageHeader);
+                data.readBody(amfReader.reset(chunkStreamInfo.getStoredPacketArray(), 0, messageHeader.getPacketLength()));
+                return data;
             case ACKNOWLEDGEMENT:
-                rtmpPacket = new Acknowledgement(header);
+                rtmpPacket = new Acknowledgement(messageHeader);
+                break;
+            case AGGREGATE_MESSAGE:
+                // Copied, see Aggregate.split() for the messages it carries
+                rtmpPacket = new Aggregate(messageHeader);
                 break;
             default:
-                throw new IOException("No packet body implementation for message type: " + header.getMessageType());
+                throw new IOException("No packet body implementation for message type: " + messageHeader.getMessageType());
         }                
         rtmpPacket.readBody(in);                        
         return rtmpPacket;
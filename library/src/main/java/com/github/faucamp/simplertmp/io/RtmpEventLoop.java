@@ -0,0 +1,120 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single {@link Selector} thread driving reads, writes and timers of any number of
+ * {@link EventLoopTransport}s, so that every connection costs no thread of its own and all socket I/O
+ * of a connection happens on one thread.
+ */
+public final class RtmpEventLoop {
+
+    private static final String TAG = "RtmpEventLoop";
+    /** Longest time between two timer callbacks of a transport */
+    static final int TIMER_INTERVAL_MS = 10;
+
+    private static RtmpEventLoop defaultLoop;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<EventLoopTransport> registrations = new ConcurrentLinkedQueue<>();
+    private final ArrayList<EventLoopTransport> transports = new ArrayList<>();
+
+    private RtmpEventLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return the event loop shared by every connection of this process, started on first use */
+    public static synchronized RtmpEventLoop getDefault() throws IOException {
+        if (defaultLoop == null) {
+            defaultLoop = new RtmpEventLoop();
+        }
+        return defaultLoop;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void register(EventLoopTransport transport) {
+        registrations.add(transport);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                EventLoopTransport transport;
+                while ((transport = registrations.poll()) != null) {
+                    try {
+                        transport.onRegister(selector);
+                        transports.add(transport);
+                    } catch (IOException ioe) {
+                        transport.onError(ioe);
+                    } catch (RuntimeException re) {
+                        Log.e(TAG, "loop(): failed to register a transport", re);
+                        transport.abort(re);
+                    }
+                }
+
+                selector.select(TIMER_INTERVAL_MS);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    EventLoopTransport t = (EventLoopTransport) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            t.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            t.onWritable();
+                        }
+                    } catch (RuntimeException re) {
+                        // One failing connection must not stop the others sharing this thread
+                        Log.e(TAG, "loop(): transport failure", re);
+                        t.abort(re);
+                    }
+                }
+
+                // Tasks handed over by other threads, flush requests and timers
+                long now = System.nanoTime();
+                for (int i = transports.size() - 1; i >= 0; i--) {
+                    EventLoopTransport t = transports.get(i);
+                    boolean keep;
+                    try {
+                        keep = t.onLoop(now);
+                    } catch (RuntimeException re) {
+                        Log.e(TAG, "loop(): transport failure", re);
+                        t.abort(re);
+                        keep = false;
+                    }
+                    if (!keep) {
+                        transports.remove(i);
+                    }
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "loop(): selector failure", ioe);
+            }
+        }
+    }
+}
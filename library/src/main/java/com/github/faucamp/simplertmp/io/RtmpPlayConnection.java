@@ -0,0 +1,485 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpPlayer;
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Data;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * RTMP connection playing a stream, the receiving counterpart of {@link RtmpConnection}
+ *
+ * It runs over a blocking socket, media being delivered to the {@link RtmpPlayer.MediaListener} by the
+ * thread reading from it. The server is acknowledged every window it asks for, and its pings answered.
+ */
+public class RtmpPlayConnection implements RtmpPlayer {
+
+    private static final String TAG = "RtmpPlayConnection";
+    private static final Pattern rtmpUrlPattern = Pattern.compile("^rtmp://([^/:]+)(:(\\d+))*/([^/]+)(/(.*))*$");
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    /** Time given to the server to answer each command */
+    private static final int COMMAND_TIMEOUT_MS = 5000;
+    /** Start position of "play": the live stream if there is one, else the recorded one */
+    private static final int PLAY_START_LIVE_OR_RECORDED = -2;
+
+    private RtmpHandler mHandler;
+    private String host;
+    private int port;
+    private String appName;
+    private String streamName;
+    private String tcUrl;
+    private RtmpTransport transport;
+    private RtmpSessionInfo rtmpSessionInfo;
+    private RtmpDecoder rtmpDecoder;
+    private CountingInputStream inputStream;
+    private OutputStream outputStream;
+    private final Object txLock = new Object();
+    private Thread rxPacketHandler;
+    private volatile MediaListener mediaListener;
+    private volatile boolean connected = false;
+    private volatile boolean playing = false;
+    // The server refused the stream or the transport failed
+    private volatile boolean playFailed = false;
+    private volatile boolean connectionLost = false;
+    private final Object connectingLock = new Object();
+    private final Object playLock = new Object();
+    private volatile int currentStreamId = 0;
+    private int transactionIdCounter = 0;
+    private long lastAckBytes;
+
+    public RtmpPlayConnection(RtmpHandler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void setMediaListener(MediaListener listener) {
+        mediaListener = listener;
+    }
+
+    @Override
+    public boolean connect(String url) {
+        Matcher matcher = rtmpUrlPattern.matcher(url);
+        if (matcher.matches()) {
+            tcUrl = url.substring(0, url.lastIndexOf('/'));
+            host = matcher.group(1);
+            String portStr = matcher.group(3);
+            port = portStr != null ? Integer.parseInt(portStr) : 1935;
+            appName = matcher.group(4);
+            streamName = matcher.group(6);
+        }
+        if (appName == null || streamName == null) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
+                "Invalid RTMP URL. Must be in format: rtmp://host[:port]/application/streamName"));
+            return false;
+        }
+
+        Log.d(TAG, "connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", playPath: " + streamName);
+        rtmpSessionInfo = new RtmpSessionInfo();
+        rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
+        try {
+            transport = new SocketTransport();
+            transport.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            inputStream = new CountingInputStream(transport.getInputStream());
+            outputStream = transport.getOutputStream();
+            Handshake handshake = new Handshake();
+            handshake.writeC0(outputStream);
+            handshake.writeC1(outputStream);
+            outputStream.flush();
+            handshake.readS0(inputStream);
+            handshake.readS1(inputStream);
+            handshake.writeC2(outputStream);
+            outputStream.flush();
+            handshake.readS2(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mHandler.notifyRtmpIOException(e);
+            shutdown();
+            return false;
+        }
+
+        rxPacketHandler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "starting main rx handler loop");
+                handleRxPacketLoop();
+            }
+        }, "RtmpPlayRx");
+        rxPacketHandler.start();
+
+        sendConnect();
+        synchronized (connectingLock) {
+            try {
+                if (!connected) {
+                    connectingLock.wait(COMMAND_TIMEOUT_MS);
+                }
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+        if (!connected) {
+            shutdown();
+        } else {
+            // Our acknowledgements are what the server paces itself on
+            sendRtmpPacket(new WindowAckSize(RtmpConnection.ACK_WINDOW_SIZE,
+                rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+        }
+        return connected;
+    }
+
+    private void sendConnect() {
+        // The session timestamp is left alone, publishers running alongside measure their RTT with it
+        Log.d(TAG, "rtmpConnect(): Building 'connect' invoke packet");
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
+        Command invoke = new Command("connect", ++transactionIdCounter, chunkStreamInfo);
+        invoke.getHeader().setMessageStreamId(0);
+        AmfObject args = new AmfObject();
+        args.setProperty("app", appName);
+        args.setProperty("flashVer", "LNX 11,2,202,233");
+        args.setProperty("tcUrl", tcUrl);
+        args.setProperty("fpad", false);
+        args.setProperty("capabilities", 239);
+        args.setProperty("audioCodecs", 3575);
+        args.setProperty("videoCodecs", 252);
+        args.setProperty("videoFunction", 1);
+        args.setProperty("objectEncoding", 0);
+        invoke.addData(args);
+        sendRtmpPacket(invoke);
+        mHandler.notifyRtmpConnecting("Connecting");
+    }
+
+    @Override
+    public boolean play(int bufferLengthMillis) {
+        if (!connected) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            return false;
+        }
+        if (currentStreamId != 0) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream object has existed"));
+            return false;
+        }
+
+        Log.d(TAG, "play(): Sending createStream command...");
+        Command createStream = new Command("createStream", ++transactionIdCounter,
+            rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION));
+        createStream.addData(new AmfNull());
+        sendRtmpPacket(createStream);
+        waitForPlayLock(false);
+        if (currentStreamId == 0) {
+            Log.e(TAG, "play(): no stream created");
+            return false;
+        }
+
+        Log.d(TAG, "play(): Sending play command...");
+        Command play = new Command("play", 0);
+        play.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+        play.getHeader().setMessageStreamId(currentStreamId);
+        play.addData(new AmfNull());
+        play.addData(streamName);
+        play.addData(PLAY_START_LIVE_OR_RECORDED);
+        sendRtmpPacket(play);
+
+        UserControl setBufferLength = new UserControl(UserControl.Type.SET_BUFFER_LENGTH,
+            rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL));
+        setBufferLength.setEventData(currentStreamId, bufferLengthMillis);
+        sendRtmpPacket(setBufferLength);
+
+        waitForPlayLock(true);
+        if (!playing) {
+            Log.e(TAG, "play(): no NetStream.Play.Start");
+        }
+        return playing;
+    }
+
+    /** Waits for the stream to be created, or to start playing, unless it fails first */
+    private void waitForPlayLock(boolean forPlayStart) {
+        long deadline = System.currentTimeMillis() + COMMAND_TIMEOUT_MS;
+        synchronized (playLock) {
+            try {
+                long remaining;
+                while ((forPlayStart ? !playing : currentStreamId == 0) && !playFailed && !connectionLost
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    playLock.wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+    }
+
+    private void wakeUpPlayLock() {
+        synchronized (playLock) {
+            playLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (transport != null && currentStreamId != 0 && !connectionLost) {
+            Log.d(TAG, "close(): Sending deleteStream command...");
+            Command deleteStream = new Command("deleteStream", 0);
+            deleteStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+            deleteStream.addData(new AmfNull());
+            deleteStream.addData(currentStreamId);
+            sendRtmpPacket(deleteStream);
+            mHandler.notifyRtmpStopped();
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        if (transport != null) {
+            try {
+                // It will raise EOFException in handleRxPacketLoop
+                transport.shutdown();
+            } catch (IOException ioe) {
+                // Closing anyway
+            }
+            if (rxPacketHandler != null) {
+                rxPacketHandler.interrupt();
+                try {
+                    rxPacketHandler.join();
+                } catch (InterruptedException ie) {
+                    rxPacketHandler.interrupt();
+                }
+                rxPacketHandler = null;
+            }
+            try {
+                transport.close();
+                Log.d(TAG, "socket closed");
+            } catch (IOException ex) {
+                Log.e(TAG, "shutdown(): failed to close socket", ex);
+            }
+            mHandler.notifyRtmpDisconnected();
+        }
+        connected = false;
+        playing = false;
+        playFailed = false;
+        connectionLost = false;
+        currentStreamId = 0;
+        transactionIdCounter = 0;
+        lastAckBytes = 0;
+        transport = null;
+        outputStream = null;
+        rtmpSessionInfo = null;
+        rtmpDecoder = null;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing && !connectionLost;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        CountingInputStream in = inputStream;
+        return in == null ? 0 : in.getCount();
+    }
+
+    private void sendRtmpPacket(RtmpPacket rtmpPacket) {
+        synchronized (txLock) {
+            if (outputStream == null) {
+                return;
+            }
+            try {
+                ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+                rtmpPacket.getHeader().setAbsoluteTimestamp((int) rtmpSessionInfo.markAbsoluteTimestampTx());
+                rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+                outputStream.flush();
+                if (rtmpPacket instanceof Command) {
+                    rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+                }
+            } catch (SocketException se) {
+                // Reported by the rx loop as well, the socket being shared
+                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
+                connectionLost = true;
+            } catch (IOException ioe) {
+                Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpIOException(ioe);
+            }
+        }
+    }
+
+    private void handleRxPacketLoop() {
+        while (!Thread.interrupted()) {
+            try {
+                RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
+                if (rtmpPacket != null) {
+                    handleRxPacket(rtmpPacket);
+                }
+                sendAckIfDue();
+            } catch (EOFException eof) {
+                connectionLost = true;
+                Thread.currentThread().interrupt();
+            } catch (SocketException se) {
+                Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
+                mHandler.notifyRtmpSocketException(se);
+                connectionLost = true;
+                Thread.currentThread().interrupt();
+            } catch (IOException ioe) {
+                Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpIOException(ioe);
+                connectionLost = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Nobody is waiting in vain
+        synchronized (connectingLock) {
+            connectingLock.notifyAll();
+        }
+        wakeUpPlayLock();
+    }
+
+    private void sendAckIfDue() {
+        long bytesRead = inputStream.getCount();
+        if (bytesRead - lastAckBytes >= rtmpSessionInfo.getAcknowledgementWindowSize()) {
+            lastAckBytes = bytesRead;
+            sendRtmpPacket(new Acknowledgement((int) bytesRead));
+        }
+    }
+
+    private void handleRxPacket(RtmpPacket rtmpPacket) {
+        switch (rtmpPacket.getHeader().getMessageType()) {
+            case ABORT:
+                rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+                break;
+            case USER_CONTROL_MESSAGE:
+                UserControl user = (UserControl) rtmpPacket;
+                switch (user.getType()) {
+                    case STREAM_BEGIN:
+                        Log.d(TAG, "handleRxPacket(): Stream " + user.getFirstEventData() + " begins");
+                        break;
+                    case STREAM_EOF:
+                        Log.i(TAG, "handleRxPacket(): Stream EOF reached");
+                        break;
+                    case PING_REQUEST:
+                        Log.d(TAG, "handleRxPacket(): Sending PONG reply..");
+                        sendRtmpPacket(new UserControl(user, rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                        break;
+                    default:
+                        // Ignore...
+                        break;
+                }
+                break;
+            case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                int size = ((WindowAckSize) rtmpPacket).getAcknowledgementWindowSize();
+                Log.d(TAG, "handleRxPacket(): Setting acknowledgement window size: " + size);
+                rtmpSessionInfo.setAcknowledgmentWindowSize(size);
+                break;
+            case SET_PEER_BANDWIDTH:
+                // Nothing of ours to limit, we hardly send anything
+                break;
+            case ACKNOWLEDGEMENT:
+                break;
+            case VIDEO:
+                MediaListener videoListener = mediaListener;
+                if (videoListener != null) {
+                    ContentData video = (ContentData) rtmpPacket;
+                    videoListener.onVideoData(video.getData(), video.size(), video.getHeader().getAbsoluteTimestamp());
+                }
+                break;
+            case AUDIO:
+                MediaListener audioListener = mediaListener;
+                if (audioListener != null) {
+                    ContentData audio = (ContentData) rtmpPacket;
+                    audioListener.onAudioData(audio.getData(), audio.size(), audio.getHeader().getAbsoluteTimestamp());
+                }
+                break;
+            case AGGREGATE_MESSAGE:
+                try {
+                    for (ContentData content : ((Aggregate) rtmpPacket).split()) {
+                        handleRxPacket(content);
+                    }
+                } catch (IOException ioe) {
+                    Log.w(TAG, "handleRxPacket(): Dropping malformed aggregate message: " + ioe.getMessage());
+                }
+                break;
+            case DATA_AMF0:
+                Log.d(TAG, "handleRxPacket(): " + ((Data) rtmpPacket).getType());
+                break;
+            case COMMAND_AMF0:
+                handleRxInvoke((Command) rtmpPacket);
+                break;
+            default:
+                Log.w(TAG, "handleRxPacket(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
+                break;
+        }
+    }
+
+    private void handleRxInvoke(Command invoke) {
+        String commandName = invoke.getCommandName();
+
+        if (commandName.equals("_result")) {
+            String method = rtmpSessionInfo.takeInvokedCommand(invoke.getTransactionId());
+            Log.d(TAG, "handleRxInvoke: Got result for invoked method: " + method);
+            if ("connect".equals(method)) {
+                connected = true;
+                mHandler.notifyRtmpConnected("Connected");
+                synchronized (connectingLock) {
+                    connectingLock.notifyAll();
+                }
+            } else if ("createStream".equals(method)) {
+                currentStreamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
+                Log.d(TAG, "handleRxInvoke(): Stream ID to play: " + currentStreamId);
+                wakeUpPlayLock();
+            } else {
+                Log.w(TAG, "handleRxInvoke(): '_result' message received for unknown method: " + method);
+            }
+        } else if (commandName.equals("_error")) {
+            String method = rtmpSessionInfo.takeInvokedCommand(invoke.getTransactionId());
+            Log.e(TAG, "handleRxInvoke(): '_error' received for " + method);
+            playFailed = true;
+            synchronized (connectingLock) {
+                connectingLock.notifyAll();
+            }
+            wakeUpPlayLock();
+        } else if (commandName.equals("onStatus")) {
+            String code = statusCode(invoke);
+            Log.d(TAG, "handleRxInvoke(): onStatus " + code);
+            if ("NetStream.Play.Start".equals(code)) {
+                playing = true;
+                wakeUpPlayLock();
+            } else if ("NetStream.Play.StreamNotFound".equals(code) || "NetStream.Play.Failed".equals(code)) {
+                playFailed = true;
+                mHandler.notifyRtmpIllegalStateException(new IllegalStateException(code + ": " + streamName));
+                wakeUpPlayLock();
+            } else if ("NetStream.Play.Stop".equals(code) || "NetStream.Play.UnpublishNotify".equals(code)) {
+                playing = false;
+            }
+        } else if (commandName.equals("onBWDone") || commandName.equals("|RtmpSampleAccess")) {
+            Log.d(TAG, "handleRxInvoke(): '" + commandName + "'");
+        } else {
+            Log.e(TAG, "handleRxInvoke(): Unknown/unhandled server invoke: " + invoke);
+        }
+    }
+
+    private static String statusCode(Command invoke) {
+        for (AmfData data : invoke.getData()) {
+            if (data instanceof AmfObject && ((AmfObject) data).getProperty("code") instanceof AmfString) {
+                return ((AmfString) ((AmfObject) data).getProperty("code")).getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -1,6 +1,5 @@
 package com.github.faucamp.simplertmp.io;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -22,18 +21,34 @@ public class RtmpSessionInfo {
     /** Default chunk size is 128 bytes */
     private int rxChunkSize = 128;
     private int txChunkSize = 128;
-    private Map<Integer, ChunkStreamInfo> chunkChannels = new HashMap<Integer, ChunkStreamInfo>();
+    private ConcurrentHashMap<Integer, ChunkStreamInfo> chunkChannels = new ConcurrentHashMap<Integer, ChunkStreamInfo>();
     private Map<Integer, String> invokedMethods = new ConcurrentHashMap<Integer, String>();
+    /** Clock of the timestamps sent on this connection, in ms; each connection has its own */
+    private volatile long sessionBeginTimestamp = System.nanoTime() / 1000000;
 
     public ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
         ChunkStreamInfo chunkStreamInfo = chunkChannels.get(chunkStreamId);
         if (chunkStreamInfo == null) {
+            // Looked up from both the rx and the tx side
             chunkStreamInfo = new ChunkStreamInfo();
-            chunkChannels.put(chunkStreamId, chunkStreamInfo);
+            ChunkStreamInfo existing = chunkChannels.putIfAbsent(chunkStreamId, chunkStreamInfo);
+            if (existing != null) {
+                chunkStreamInfo = existing;
+            }
         }
         return chunkStreamInfo;
     }
 
+    /** Sets the session beginning timestamp for all chunks of this connection */
+    public void markSessionTimestampTx() {
+        sessionBeginTimestamp = System.nanoTime() / 1000000;
+    }
+
+    /** Utility method for calculating & synchronizing transmitted timestamps */
+    public long markAbsoluteTimestampTx() {
+        return System.nanoTime() / 1000000 - sessionBeginTimestamp;
+    }
+
     public String takeInvokedCommand(int transactionId) {
         return invokedMethods.remove(transactionId);
     }
@@ -0,0 +1,61 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * Byte transport underneath an RTMP connection
+ */
+public interface RtmpTransport {
+
+    enum Type {
+        /** Blocking {@link java.net.Socket} with buffered streams */
+        SOCKET,
+        /** Blocking {@link java.nio.channels.SocketChannel} writing chunks with gathering writes */
+        CHANNEL,
+        /** Non-blocking {@link java.nio.channels.SocketChannel} driven by the shared {@link RtmpEventLoop} */
+        EVENT_LOOP
+    }
+
+    /**
+     * Connects to the server, blocking at most the specified time.
+     *
+     * @param address server address
+     * @param timeout connection timeout in milliseconds
+     */
+    void connect(SocketAddress address, int timeout) throws IOException;
+
+    InputStream getInputStream();
+
+    /**
+     * The stream RTMP chunks are written to. Its content reaches the network on {@link #flush()}; large
+     * writes may keep referencing the caller's array until {@link #commit(RtmpPublisher.BufferOwner)}
+     * or {@link #flush()} returns.
+     */
+    OutputStream getOutputStream();
+
+    /**
+     * Hands over the byte ranges borrowed from the caller's arrays since the last commit. Without an
+     * owner they are written out, so that those arrays may be reused; with one they may stay pending,
+     * the owner being retained until they are written or the transport closed. Small writes are
+     * allowed to stay buffered.
+     *
+     * @param owner of the arrays written from since the last commit, null if they are reused
+     */
+    void commit(RtmpPublisher.BufferOwner owner) throws IOException;
+
+    /** Writes out everything buffered so far */
+    void flush() throws IOException;
+
+    void setSendBufferSize(int size) throws SocketException;
+
+    /** Shuts down both directions, which unblocks any thread reading from or writing to this transport */
+    void shutdown() throws IOException;
+
+    void close() throws IOException;
+}
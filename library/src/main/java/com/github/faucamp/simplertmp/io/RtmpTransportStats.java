@@ -0,0 +1,138 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live statistics of the bytes sent on an RTMP connection, correlated with the server's acknowledgements
+ * and with ping/pong round trips.
+ *
+ * The server acknowledges every window of bytes it received (see {@link RtmpConnection#ACK_WINDOW_SIZE}).
+ * Comparing acknowledged bytes with the time they were handed to the socket gives the delivery latency,
+ * which includes the time spent queued in the local socket buffer, and the rate at which acknowledged
+ * bytes grow gives the throughput actually delivered to the server, whatever the encoder produces.
+ *
+ * Counting starts with the handshake; servers counting from a slightly different origin only skew the
+ * in-flight estimate by a few kilobytes.
+ */
+public final class RtmpTransportStats {
+
+    /** Sent byte counts remembered to time acknowledgements, roughly one per message */
+    private static final int SENT_SAMPLES = 256;
+    private static final int ACK_SAMPLES = 32;
+    /** Delivered bitrate is averaged over this period */
+    private static final long RATE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final long[] sentBytes = new long[SENT_SAMPLES];
+    private final long[] sentNanos = new long[SENT_SAMPLES];
+    private int sentFirst;
+    private int sentCount;
+    private final long[] ackBytes = new long[ACK_SAMPLES];
+    private final long[] ackNanos = new long[ACK_SAMPLES];
+    private int ackLast = -1;
+    private int ackCount;
+
+    private long bytesSent;
+    private long bytesAcked;
+    private int lastSequenceNumber;
+    private long smoothedRttNanos = -1;
+    private long pingRttNanos = -1;
+
+    /** Records the total number of bytes handed to the socket so far */
+    synchronized void onSent(long totalBytesSent, long nowNanos) {
+        bytesSent = totalBytesSent;
+        if (sentCount == SENT_SAMPLES) {
+            // Acknowledgements are late, forget the oldest sample
+            sentFirst = (sentFirst + 1) % SENT_SAMPLES;
+            sentCount--;
+        }
+        int i = (sentFirst + sentCount) % SENT_SAMPLES;
+        sentBytes[i] = totalBytesSent;
+        sentNanos[i] = nowNanos;
+        sentCount++;
+    }
+
+    /** Records an acknowledgement of the server, whose 32-bit sequence number wraps around */
+    synchronized void onAcknowledgement(int sequenceNumber, long nowNanos) {
+        bytesAcked += (sequenceNumber - lastSequenceNumber) & 0xffffffffL;
+        lastSequenceNumber = sequenceNumber;
+
+        // Samples entirely acknowledged are done with, the next one holds the acknowledged byte
+        while (sentCount > 0 && sentBytes[sentFirst] < bytesAcked) {
+            sentFirst = (sentFirst + 1) % SENT_SAMPLES;
+            sentCount--;
+        }
+        if (sentCount > 0) {
+            long rtt = nowNanos - sentNanos[sentFirst];
+            // Same smoothing as TCP's SRTT
+            smoothedRttNanos = smoothedRttNanos < 0 ? rtt : smoothedRttNanos + (rtt - smoothedRttNanos) / 8;
+        }
+
+        ackLast = (ackLast + 1) % ACK_SAMPLES;
+        ackBytes[ackLast] = bytesAcked;
+        ackNanos[ackLast] = nowNanos;
+        ackCount = Math.min(ackCount + 1, ACK_SAMPLES);
+    }
+
+    synchronized void onPingRtt(long rttNanos) {
+        pingRttNanos = rttNanos;
+    }
+
+    /** @return the number of bytes handed to the socket, handshake included */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** @return the number of bytes acknowledged by the server */
+    public synchronized long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    /** @return the number of bytes sent but not acknowledged yet, at most one window is normal */
+    public synchronized long getInFlightBytes() {
+        return Math.max(0, bytesSent - bytesAcked);
+    }
+
+    /**
+     * @return the smoothed time from handing bytes to the socket until their acknowledgement, in
+     * milliseconds, or -1 before the first acknowledgement
+     */
+    public synchronized int getRttMillis() {
+        return smoothedRttNanos < 0 ? -1 : (int) TimeUnit.NANOSECONDS.toMillis(smoothedRttNanos);
+    }
+
+    /** @return the round trip time of the last ping, in milliseconds, or -1 if no pong was received */
+    public synchronized int getPingRttMillis() {
+        return pingRttNanos < 0 ? -1 : (int) TimeUnit.NANOSECONDS.toMillis(pingRttNanos);
+    }
+
+    /**
+     * @return the bitrate acknowledged by the server over the last couple of seconds, in bits per
+     * second, or -1 before enough acknowledgements were received. It drops as soon as acknowledgements
+     * stop coming.
+     */
+    public synchronized double getDeliveredBitrate() {
+        if (ackCount < 2) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        // Latest sample at least one period old, or the oldest one
+        int base = (ackLast - ackCount + 1 + ACK_SAMPLES) % ACK_SAMPLES;
+        for (int n = 1, i = ackLast; n < ackCount; n++, i = (i - 1 + ACK_SAMPLES) % ACK_SAMPLES) {
+            if (now - ackNanos[i] >= RATE_PERIOD_NANOS) {
+                base = i;
+                break;
+            }
+        }
+        long elapsed = now - ackNanos[base];
+        if (elapsed <= 0) {
+            return -1;
+        }
+        return (double) (bytesAcked - ackBytes[base]) * 8 * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent " + bytesSent + " acked " + bytesAcked + " rtt " + getRttMillis() + "ms ping " +
+            getPingRttMillis() + "ms delivered " + (int) getDeliveredBitrate() + "bps";
+    }
+}
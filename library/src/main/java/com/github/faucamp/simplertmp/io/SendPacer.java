@@ -0,0 +1,58 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket releasing media bytes at a steady rate, so that a key frame does not reach the uplink
+ * as one burst filling every buffer on the way.
+ *
+ * Tokens are bytes, refilled at the pacing rate up to the burst allowance. Sending is allowed whenever
+ * the bucket is not in debt, and may take more than what is left: the debt is paid back before the next
+ * send. Audio is small and on a deadline, so it only takes tokens without waiting for them.
+ */
+class SendPacer {
+
+    private double bytesPerNano;
+    private long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param bitsPerSecond pacing rate, 0 stops pacing
+     * @param burstBytes bytes that may go out at once after an idle period
+     */
+    synchronized void setRate(long bitsPerSecond, int burstBytes) {
+        this.bytesPerNano = (double) bitsPerSecond / 8 / TimeUnit.SECONDS.toNanos(1);
+        this.burstBytes = burstBytes;
+        tokens = Math.min(tokens, burstBytes);
+    }
+
+    synchronized boolean isEnabled() {
+        return bytesPerNano > 0;
+    }
+
+    /** @return how long to wait before sending, 0 if it can go now */
+    synchronized long delayNanos(long nowNanos) {
+        if (bytesPerNano <= 0) {
+            return 0;
+        }
+        refill(nowNanos);
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerNano);
+    }
+
+    /** Takes the tokens of bytes being sent, whether they were available or not */
+    synchronized void consume(int bytes, long nowNanos) {
+        if (bytesPerNano <= 0) {
+            return;
+        }
+        refill(nowNanos);
+        tokens -= bytes;
+    }
+
+    private void refill(long nowNanos) {
+        if (lastRefillNanos != 0) {
+            tokens = Math.min(burstBytes, tokens + (nowNanos - lastRefillNanos) * bytesPerNano);
+        }
+        lastRefillNanos = nowNanos;
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.faucamp.simplertmp.packets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+/**
+ * Aggregate message: audio/video messages packed as FLV tags, each one followed by its previous tag
+ * size, so that several small frames go out as a single RTMP message.
+ *
+ * The message timestamp is the one of its first tag, the other ones are taken relative to it.
+ */
+public class Aggregate extends ContentData {
+
+    private static final int TAG_HEADER_SIZE = 11;
+    /** Bytes a tag takes besides its data: FLV tag header and previous tag size */
+    public static final int TAG_OVERHEAD = TAG_HEADER_SIZE + 4;
+
+    private int tagCount;
+    private int firstTagTimestamp;
+
+    public Aggregate(RtmpHeader header) {
+        super(header);
+    }
+
+    public Aggregate() {
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_CID_AGGREGATE, RtmpHeader.MessageType.AGGREGATE_MESSAGE));
+    }
+
+    /**
+     * Appends a tag, its data is copied
+     *
+     * @param type {@link RtmpHeader.MessageType#AUDIO} or {@link RtmpHeader.MessageType#VIDEO}
+     * @param timestamp absolute timestamp of the tag, the first one is the message's
+     */
+    public void addTag(RtmpHeader.MessageType type, byte[] tagData, int tagSize, int timestamp) {
+        if (tagCount == 0) {
+            size = 0;
+            firstTagTimestamp = timestamp;
+            header.setAbsoluteTimestamp(timestamp);
+        }
+        int length = size + TAG_OVERHEAD + tagSize;
+        if (data == null || data.length < length) {
+            data = Arrays.copyOf(data == null ? new byte[0] : data, Math.max(length, data == null ? 1024 : data.length * 2));
+        }
+        int pos = size;
+        data[pos++] = type.getValue();
+        pos = writeInt24(pos, tagSize);
+        pos = writeInt24(pos, timestamp & 0xffffff);
+        // Timestamp extension, the upper 8 bits
+        data[pos++] = (byte) (timestamp >>> 24);
+        // Stream id, always 0
+        pos = writeInt24(pos, 0);
+        System.arraycopy(tagData, 0, data, pos, tagSize);
+        pos += tagSize;
+        int previousTagSize = TAG_HEADER_SIZE + tagSize;
+        data[pos++] = (byte) (previousTagSize >>> 24);
+        pos = writeInt24(pos, previousTagSize);
+        size = pos;
+        tagCount++;
+    }
+
+    /** Empties the message so that it can be filled again */
+    public void clear() {
+        tagCount = 0;
+        size = 0;
+    }
+
+    /** @return the tags added since the last {@link #clear()} */
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    /** @return the timestamp of the first tag added, that is of the message */
+    public int getFirstTagTimestamp() {
+        return firstTagTimestamp;
+    }
+
+    /**
+     * Splits a received message into its audio/video messages, which get their own copy of the data and
+     * the message stream id of the aggregate
+     *
+     * @throws IOException if a tag overflows the message or its previous tag size does not match
+     */
+    public List<ContentData> split() throws IOException {
+        List<ContentData> messages = new ArrayList<>();
+        int pos = 0;
+        int baseTimestamp = 0;
+        while (pos < size) {
+            if (size - pos < TAG_OVERHEAD) {
+                throw new IOException("Truncated tag at " + pos + " in aggregate message of " + size + " bytes");
+            }
+            int type = data[pos] & 0x1f;
+            int tagSize = readInt24(pos + 1);
+            int timestamp = readInt24(pos + 4) | ((data[pos + 7] & 0xff) << 24);
+            if (size - pos < TAG_OVERHEAD + tagSize) {
+                throw new IOException("Tag of " + tagSize + " bytes overflows aggregate message of " + size + " bytes");
+            }
+            int previousTagSize = ((data[pos + TAG_HEADER_SIZE + tagSize] & 0xff) << 24) | readInt24(pos + TAG_HEADER_SIZE + tagSize + 1);
+            if (previousTagSize != TAG_HEADER_SIZE + tagSize) {
+                throw new IOException("Previous tag size " + previousTagSize + " does not match tag of " + tagSize + " bytes");
+            }
+            if (pos == 0) {
+                baseTimestamp = timestamp;
+            }
+            ContentData message = null;
+            if (type == RtmpHeader.MessageType.AUDIO.getValue()) {
+                message = new Audio();
+            } else if (type == RtmpHeader.MessageType.VIDEO.getValue()) {
+                message = new Video();
+            }
+            // Script data and other tags are skipped
+            if (message != null) {
+                message.getHeader().setMessageStreamId(header.getMessageStreamId());
+                message.getHeader().setAbsoluteTimestamp(header.getAbsoluteTimestamp() + timestamp - baseTimestamp);
+                message.getHeader().setPacketLength(tagSize);
+                message.setData(Arrays.copyOfRange(data, pos + TAG_HEADER_SIZE, pos + TAG_HEADER_SIZE + tagSize), tagSize);
+                messages.add(message);
+            }
+            pos += TAG_OVERHEAD + tagSize;
+        }
+        return messages;
+    }
+
+    private int writeInt24(int pos, int value) {
+        data[pos++] = (byte) (value >>> 16);
+        data[pos++] = (byte) (value >>> 8);
+        data[pos++] = (byte) value;
+        return pos;
+    }
+
+    private int readInt24(int pos) {
+        return ((data[pos] & 0xff) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+    }
+
+    @Override
+    public String toString() {
+        return "RTMP Aggregate";
+    }
+}
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfReader;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
@@ -66,6 +67,13 @@ public class Command extends VariableBodyRtmpPacket {
         readVariableData(in, bytesRead);
     }
 
+    @Override
+    public void readBody(AmfReader reader) throws IOException {
+        commandName = reader.readString();
+        transactionId = (int) reader.readNumber();
+        readVariableData(reader);
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {
         AmfString.writeStringTo(out, commandName, false);
@@ -74,16 +82,6 @@ public class Command extends VariableBodyRtmpPacket {
         writeVariableData(out);
     }
 
-    @Override
-    protected byte[] array() {
-        return null;
-    }
-
-    @Override
-    protected int size() {
-        return 0;
-    }
-
     @Override
     public String toString() {
         return "RTMP Command (command: " + commandName + ", transaction ID: " + transactionId + ")";
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
 /**
  * Content (audio/video) data packet base
@@ -22,6 +23,7 @@ public abstract class ContentData extends RtmpPacket {
         super(header);
     }
 
+    /** @return the payload, which may be backed by a longer array, see {@link #size()} */
     public byte[] getData() {
         return data;
     }
@@ -33,7 +35,8 @@ public abstract class ContentData extends RtmpPacket {
 
     @Override
     public void readBody(InputStream in) throws IOException {
-        data = new byte[this.header.getPacketLength()];
+        size = this.header.getPacketLength();
+        data = new byte[size];
         Util.readBytesUntilFull(in, data);
     }
 
@@ -46,6 +49,30 @@ public abstract class ContentData extends RtmpPacket {
     public void writeBody(OutputStream out) throws IOException {
     }
 
+    /**
+     * Writes a single chunk of this message, chunks of other chunk streams may be written between
+     * two calls
+     *
+     * @param offset offset of the chunk in the payload, 0 for the first one
+     * @return offset of the next chunk, {@link #size()} once the whole message is written
+     */
+    public int writeChunk(OutputStream out, int offset, int chunkSize, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        if (offset == 0) {
+            header.setPacketLength(size);
+            // As compact as the previous message on this chunk stream allows
+            header.writeTo(out, header.compress(chunkStreamInfo.getPrevHeaderTx()));
+        } else {
+            header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        }
+        int length = Math.min(chunkSize, size - offset);
+        out.write(data, offset, length);
+        offset += length;
+        if (offset == size) {
+            chunkStreamInfo.setPrevHeaderTx(header);
+        }
+        return offset;
+    }
+
     @Override
     public byte[] array() {
         return data;
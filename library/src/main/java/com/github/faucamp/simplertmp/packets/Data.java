@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.github.faucamp.simplertmp.amf.AmfReader;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
@@ -48,6 +49,12 @@ public class Data extends VariableBodyRtmpPacket {
         readVariableData(in, bytesRead);
     }
 
+    @Override
+    public void readBody(AmfReader reader) throws IOException {
+        type = reader.readString();
+        readVariableData(reader);
+    }
+
     /** 
      * This method is public for Data to make it easy to dump its contents to 
      * another output stream
@@ -57,14 +64,4 @@ public class Data extends VariableBodyRtmpPacket {
         AmfString.writeStringTo(out, type, false);
         writeVariableData(out);
     }
-
-    @Override
-    protected byte[] array() {
-        return null;
-    }
-
-    @Override
-    protected int size() {
-        return 0;
-    }
 }
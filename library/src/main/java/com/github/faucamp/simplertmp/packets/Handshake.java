@@ -22,6 +22,8 @@ public final class Handshake {
     private static final String TAG = "Handshake";
     /** S1 as sent by the server */
     private byte[] s1;
+    /** C1 as sent by the client, when playing the server side */
+    private byte[] c1;
     private static final int PROTOCOL_VERSION = 0x03;
     private static final int HANDSHAKE_SIZE = 1536;
     private static final int SHA256_DIGEST_SIZE = 32;
@@ -220,4 +222,60 @@ public final class Handshake {
 
         // Technically we should check that S2 == C1, but for now this is ignored
     }
+
+    /*
+     * Server side of the handshake, the plain (digest-less) variant: S1 is random, S2 echoes C1 and C2
+     * is not checked. This is what the client above expects, it does not check S1 nor S2 either.
+     */
+
+    public final void readC0(InputStream in) throws IOException {
+        Log.d(TAG, "readC0");
+        int c0 = in.read();
+        if (c0 != PROTOCOL_VERSION) {
+            if (c0 == -1) {
+                throw new IOException("InputStream closed");
+            } else {
+                throw new IOException("Invalid RTMP protocol version; expected " + PROTOCOL_VERSION + ", got " + c0);
+            }
+        }
+    }
+
+    public final void readC1(InputStream in) throws IOException {
+        Log.d(TAG, "readC1");
+        c1 = new byte[HANDSHAKE_SIZE];
+        Util.readBytesUntilFull(in, c1);
+    }
+
+    /** Writes the first handshake packet of the server (S0) */
+    public final void writeS0(OutputStream out) throws IOException {
+        Log.d(TAG, "writeS0");
+        out.write(PROTOCOL_VERSION);
+    }
+
+    /** Generates and writes the second handshake packet of the server (S1) */
+    public final void writeS1(OutputStream out) throws IOException {
+        Log.d(TAG, "writeS1");
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        new Random().nextBytes(s1);
+        System.arraycopy(Util.unsignedInt32ToByteArray((int) (System.currentTimeMillis() / 1000)), 0, s1, 0, 4);
+        // Bytes 4 - 7: zero, i.e. no digest
+        s1[4] = s1[5] = s1[6] = s1[7] = 0;
+        out.write(s1);
+    }
+
+    /** Writes the third handshake packet of the server (S2) */
+    public final void writeS2(OutputStream out) throws IOException {
+        Log.d(TAG, "writeS2");
+        // S2 is an echo of C1
+        if (c1 == null) {
+            throw new IllegalStateException("S2 cannot be written without C1 being read first");
+        }
+        out.write(c1);
+    }
+
+    public final void readC2(InputStream in) throws IOException {
+        // C2 should be an echo of S1, but we are not too strict
+        Log.d(TAG, "readC2");
+        Util.readBytesUntilFull(in, new byte[HANDSHAKE_SIZE]);
+    }
 }
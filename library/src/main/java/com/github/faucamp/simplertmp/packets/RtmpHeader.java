@@ -4,7 +4,6 @@
  */
 package com.github.faucamp.simplertmp.packets;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -12,8 +11,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.github.faucamp.simplertmp.Util;
-import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
-import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
 
 /**
  *
@@ -220,18 +217,28 @@ public class RtmpHeader {
         this.messageType = messageType;
     }
 
-    public static RtmpHeader readHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-        RtmpHeader rtmpHeader = new RtmpHeader();
-        rtmpHeader.readHeaderImpl(in, rtmpSessionInfo);
-        return rtmpHeader;
+    /** Copies every field of the specified header into this one */
+    public void copyFrom(RtmpHeader other) {
+        chunkType = other.chunkType;
+        chunkStreamId = other.chunkStreamId;
+        absoluteTimestamp = other.absoluteTimestamp;
+        timestampDelta = other.timestampDelta;
+        packetLength = other.packetLength;
+        messageType = other.messageType;
+        messageStreamId = other.messageStreamId;
+        extendedTimestamp = other.extendedTimestamp;
     }
 
-    private void readHeaderImpl(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-
-        int basicHeaderByte = in.read();
-        if (basicHeaderByte == -1) {
-            throw new EOFException("Unexpected EOF while reading RTMP packet basic header");
-        }
+    /**
+     * Reads a chunk header into this header in place. Compressed chunk headers only carry what changed,
+     * so this header must hold the previous header received on the same chunk stream, if any.
+     *
+     * @param basicHeaderByte the first byte of the chunk, already read
+     * @param continuation <code>true</code> if the chunk carries the rest of a message, whose timestamp
+     *                     must not be advanced again
+     */
+    public void readFrom(InputStream in, int basicHeaderByte, boolean continuation) throws IOException {
+        boolean hasPrevHeader = messageType != null;
         // Read byte 0: chunk type and chunk stream ID
         parseBasicHeader((byte) basicHeaderByte);
 
@@ -245,9 +252,7 @@ public class RtmpHeader {
                 // Read byte 7: Message type ID
                 messageType = MessageType.valueOf((byte) in.read());
                 // Read bytes 8-11: Message stream ID (apparently little-endian order)
-                byte[] messageStreamIdBytes = new byte[4];
-                Util.readBytesUntilFull(in, messageStreamIdBytes);
-                messageStreamId = Util.toUnsignedInt32LittleEndian(messageStreamIdBytes);
+                messageStreamId = Util.readUnsignedInt32LittleEndian(in);
                 // Read bytes 1-4: Extended timestamp
                 extendedTimestamp = absoluteTimestamp >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
                 if (extendedTimestamp != 0) {
@@ -264,37 +269,41 @@ public class RtmpHeader {
                 messageType = MessageType.valueOf((byte) in.read());
                 // Read bytes 1-4: Extended timestamp delta
                 extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                if (prevHeader != null) {
-                    messageStreamId = prevHeader.messageStreamId;
-                    absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                if (extendedTimestamp != 0) {
+                    timestampDelta = extendedTimestamp;
+                }
+                if (hasPrevHeader) {
+                    absoluteTimestamp += timestampDelta;
                 } else {
                     messageStreamId = 0;
-                    absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : timestampDelta;
+                    absoluteTimestamp = timestampDelta;
                 }
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
+                if (!hasPrevHeader) {
+                    throw new IOException("Type 2 chunk without previous header on chunk stream " + chunkStreamId);
+                }
                 // Read bytes 1-3: Timestamp delta
                 timestampDelta = Util.readUnsignedInt24(in);
                 // Read bytes 1-4: Extended timestamp delta
                 extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
-                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                if (extendedTimestamp != 0) {
+                    timestampDelta = extendedTimestamp;
+                }
+                absoluteTimestamp += timestampDelta;
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only 
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-                // Read bytes 1-4: Extended timestamp
-                extendedTimestamp = prevHeader.timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-                timestampDelta = extendedTimestamp != 0 ? 0xffffff : prevHeader.timestampDelta;
-                packetLength = prevHeader.packetLength;
-                messageType = prevHeader.messageType;
-                messageStreamId = prevHeader.messageStreamId;
-                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+                if (!hasPrevHeader) {
+                    throw new IOException("Type 3 chunk without previous header on chunk stream " + chunkStreamId);
+                }
+                // Read bytes 1-4: Extended timestamp, repeated whenever the previous header carried one
+                extendedTimestamp = extendedTimestamp != 0 ? Util.readUnsignedInt32(in) : 0;
+                if (!continuation) {
+                    // A new message with the same delta as the previous one
+                    absoluteTimestamp += timestampDelta;
+                }
                 break;
             }
             default:
@@ -302,46 +311,72 @@ public class RtmpHeader {
         }
     }
 
-    public void writeTo(OutputStream out, ChunkType chunkType, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+    /**
+     * Selects the smallest chunk header able to describe this message, given the previous message header
+     * sent on the same chunk stream, and sets the timestamp delta and extended timestamp to write with it.
+     *
+     * @param prevHeader the previous header sent on this chunk stream, or <code>null</code> if there is none
+     * @return the chunk type to use for the first chunk of this message
+     */
+    public ChunkType compress(RtmpHeader prevHeader) {
+        int delta = prevHeader == null ? -1 : absoluteTimestamp - prevHeader.absoluteTimestamp;
+        if (delta < 0 || messageStreamId != prevHeader.messageStreamId) {
+            // First message on this chunk stream, another message stream or timestamps going backwards
+            chunkType = ChunkType.TYPE_0_FULL;
+            timestampDelta = 0;
+            extendedTimestamp = absoluteTimestamp >= 0xffffff ? absoluteTimestamp : 0;
+        } else {
+            timestampDelta = delta;
+            extendedTimestamp = delta >= 0xffffff ? delta : 0;
+            if (packetLength != prevHeader.packetLength || messageType != prevHeader.messageType) {
+                chunkType = ChunkType.TYPE_1_RELATIVE_LARGE;
+            } else if (prevHeader.chunkType == ChunkType.TYPE_0_FULL || delta != prevHeader.timestampDelta
+                || extendedTimestamp != 0) {
+                // A type 3 header after a type 0 one is ambiguous among servers, always state the delta
+                chunkType = ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY;
+            } else {
+                chunkType = ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE;
+            }
+        }
+        return chunkType;
+    }
+
+    public void writeTo(OutputStream out, ChunkType chunkType) throws IOException {
         // Write basic header byte
         out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
-                chunkStreamInfo.markDeltaTimestampTx();
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
+                extendedTimestamp = absoluteTimestamp >= 0xffffff ? absoluteTimestamp : 0;
+                Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : absoluteTimestamp);
                 Util.writeUnsignedInt24(out, packetLength);
                 out.write(messageType.getValue());
                 Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
-                if (absoluteTimestamp >= 0xffffff) {
-                    extendedTimestamp = absoluteTimestamp;
+                if (extendedTimestamp != 0) {
                     Util.writeUnsignedInt32(out, extendedTimestamp);
                 }
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
-                timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-                absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
+                extendedTimestamp = timestampDelta >= 0xffffff ? timestampDelta : 0;
+                Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : timestampDelta);
                 Util.writeUnsignedInt24(out, packetLength);
                 out.write(messageType.getValue());
-                if (absoluteTimestamp >= 0xffffff) {
-                    extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, absoluteTimestamp);
+                if (extendedTimestamp != 0) {
+                    Util.writeUnsignedInt32(out, extendedTimestamp);
                 }
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
-                timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-                absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
-                if (absoluteTimestamp >= 0xffffff) {
-                    extendedTimestamp = absoluteTimestamp;
+                extendedTimestamp = timestampDelta >= 0xffffff ? timestampDelta : 0;
+                Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : timestampDelta);
+                if (extendedTimestamp != 0) {
                     Util.writeUnsignedInt32(out, extendedTimestamp);
                 }
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
-                if (extendedTimestamp > 0) {
+                // Continuation chunks repeat the extended timestamp of the first chunk, if any
+                if (extendedTimestamp != 0) {
                     Util.writeUnsignedInt32(out, extendedTimestamp);
                 }
                 break;
@@ -389,6 +424,11 @@ public class RtmpHeader {
         return timestampDelta;
     }
 
+    /** @return the extended timestamp carried by this header, 0 if none */
+    public int getExtendedTimestamp() {
+        return extendedTimestamp;
+    }
+
     public void setTimestampDelta(int timestampDelta) {
         this.timestampDelta = timestampDelta;
     }
@@ -1,7 +1,5 @@
 package com.github.faucamp.simplertmp.packets;
 
-import android.content.res.Configuration;
-
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,13 +32,26 @@ public abstract class RtmpPacket {
     protected abstract int size();
 
     public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeBody(baos);
-        byte[] body = this instanceof ContentData ? array() : baos.toByteArray();
-        int length = this instanceof ContentData ? size() : body.length;
+        if (this instanceof ContentData) {
+            // Audio/video payload is chunked straight from its backing array
+            ContentData content = (ContentData) this;
+            int pos = 0;
+            do {
+                pos = content.writeChunk(out, pos, chunkSize, chunkStreamInfo);
+            } while (pos < content.size());
+            return;
+        }
+        byte[] body = array();
+        int length = size();
+        if (body == null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeBody(baos);
+            body = baos.toByteArray();
+            length = body.length;
+        }
         header.setPacketLength(length);
-        // Write header for first chunk
-        header.writeTo(out, RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamInfo);
+        // Write header for first chunk, as compact as the previous message on this chunk stream allows
+        header.writeTo(out, header.compress(chunkStreamInfo.getPrevHeaderTx()));
         int pos = 0;
         while (length > chunkSize) {
             // Write packet for chunk
@@ -48,8 +59,9 @@ public abstract class RtmpPacket {
             length -= chunkSize;
             pos += chunkSize;
             // Write header for remain chunk
-            header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
+            header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
         }
         out.write(body, pos, length);
+        chunkStreamInfo.setPrevHeaderTx(header);
     }
 }
@@ -11,6 +11,7 @@ import com.github.faucamp.simplertmp.amf.AmfData;
 import com.github.faucamp.simplertmp.amf.AmfDecoder;
 import com.github.faucamp.simplertmp.amf.AmfNull;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfReader;
 import com.github.faucamp.simplertmp.amf.AmfString;
 
 /**
@@ -25,11 +26,27 @@ import com.github.faucamp.simplertmp.amf.AmfString;
 public abstract class VariableBodyRtmpPacket extends RtmpPacket {
 
     protected List<AmfData> data;
+    // Encoded beforehand, written instead of the data items
+    private byte[] body;
+    private int bodySize;
 
     public VariableBodyRtmpPacket(RtmpHeader header) {
         super(header);
     }
 
+    /**
+     * Sets the whole body, encoded beforehand with an {@link com.github.faucamp.simplertmp.amf.AmfWriter}
+     * or an {@link com.github.faucamp.simplertmp.amf.AmfTemplate}; it is written instead of the data
+     * items, and the array is referenced until the packet is written.
+     */
+    public void setBody(byte[] body, int size) {
+        this.body = body;
+        this.bodySize = size;
+    }
+
+    /** Reads the body straight from the received message, see {@link AmfReader} */
+    public abstract void readBody(AmfReader reader) throws IOException;
+
     public List<AmfData> getData() {
         return data;
     }
@@ -65,6 +82,12 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
         } while (bytesAlreadyRead < header.getPacketLength());
     }
 
+    protected void readVariableData(AmfReader reader) throws IOException {
+        while (reader.hasRemaining()) {
+            addData(reader.readValue());
+        }
+    }
+
     protected void writeVariableData(final OutputStream out) throws IOException {
         if (data != null) {
             for (AmfData dataItem : data) {
@@ -75,4 +98,14 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
             AmfNull.writeNullTo(out);
         }
     }
+
+    @Override
+    protected byte[] array() {
+        return body;
+    }
+
+    @Override
+    protected int size() {
+        return bodySize;
+    }
 }
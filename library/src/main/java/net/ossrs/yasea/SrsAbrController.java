@@ -0,0 +1,142 @@
+package net.ossrs.yasea;
+
+/**
+ * Adaptive video bitrate control law.
+ *
+ * Fed periodically with the depth and age of the send queue and with the bitrate the server actually
+ * acknowledged, it steps the encoder bitrate down as soon as frames pile up, and probes back up slowly
+ * once the queue stayed drained for a while. It has no Android dependency, so a bandwidth trace can be
+ * replayed through {@link #update(long, int, int, double)} on the JVM.
+ */
+public class SrsAbrController {
+
+    /** Share of the delivered bitrate granted to video on congestion, the rest covers audio and RTMP */
+    private static final double DELIVERED_HEADROOM = 0.85;
+
+    private final int floorBitrate;
+    private final int ceilingBitrate;
+    private int bitrate;
+
+    private double stepDownFactor = 0.7;
+    private int stepDownHoldMillis = 1000;
+    private double probeUpFactor = 1.1;
+    private int probeStableMillis = 5000;
+    private int congestedQueueMillis = 500;
+    private int congestedQueueFrames;
+    private int drainedQueueMillis = 100;
+
+    private long lastChangeMillis = -1;
+    private long drainedSinceMillis = -1;
+    /** Bitrate at which the last congestion happened, probing slows down when getting close to it */
+    private int congestedBitrate = Integer.MAX_VALUE;
+
+    /**
+     * @param floorBitrate lowest video bitrate to go down to, in bps
+     * @param ceilingBitrate highest video bitrate to probe up to, in bps
+     * @param startBitrate bitrate the encoder starts with, in bps
+     * @param congestedFrames queued video frames meaning congestion, a quarter of the encoder GOP
+     *                        such as {@code SrsEncoder.VGOP / 4}
+     */
+    public SrsAbrController(int floorBitrate, int ceilingBitrate, int startBitrate, int congestedFrames) {
+        if (floorBitrate <= 0 || floorBitrate > ceilingBitrate) {
+            throw new IllegalArgumentException("Invalid bitrate range [" + floorBitrate + ", " + ceilingBitrate + "]");
+        }
+        this.floorBitrate = floorBitrate;
+        this.ceilingBitrate = ceilingBitrate;
+        this.bitrate = Math.max(floorBitrate, Math.min(ceilingBitrate, startBitrate));
+        this.congestedQueueFrames = congestedFrames;
+    }
+
+    /**
+     * set the step-down policy
+     * @param factor bitrate multiplier applied on congestion, in (0, 1)
+     * @param holdMillis time given to the encoder and the queue to settle before stepping down again
+     */
+    public void setStepDown(double factor, int holdMillis) {
+        if (factor <= 0 || factor >= 1) {
+            throw new IllegalArgumentException("Step down factor must be in (0, 1)");
+        }
+        stepDownFactor = factor;
+        stepDownHoldMillis = holdMillis;
+    }
+
+    /**
+     * set the probe-up policy
+     * @param factor bitrate multiplier of each probe, greater than 1
+     * @param stableMillis time the queue must stay drained before each probe
+     */
+    public void setProbeUp(double factor, int stableMillis) {
+        if (factor <= 1) {
+            throw new IllegalArgumentException("Probe up factor must be greater than 1");
+        }
+        probeUpFactor = factor;
+        probeStableMillis = stableMillis;
+    }
+
+    /**
+     * set when the send queue counts as congested or drained
+     * @param congestedMillis queued media duration meaning congestion
+     * @param congestedFrames queued video frames meaning congestion
+     * @param drainedMillis queued media duration below which the link keeps up
+     */
+    public void setQueueThresholds(int congestedMillis, int congestedFrames, int drainedMillis) {
+        congestedQueueMillis = congestedMillis;
+        congestedQueueFrames = congestedFrames;
+        drainedQueueMillis = drainedMillis;
+    }
+
+    /** @return the current target bitrate, in bps */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Runs the control law once, every few hundred milliseconds.
+     *
+     * @param nowMillis monotonic time in milliseconds
+     * @param queuedFrames video frames waiting to be sent
+     * @param queuedMillis duration of the media waiting to be sent
+     * @param deliveredBitrate bitrate acknowledged by the server, negative if unknown
+     * @return the new target bitrate, the same as before if nothing changed
+     */
+    public int update(long nowMillis, int queuedFrames, int queuedMillis, double deliveredBitrate) {
+        boolean congested = queuedMillis >= congestedQueueMillis || queuedFrames >= congestedQueueFrames;
+        boolean drained = queuedMillis <= drainedQueueMillis && queuedFrames <= 1;
+
+        if (congested) {
+            drainedSinceMillis = -1;
+            if (lastChangeMillis < 0 || nowMillis - lastChangeMillis >= stepDownHoldMillis) {
+                int target = (int) (bitrate * stepDownFactor);
+                if (deliveredBitrate >= 0) {
+                    // Straight to what the link delivers if that is even lower
+                    target = Math.min(target, (int) (deliveredBitrate * DELIVERED_HEADROOM));
+                }
+                target = Math.max(floorBitrate, target);
+                if (target < bitrate) {
+                    congestedBitrate = bitrate;
+                    setBitrate(target, nowMillis);
+                }
+            }
+        } else if (drained) {
+            if (drainedSinceMillis < 0) {
+                drainedSinceMillis = nowMillis;
+            }
+            int target = Math.min(ceilingBitrate, (int) Math.ceil(bitrate * probeUpFactor));
+            // Twice as careful around the bitrate that congested last time
+            int stableMillis = target >= congestedBitrate ? probeStableMillis * 2 : probeStableMillis;
+            if (target > bitrate && nowMillis - drainedSinceMillis >= stableMillis) {
+                setBitrate(target, nowMillis);
+                drainedSinceMillis = nowMillis;
+            }
+        } else {
+            // Some frames queued, but not enough to act: hold
+            drainedSinceMillis = -1;
+        }
+        return bitrate;
+    }
+
+    private void setBitrate(int target, long nowMillis) {
+        bitrate = target;
+        lastChangeMillis = nowMillis;
+    }
+}
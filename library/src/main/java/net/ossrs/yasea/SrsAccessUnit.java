@@ -0,0 +1,68 @@
+package net.ossrs.yasea;
+
+/**
+ * An access unit demuxed from FLV: one AVC picture as length-prefixed (AVCC) NAL units, or one raw AAC
+ * frame. The codec configuration, AVCDecoderConfigurationRecord or AudioSpecificConfig, comes as a unit
+ * of its own, to be handed to the decoder as codec specific data.
+ */
+public class SrsAccessUnit {
+
+    public static final int TYPE_AUDIO = 8;
+    public static final int TYPE_VIDEO = 9;
+
+    private final int type;
+    private final byte[] data;
+    private final int dts;
+    private final int pts;
+    private final boolean keyFrame;
+    private final boolean config;
+
+    /**
+     * @param type {@link #TYPE_AUDIO} or {@link #TYPE_VIDEO}, the FLV tag types
+     * @param data the payload, owned by the unit from now on
+     * @param dts decoding timestamp, in ms
+     * @param pts presentation timestamp, in ms
+     * @param keyFrame whether decoding can start with this unit
+     * @param config whether this is the codec configuration rather than media
+     */
+    public SrsAccessUnit(int type, byte[] data, int dts, int pts, boolean keyFrame, boolean config) {
+        this.type = type;
+        this.data = data;
+        this.dts = dts;
+        this.pts = pts;
+        this.keyFrame = keyFrame;
+        this.config = config;
+    }
+
+    public boolean isVideo() {
+        return type == TYPE_VIDEO;
+    }
+
+    public boolean isAudio() {
+        return type == TYPE_AUDIO;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getDts() {
+        return dts;
+    }
+
+    public int getPts() {
+        return pts;
+    }
+
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    public boolean isConfig() {
+        return config;
+    }
+}
@@ -1,17 +1,52 @@
 package net.ossrs.yasea;
 
-import java.util.Arrays;
+import android.util.Log;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of byte buffers in power of two size classes, from 256B to 8MB.
+ *
+ * Each class keeps its free buffers in slots taken and given back with compare-and-set, so the
+ * encoder threads allocating and the sender threads releasing never wait on each other. A larger
+ * request gets a buffer of its own, never pooled.
+ *
+ * The memory cap bounds the bytes kept idle in the pool, not the ones in use: a buffer released while
+ * the pool holds that much already, or while its class is full, is left to the garbage collector and
+ * counted as evicted. Allocation always succeeds.
+ *
+ * In debug builds, or after {@link #setLeakDetection(boolean)}, the buffers garbage collected without
+ * being released are logged with the stack trace of their allocation, and releasing one twice throws.
+ */
 public final class SrsAllocator {
 
+    private static final String TAG = "SrsAllocator";
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 23;
+    // free buffers a class keeps at most, whatever the cap.
+    private static final int MAX_SLOTS = 256;
+
     public class Allocation {
 
         private byte[] data;
         private int size;
+        // index of the size class, -1 for the buffers too large to pool.
+        private final int sizeClass;
+        private final AtomicBoolean inUse = new AtomicBoolean();
+        private LeakReference leak;
 
-        public Allocation(int size) {
-            this.data = new byte[size];
+        private Allocation(int capacity, int sizeClass) {
+            this.data = new byte[capacity];
             this.size = 0;
+            this.sizeClass = sizeClass;
         }
 
         public byte[] array() {
@@ -57,60 +92,259 @@ public final class SrsAllocator {
         }
     }
 
-    private final int individualAllocationSize;
-    private volatile int availableSentinel;
-    private Allocation[] availableAllocations;
+    /**
+     * tracks an allocation in use, enqueued if it is garbage collected before being released.
+     */
+    private static final class LeakReference extends PhantomReference<Allocation> {
+        private final int capacity;
+        private final Throwable site;
+
+        LeakReference(Allocation allocation, ReferenceQueue<Allocation> queue) {
+            super(allocation, queue);
+            capacity = allocation.data.length;
+            site = new Throwable("allocated " + capacity + "B");
+        }
+    }
 
     /**
-     * Constructs an instance without creating any {@link Allocation}s up front.
-     *
-     * @param individualAllocationSize The length of each individual {@link Allocation}.
+     * the free buffers of a size class, in slots used as a stack: top hints where the last one went,
+     * the compare-and-set on the slot decides which thread gets it.
      */
-    public SrsAllocator(int individualAllocationSize) {
-      this(individualAllocationSize, 0);
+    private static final class FreeList {
+        private final AtomicReferenceArray<Allocation> slots;
+        private volatile int top;
+
+        FreeList(int capacity) {
+            slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        Allocation poll() {
+            int start = Math.min(top, slots.length());
+            // from the top down, then up for the ones given back meanwhile.
+            for (int i = start - 1; i >= 0; i--) {
+                Allocation free = slots.get(i);
+                if (free != null && slots.compareAndSet(i, free, null)) {
+                    top = i;
+                    return free;
+                }
+            }
+            for (int i = start; i < slots.length(); i++) {
+                Allocation free = slots.get(i);
+                if (free != null && slots.compareAndSet(i, free, null)) {
+                    top = i;
+                    return free;
+                }
+            }
+            return null;
+        }
+
+        boolean offer(Allocation allocation) {
+            int start = Math.min(top, slots.length());
+            for (int i = start; i < slots.length(); i++) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, allocation)) {
+                    top = i + 1;
+                    return true;
+                }
+            }
+            for (int i = start - 1; i >= 0; i--) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, allocation)) {
+                    top = i + 1;
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
+    private final String name;
+    private final long maxPooledBytes;
+    private final FreeList[] freeLists;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong highWaterBytes = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private volatile boolean leakDetection = BuildConfig.DEBUG;
+    private final ReferenceQueue<Allocation> leakQueue = new ReferenceQueue<>();
+    private final Set<LeakReference> leakReferences =
+        Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+
     /**
-     * Constructs an instance with some {@link Allocation}s created up front.
-     * <p>
-     *
-     * @param individualAllocationSize The length of each individual {@link Allocation}.
-     * @param initialAllocationCount The number of allocations to create up front.
+     * @param name The name of the pool in the logs.
+     * @param maxPooledBytes The most bytes kept in the pool while not in use.
      */
-    public SrsAllocator(int individualAllocationSize, int initialAllocationCount) {
-        this.individualAllocationSize = individualAllocationSize;
-        this.availableSentinel = initialAllocationCount + 10;
-        this.availableAllocations = new Allocation[availableSentinel];
-        for (int i = 0; i < availableSentinel; i++) {
-            availableAllocations[i] = new Allocation(individualAllocationSize);
+    public SrsAllocator(String name, long maxPooledBytes) {
+        this.name = name;
+        this.maxPooledBytes = maxPooledBytes;
+        freeLists = new FreeList[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++) {
+            // as many slots as buffers of the class fit in the cap.
+            freeLists[i] = new FreeList((int) Math.min(MAX_SLOTS, maxPooledBytes >> (MIN_CLASS_SHIFT + i)));
         }
     }
 
-    public synchronized Allocation allocate(int size) {
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() >= size) {
-                Allocation ret = availableAllocations[i];
-                availableAllocations[i] = null;
-                return ret;
-            }
+    /**
+     * @param size The bytes needed, the allocation may be larger.
+     * @return An empty allocation of at least size bytes.
+     */
+    public Allocation allocate(int size) {
+        if (leakDetection) {
+            reportLeaks();
+        }
+
+        int sizeClass = sizeClassOf(size);
+        Allocation allocation = sizeClass >= 0 ? freeLists[sizeClass].poll() : null;
+        if (allocation != null) {
+            hits.incrementAndGet();
+            pooledBytes.addAndGet(-allocation.data.length);
+        } else {
+            misses.incrementAndGet();
+            allocation = new Allocation(sizeClass >= 0 ? 1 << (MIN_CLASS_SHIFT + sizeClass) : size, sizeClass);
         }
 
-        return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
+        allocation.inUse.set(true);
+        long bytes = inUseBytes.addAndGet(allocation.data.length);
+        for (long high = highWaterBytes.get(); bytes > high; high = highWaterBytes.get()) {
+            if (highWaterBytes.compareAndSet(high, bytes)) {
+                break;
+            }
+        }
+        if (leakDetection) {
+            allocation.leak = new LeakReference(allocation, leakQueue);
+            leakReferences.add(allocation.leak);
+        }
+        return allocation;
     }
 
-    public synchronized void release(Allocation allocation) {
+    /**
+     * give the allocation back to the pool, it must not be used anymore.
+     */
+    public void release(Allocation allocation) {
+        // the refcounts of the frames should make it impossible, but it would corrupt the pool.
+        if (!allocation.inUse.compareAndSet(true, false)) {
+            if (leakDetection) {
+                throw new IllegalStateException(name + ": allocation released twice");
+            }
+            Log.e(TAG, String.format("%s: allocation of %dB released twice", name, allocation.data.length));
+            return;
+        }
+        if (allocation.leak != null) {
+            leakReferences.remove(allocation.leak);
+            allocation.leak.clear();
+            allocation.leak = null;
+        }
         allocation.clear();
+        int capacity = allocation.data.length;
+        inUseBytes.addAndGet(-capacity);
 
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() == 0) {
-                availableAllocations[i] = allocation;
+        if (allocation.sizeClass >= 0) {
+            if (pooledBytes.addAndGet(capacity) <= maxPooledBytes && freeLists[allocation.sizeClass].offer(allocation)) {
                 return;
             }
+            pooledBytes.addAndGet(-capacity);
         }
+        evictions.incrementAndGet();
+    }
 
-        if (availableSentinel + 1 > availableAllocations.length) {
-            availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
+    /**
+     * drop the buffers kept in the pool, to give the memory back while not streaming.
+     */
+    public void trim() {
+        for (FreeList freeList : freeLists) {
+            Allocation free;
+            while ((free = freeList.poll()) != null) {
+                pooledBytes.addAndGet(-free.data.length);
+            }
         }
-        availableAllocations[availableSentinel++] = allocation;
+    }
+
+    /**
+     * check for leaked allocations in release builds too, which costs an object per allocation.
+     */
+    public void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+    }
+
+    /**
+     * log the allocations garbage collected without being released since the last call.
+     * @return The number of these allocations.
+     */
+    public int reportLeaks() {
+        int count = 0;
+        Reference<? extends Allocation> reference;
+        while ((reference = leakQueue.poll()) != null) {
+            LeakReference leak = (LeakReference) reference;
+            if (leakReferences.remove(leak)) {
+                Log.e(TAG, String.format("%s: allocation of %dB never released", name, leak.capacity), leak.site);
+                count++;
+            }
+        }
+        leaks.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * @return The allocations served from the pool.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The allocations which needed a new buffer.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The released buffers not kept because of the cap or too large to pool.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The bytes kept in the pool, not in use.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return The bytes allocated and not released yet.
+     */
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    /**
+     * @return The most bytes in use at once.
+     */
+    public long getHighWaterBytes() {
+        return highWaterBytes.get();
+    }
+
+    /**
+     * @return The leaked allocations found so far, with the leak detection on.
+     */
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: hits %d misses %d evictions %d, pooled %dB in use %dB high water %dB",
+            name, getHitCount(), getMissCount(), getEvictionCount(), getPooledBytes(), getInUseBytes(),
+            getHighWaterBytes());
+    }
+
+    private static int sizeClassOf(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
     }
 }
@@ -0,0 +1,165 @@
+package net.ossrs.yasea;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits an annexb buffer, H.264-AVC-ISO_IEC_14496-10.pdf, page 211, into its NAL units, and rewrites
+ * them length prefixed, as in H.264-AVC-ISO_IEC_14496-15.pdf, page 20.
+ *
+ * The start codes are searched eight bytes at a time: a word without any zero byte cannot hold the
+ * first byte of one, and in a word with some, only the zero bytes are checked. The payloads are slices
+ * of entropy coded data with emulation prevention, most words are skipped whole.
+ *
+ * The offsets and sizes of the NAL units found are kept in arrays reused from one buffer to the next,
+ * nothing is allocated per frame once they are large enough.
+ */
+public final class SrsAnnexbScanner {
+
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+    private int[] offsets = new int[16];
+    private int[] sizes = new int[16];
+    private int count;
+
+    /**
+     * find the NAL units of bb from offset to end, the start codes and the trailing zeros excluded.
+     * @return the number of NAL units, 0 if there is no start code.
+     */
+    public int scan(ByteBuffer bb, int offset, int end) {
+        count = 0;
+        int pos = findStartCode(bb, offset, end);
+        while (pos >= 0) {
+            int start = pos + 3;
+            int next = findStartCode(bb, start, end);
+            // the trailing_zero_8bits, and the zero_byte of a 4 bytes start code.
+            int nalu_end = next >= 0 ? next : end;
+            while (nalu_end > start && bb.get(nalu_end - 1) == 0) {
+                nalu_end--;
+            }
+            if (nalu_end > start) {
+                add(start, nalu_end - start);
+            }
+            pos = next;
+        }
+        return count;
+    }
+
+    /**
+     * @return the index of the next 00 00 01 of bb from offset to end, -1 if none.
+     */
+    public static int findStartCode(ByteBuffer bb, int offset, int end) {
+        int limit = end - 2;
+        int i = offset;
+        // the first byte of the word is the most significant one in big endian, the least otherwise.
+        boolean bigEndian = bb.order() == ByteOrder.BIG_ENDIAN;
+        // the words whose bytes can all start a start code, the 3 bytes of which are before end.
+        for (; i + 7 < limit; i += 8) {
+            long word = bb.getLong(i);
+            // the high bit of each zero byte, exactly, the carries cannot cross bytes.
+            long zeros = ~(((word & LOWS) + LOWS) | word | LOWS);
+            while (zeros != 0) {
+                long first = bigEndian ? Long.highestOneBit(zeros) : Long.lowestOneBit(zeros);
+                int j = i + ((bigEndian ? Long.numberOfLeadingZeros(first) : Long.numberOfTrailingZeros(first)) >>> 3);
+                if (bb.get(j + 1) == 0x00 && bb.get(j + 2) == 0x01) {
+                    return j;
+                }
+                zeros &= ~first;
+            }
+        }
+        for (; i < limit; i++) {
+            if (bb.get(i) == 0x00 && bb.get(i + 1) == 0x00 && bb.get(i + 2) == 0x01) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getNaluCount() {
+        return count;
+    }
+
+    /**
+     * @return the offset in the scanned buffer of the NAL unit header of the index-th NAL unit.
+     */
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @return the nal_unit_type of the index-th NAL unit, see SrsAvcNaluType.
+     */
+    public int getNaluType(ByteBuffer bb, int index) {
+        return bb.get(offsets[index]) & 0x1f;
+    }
+
+    /**
+     * @return the bytes of the NAL units of the indexes given, each one prefixed by its 4 bytes length.
+     */
+    public int getAvccSize(int[] indexes, int nb_indexes) {
+        int size = 0;
+        for (int i = 0; i < nb_indexes; i++) {
+            size += 4 + sizes[indexes[i]];
+        }
+        return size;
+    }
+
+    /**
+     * copy the NAL units of bb of the indexes given to dst at offset, each one prefixed by its 4 bytes
+     * length.
+     * @return the bytes written, see {@link #getAvccSize(int[], int)}.
+     */
+    public int writeAvcc(ByteBuffer bb, int[] indexes, int nb_indexes, byte[] dst, int offset) {
+        int pos = offset;
+        // one view of a direct buffer for all the NAL units, a heap buffer is copied from its array.
+        ByteBuffer src = bb.hasArray() ? null : bb.duplicate();
+        for (int j = 0; j < nb_indexes; j++) {
+            int i = indexes[j];
+            int size = sizes[i];
+            dst[pos] = (byte) (size >>> 24);
+            dst[pos + 1] = (byte) (size >>> 16);
+            dst[pos + 2] = (byte) (size >>> 8);
+            dst[pos + 3] = (byte) size;
+            pos += 4;
+            if (src == null) {
+                System.arraycopy(bb.array(), bb.arrayOffset() + offsets[i], dst, pos, size);
+            } else {
+                src.limit(offsets[i] + size).position(offsets[i]);
+                src.get(dst, pos, size);
+            }
+            pos += size;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * copy the payload of the index-th NAL unit of bb to dst at offset, without its length.
+     */
+    public void copy(ByteBuffer bb, int index, byte[] dst, int offset) {
+        if (bb.hasArray()) {
+            System.arraycopy(bb.array(), bb.arrayOffset() + offsets[index], dst, offset, sizes[index]);
+        } else {
+            ByteBuffer src = bb.duplicate();
+            src.limit(offsets[index] + sizes[index]).position(offsets[index]);
+            src.get(dst, offset, sizes[index]);
+        }
+    }
+
+    private void add(int offset, int size) {
+        if (count == offsets.length) {
+            int[] grown = new int[count * 2];
+            System.arraycopy(offsets, 0, grown, 0, count);
+            offsets = grown;
+            grown = new int[count * 2];
+            System.arraycopy(sizes, 0, grown, 0, count);
+            sizes = grown;
+        }
+        offsets[count] = offset;
+        sizes[count] = size;
+        count++;
+    }
+}
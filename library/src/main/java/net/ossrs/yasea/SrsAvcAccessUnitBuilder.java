@@ -0,0 +1,152 @@
+package net.ossrs.yasea;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the annexb buffers of the encoder into length prefixed access units, for the FLV and the MP4
+ * muxers.
+ *
+ * Every NAL unit of the buffer is looked at: a picture may come in several slices, behind an access
+ * unit delimiter or SEI. The picture is a key frame if any of its slices is an IDR one, disposable if
+ * none of them is a reference. The parameter sets are kept apart, for the codec configuration; the
+ * access unit delimiters, SEI and filler data are kept or stripped by policy, the rest always kept.
+ *
+ * One instance per muxer and encoder thread, the result of {@link #build} is valid until the next one.
+ */
+public final class SrsAvcAccessUnitBuilder {
+
+    // Table 7-1 – NAL unit type codes, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 83.
+    private static final int NALU_NON_IDR = 1;
+    private static final int NALU_IDR = 5;
+    private static final int NALU_SEI = 6;
+    private static final int NALU_SPS = 7;
+    private static final int NALU_PPS = 8;
+    private static final int NALU_AUD = 9;
+    private static final int NALU_FILLER = 12;
+
+    private final SrsAnnexbScanner nalus = new SrsAnnexbScanner();
+    // indexes of the NAL units in the access unit.
+    private int[] units = new int[16];
+    private int nb_units;
+    private int nb_slices;
+    private int sps;
+    private int pps;
+    private boolean keyFrame;
+    private boolean disposable;
+
+    private volatile boolean keepAud = false;
+    private volatile boolean keepSei = true;
+    private volatile boolean keepFiller = false;
+
+    /**
+     * keep the access unit delimiters, stripped by default as the samples are delimited already.
+     */
+    public void setKeepAud(boolean keep) {
+        keepAud = keep;
+    }
+
+    /**
+     * keep the SEI of the encoder, the default.
+     */
+    public void setKeepSei(boolean keep) {
+        keepSei = keep;
+    }
+
+    /**
+     * keep the filler data, stripped by default as it only pads the bitrate of the encoder.
+     */
+    public void setKeepFiller(boolean keep) {
+        keepFiller = keep;
+    }
+
+    /**
+     * split the annexb buffer bb, from offset to end, into the access unit and its parameter sets.
+     * @return the number of NAL units found, 0 if there is no start code.
+     */
+    public int build(ByteBuffer bb, int offset, int end) {
+        nb_units = 0;
+        nb_slices = 0;
+        sps = -1;
+        pps = -1;
+        keyFrame = false;
+        disposable = true;
+
+        int count = nalus.scan(bb, offset, end);
+        if (units.length < count) {
+            units = new int[Math.max(count, units.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            byte header = bb.get(nalus.getOffset(i));
+            int type = header & 0x1f;
+            if (type >= NALU_NON_IDR && type <= NALU_IDR) {
+                nb_slices++;
+                keyFrame |= type == NALU_IDR;
+                // nal_ref_idc, 0 if no other picture refers to this one.
+                disposable &= (header & 0x60) == 0;
+            } else if (type == NALU_SPS) {
+                sps = i;
+                continue;
+            } else if (type == NALU_PPS) {
+                pps = i;
+                continue;
+            } else if ((type == NALU_AUD && !keepAud) || (type == NALU_SEI && !keepSei)
+                || (type == NALU_FILLER && !keepFiller)) {
+                continue;
+            }
+            units[nb_units++] = i;
+        }
+        disposable &= nb_slices > 0;
+        return count;
+    }
+
+    /**
+     * @return the NAL units of the last buffer built, all of them.
+     */
+    public SrsAnnexbScanner getNalus() {
+        return nalus;
+    }
+
+    /**
+     * @return the slices of the picture, 0 for the codec configuration alone.
+     */
+    public int getSliceCount() {
+        return nb_slices;
+    }
+
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    public boolean isDisposable() {
+        return disposable;
+    }
+
+    /**
+     * @return the index of the SPS in {@link #getNalus()}, the last one if several, -1 if none.
+     */
+    public int getSpsIndex() {
+        return sps;
+    }
+
+    /**
+     * @return the index of the PPS in {@link #getNalus()}, the last one if several, -1 if none.
+     */
+    public int getPpsIndex() {
+        return pps;
+    }
+
+    /**
+     * @return the bytes of the access unit, each NAL unit prefixed by its 4 bytes length.
+     */
+    public int getAvccSize() {
+        return nalus.getAvccSize(units, nb_units);
+    }
+
+    /**
+     * copy the access unit of bb to dst at offset, each NAL unit prefixed by its 4 bytes length.
+     * @return the bytes written, see {@link #getAvccSize()}.
+     */
+    public int writeAvcc(ByteBuffer bb, byte[] dst, int offset) {
+        return nalus.writeAvcc(bb, units, nb_units, dst, offset);
+    }
+}
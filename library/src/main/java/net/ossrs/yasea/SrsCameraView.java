@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -53,8 +53,8 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
     private int mPreviewOrientation = Configuration.ORIENTATION_PORTRAIT;
 
     private Thread worker;
-    private final Object writeLock = new Object();
-    private ConcurrentLinkedQueue<IntBuffer> mGLIntBufferCache = new ConcurrentLinkedQueue<>();
+    // the GL thread fills the same buffer each frame, a late frame is replaced by the next one.
+    private final SrsSpscRing<IntBuffer> mGLIntBufferCache = new SrsSpscRing<>(2, SrsSpscRing.OverflowPolicy.DROP_OLDEST);
     private PreviewCallback mPrevCb;
     private CameraCallbacksHandler cameraCallbacksHandler = new CameraCallbacksHandler();
 
@@ -139,10 +139,7 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         magicFilter.onDrawFrame(mOESTextureId);
 
         if (mIsEncoding) {           
-            mGLIntBufferCache.add(magicFilter.getGLFboBuffer());                       
-            synchronized (writeLock) {
-                writeLock.notifyAll();
-            }
+            mGLIntBufferCache.offer(magicFilter.getGLFboBuffer());
         }
     }
 
@@ -278,29 +275,22 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
             @Override
             public void run() {
                 while (!Thread.interrupted()) {
-                    while (!mGLIntBufferCache.isEmpty()) {
-                        try {
-                            IntBuffer picture = mGLIntBufferCache.poll();
-                            mGLPreviewBuffer.asIntBuffer().put(picture.array());
-                            mPrevCb.onGetRgbaFrame(mGLPreviewBuffer.array(), mPreviewWidth, mPreviewHeight);
-                        }catch (Exception e){
-                            cameraCallbacksHandler.onError(e);
-                            e.printStackTrace();
-                            worker.interrupt();
-                            break;
-                        }
-
+                    // Waiting for next frame, null when interrupted
+                    IntBuffer picture = mGLIntBufferCache.poll(500, TimeUnit.MILLISECONDS);
+                    if (picture == null) {
+                        continue;
                     }
-                    // Waiting for next frame
-                    synchronized (writeLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            writeLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
+                    try {
+                        mGLPreviewBuffer.asIntBuffer().put(picture.array());
+                        mPrevCb.onGetRgbaFrame(mGLPreviewBuffer.array(), mPreviewWidth, mPreviewHeight);
+                    }catch (Exception e){
+                        cameraCallbacksHandler.onError(e);
+                        e.printStackTrace();
+                        worker.interrupt();
                     }
                 }
+                // only the consumer may clear the ring
+                mGLIntBufferCache.clear();
             }
         });
         worker.start();
@@ -309,8 +299,6 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
 
     public void disableEncoding() {
         mIsEncoding = false;
-        mGLIntBufferCache.clear();
-        mGLPreviewBuffer.clear();
 
         if (worker != null) {
             worker.interrupt();
@@ -322,6 +310,7 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
             }
             worker = null;
         }
+        mGLPreviewBuffer.clear();
     }
 
     public boolean startCamera() {
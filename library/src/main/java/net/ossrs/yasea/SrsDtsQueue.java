@@ -0,0 +1,93 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+/**
+ * Derives the decoding timestamps of the pictures of an encoder which only reports their presentation
+ * timestamps, as MediaCodec does, while it reorders them for B-frames.
+ *
+ * The frames come out in decoding order: the n-th frame out is decoded at the pts of the n-th frame in,
+ * minus the reorder delay, so that no dts passes its pts. The dts never go back either, whatever the
+ * timing of the capture.
+ *
+ * Used by the thread feeding the encoder, which also drains it.
+ */
+final class SrsDtsQueue {
+
+    // pts of the frames queued to the encoder at most, to derive the dts of its output.
+    private static final int MAX_QUEUED_PTS = 64;
+
+    // the pts of the frames queued to the encoder, in input order.
+    private final long[] queuedPts = new long[MAX_QUEUED_PTS];
+    private int head;
+    private int count;
+    // the dts lag behind the input pts by the frames the encoder reorders.
+    private long reorderDelayUs;
+    private long lastDts = -1;
+
+    /**
+     * forget the frames queued so far, for an encoder delaying its output by the reorder delay.
+     * @param reorderDelayUs the duration of the B-frames between two references, 0 without any.
+     */
+    public void reset(long reorderDelayUs) {
+        this.reorderDelayUs = reorderDelayUs;
+        head = 0;
+        count = 0;
+        lastDts = -1;
+    }
+
+    public long getReorderDelayUs() {
+        return reorderDelayUs;
+    }
+
+    /**
+     * the frame of this pts was queued to the encoder.
+     */
+    public void queue(long pts) {
+        if (reorderDelayUs == 0) {
+            return;
+        }
+        if (count == MAX_QUEUED_PTS) {
+            // frames dropped by the encoder, forget the oldest.
+            head = (head + 1) % MAX_QUEUED_PTS;
+            count--;
+        }
+        queuedPts[(head + count) % MAX_QUEUED_PTS] = pts;
+        count++;
+    }
+
+    /**
+     * @return the dts of the next frame out of the encoder, in us.
+     */
+    public long next(MediaCodec.BufferInfo bi) {
+        long dts = derive(bi);
+        if (dts != bi.presentationTimeUs && (bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            // a reordered picture: the dts must go on and never pass the pts.
+            dts = Math.max(lastDts + 1, Math.min(dts, bi.presentationTimeUs));
+        }
+        lastDts = dts;
+        return dts;
+    }
+
+    private long derive(MediaCodec.BufferInfo bi) {
+        if (reorderDelayUs == 0 || (bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // no reordering, each picture is decoded when presented.
+            return bi.presentationTimeUs;
+        }
+        if ((bi.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            // nothing queued before an IDR comes out after it: forget the frames the encoder skipped
+            // or merged, so that they do not shift the dts of the GOP.
+            while (count > 0 && queuedPts[head] < bi.presentationTimeUs) {
+                head = (head + 1) % MAX_QUEUED_PTS;
+                count--;
+            }
+        }
+        if (count == 0) {
+            return bi.presentationTimeUs;
+        }
+        long pts = queuedPts[head];
+        head = (head + 1) % MAX_QUEUED_PTS;
+        count--;
+        return pts - reorderDelayUs;
+    }
+}
@@ -3,6 +3,8 @@ package net.ossrs.yasea;
 import android.os.Handler;
 import android.os.Message;
 
+import com.github.faucamp.simplertmp.StreamingEventCoalescer;
+
 import java.lang.ref.WeakReference;
 
 /**
@@ -16,17 +18,23 @@ public class SrsEncodeHandler extends Handler {
     private static final int MSG_ENCODE_ILLEGAL_ARGUMENT_EXCEPTION = 2;
 
     private WeakReference<SrsEncodeListener> mWeakListener;
+    // Reported on change only, the encoder checks the network for every frame
+    private final StreamingEventCoalescer.Edge mNetworkWeak = new StreamingEventCoalescer.Edge();
 
     public SrsEncodeHandler(SrsEncodeListener listener) {
         mWeakListener = new WeakReference<>(listener);
     }
 
     public void notifyNetworkWeak() {
-        sendEmptyMessage(MSG_ENCODE_NETWORK_WEAK);
+        if (mNetworkWeak.set(true)) {
+            sendEmptyMessage(MSG_ENCODE_NETWORK_WEAK);
+        }
     }
 
     public void notifyNetworkResume() {
-        sendEmptyMessage(MSG_ENCODE_NETWORK_RESUME);
+        if (mNetworkWeak.set(false)) {
+            sendEmptyMessage(MSG_ENCODE_NETWORK_RESUME);
+        }
     }
 
     public void notifyEncodeIllegalArgumentException(IllegalArgumentException e) {
@@ -49,6 +57,7 @@ public class SrsEncodeHandler extends Handler {
                 break;
             case MSG_ENCODE_ILLEGAL_ARGUMENT_EXCEPTION:
                 listener.onEncodeIllegalArgumentException((IllegalArgumentException) msg.obj);
+                break;
             default:
                 throw new RuntimeException("unknown msg " + msg.what);
         }
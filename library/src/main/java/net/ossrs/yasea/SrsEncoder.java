@@ -9,8 +9,12 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
+import com.github.faucamp.simplertmp.io.RtmpTransportStats;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -35,9 +39,13 @@ public class SrsEncoder {
     public static int vBitrate = 1200 * 1024;  // 1200 kbps
     public static final int VFPS = 24;
     public static final int VGOP = 48;
+    public static int vBFrames = 0;  // none, each picture sent as soon as encoded
     public static final int ASAMPLERATE = 44100;
     public static int aChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
     public static final int ABITRATE = 64 * 1024;  // 64 kbps
+    private static final int ABR_UPDATE_INTERVAL_MS = 500;
+    // how long to wait for the pictures the hardware encoder still holds back at stop.
+    private static final int DRAIN_TIMEOUT_US = 100000;
 
     private SrsEncodeHandler mHandler;
 
@@ -56,8 +64,15 @@ public class SrsEncoder {
     private long mPresentTimeUs;
     private long mPausetime;
 
+    // the dts of the hardware encoder output, which reports the pts only.
+    private final SrsDtsQueue mDtsQueue = new SrsDtsQueue();
+
     private int mVideoColorFormat;
 
+    private SrsAbrController abrController;
+    private int mCurrentBitrate;
+    private long mLastAbrUpdateMs;
+
     private int videoFlvTrack;
     private int videoMp4Track;
     private int audioFlvTrack;
@@ -94,6 +109,7 @@ public class SrsEncoder {
 
         // the referent PTS for video and audio encoder.
         mPresentTimeUs = System.nanoTime() / 1000;
+        mDtsQueue.reset(0);
 
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
@@ -113,6 +129,8 @@ public class SrsEncoder {
         // setEncoderGop(15);
         setEncoderBitrate(vBitrate);
         setEncoderPreset(x264Preset);
+        mCurrentBitrate = vBitrate;
+        flvMuxer.setPacingTargetBitrate(vBitrate + ABITRATE);
 
         if (useSoftEncoder) {
             canSoftEncode = openSoftEncoder();
@@ -160,6 +178,9 @@ public class SrsEncoder {
         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VGOP / VFPS);
+        if (vBFrames > 0 && setHardEncoderBFrames(videoFormat, vBFrames)) {
+            mDtsQueue.reset(vBFrames * 1000000L / VFPS);
+        }
         vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // add the video tracker to muxer.
         videoFlvTrack = flvMuxer.addTrack(videoFormat);
@@ -198,6 +219,9 @@ public class SrsEncoder {
 
         if (vencoder != null) {
             Log.i(TAG, "stop vencoder");
+            if (mDtsQueue.getReorderDelayUs() > 0) {
+                drainHardEncoder();
+            }
             try {
                 vencoder.stop();
             }catch (IllegalStateException e){
@@ -273,6 +297,107 @@ public class SrsEncoder {
         x264Preset = "superfast";
     }
 
+    /**
+     * Let the hardware encoder put up to count B-frames between two references, which compresses better
+     * but delays each picture by as many frames. Takes effect at the next start, 0 disables them. The
+     * x264 encoder of libenc encodes without B-frames whatever the count.
+     */
+    public void setVideoBFrames(int count) {
+        vBFrames = Math.max(0, count);
+    }
+
+    private boolean setHardEncoderBFrames(MediaFormat format, int count) {
+        // MediaFormat.KEY_MAX_B_FRAMES, Android 10
+        if (Build.VERSION.SDK_INT < 29) {
+            Log.w(TAG, String.format("vencoder %s cannot be asked for B-frames before Android 10", vmci.getName()));
+            return false;
+        }
+        // baseline does not allow B-frames, the highest profile supported among main and high does.
+        MediaCodecInfo.CodecProfileLevel chosen = null;
+        for (MediaCodecInfo.CodecProfileLevel pl : vmci.getCapabilitiesForType(VCODEC).profileLevels) {
+            if ((pl.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileMain
+                || pl.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh)
+                && (chosen == null || pl.profile > chosen.profile
+                || (pl.profile == chosen.profile && pl.level > chosen.level))) {
+                chosen = pl;
+            }
+        }
+        if (chosen == null) {
+            Log.w(TAG, String.format("vencoder %s has no profile with B-frames", vmci.getName()));
+            return false;
+        }
+        format.setInteger(MediaFormat.KEY_PROFILE, chosen.profile);
+        format.setInteger(MediaFormat.KEY_LEVEL, chosen.level);
+        format.setInteger("max-bframes", count);
+        return true;
+    }
+
+    /**
+     * Let the video bitrate follow the network, or keep it fixed when null.
+     */
+    public void setAbrController(SrsAbrController controller) {
+        abrController = controller;
+    }
+
+    public int getVideoBitrate() {
+        return mCurrentBitrate;
+    }
+
+    /**
+     * Get the presentation time a frame captured now gets, in us.
+     */
+    public long getPresentationTimeUs() {
+        return System.nanoTime() / 1000 - mPresentTimeUs;
+    }
+
+    // Runs on the thread feeding video frames, which is also the one driving the encoder.
+    private void adaptBitrate() {
+        SrsAbrController controller = abrController;
+        if (controller == null || flvMuxer == null) {
+            return;
+        }
+        long now = System.nanoTime() / 1000000;
+        if (now - mLastAbrUpdateMs < ABR_UPDATE_INTERVAL_MS) {
+            return;
+        }
+        mLastAbrUpdateMs = now;
+
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        RtmpTransportStats stats = flvMuxer.getTransportStats();
+        int bitrate = controller.update(now, videoFrameCacheNumber == null ? 0 : videoFrameCacheNumber.get(),
+            flvMuxer.getVideoFrameCacheDuration(), stats == null ? -1 : stats.getDeliveredBitrate());
+        if (bitrate != mCurrentBitrate) {
+            Log.i(TAG, String.format("adapt video bitrate %d -> %d bps, %s", mCurrentBitrate, bitrate, stats));
+            setRuntimeBitrate(bitrate);
+        }
+    }
+
+    private void setRuntimeBitrate(int bitrate) {
+        if (useSoftEncoder) {
+            if (!canSoftEncode) {
+                return;
+            }
+            // x264 is reopened at the new bitrate, between two frames of this thread: it starts over with
+            // the SPS/PPS and an IDR, which the controller makes rare by holding after each change.
+            closeSoftEncoder();
+            setEncoderBitrate(bitrate);
+            canSoftEncode = openSoftEncoder();
+            if (!canSoftEncode) {
+                mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("x264 failure"));
+                return;
+            }
+        } else {
+            if (vencoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                return;
+            }
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            vencoder.setParameters(params);
+        }
+        mCurrentBitrate = bitrate;
+        flvMuxer.setPacingTargetBitrate(bitrate + ABITRATE);
+    }
+
     public int getPreviewWidth() {
         return vPrevWidth;
     }
@@ -319,6 +444,7 @@ public class SrsEncoder {
             bb.clear();
             bb.put(yuvFrame, 0, yuvFrame.length);
             vencoder.queueInputBuffer(inBufferIndex, 0, yuvFrame.length, pts, 0);
+            mDtsQueue.queue(pts);
         }
 
         for (; ; ) {
@@ -326,7 +452,7 @@ public class SrsEncoder {
             int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, 0);
             if (outBufferIndex >= 0) {
                 ByteBuffer bb = outBuffers[outBufferIndex];
-                onEncodedAnnexbFrame(bb, vebi);
+                onEncodedAnnexbFrame(bb, vebi, mDtsQueue.next(vebi));
                 vencoder.releaseOutputBuffer(outBufferIndex, false);
             } else {
                 break;
@@ -334,6 +460,40 @@ public class SrsEncoder {
         }
     }
 
+    // the pictures held back for reordering come out once the end of the stream is queued.
+    private void drainHardEncoder() {
+        try {
+            int inBufferIndex = vencoder.dequeueInputBuffer(DRAIN_TIMEOUT_US);
+            if (inBufferIndex < 0) {
+                return;
+            }
+            vencoder.queueInputBuffer(inBufferIndex, 0, 0, getPresentationTimeUs(),
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            ByteBuffer[] outBuffers = vencoder.getOutputBuffers();
+            for (; ; ) {
+                MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
+                int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, DRAIN_TIMEOUT_US);
+                if (outBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outBuffers = vencoder.getOutputBuffers();
+                    continue;
+                }
+                if (outBufferIndex < 0) {
+                    break;
+                }
+                if (vebi.size > 0) {
+                    onEncodedAnnexbFrame(outBuffers[outBufferIndex], vebi, mDtsQueue.next(vebi));
+                }
+                vencoder.releaseOutputBuffer(outBufferIndex, false);
+                if ((vebi.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // x264 encodes without B-frames, each picture is decoded when presented.
     private void onSoftEncodedData(byte[] es, long pts, boolean isKeyFrame) {
         ByteBuffer bb = ByteBuffer.wrap(es);
         MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
@@ -341,13 +501,13 @@ public class SrsEncoder {
         vebi.size = es.length;
         vebi.presentationTimeUs = pts;
         vebi.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
-        onEncodedAnnexbFrame(bb, vebi);
+        onEncodedAnnexbFrame(bb, vebi, pts);
     }
 
     // when got encoded h264 es stream.
-    private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
-        mp4Muxer.writeSampleData(videoMp4Track, es.duplicate(), bi);
-        flvMuxer.writeSampleData(videoFlvTrack, es, bi);
+    private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi, long dts) {
+        mp4Muxer.writeSampleData(videoMp4Track, es.duplicate(), bi, dts);
+        flvMuxer.writeSampleData(videoFlvTrack, es, bi, dts);
     }
 
     // when got encoded aac raw stream.
@@ -398,6 +558,8 @@ public class SrsEncoder {
             return;
         }                
         
+        adaptBitrate();
+
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -425,6 +587,8 @@ public class SrsEncoder {
     }
 
     public void onGetYuvNV21Frame(byte[] data, int width, int height, Rect boundingBox) {
+        adaptBitrate();
+
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -453,6 +617,8 @@ public class SrsEncoder {
     }
 
     public void onGetArgbFrame(int[] data, int width, int height, Rect boundingBox) {
+        adaptBitrate();
+
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -481,6 +647,8 @@ public class SrsEncoder {
     }
 
     public void onGetArgbFrame(int[] data, int width, int height) {
+        adaptBitrate();
+
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
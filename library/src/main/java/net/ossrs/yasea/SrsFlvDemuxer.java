@@ -0,0 +1,195 @@
+package net.ossrs.yasea;
+
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpPlayer;
+import com.github.faucamp.simplertmp.io.RtmpPlayConnection;
+
+import java.util.Arrays;
+
+/**
+ * Plays an RTMP stream back, the return feed of the stream published or any other one.
+ *
+ * The FLV audio/video tags received are demuxed into AVC and AAC access units, which go through an
+ * adaptive {@link SrsJitterBuffer} before being read by the decoders with
+ * {@link #readAccessUnit(long)}. The connection is retried as long as the demuxer is started.
+ */
+public class SrsFlvDemuxer {
+
+    private static final String TAG = "SrsFlvDemuxer";
+    private static final int DEFAULT_RETRY_DELAY_MS = 1000;
+
+    // FLV tag fields, see SrsFlvMuxer for the whole tables
+    private static final int CODEC_VIDEO_AVC = 7;
+    private static final int CODEC_AUDIO_AAC = 10;
+    private static final int FRAME_TYPE_KEY_FRAME = 1;
+    private static final int PACKET_TYPE_SEQUENCE_HEADER = 0;
+    private static final int PACKET_TYPE_NALU = 1;
+
+    private final RtmpPlayer player;
+    private final SrsJitterBuffer jitterBuffer = new SrsJitterBuffer();
+    private volatile boolean started = false;
+    private Thread worker;
+    private final Object workerLock = new Object();
+    private int bufferLength = SrsJitterBuffer.DEFAULT_TARGET_DELAY_MS;
+    private volatile int unsupportedTagCount;
+
+    /**
+     * constructor.
+     * @param handler the rtmp event handler.
+     */
+    public SrsFlvDemuxer(RtmpHandler handler) {
+        player = new RtmpPlayConnection(handler);
+        player.setMediaListener(new RtmpPlayer.MediaListener() {
+            @Override
+            public void onVideoData(byte[] data, int size, int dts) {
+                demuxVideo(data, size, dts);
+            }
+
+            @Override
+            public void onAudioData(byte[] data, int size, int dts) {
+                demuxAudio(data, size, dts);
+            }
+        });
+    }
+
+    /**
+     * set the playout delay, applied right away.
+     * @param targetMillis delay on a network without jitter, also announced to the server as the buffer length.
+     * @param maxMillis highest delay a jittery network may push it to.
+     */
+    public void setDelay(int targetMillis, int maxMillis) {
+        jitterBuffer.setDelay(targetMillis, maxMillis);
+        bufferLength = targetMillis;
+    }
+
+    /**
+     * get the jitter buffer, for its depth, stall and delay statistics.
+     */
+    public SrsJitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * get the FLV tags skipped because of a codec other than AVC and AAC.
+     */
+    public int getUnsupportedTagCount() {
+        return unsupportedTagCount;
+    }
+
+    /**
+     * tell whether media are being received.
+     */
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    /**
+     * read the next access unit, once its playout time has come.
+     * @param timeoutMillis longest time to wait.
+     * @return the access unit, or null if none came in time.
+     */
+    public SrsAccessUnit readAccessUnit(long timeoutMillis) throws InterruptedException {
+        return jitterBuffer.take(timeoutMillis);
+    }
+
+    /**
+     * start playing the stream.
+     * @param rtmpUrl the url of the stream to play.
+     */
+    public void start(final String rtmpUrl) {
+        started = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (started) {
+                    jitterBuffer.clear();
+                    if (player.connect(rtmpUrl) && player.play(bufferLength)) {
+                        Log.i(TAG, "worker: playing " + rtmpUrl);
+                        waitWhilePlaying();
+                    }
+                    player.close();
+                    if (started) {
+                        Log.i(TAG, "worker: retrying in " + DEFAULT_RETRY_DELAY_MS + "ms");
+                        sleepWhileStarted(DEFAULT_RETRY_DELAY_MS);
+                    }
+                }
+            }
+        }, "SrsFlvDemuxer");
+        worker.start();
+    }
+
+    /**
+     * stop playing.
+     */
+    public void stop() {
+        started = false;
+        synchronized (workerLock) {
+            workerLock.notifyAll();
+        }
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                worker.interrupt();
+            }
+            worker = null;
+        }
+        jitterBuffer.clear();
+        Log.i(TAG, "SrsFlvDemuxer closed");
+    }
+
+    private void waitWhilePlaying() {
+        // Media arrive on the connection's own thread, only the end of the stream is waited for here
+        while (started && player.isPlaying()) {
+            sleepWhileStarted(100);
+        }
+    }
+
+    private void sleepWhileStarted(int millis) {
+        synchronized (workerLock) {
+            if (started) {
+                try {
+                    workerLock.wait(millis);
+                } catch (InterruptedException e) {
+                    started = false;
+                }
+            }
+        }
+    }
+
+    private void demuxVideo(byte[] data, int size, int dts) {
+        if (size < 5) {
+            return;
+        }
+        if ((data[0] & 0x0f) != CODEC_VIDEO_AVC) {
+            unsupportedTagCount++;
+            return;
+        }
+        int packetType = data[1];
+        if (packetType != PACKET_TYPE_SEQUENCE_HEADER && packetType != PACKET_TYPE_NALU) {
+            // End of sequence
+            return;
+        }
+        boolean keyFrame = ((data[0] >> 4) & 0x0f) == FRAME_TYPE_KEY_FRAME;
+        // Composition time, signed 24 bits
+        int cts = ((data[2] << 16) | ((data[3] & 0xff) << 8) | (data[4] & 0xff));
+        byte[] payload = Arrays.copyOfRange(data, 5, size);
+        jitterBuffer.offer(new SrsAccessUnit(SrsAccessUnit.TYPE_VIDEO, payload, dts, dts + cts, keyFrame,
+            packetType == PACKET_TYPE_SEQUENCE_HEADER), System.nanoTime() / 1000000);
+    }
+
+    private void demuxAudio(byte[] data, int size, int dts) {
+        if (size < 2) {
+            return;
+        }
+        if (((data[0] >> 4) & 0x0f) != CODEC_AUDIO_AAC) {
+            unsupportedTagCount++;
+            return;
+        }
+        byte[] payload = Arrays.copyOfRange(data, 2, size);
+        jitterBuffer.offer(new SrsAccessUnit(SrsAccessUnit.TYPE_AUDIO, payload, dts, dts, true,
+            data[1] == PACKET_TYPE_SEQUENCE_HEADER), System.nanoTime() / 1000000);
+    }
+}
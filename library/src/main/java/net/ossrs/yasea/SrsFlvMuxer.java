@@ -6,40 +6,74 @@ import android.util.Log;
 
 import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
 import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.amf.AmfTemplate;
+import com.github.faucamp.simplertmp.amf.AmfWriter;
+import com.github.faucamp.simplertmp.io.RtmpConnection;
+import com.github.faucamp.simplertmp.io.RtmpTransport;
+import com.github.faucamp.simplertmp.io.RtmpTransportStats;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by winlin on 5/2/15.
  * Updated by leoma on 4/1/16.
  * to POST the h.264/avc annexb frame over RTMP.
+ * Each frame is muxed once and its tag shared by every destination, each sending from its own queue.
  * @see android.media.MediaMuxer https://developer.android.com/reference/android/media/MediaMuxer.html
  */
 public class SrsFlvMuxer {
 
-    private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
-    private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
+    // tags kept for reuse at most, the rest is in the send queues and the GOP cache.
+    private static final int ALLOC_POOL_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_QUEUE_LATENCY_MS = 800;
+    private static final int DEFAULT_RECONNECT_INITIAL_DELAY_MS = 250;
+    private static final int DEFAULT_RECONNECT_MAX_DELAY_MS = 8000;
+    // longest GOP kept for replay, the encoder's
+    private static final int GOP_CACHE_MAX_VIDEO_FRAMES = SrsEncoder.VGOP;
+    // handler of the data messages carrying timed metadata events.
+    public static final String TIMED_METADATA_HANDLER = "onTimedMetadata";
+    // uuid_iso_iec_11578 of the user data unregistered SEI mirroring timed metadata.
+    public static final byte[] TIMED_METADATA_SEI_UUID = {
+        (byte) 0x79, (byte) 0x61, (byte) 0x73, (byte) 0x65, (byte) 0x61, (byte) 0x2d, (byte) 0x74, (byte) 0x6d,
+        (byte) 0xa1, (byte) 0x3c, (byte) 0x52, (byte) 0x8e, (byte) 0x0f, (byte) 0x44, (byte) 0x9b, (byte) 0x67
+    };
 
     private volatile boolean started = false;
-    private DefaultRtmpPublisher publisher;
-
-    private Thread worker;
-    private final Object txFrameLock = new Object();
+    private final SrsRtmpDestination mPrimary;
+    private final List<SrsRtmpDestination> mDestinations = new CopyOnWriteArrayList<>();
 
     private SrsFlv flv = new SrsFlv();
     private boolean needToFindKeyFrame = true;
+    // the last sequence headers muxed, sent first to the destinations joining the stream.
     private SrsFlvFrame mVideoSequenceHeader;
     private SrsFlvFrame mAudioSequenceHeader;
-    private SrsAllocator mVideoAllocator = new SrsAllocator(VIDEO_ALLOC_SIZE);
-    private SrsAllocator mAudioAllocator = new SrsAllocator(AUDIO_ALLOC_SIZE);
-    private ConcurrentLinkedQueue<SrsFlvFrame> mFlvTagCache = new ConcurrentLinkedQueue<>();
-
-    private static final int VIDEO_TRACK = 100;
-    private static final int AUDIO_TRACK = 101;
+    // audio and video since the last key frame, replayed to the destinations (re)connecting.
+    private final ArrayDeque<SrsFlvFrame> mGopCache = new ArrayDeque<>();
+    private int mGopCacheVideoFrames;
+    // guards the sequence headers and the GOP cache, held while frames are handed to the destinations.
+    private final Object replayLock = new Object();
+    private final SrsAllocator mAllocator = new SrsAllocator("flv", ALLOC_POOL_MAX_BYTES);
+    private int mVideoWidth;
+    private int mVideoHeight;
+    // the resolution changed since the stream started, sent as metadata with the next video frame.
+    private volatile boolean mMetaDataChanged;
+    // timed metadata events waiting for the frame they go out with, in order of time.
+    private final ArrayList<SrsTimedMetadata> mPendingMetadata = new ArrayList<>();
+    private volatile boolean mMetadataSei;
+    private int mPacingTargetBitrate;
+
+    static final int VIDEO_TRACK = 100;
+    static final int AUDIO_TRACK = 101;
     private static final String TAG = "SrsFlvMuxer";
 
     /**
@@ -47,14 +81,103 @@ public class SrsFlvMuxer {
      * @param handler the rtmp event handler.
      */
     public SrsFlvMuxer(RtmpHandler handler) {
-        publisher = new DefaultRtmpPublisher(handler);
+        mPrimary = new SrsRtmpDestination(handler);
+        mDestinations.add(mPrimary);
+    }
+
+    /**
+     * add another RTMP server to publish the same stream to, a backup ingest or another platform.
+     * It is connected by {@link #start(String)}, or right away if already started, and receives the
+     * stream from the next key frame on. A slow destination only drops its own frames.
+     * @param rtmpUrl the url of the destination.
+     * @param handler the rtmp event handler of this destination.
+     * @return the destination, for its statistics and settings.
+     */
+    public SrsRtmpDestination addDestination(String rtmpUrl, RtmpHandler handler) {
+        SrsRtmpDestination destination = new SrsRtmpDestination(handler);
+        destination.url = rtmpUrl;
+        destination.publisher.setVideoResolution(mVideoWidth, mVideoHeight);
+        destination.publisher.setPacingTargetBitrate(mPacingTargetBitrate);
+        mDestinations.add(destination);
+        if (started) {
+            destination.start();
+        }
+        return destination;
+    }
+
+    /**
+     * stop publishing to a destination added by {@link #addDestination(String, RtmpHandler)}.
+     */
+    public void removeDestination(SrsRtmpDestination destination) {
+        if (destination != mPrimary && mDestinations.remove(destination)) {
+            destination.stop();
+        }
+    }
+
+    /**
+     * get the destination given to {@link #start(String)}.
+     */
+    public SrsRtmpDestination getPrimaryDestination() {
+        return mPrimary;
     }
 
     /**
      * get cached video frame number in publisher
      */
     public AtomicInteger getVideoFrameCacheNumber() {
-        return publisher == null ? null : publisher.getVideoFrameCacheNumber();
+        return mPrimary.getVideoFrameCacheNumber();
+    }
+
+    /**
+     * get the duration of the video cached in publisher
+     * @return difference between the dts of the newest and the oldest cached video frames, in ms
+     */
+    public int getVideoFrameCacheDuration() {
+        return mPrimary.getVideoFrameCacheDuration();
+    }
+
+    /**
+     * set how late video may be sent to the primary destination before frames are dropped, see
+     * {@link SrsRtmpDestination#setMaxQueueLatency(int)}
+     * @param maxLatencyMillis duration of the cached video, in ms
+     */
+    public void setMaxQueueLatency(int maxLatencyMillis) {
+        mPrimary.setMaxQueueLatency(maxLatencyMillis);
+    }
+
+    /**
+     * get the number of disposable video frames dropped, those no other frame refers to
+     */
+    public long getDroppedDisposableFrameCount() {
+        return mPrimary.getDroppedDisposableFrameCount();
+    }
+
+    /**
+     * get the number of video frames dropped to skip to the next key frame
+     */
+    public long getDroppedGopFrameCount() {
+        return mPrimary.getDroppedGopFrameCount();
+    }
+
+    /**
+     * get how many times the rest of a GOP was dropped
+     */
+    public long getDroppedGopCount() {
+        return mPrimary.getDroppedGopCount();
+    }
+
+    /**
+     * get the pool of the tags, for its statistics.
+     */
+    public SrsAllocator getAllocator() {
+        return mAllocator;
+    }
+
+    /**
+     * get the builder of the video tags, to keep or strip the AUD, SEI and filler data of the encoder.
+     */
+    public SrsAvcAccessUnitBuilder getAccessUnitBuilder() {
+        return flv.au;
     }
 
     /**
@@ -63,8 +186,146 @@ public class SrsFlvMuxer {
      * @param height height
      */
     public void setVideoResolution(int width, int height) {
-        if (publisher != null) {
-            publisher.setVideoResolution(width, height);
+        if (started && (mVideoWidth != 0 || mVideoHeight != 0) && (width != mVideoWidth || height != mVideoHeight)) {
+            // Connected destinations sent the former one already
+            mMetaDataChanged = true;
+        }
+        mVideoWidth = width;
+        mVideoHeight = height;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setVideoResolution(width, height);
+        }
+    }
+
+    /**
+     * write a timed metadata event, a score, cue point or ad marker for instance. The events due by a
+     * media frame go out right before it, in one AMF0 data message: the TIMED_METADATA_HANDLER name,
+     * then an object per event with its name, value and time in ms.
+     * @param name the name of the event.
+     * @param value the value of the event.
+     * @param presentationTimeUs when the event happens, on the timeline of the encoded frames.
+     */
+    public void writeTimedMetadata(String name, String value, long presentationTimeUs) {
+        addTimedMetadata(new SrsTimedMetadata(name, value, 0, presentationTimeUs));
+    }
+
+    /**
+     * write a timed metadata event with a number value, see {@link #writeTimedMetadata(String, String, long)}
+     */
+    public void writeTimedMetadata(String name, double value, long presentationTimeUs) {
+        addTimedMetadata(new SrsTimedMetadata(name, null, value, presentationTimeUs));
+    }
+
+    private void addTimedMetadata(SrsTimedMetadata event) {
+        synchronized (mPendingMetadata) {
+            int i = mPendingMetadata.size();
+            while (i > 0 && mPendingMetadata.get(i - 1).time > event.time) {
+                i--;
+            }
+            mPendingMetadata.add(i, event);
+        }
+    }
+
+    /**
+     * mirror the timed metadata into the video as H.264 SEI user data unregistered, with the
+     * TIMED_METADATA_SEI_UUID, for the players which only see the video. The SEI payload is the same
+     * AMF0 message, in the first video frame after the events.
+     * @param enabled true to mirror, false (default) for the data messages only.
+     */
+    public void setTimedMetadataSei(boolean enabled) {
+        mMetadataSei = enabled;
+    }
+
+    /**
+     * set how the primary destination reconnects, see
+     * {@link SrsRtmpDestination#setReconnectBackoff(int, int)}
+     * @param initialDelayMillis delay before the first attempt, in ms
+     * @param maxDelayMillis longest delay between two attempts, in ms, 0 disables reconnection
+     */
+    public void setReconnectBackoff(int initialDelayMillis, int maxDelayMillis) {
+        mPrimary.setReconnectBackoff(initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * get how many times the primary destination reconnected
+     */
+    public int getReconnectCount() {
+        return mPrimary.getReconnectCount();
+    }
+
+    /**
+     * shorten the connection setup of the primary destination, see
+     * {@link SrsRtmpDestination#setFastStart(boolean)}
+     */
+    public void setFastStart(boolean enabled) {
+        mPrimary.setFastStart(enabled);
+    }
+
+    /**
+     * get the time from the start to the first video frame sent to the primary destination
+     * @return the time to first frame in ms, -1 until a frame was sent
+     */
+    public int getTimeToFirstFrame() {
+        return mPrimary.getTimeToFirstFrame();
+    }
+
+    /**
+     * set the RTMP chunk size used for outgoing messages
+     * @param chunkSize chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        mPrimary.setChunkSize(chunkSize);
+    }
+
+    /**
+     * select the RTMP transport, socket streams by default
+     * @param type transport type
+     */
+    public void setTransportType(RtmpTransport.Type type) {
+        mPrimary.setTransportType(type);
+    }
+
+    /**
+     * get the statistics of the RTMP connection
+     * @return bytes acknowledged by the server, RTT and delivered bitrate, or null
+     */
+    public RtmpTransportStats getTransportStats() {
+        return mPrimary.getTransportStats();
+    }
+
+    /**
+     * set how often to ping the server to measure RTT
+     * @param intervalMillis interval in milliseconds, 0 disables pings
+     */
+    public void setPingInterval(int intervalMillis) {
+        mPrimary.setPingInterval(intervalMillis);
+    }
+
+    /**
+     * pace the RTMP output to smooth out the bursts of key frames
+     * @param multiplier pacing rate over the target bitrate, 0 disables pacing
+     * @param burstBytes bytes that may go out at once after an idle period
+     */
+    public void setPacing(float multiplier, int burstBytes) {
+        mPrimary.setPacing(multiplier, burstBytes);
+    }
+
+    /**
+     * batch audio and small video frames into RTMP aggregate messages
+     * @param budgetMillis longest time a frame may wait for the next ones, 0 disables aggregation
+     */
+    public void setAggregation(int budgetMillis) {
+        mPrimary.setAggregation(budgetMillis);
+    }
+
+    /**
+     * set the bitrate the RTMP output of every destination is paced after
+     * @param bitrate audio and video bitrate in bps, 0 to follow the measured bitrate
+     */
+    public void setPacingTargetBitrate(int bitrate) {
+        mPacingTargetBitrate = bitrate;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setPacingTargetBitrate(bitrate);
         }
     }
 
@@ -83,118 +344,505 @@ public class SrsFlvMuxer {
         }
     }
 
-    private void disconnect() {
-        try {
-            publisher.close();
-        } catch (IllegalStateException e) {
-            // Ignore illegal state.
+    /**
+     * start to the remote server for remux.
+     */
+    public void start(final String rtmpUrl) {
+        started = true;
+        mPrimary.url = rtmpUrl;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.start();
+        }
+    }
+
+    /**
+     * stop the muxer, disconnect RTMP connection.
+     */
+    public void stop() {
+        started = false;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.stop();
         }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        Log.i(TAG, "worker: disconnect ok.");
+        flv.reset();
+        needToFindKeyFrame = true;
+        mMetaDataChanged = false;
+        synchronized (mPendingMetadata) {
+            mPendingMetadata.clear();
+        }
+        synchronized (replayLock) {
+            if (mVideoSequenceHeader != null) {
+                mVideoSequenceHeader.release();
+                mVideoSequenceHeader = null;
+            }
+            if (mAudioSequenceHeader != null) {
+                mAudioSequenceHeader.release();
+                mAudioSequenceHeader = null;
+            }
+            clearGopCache();
+        }
+        // the destinations may still hold frames, only the idle tags go.
+        mAllocator.trim();
+        Log.i(TAG, "SrsFlvMuxer closed, " + mAllocator);
     }
 
-    private boolean connect(String url) {
-        boolean connected = false;
-        Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s\n", url));
-        if (publisher.connect(url)) {
-            connected = publisher.publish("live");
+    private void clearGopCache() {
+        SrsFlvFrame frame;
+        while ((frame = mGopCache.poll()) != null) {
+            frame.release();
         }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        return connected;
+        mGopCacheVideoFrames = 0;
     }
 
-    private void sendFlvTag(SrsFlvFrame frame) {
-        if (frame == null) {
-            return;
+    /**
+     * an RTMP server the stream is published to, with its own connection, worker thread and bounded
+     * send queue, so that it can fall behind without holding back the encoder or other destinations.
+     * When the connection is lost, it reconnects while encoding goes on, and resumes with the GOP cache.
+     */
+    public class SrsRtmpDestination {
+        private final DefaultRtmpPublisher publisher;
+        private final SrsFlvFrameQueue mFlvTagCache;
+        // the worker while it waits for frames, unparked by the next one.
+        private volatile Thread waitingWorker;
+        private volatile String url;
+        private volatile boolean started;
+        // frames are not queued until the GOP cache is replayed on the new connection.
+        private volatile boolean awaitingReplay;
+        // the GOP cache is being sent, ahead of anything queued.
+        private boolean replaying;
+        private volatile int reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY_MS;
+        private volatile int reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY_MS;
+        private volatile int reconnectCount;
+        // the worker wakes up this often to send aggregated frames when none come.
+        private volatile int aggregationBudget;
+        // connect quicker and send what was encoded meanwhile from its first key frame on.
+        private volatile boolean fastStart;
+        private long startNanos;
+        private volatile int timeToFirstFrame = -1;
+        private Thread worker;
+        // closes the connection after stop, joined before connecting again.
+        private Thread disconnecting;
+        private boolean videoSequenceHeaderSent;
+        private boolean audioSequenceHeaderSent;
+        // the timestamps sent are the muxed dts minus this offset, to go on after the last one sent
+        // on the previous connection when the GOP cache is replayed.
+        private int dtsOffset;
+        private int lastSentDts;
+
+        private SrsRtmpDestination(RtmpHandler handler) {
+            publisher = new DefaultRtmpPublisher(handler);
+            mFlvTagCache = new SrsFlvFrameQueue(publisher.getVideoFrameCacheNumber());
+            // Audio queued behind a large video frame goes out between its chunks
+            publisher.setAudioSource(new RtmpPublisher.AudioSource() {
+                @Override
+                public int peekAudioDts() {
+                    // The queued audio comes after the frames replayed
+                    if (replaying) {
+                        return -1;
+                    }
+                    // As it will be sent, the video it goes before is offset after a reconnection
+                    int dts = mFlvTagCache.peekAudioDts();
+                    return dts < 0 ? dts : Math.max(0, dts - dtsOffset);
+                }
+
+                @Override
+                public void publishAudio() {
+                    sendCachedFrame(mFlvTagCache.pollAudio());
+                }
+            });
         }
 
-        if (frame.isVideo()) {
-            if (frame.isKeyFrame()) {
-                Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
-                    frame.type, frame.dts, frame.flvTag.array().length));
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * get cached video frame number in publisher
+         */
+        public AtomicInteger getVideoFrameCacheNumber() {
+            return publisher.getVideoFrameCacheNumber();
+        }
+
+        /**
+         * get the duration of the video cached in publisher
+         * @return difference between the dts of the newest and the oldest cached video frames, in ms
+         */
+        public int getVideoFrameCacheDuration() {
+            return mFlvTagCache.getVideoDuration();
+        }
+
+        /**
+         * set how late video may be sent before frames are dropped. Beyond half of it, disposable
+         * frames are dropped; beyond all of it, the rest of the GOP is dropped and sending resumes at
+         * the next key frame. Audio and sequence headers are never dropped.
+         * @param maxLatencyMillis duration of the cached video, in ms
+         */
+        public void setMaxQueueLatency(int maxLatencyMillis) {
+            mFlvTagCache.setMaxLatency(maxLatencyMillis);
+        }
+
+        /**
+         * get the number of disposable video frames dropped, those no other frame refers to
+         */
+        public long getDroppedDisposableFrameCount() {
+            return mFlvTagCache.getDroppedDisposableFrames();
+        }
+
+        /**
+         * get the number of video frames dropped to skip to the next key frame
+         */
+        public long getDroppedGopFrameCount() {
+            return mFlvTagCache.getDroppedGopFrames();
+        }
+
+        /**
+         * get how many times the rest of a GOP was dropped
+         */
+        public long getDroppedGopCount() {
+            return mFlvTagCache.getDroppedGops();
+        }
+
+        /**
+         * set the RTMP chunk size used for outgoing messages
+         * @param chunkSize chunk size in bytes
+         */
+        public void setChunkSize(int chunkSize) {
+            publisher.setChunkSize(chunkSize);
+        }
+
+        /**
+         * select the RTMP transport, socket streams by default
+         * @param type transport type
+         */
+        public void setTransportType(RtmpTransport.Type type) {
+            publisher.setTransportType(type);
+        }
+
+        /**
+         * get the statistics of the RTMP connection
+         * @return bytes acknowledged by the server, RTT and delivered bitrate, or null
+         */
+        public RtmpTransportStats getTransportStats() {
+            return publisher.getTransportStats();
+        }
+
+        /**
+         * set how often to ping the server to measure RTT
+         * @param intervalMillis interval in milliseconds, 0 disables pings
+         */
+        public void setPingInterval(int intervalMillis) {
+            publisher.setPingInterval(intervalMillis);
+        }
+
+        /**
+         * pace the RTMP output to smooth out the bursts of key frames
+         * @param multiplier pacing rate over the target bitrate, 0 disables pacing
+         * @param burstBytes bytes that may go out at once after an idle period
+         */
+        public void setPacing(float multiplier, int burstBytes) {
+            publisher.setPacing(multiplier, burstBytes);
+        }
+
+        /**
+         * batch audio and small video frames into RTMP aggregate messages
+         * @param budgetMillis longest time a frame may wait for the next ones, 0 disables aggregation
+         */
+        public void setAggregation(int budgetMillis) {
+            aggregationBudget = Math.max(0, budgetMillis);
+            publisher.setAggregation(aggregationBudget);
+        }
+
+        /**
+         * set how to reconnect when the connection fails, or cannot be made. The delay between two
+         * attempts doubles from the initial delay up to the maximum, and attempts go on until stopped.
+         * @param initialDelayMillis delay before the first attempt, in ms
+         * @param maxDelayMillis longest delay between two attempts, in ms, 0 disables reconnection
+         */
+        public void setReconnectBackoff(int initialDelayMillis, int maxDelayMillis) {
+            reconnectInitialDelay = Math.max(0, initialDelayMillis);
+            reconnectMaxDelay = Math.max(0, maxDelayMillis);
+        }
+
+        /**
+         * get how many times the connection was made again since started
+         */
+        public int getReconnectCount() {
+            return reconnectCount;
+        }
+
+        /**
+         * shorten the time to the first frame, see {@link RtmpPublisher#setFastStart(boolean)}. The
+         * frames encoded while connecting are kept from their first key frame on, and sent as soon as
+         * publishing is allowed, instead of waiting for the next key frame.
+         * @param enabled true to enable fast start on the next start
+         */
+        public void setFastStart(boolean enabled) {
+            fastStart = enabled;
+            publisher.setFastStart(enabled);
+        }
+
+        /**
+         * get the time from the start to the first video frame handed to the connection
+         * @return the time to first frame in ms, -1 until a frame was sent
+         */
+        public int getTimeToFirstFrame() {
+            return timeToFirstFrame;
+        }
+
+        private void disconnect() {
+            try {
+                publisher.close();
+            } catch (IllegalStateException e) {
+                // Ignore illegal state.
             }
-            publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mVideoAllocator.release(frame.flvTag);
-        } else if (frame.isAudio()) {
-            publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mAudioAllocator.release(frame.flvTag);
+            videoSequenceHeaderSent = false;
+            audioSequenceHeaderSent = false;
+            Log.i(TAG, "worker: disconnect ok.");
         }
-    }
 
-    /**
-     * start to the remote server for remux.
-     */
-    public void start(final String rtmpUrl) {
-        started = true;
-        worker = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (!connect(rtmpUrl)) {
-                    return;
+        private boolean connect(String url) {
+            boolean connected = false;
+            Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s\n", url));
+            if (publisher.connect(url)) {
+                connected = publisher.publish("live");
+            }
+            videoSequenceHeaderSent = false;
+            audioSequenceHeaderSent = false;
+            return connected;
+        }
+
+        private void sendFlvTag(SrsFlvFrame frame) {
+            int dts = Math.max(0, frame.dts - dtsOffset);
+            if (frame.isSequenceHeader()) {
+                // Not older than the media before it
+                dts = Math.max(dts, lastSentDts);
+            } else {
+                lastSentDts = Math.max(lastSentDts, dts);
+            }
+            if (frame.isVideo()) {
+                if (frame.isKeyFrame()) {
+                    Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
+                        frame.type, dts, frame.flvTag.array().length));
+                }
+                publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), dts, frame);
+                if (timeToFirstFrame < 0 && !frame.isSequenceHeader()) {
+                    timeToFirstFrame = (int) ((System.nanoTime() - startNanos) / 1000000);
+                    Log.i(TAG, String.format("worker: first frame sent %dms after start", timeToFirstFrame));
+                }
+            } else if (frame.isAudio()) {
+                publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), dts, frame);
+            } else if (frame.isScript()) {
+                publisher.publishData(frame.flvTag.array(), frame.flvTag.size(), dts);
+            }
+        }
+
+        private void sendCachedFrame(SrsFlvFrame frame) {
+            if (frame == null) {
+                return;
+            }
+
+            if (frame.isSequenceHeader()) {
+                if (frame.isVideo()) {
+                    videoSequenceHeaderSent = true;
+                    sendFlvTag(frame);
+                } else if (frame.isAudio()) {
+                    audioSequenceHeaderSent = true;
+                    sendFlvTag(frame);
                 }
+            } else {
+                if (frame.isVideo() && videoSequenceHeaderSent) {
+                    sendFlvTag(frame);
+                } else if (frame.isAudio() && audioSequenceHeaderSent) {
+                    sendFlvTag(frame);
+                } else if (frame.isScript()) {
+                    sendFlvTag(frame);
+                }
+            }
+            frame.release();
+        }
 
-                while (!Thread.interrupted()) {
-                    while (!mFlvTagCache.isEmpty()) {
-                        SrsFlvFrame frame = mFlvTagCache.poll();
-                        if (frame.isSequenceHeader()) {
-                            if (frame.isVideo()) {
-                                mVideoSequenceHeader = frame;
-                                sendFlvTag(mVideoSequenceHeader);
-                            } else if (frame.isAudio()) {
-                                mAudioSequenceHeader = frame;
-                                sendFlvTag(mAudioSequenceHeader);
-                            }
-                        } else {
-                            if (frame.isVideo() && mVideoSequenceHeader != null) {
-                                sendFlvTag(frame);
-                            } else if (frame.isAudio() && mAudioSequenceHeader != null) {
-                                sendFlvTag(frame);
-                            }
-                        }
+        private void add(SrsFlvFrame frame) {
+            if (started && !awaitingReplay) {
+                frame.retain();
+                mFlvTagCache.add(frame);
+            }
+            Thread waiting = waitingWorker;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+
+        /**
+         * connect again with backoff after the connection failed, until it works or stopped.
+         * @return true once publishing again, false if stopped or reconnection is disabled.
+         */
+        private boolean reconnect() {
+            awaitingReplay = true;
+            // Queued frames will come from the GOP cache instead
+            mFlvTagCache.clear();
+            int delay = reconnectInitialDelay;
+            for (int attempt = 1; started && reconnectMaxDelay > 0; attempt++) {
+                disconnect();
+                Log.w(TAG, String.format("worker: reconnecting to %s in %dms, attempt %d", url, delay, attempt));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (connect(url)) {
+                    reconnectCount++;
+                    replayGopCache();
+                    return true;
+                }
+                delay = Math.min(Math.max(1, delay * 2), reconnectMaxDelay);
+            }
+            return false;
+        }
+
+        /**
+         * send the sequence headers and the GOP cache on the new connection, then go on with the live
+         * frames muxed after them.
+         */
+        private void replayGopCache() {
+            List<SrsFlvFrame> replay = new ArrayList<>();
+            synchronized (replayLock) {
+                if (mVideoSequenceHeader != null) {
+                    mVideoSequenceHeader.retain();
+                    replay.add(mVideoSequenceHeader);
+                }
+                if (mAudioSequenceHeader != null) {
+                    mAudioSequenceHeader.retain();
+                    replay.add(mAudioSequenceHeader);
+                }
+                for (SrsFlvFrame frame : mGopCache) {
+                    frame.retain();
+                    replay.add(frame);
+                }
+                mFlvTagCache.clear();
+                if (mGopCache.isEmpty()) {
+                    mFlvTagCache.skipToKeyFrame();
+                }
+                awaitingReplay = false;
+            }
+
+            // Timestamps go on after the last one sent, even for the frames sent already
+            int firstDts = Integer.MAX_VALUE;
+            for (SrsFlvFrame frame : replay) {
+                if (!frame.isSequenceHeader()) {
+                    firstDts = Math.min(firstDts, frame.dts);
+                }
+            }
+            if (firstDts != Integer.MAX_VALUE && lastSentDts >= 0) {
+                dtsOffset = firstDts - lastSentDts - 1;
+            }
+            Log.i(TAG, String.format("worker: replay %d frames, dts offset %dms", replay.size(), dtsOffset));
+            replaying = true;
+            for (SrsFlvFrame frame : replay) {
+                if (frame.isVideo()) {
+                    // Counted like the queued frames, which the publisher counts down once sent
+                    publisher.getVideoFrameCacheNumber().incrementAndGet();
+                }
+                sendCachedFrame(frame);
+            }
+            replaying = false;
+        }
+
+        private void start() {
+            // Still disconnecting from the former start, the new connection would go with it
+            joinDisconnect();
+            started = true;
+            reconnectCount = 0;
+            dtsOffset = 0;
+            lastSentDts = -1;
+            startNanos = System.nanoTime();
+            timeToFirstFrame = -1;
+            // With fast start, what is encoded while connecting comes from the GOP cache
+            awaitingReplay = fastStart;
+            if (!fastStart) {
+                // The stream is joined from the next key frame on
+                mFlvTagCache.skipToKeyFrame();
+                synchronized (replayLock) {
+                    if (mVideoSequenceHeader != null) {
+                        add(mVideoSequenceHeader);
                     }
-                    // Waiting for next frame
-                    synchronized (txFrameLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            txFrameLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
+                    if (mAudioSequenceHeader != null) {
+                        add(mAudioSequenceHeader);
                     }
                 }
             }
-        });
-        worker.start();
-    }
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean connected = connect(url);
+                    if (connected && awaitingReplay) {
+                        replayGopCache();
+                    } else if (!connected && !reconnect()) {
+                        // Do not keep frames for a destination which cannot take them
+                        started = false;
+                        mFlvTagCache.clear();
+                        return;
+                    }
 
-    /**
-     * stop the muxer, disconnect RTMP connection.
-     */
-    public void stop() {
-        started = false;
-        mFlvTagCache.clear();
-        if (worker != null) {
-            worker.interrupt();
-            try {
-                worker.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                    while (!Thread.interrupted()) {
+                        if (!publisher.isPublishing() && !reconnect()) {
+                            started = false;
+                            mFlvTagCache.clear();
+                            return;
+                        }
+                        SrsFlvFrame frame;
+                        while (publisher.isPublishing() && (frame = mFlvTagCache.poll()) != null) {
+                            sendCachedFrame(frame);
+                        }
+                        // Nothing left to send for now, do not keep frames in the socket buffer
+                        publisher.flush();
+                        // Waiting for next frame, checked once waiting so that add() cannot miss us
+                        waitingWorker = Thread.currentThread();
+                        if (mFlvTagCache.isEmpty()) {
+                            // flushes the aggregate a quarter of its budget late at most
+                            int timeout = aggregationBudget > 0 ? Math.max(1, Math.min(aggregationBudget / 4, 500)) : 500;
+                            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+                        }
+                        waitingWorker = null;
+                    }
+                }
+            });
+            worker.start();
+        }
+
+        private void stop() {
+            started = false;
+            if (worker != null) {
                 worker.interrupt();
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    worker.interrupt();
+                }
+                worker = null;
             }
-            worker = null;
+            mFlvTagCache.clear();
+            // A former disconnection must not close the connection after this one
+            joinDisconnect();
+            // We should not block the main thread
+            disconnecting = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    disconnect();
+                }
+            });
+            disconnecting.start();
         }
-        flv.reset();
-        needToFindKeyFrame = true;
-        Log.i(TAG, "SrsFlvMuxer closed");
-        // We should not block the main thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                disconnect();
+
+        private void joinDisconnect() {
+            if (disconnecting != null) {
+                try {
+                    disconnecting.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                disconnecting = null;
             }
-        }).start();
+        }
     }
 
     /**
@@ -204,6 +852,19 @@ public class SrsFlvMuxer {
      * @param bufferInfo The buffer information related to this sample.
      */
     public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        writeSampleData(trackIndex, byteBuf, bufferInfo, bufferInfo.presentationTimeUs);
+    }
+
+    /**
+     * send the annexb frame over RTMP, decoded before its presentation time when the encoder
+     * reorders the pictures for B-frames.
+     * @param trackIndex The track index for this sample.
+     * @param byteBuf The encoded sample.
+     * @param bufferInfo The buffer information related to this sample.
+     * @param decodeTimeUs The decoding timestamp of the video sample, in us, not after the presentation one.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo,
+                                long decodeTimeUs) {
         if (bufferInfo.offset > 0) {
             Log.w(TAG, String.format("encoded frame %dB, offset=%d pts=%dms",
                     bufferInfo.size, bufferInfo.offset, bufferInfo.presentationTimeUs / 1000
@@ -211,7 +872,7 @@ public class SrsFlvMuxer {
         }
 
         if (VIDEO_TRACK == trackIndex) {
-            flv.writeVideoSample(byteBuf, bufferInfo);
+            flv.writeVideoSample(byteBuf, bufferInfo, decodeTimeUs);
         } else {
             flv.writeAudioSample(byteBuf, bufferInfo);
         }
@@ -395,14 +1056,6 @@ public class SrsFlvMuxer {
         public final static int CodedSliceExt = 20;
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
-    }
-
     /**
      * the demuxed tag frame.
      */
@@ -428,7 +1081,7 @@ public class SrsFlvMuxer {
     /**
      * the muxed flv frame.
      */
-    private class SrsFlvFrame {
+    class SrsFlvFrame implements RtmpPublisher.BufferOwner {
         // the tag bytes.
         public SrsAllocator.Allocation flvTag;
         // the codec type for audio/aac and video/avc for instance.
@@ -439,13 +1092,30 @@ public class SrsFlvMuxer {
         public int type;
         // the dts in ms, tbn is 1000.
         public int dts;
+        // no other frame refers to it, nal_ref_idc is 0.
+        public boolean disposable;
+        // the muxer, every destination queueing the frame and the transport writing it hold a
+        // reference to the tag.
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        @Override
+        public void retain() {
+            refs.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                mAllocator.release(flvTag);
+            }
+        }
 
         public boolean isKeyFrame() {
             return isVideo() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
         }
 
         public boolean isSequenceHeader() {
-            return avc_aac_type == 0;
+            return !isScript() && avc_aac_type == 0;
         }
 
         public boolean isVideo() {
@@ -455,6 +1125,201 @@ public class SrsFlvMuxer {
         public boolean isAudio() {
             return type == SrsCodecFlvTag.Audio;
         }
+
+        public boolean isScript() {
+            return type == SrsCodecFlvTag.Script;
+        }
+    }
+
+    /**
+     * a timed metadata event, with a string value or else a number one.
+     */
+    private class SrsTimedMetadata {
+        public final String name;
+        public final String text;
+        public final double number;
+        // the time in ms, tbn is 1000.
+        public final int time;
+
+        SrsTimedMetadata(String name, String text, double number, long presentationTimeUs) {
+            this.name = name;
+            this.text = text;
+            this.number = number;
+            this.time = (int) (presentationTimeUs / 1000);
+        }
+    }
+
+    /**
+     * the bounded send queue, in dts order, which keeps the video latency in check by dropping
+     * disposable frames first, then the rest of the GOP. Filled by the encoder, drained by the worker.
+     */
+    class SrsFlvFrameQueue {
+        private final ArrayDeque<SrsFlvFrame> frames = new ArrayDeque<>();
+        // video frames queued in the muxer and in the publisher.
+        private final AtomicInteger videoFrameCacheNumber;
+        private int maxLatency = DEFAULT_MAX_QUEUE_LATENCY_MS;
+        // dts of the newest queued video frame.
+        private int lastVideoDts;
+        // wait for the next key frame, to join the stream or because the current GOP was dropped.
+        private boolean skipToKeyFrame;
+        private boolean gopDropped;
+        private long droppedDisposableFrames;
+        private long droppedGopFrames;
+        private long droppedGops;
+
+        public SrsFlvFrameQueue(AtomicInteger videoFrameCacheNumber) {
+            this.videoFrameCacheNumber = videoFrameCacheNumber;
+        }
+
+        public synchronized void skipToKeyFrame() {
+            skipToKeyFrame = true;
+            gopDropped = false;
+        }
+
+        public synchronized void setMaxLatency(int millis) {
+            maxLatency = millis;
+        }
+
+        public synchronized void add(SrsFlvFrame frame) {
+            if (frame.isVideo() && !frame.isSequenceHeader()) {
+                if (skipToKeyFrame && !frame.isKeyFrame()) {
+                    if (gopDropped) {
+                        droppedGopFrames++;
+                    }
+                    frame.release();
+                    return;
+                }
+                skipToKeyFrame = false;
+                lastVideoDts = frame.dts;
+            }
+            frames.add(frame);
+            if (frame.isVideo()) {
+                videoFrameCacheNumber.incrementAndGet();
+            }
+
+            if (getVideoDuration() > maxLatency / 2) {
+                dropDisposable();
+            }
+            if (getVideoDuration() > maxLatency) {
+                dropGop();
+            }
+        }
+
+        public synchronized SrsFlvFrame poll() {
+            return frames.poll();
+        }
+
+        public synchronized boolean isEmpty() {
+            return frames.isEmpty();
+        }
+
+        /**
+         * @return dts of the oldest queued audio frame, -1 if none
+         */
+        public synchronized int peekAudioDts() {
+            for (SrsFlvFrame frame : frames) {
+                if (frame.isAudio()) {
+                    return frame.dts;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * take the oldest queued audio frame ahead of the video queued before it.
+         */
+        public synchronized SrsFlvFrame pollAudio() {
+            for (Iterator<SrsFlvFrame> it = frames.iterator(); it.hasNext(); ) {
+                SrsFlvFrame frame = it.next();
+                if (frame.isAudio()) {
+                    it.remove();
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        public synchronized void clear() {
+            SrsFlvFrame frame;
+            while ((frame = frames.poll()) != null) {
+                if (frame.isVideo()) {
+                    videoFrameCacheNumber.decrementAndGet();
+                }
+                frame.release();
+            }
+            skipToKeyFrame = false;
+        }
+
+        public synchronized int getVideoDuration() {
+            for (SrsFlvFrame frame : frames) {
+                if (frame.isVideo() && !frame.isSequenceHeader()) {
+                    return Math.max(0, lastVideoDts - frame.dts);
+                }
+            }
+            return 0;
+        }
+
+        public synchronized long getDroppedDisposableFrames() {
+            return droppedDisposableFrames;
+        }
+
+        public synchronized long getDroppedGopFrames() {
+            return droppedGopFrames;
+        }
+
+        public synchronized long getDroppedGops() {
+            return droppedGops;
+        }
+
+        private void dropDisposable() {
+            for (Iterator<SrsFlvFrame> it = frames.iterator(); it.hasNext(); ) {
+                SrsFlvFrame frame = it.next();
+                if (frame.isVideo() && frame.disposable) {
+                    it.remove();
+                    release(frame);
+                    droppedDisposableFrames++;
+                }
+            }
+        }
+
+        private void dropGop() {
+            // Resume at the newest queued key frame, or at the next one to come if it is too old.
+            SrsFlvFrame keyFrame = null;
+            for (Iterator<SrsFlvFrame> it = frames.descendingIterator(); it.hasNext(); ) {
+                SrsFlvFrame frame = it.next();
+                if (frame.isKeyFrame() && !frame.isSequenceHeader()) {
+                    keyFrame = frame;
+                    break;
+                }
+            }
+            if (keyFrame != null && lastVideoDts - keyFrame.dts > maxLatency) {
+                keyFrame = null;
+            }
+
+            int dropped = 0;
+            for (Iterator<SrsFlvFrame> it = frames.iterator(); it.hasNext(); ) {
+                SrsFlvFrame frame = it.next();
+                if (frame == keyFrame) {
+                    break;
+                }
+                if (frame.isVideo() && !frame.isSequenceHeader()) {
+                    it.remove();
+                    release(frame);
+                    dropped++;
+                }
+            }
+            skipToKeyFrame = keyFrame == null;
+            gopDropped = skipToKeyFrame;
+            droppedGopFrames += dropped;
+            droppedGops++;
+            Log.w(TAG, String.format("dropped %d video frames to %s", dropped,
+                keyFrame == null ? "wait for the next key frame" : "resume at dts=" + keyFrame.dts));
+        }
+
+        private void release(SrsFlvFrame frame) {
+            videoFrameCacheNumber.decrementAndGet();
+            frame.release();
+        }
     }
 
     /**
@@ -463,7 +1328,6 @@ public class SrsFlvMuxer {
     private class SrsRawH264Stream {
         private final static String TAG = "SrsFlvMuxer";
 
-        private SrsAnnexbSearch annexb = new SrsAnnexbSearch();
         private SrsFlvFrameBytes seq_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
@@ -478,24 +1342,6 @@ public class SrsFlvMuxer {
             return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
         }
 
-        public SrsFlvFrameBytes muxNaluHeader(SrsFlvFrameBytes frame) {
-            SrsFlvFrameBytes nalu_hdr = new SrsFlvFrameBytes();
-            nalu_hdr.data = ByteBuffer.allocate(4);
-            nalu_hdr.size = 4;
-            // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-            // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
-            int NAL_unit_length = frame.size;
-
-            // mux the avc NALU in "ISO Base Media File Format"
-            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
-            // NALUnitLength
-            nalu_hdr.data.putInt(NAL_unit_length);
-
-            // reset the buffer.
-            nalu_hdr.data.rewind();
-            return nalu_hdr;
-        }
-
         public void muxSequenceHeader(ByteBuffer sps, ByteBuffer pps, int dts, int pts,
                                         ArrayList<SrsFlvFrameBytes> frames) {
             // 5bytes sps/pps header:
@@ -595,25 +1441,8 @@ public class SrsFlvMuxer {
             for (int i = 0; i < frames.size(); i++) {
                 size += frames.get(i).size;
             }
-            SrsAllocator.Allocation allocation = mVideoAllocator.allocate(size);
-
-            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
-            // Frame Type, Type of video frame.
-            // CodecID, Codec Identifier.
-            // set the rtmp header
-            allocation.put((byte) ((frame_type << 4) | SrsCodecVideo.AVC));
-
-            // AVCPacketType
-            allocation.put((byte)avc_packet_type);
-
-            // CompositionTime
-            // pts = dts + cts, or
-            // cts = pts - dts.
-            // where cts is the header in rtmp video packet payload header.
-            int cts = pts - dts;
-            allocation.put((byte)(cts >> 16));
-            allocation.put((byte)(cts >> 8));
-            allocation.put((byte)cts);
+            SrsAllocator.Allocation allocation = mAllocator.allocate(size);
+            muxVideoHeader(allocation, frame_type, avc_packet_type, dts, pts);
 
             // h.264 raw data.
             for (int i = 0; i < frames.size(); i++) {
@@ -625,68 +1454,55 @@ public class SrsFlvMuxer {
             return allocation;
         }
 
-        private SrsAnnexbSearch searchStartcode(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            if (bi.size - 4 > 0) {
-                if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x00 && bb.get(3) == 0x01) {
-                    // match N[00] 00 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 4;
-                }else if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x01){
-                    // match N[00] 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 3;
-                }
+        /**
+         * mux the NALUs of frames, then the access unit of bb, each one prefixed by its length,
+         * straight from the annexb buffer to the tag.
+         */
+        public SrsAllocator.Allocation muxNaluTag(ArrayList<SrsFlvFrameBytes> frames, ByteBuffer bb,
+                                                  SrsAvcAccessUnitBuilder au, int frame_type, int dts, int pts) {
+            int size = 5 + au.getAvccSize();
+            for (int i = 0; i < frames.size(); i++) {
+                size += 4 + frames.get(i).size;
             }
-            return annexb;
-        }
+            SrsAllocator.Allocation allocation = mAllocator.allocate(size);
+            muxVideoHeader(allocation, frame_type, SrsCodecVideoAVCType.NALU, dts, pts);
 
-        private SrsAnnexbSearch searchAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            for (int i = bb.position(); i < bi.size - 4; i++) {
-                // not match.
-                if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00) {
-                    continue;
-                }
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 3 - bb.position();
-                    break;
-                }
-                // match N[00] 00 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x00 && bb.get(i + 3) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 4 - bb.position();
-                    break;
-                }
+            // mux the avc NALU in "ISO Base Media File Format"
+            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
+            // NALUnitLength, lengthSizeMinusOne is 3 in the sequence header.
+            for (int i = 0; i < frames.size(); i++) {
+                SrsFlvFrameBytes frame = frames.get(i);
+                allocation.put((byte) (frame.size >>> 24));
+                allocation.put((byte) (frame.size >>> 16));
+                allocation.put((byte) (frame.size >>> 8));
+                allocation.put((byte) frame.size);
+                frame.data.get(allocation.array(), allocation.size(), frame.size);
+                allocation.appendOffset(frame.size);
             }
-            return annexb;
+            allocation.appendOffset(au.writeAvcc(bb, allocation.array(), allocation.size()));
+
+            return allocation;
         }
 
-        public SrsFlvFrameBytes demuxAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isOnlyChkHeader) {
-            SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
-            if (bb.position() < bi.size - 4) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = isOnlyChkHeader ? searchStartcode(bb, bi) : searchAnnexb(bb, bi);
-                // tbbsc.nb_start_code always 4 , after 00 00 00 01
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                } else {
-                    // the start codes.
-                    for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                        bb.get();
-                    }
+        private void muxVideoHeader(SrsAllocator.Allocation allocation, int frame_type, int avc_packet_type,
+                                    int dts, int pts) {
+            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
+            // Frame Type, Type of video frame.
+            // CodecID, Codec Identifier.
+            // set the rtmp header
+            allocation.put((byte) ((frame_type << 4) | SrsCodecVideo.AVC));
 
-                    // find out the frame size.
-                    tbb.data = bb.slice();
-                    tbb.size = bi.size - bb.position();
-                }
-            }
-            return tbb;
+            // AVCPacketType
+            allocation.put((byte)avc_packet_type);
+
+            // CompositionTime, SI24
+            // pts = dts + cts, or
+            // cts = pts - dts.
+            // where cts is the header in rtmp video packet payload header.
+            int cts = Math.max(-0x800000, Math.min(0x7fffff, pts - dts));
+            allocation.put((byte)(cts >> 16));
+            allocation.put((byte)(cts >> 8));
+            allocation.put((byte)cts);
         }
     }
 
@@ -717,6 +1533,8 @@ public class SrsFlvMuxer {
         private int achannel;
         private int asample_rate;
         private SrsRawH264Stream avc = new SrsRawH264Stream();
+        private final SrsAvcAccessUnitBuilder au = new SrsAvcAccessUnitBuilder();
+        // the NALUs muxed ahead of the ones of the sample, parameter sets and SEI.
         private ArrayList<SrsFlvFrameBytes> ipbs = new ArrayList<>();
         private SrsAllocator.Allocation audio_tag;
         private SrsAllocator.Allocation video_tag;
@@ -727,6 +1545,11 @@ public class SrsFlvMuxer {
         private boolean h264_sps_pps_sent;
         private boolean h264_sps_pps_changed;
         private boolean aac_specific_config_got;
+        // encodes the script tags, timed metadata and metadata updates, under the mPendingMetadata lock.
+        private final AmfWriter amf = new AmfWriter();
+        private final AmfTemplate.Values metadata = RtmpConnection.SET_DATA_FRAME.newValues();
+        // latest dts queued on any track, script tags never go out before it.
+        private int last_dts;
 
         public SrsFlv() {
             reset();
@@ -738,6 +1561,7 @@ public class SrsFlvMuxer {
             h264_sps_pps_sent = false;
             h264_sps_pps_changed = false;
             aac_specific_config_got = false;
+            last_dts = 0;
             if (null != h264_sps){
                 Arrays.fill(h264_sps.array(),(byte) 0x00);
                 h264_sps.clear();
@@ -763,7 +1587,8 @@ public class SrsFlvMuxer {
             int pts = (int)(bi.presentationTimeUs / 1000);
             int dts = pts;
 
-            audio_tag = mAudioAllocator.allocate(bi.size + 2);
+            // the sequence header takes 2 + 2 + 7 bytes whatever the sample.
+            audio_tag = mAllocator.allocate(Math.max(bi.size + 2, 11));
             byte aac_packet_type = 1; // 1 = AAC raw
             if (!aac_specific_config_got) {
                 // @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf
@@ -841,7 +1666,10 @@ public class SrsFlvMuxer {
             audio_tag.put(audio_header, 0);
             audio_tag.put(aac_packet_type, 1);
 
-            writeRtmpPacket(SrsCodecFlvTag.Audio, dts, 0, aac_packet_type, audio_tag);
+            if (!mMetadataSei || videoTrack == null) {
+                writeTimedMetadata(dts, pts);
+            }
+            writeRtmpPacket(SrsCodecFlvTag.Audio, dts, 0, aac_packet_type, false, audio_tag);
         }
 
         private void writeAdtsHeader(byte[] frame, int offset) {
@@ -880,73 +1708,183 @@ public class SrsFlvMuxer {
             frame[offset + 6] |= 0x0;
         }
 
-        public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+        public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi, long decodeTimeUs) {
             if (bi.size < 4) return;
 
             int pts = (int) (bi.presentationTimeUs / 1000);
-            int dts = pts;
-            int type = SrsCodecVideoAVCFrame.InterFrame;
-            SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, bi, true);
-            int nal_unit_type = frame.data.get(0) & 0x1f;
-            if (nal_unit_type == SrsAvcNaluType.IDR) {
-                type = SrsCodecVideoAVCFrame.KeyFrame;
-            } else if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
-                SrsFlvFrameBytes frame_pps = avc.demuxAnnexb(bb, bi, false);
-                frame.size = frame.size - frame_pps.size - 4;  // 4 ---> 00 00 00 01 pps
-                if (!frame.data.equals(h264_sps)) {
-                    byte[] sps = new byte[frame.size];
-                    frame.data.get(sps);
-                    h264_sps_changed = true;
-                    h264_sps = ByteBuffer.wrap(sps);
-//                    writeH264SpsPps(dts, pts);
-                }
-
-                SrsFlvFrameBytes frame_sei = avc.demuxAnnexb(bb, bi, false);
-                if (frame_sei.size > 0){
-                    if(SrsAvcNaluType.SEI == (int)(frame_sei.data.get(0) & 0x1f))
-                        frame_pps.size = frame_pps.size - frame_sei.size - 3;// 3 ---> 00 00 01 SEI
-                }
-
-                if (!frame_pps.data.equals(h264_pps)) {
-                    byte[] pps = new byte[frame_pps.size];
-                    frame_pps.data.get(pps);
-                    h264_pps_changed = true;
-                    h264_pps = ByteBuffer.wrap(pps);
-                    //writeH264SpsPps(dts, pts);
-                }
-                
-                
-                if(h264_sps_changed || h264_pps_changed){
-                    writeH264SpsPps(dts, pts);
-                    h264_sps_pps_changed = true;
-                }
-                
+            // the B-frames are sent after the pictures they refer to, ahead of their pts.
+            int dts = (int) (decodeTimeUs / 1000);
+            // each frame must prefixed by annexb format.
+            // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+            if (au.build(bb, bi.offset, bi.offset + bi.size) == 0) {
+                Log.e(TAG, "annexb not match.");
                 return;
-            } else if (nal_unit_type != SrsAvcNaluType.NonIDR) {
+            }
+
+            // the codec config comes alone or ahead of a key frame.
+            int sps = au.getSpsIndex();
+            if (sps >= 0 && !isSameNalu(bb, sps, h264_sps)) {
+                h264_sps = copyNalu(bb, sps);
+                h264_sps_changed = true;
+            }
+            int pps = au.getPpsIndex();
+            if (pps >= 0 && !isSameNalu(bb, pps, h264_pps)) {
+                h264_pps = copyNalu(bb, pps);
+                h264_pps_changed = true;
+            }
+            if (h264_sps_changed || h264_pps_changed) {
+                // the sequence header is not presented, no composition time.
+                writeH264SpsPps(dts, dts);
+                h264_sps_pps_changed = true;
+            }
+            if (au.getSliceCount() == 0) {
                 return;
             }
-            
+
+            // a key frame if any slice is an IDR one.
+            int type = au.isKeyFrame() ? SrsCodecVideoAVCFrame.KeyFrame : SrsCodecVideoAVCFrame.InterFrame;
+            boolean disposable = au.isDisposable();
             if(type == SrsCodecVideoAVCFrame.KeyFrame && h264_sps_pps_changed ){
                 //prepend SPS\PPS to IDR
-                SrsFlvFrameBytes sps_frame = new SrsFlvFrameBytes(h264_sps);
-                SrsFlvFrameBytes pps_frame = new SrsFlvFrameBytes(h264_pps);
+                SrsFlvFrameBytes sps_frame = new SrsFlvFrameBytes(h264_sps.duplicate());
+                SrsFlvFrameBytes pps_frame = new SrsFlvFrameBytes(h264_pps.duplicate());
 
-                ipbs.add(avc.muxNaluHeader(sps_frame));
                 ipbs.add(sps_frame);
-                ipbs.add(avc.muxNaluHeader(pps_frame));
                 ipbs.add(pps_frame);
                 h264_sps_pps_changed = false;
-                Log.i(TAG, String.format("prepend key frame SPS/PPS. DTS: %d, SPS/PPS size: %d/%d, IDR size: %d", dts, sps_frame.size, pps_frame.size, frame.size));
+                Log.i(TAG, String.format("prepend key frame SPS/PPS. DTS: %d, SPS/PPS size: %d/%d, IDR size: %d", dts, sps_frame.size, pps_frame.size, au.getAvccSize()));
             }            
 
-            ipbs.add(avc.muxNaluHeader(frame));
-            ipbs.add(frame);
+            if (mMetaDataChanged) {
+                mMetaDataChanged = false;
+                writeMetaData(dts);
+            }
+            // the SEI goes before the slice, in the same access unit.
+            SrsFlvFrameBytes sei = writeTimedMetadata(dts, pts);
+            if (sei != null && mMetadataSei && h264_sps_pps_sent) {
+                ipbs.add(sei);
+            }
 
             //writeH264SpsPps(dts, pts);
-            writeH264IpbFrame(ipbs, type, dts, pts);
+            writeH264IpbFrame(ipbs, bb, type, disposable, dts, pts);
             ipbs.clear();
         }
 
+        private boolean isSameNalu(ByteBuffer bb, int index, ByteBuffer nalu) {
+            SrsAnnexbScanner nalus = au.getNalus();
+            int size = nalus.getSize(index);
+            if (nalu == null || nalu.capacity() != size) {
+                return false;
+            }
+            int offset = nalus.getOffset(index);
+            for (int i = 0; i < size; i++) {
+                if (bb.get(offset + i) != nalu.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer copyNalu(ByteBuffer bb, int index) {
+            byte[] nalu = new byte[au.getNalus().getSize(index)];
+            au.getNalus().copy(bb, index, nalu, 0);
+            return ByteBuffer.wrap(nalu);
+        }
+
+        /**
+         * write the timed metadata due by the frame at pts, as one script tag ahead of the frame.
+         * @return the SEI NALU carrying the same message, null if no event was due.
+         */
+        private SrsFlvFrameBytes writeTimedMetadata(int dts, int pts) {
+            synchronized (mPendingMetadata) {
+                if (mPendingMetadata.isEmpty() || mPendingMetadata.get(0).time > pts) {
+                    return null;
+                }
+                // the tag is at the time of the first event, between the previous frame and this one,
+                // and never before a tag already queued, see flvTagCacheAdd.
+                int tag_dts = Math.min(mPendingMetadata.get(0).time, dts);
+                amf.reset();
+                amf.writeString(TIMED_METADATA_HANDLER);
+                int count = 0;
+                for (; count < mPendingMetadata.size() && mPendingMetadata.get(count).time <= pts; count++) {
+                    SrsTimedMetadata event = mPendingMetadata.get(count);
+                    amf.beginObject();
+                    amf.writeKey("name").writeString(event.name);
+                    amf.writeKey("time").writeNumber(event.time);
+                    if (event.text != null) {
+                        amf.writeKey("value").writeString(event.text);
+                    } else {
+                        amf.writeKey("value").writeNumber(event.number);
+                    }
+                    amf.endObject();
+                }
+                mPendingMetadata.subList(0, count).clear();
+
+                writeScriptTag(tag_dts);
+                return mMetadataSei ? muxSei(amf.array(), amf.size()) : null;
+            }
+        }
+
+        private void writeMetaData(int dts) {
+            // amf is shared with the timed metadata, which the audio thread may be encoding.
+            synchronized (mPendingMetadata) {
+                amf.reset();
+                metadata.setNumber(0, mVideoWidth).setNumber(1, mVideoHeight);
+                RtmpConnection.SET_DATA_FRAME.writeTo(amf, metadata);
+                writeScriptTag(dts);
+            }
+            Log.i(TAG, String.format("flv: metadata sent, %dx%d", mVideoWidth, mVideoHeight));
+        }
+
+        private void writeScriptTag(int dts) {
+            SrsAllocator.Allocation tag = mAllocator.allocate(amf.size());
+            System.arraycopy(amf.array(), 0, tag.array(), 0, amf.size());
+            tag.appendOffset(amf.size());
+            writeRtmpPacket(SrsCodecFlvTag.Script, dts, 0, 0, false, tag);
+        }
+
+        /**
+         * mux the SEI NALU of user data unregistered with the payload.
+         * @see: D.1.6 User data unregistered SEI message syntax, H.264-AVC-ISO_IEC_14496-10.pdf
+         */
+        private SrsFlvFrameBytes muxSei(byte[] payload, int size) {
+            int payload_size = TIMED_METADATA_SEI_UUID.length + size;
+            ByteBuffer rbsp = ByteBuffer.allocate(2 + payload_size / 255 + 1 + payload_size + 1);
+            // nal_unit_type, nal_ref_idc is 0.
+            rbsp.put((byte) SrsAvcNaluType.SEI);
+            // last_payload_type_byte, 5 is user_data_unregistered.
+            rbsp.put((byte) 5);
+            for (int i = payload_size; i >= 0; i -= 255) {
+                rbsp.put((byte) Math.min(i, 255));
+                if (i < 255) {
+                    break;
+                }
+            }
+            rbsp.put(TIMED_METADATA_SEI_UUID);
+            rbsp.put(payload, 0, size);
+            // rbsp_trailing_bits
+            rbsp.put((byte) 0x80);
+
+            // 7.4.1 emulation_prevention_three_byte, no 00 00 0x with x <= 3 in the NALU.
+            byte[] nalu = new byte[rbsp.position() * 3 / 2 + 1];
+            int nb_nalu = 0;
+            int zeros = 0;
+            for (int i = 0; i < rbsp.position(); i++) {
+                byte b = rbsp.get(i);
+                if (zeros >= 2 && (b & 0xff) <= 3) {
+                    nalu[nb_nalu++] = 0x03;
+                    zeros = 0;
+                }
+                nalu[nb_nalu++] = b;
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+
+            SrsFlvFrameBytes sei = new SrsFlvFrameBytes();
+            sei.data = ByteBuffer.wrap(nalu, 0, nb_nalu);
+            sei.size = nb_nalu;
+            return sei;
+        }
+
         private void writeH264SpsPps(int dts, int pts) {
             // when sps or pps changed, update the sequence header,
             // for the pps maybe not changed while sps changed.
@@ -970,7 +1908,7 @@ public class SrsFlvMuxer {
             video_tag = avc.muxFlvTag(frames, frame_type, avc_packet_type, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, avc_packet_type, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, avc_packet_type, false, video_tag);
 
             // reset sps and pps.
             h264_sps_changed = false;
@@ -980,50 +1918,99 @@ public class SrsFlvMuxer {
                 h264_sps.array().length, h264_pps.array().length));
         }
 
-        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, int dts, int pts) {
+        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, ByteBuffer bb, int type,
+                                       boolean disposable, int dts, int pts) {
             // when sps or pps not sent, ignore the packet.
             // @see https://github.com/simple-rtmp-server/srs/issues/203
             if (!h264_sps_pps_sent) {
                 return;
             }
 
-            video_tag = avc.muxFlvTag(frames, type, SrsCodecVideoAVCType.NALU, dts, pts);
+            video_tag = avc.muxNaluTag(frames, bb, au, type, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, disposable, video_tag);
         }
 
-        private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+        private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, boolean disposable,
+                                     SrsAllocator.Allocation tag) {
             SrsFlvFrame frame = new SrsFlvFrame();
             frame.flvTag = tag;
             frame.type = type;
             frame.dts = dts;
             frame.frame_type = frame_type;
             frame.avc_aac_type = avc_aac_type;
+            frame.disposable = disposable;
 
             if (frame.isVideo()) {
                 if (needToFindKeyFrame) {
                     if (frame.isKeyFrame()) {
                         needToFindKeyFrame = false;
                         flvTagCacheAdd(frame);
+                    } else {
+                        frame.release();
                     }
                 } else {
                     flvTagCacheAdd(frame);
                 }
-            } else if (frame.isAudio()) {
+            } else if (frame.isAudio() || frame.isScript()) {
                 flvTagCacheAdd(frame);
             }
         }
 
         private void flvTagCacheAdd(SrsFlvFrame frame) {
-            if (started) {
-                mFlvTagCache.add(frame);
-                if (frame.isVideo()) {
-                    getVideoFrameCacheNumber().incrementAndGet();
+            synchronized (replayLock) {
+                if (frame.isScript()) {
+                    // audio and video are written by their own threads, a script tag timed between
+                    // two frames may come after a later tag of the other track.
+                    frame.dts = Math.max(frame.dts, last_dts);
+                }
+                last_dts = Math.max(last_dts, frame.dts);
+                if (started) {
+                    addToDestinations(frame);
+                }
+                if (frame.isSequenceHeader()) {
+                    // Kept for the destinations joining later
+                    SrsFlvFrame previous = frame.isVideo() ? mVideoSequenceHeader : mAudioSequenceHeader;
+                    if (previous != null) {
+                        previous.release();
+                    }
+                    if (frame.isVideo()) {
+                        mVideoSequenceHeader = frame;
+                    } else {
+                        mAudioSequenceHeader = frame;
+                    }
+                    return;
                 }
+                gopCacheAdd(frame);
+            }
+            frame.release();
+        }
+
+        private void gopCacheAdd(SrsFlvFrame frame) {
+            if (frame.isScript()) {
+                // the events happened once, not again when a destination (re)connects.
+                return;
             }
-            synchronized (txFrameLock) {
-                txFrameLock.notifyAll();
+            if (frame.isKeyFrame()) {
+                clearGopCache();
+            } else if (mGopCache.isEmpty()) {
+                // Only ever starts with a key frame
+                return;
+            }
+            if (frame.isVideo() && ++mGopCacheVideoFrames > GOP_CACHE_MAX_VIDEO_FRAMES) {
+                // Too long a GOP to keep, wait for the next key frame
+                clearGopCache();
+                return;
+            }
+            frame.retain();
+            mGopCache.add(frame);
+        }
+
+        private void addToDestinations(SrsFlvFrame frame) {
+            // Each destination holds its own reference on the shared tag
+            for (SrsRtmpDestination destination : mDestinations) {
+                destination.add(frame);
             }
         }
     }
@@ -0,0 +1,274 @@
+package net.ossrs.yasea;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Adaptive jitter buffer between the RTMP play connection and the decoders.
+ *
+ * Units are released on a playout clock running at the pace of their timestamps, a playout delay behind
+ * the fastest arrival seen recently. The delay follows the spread of the arrival times over the last
+ * seconds, never below the target delay nor above the maximum: a smooth network plays close to the
+ * target, a jittery one gets the headroom it needs instead of stalling. The clock catches up with the
+ * delay by speeding playout up or slowing it down a few percents, so that it never jumps, except after
+ * a stall: a unit arriving past its playout time rebuffers to the whole delay.
+ *
+ * The buffer logic takes the time as a parameter, so an arrival trace can be replayed through
+ * {@link #offer(SrsAccessUnit, long)} and {@link #poll(long)} on the JVM.
+ */
+public class SrsJitterBuffer {
+
+    public static final int DEFAULT_TARGET_DELAY_MS = 300;
+    public static final int DEFAULT_MAX_DELAY_MS = 3000;
+    /** How long arrivals are remembered to measure the jitter */
+    private static final int JITTER_WINDOW_MS = 10000;
+    /** Largest playout speed change used to follow the delay */
+    private static final double CLOCK_ADJUST_RATE = 0.05;
+    /** A jump of the timestamps larger than this restarts the clock */
+    private static final int DISCONTINUITY_MS = 10000;
+    /** Units kept while nobody reads them, the oldest GOP goes beyond */
+    private static final int MAX_UNITS = 2000;
+
+    private final ArrayDeque<SrsAccessUnit> units = new ArrayDeque<>();
+    // arrivals of the jitter window as {arrival, transit}, kept as monotonic queues of the
+    // smallest and the largest transit times, transit being the arrival time minus the timestamp
+    private final ArrayDeque<long[]> minTransits = new ArrayDeque<>();
+    private final ArrayDeque<long[]> maxTransits = new ArrayDeque<>();
+
+    private int targetDelay = DEFAULT_TARGET_DELAY_MS;
+    private int maxDelay = DEFAULT_MAX_DELAY_MS;
+    private boolean clockStarted;
+    // a unit is due at its dts plus this offset
+    private long clockOffset;
+    private long lastAdjustMillis;
+    private int lastOfferedDts;
+
+    private int stallCount;
+    private long stallMillis;
+    private int droppedCount;
+    private long endToEndDelay = -1;
+
+    /**
+     * set the playout delay of a network without jitter
+     * @param targetMillis lowest delay behind the fastest arrivals, in ms
+     * @param maxMillis highest delay the jitter may push it to, in ms
+     */
+    public synchronized void setDelay(int targetMillis, int maxMillis) {
+        if (targetMillis < 0 || targetMillis > maxMillis) {
+            throw new IllegalArgumentException("Invalid delay range [" + targetMillis + ", " + maxMillis + "]");
+        }
+        targetDelay = targetMillis;
+        maxDelay = maxMillis;
+    }
+
+    /**
+     * Adds a unit just received.
+     *
+     * @param nowMillis monotonic time in milliseconds
+     */
+    public synchronized void offer(SrsAccessUnit unit, long nowMillis) {
+        if (unit.isConfig()) {
+            // Servers send the sequence headers to new players with a stale timestamp: not a clue to
+            // the timing, and due as soon as the clock starts
+            insert(unit);
+            notifyAll();
+            return;
+        }
+        if (clockStarted && Math.abs(unit.getDts() - lastOfferedDts) > DISCONTINUITY_MS) {
+            // A new publishing session, or a server restarting its timestamps
+            droppedCount += units.size();
+            reset();
+        }
+        lastOfferedDts = unit.getDts();
+
+        long transit = nowMillis - unit.getDts();
+        addTransit(nowMillis, transit);
+        if (!clockStarted) {
+            clockStarted = true;
+            clockOffset = transit + desiredDelay();
+            lastAdjustMillis = nowMillis;
+        } else if (nowMillis > unit.getDts() + clockOffset) {
+            // Playout would have been waiting for this one
+            stallCount++;
+            stallMillis += nowMillis - (unit.getDts() + clockOffset);
+            clockOffset = transit + desiredDelay();
+        }
+
+        insert(unit);
+        if (units.size() > MAX_UNITS) {
+            dropOldestGop();
+        }
+        notifyAll();
+    }
+
+    private void insert(SrsAccessUnit unit) {
+        // Audio and video each come in order, but one may be a little ahead of the other
+        if (units.isEmpty() || units.peekLast().getDts() <= unit.getDts()) {
+            units.addLast(unit);
+        } else {
+            ArrayDeque<SrsAccessUnit> later = new ArrayDeque<>();
+            while (!units.isEmpty() && units.peekLast().getDts() > unit.getDts()) {
+                later.addFirst(units.pollLast());
+            }
+            units.addLast(unit);
+            units.addAll(later);
+        }
+    }
+
+    /**
+     * Takes the next unit if it is due.
+     *
+     * @param nowMillis monotonic time in milliseconds
+     * @return the unit to decode now, or null if there is none yet
+     */
+    public synchronized SrsAccessUnit poll(long nowMillis) {
+        if (!clockStarted) {
+            return null;
+        }
+        adjustClock(nowMillis);
+        SrsAccessUnit unit = units.peekFirst();
+        if (unit == null || unit.getDts() + clockOffset > nowMillis) {
+            return null;
+        }
+        units.pollFirst();
+        endToEndDelay = nowMillis - (unit.getDts() + minTransits.peekFirst()[1]);
+        return unit;
+    }
+
+    /**
+     * Waits for the next unit to be due.
+     *
+     * @return the unit to decode now, or null if none came in time
+     */
+    public synchronized SrsAccessUnit take(long timeoutMillis) throws InterruptedException {
+        long deadline = nowMillis() + timeoutMillis;
+        while (true) {
+            long now = nowMillis();
+            SrsAccessUnit unit = poll(now);
+            if (unit != null) {
+                return unit;
+            }
+            long wait = deadline - now;
+            if (wait <= 0) {
+                return null;
+            }
+            if (!units.isEmpty()) {
+                wait = Math.min(wait, Math.max(1, units.peekFirst().getDts() + clockOffset - now));
+            }
+            wait(wait);
+        }
+    }
+
+    /** Forgets everything, for a new connection */
+    public synchronized void clear() {
+        reset();
+        stallCount = 0;
+        stallMillis = 0;
+        droppedCount = 0;
+        endToEndDelay = -1;
+    }
+
+    /** @return units waiting */
+    public synchronized int getDepth() {
+        return units.size();
+    }
+
+    /** @return duration of the media waiting, in ms */
+    public synchronized int getDepthMillis() {
+        return units.isEmpty() ? 0 : units.peekLast().getDts() - units.peekFirst().getDts();
+    }
+
+    /** @return current playout delay behind the fastest arrivals, in ms */
+    public synchronized int getDelayMillis() {
+        return clockStarted ? (int) (clockOffset - minTransits.peekFirst()[1]) : targetDelay;
+    }
+
+    /** @return spread of the arrival times over the last seconds, in ms */
+    public synchronized int getJitterMillis() {
+        return clockStarted ? (int) (maxTransits.peekFirst()[1] - minTransits.peekFirst()[1]) : 0;
+    }
+
+    /** @return times playout ran dry since the last {@link #clear()} */
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    /** @return time playout spent dry since the last {@link #clear()}, in ms */
+    public synchronized long getStallMillis() {
+        return stallMillis;
+    }
+
+    /** @return units dropped because nobody read them or the timestamps jumped */
+    public synchronized int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return delay of the last unit released over the fastest path from the publisher, that is
+     * what network queues and this buffer added, in ms; -1 before the first unit
+     */
+    public synchronized long getEndToEndDelayMillis() {
+        return endToEndDelay;
+    }
+
+    private void reset() {
+        units.clear();
+        minTransits.clear();
+        maxTransits.clear();
+        clockStarted = false;
+    }
+
+    private int desiredDelay() {
+        int jitter = (int) (maxTransits.peekFirst()[1] - minTransits.peekFirst()[1]);
+        return Math.max(targetDelay, Math.min(maxDelay, jitter));
+    }
+
+    private void addTransit(long nowMillis, long transit) {
+        long[] sample = new long[]{nowMillis, transit};
+        while (!minTransits.isEmpty() && minTransits.peekLast()[1] >= transit) {
+            minTransits.pollLast();
+        }
+        minTransits.addLast(sample);
+        while (!maxTransits.isEmpty() && maxTransits.peekLast()[1] <= transit) {
+            maxTransits.pollLast();
+        }
+        maxTransits.addLast(sample);
+        while (minTransits.peekFirst()[0] < nowMillis - JITTER_WINDOW_MS) {
+            minTransits.pollFirst();
+        }
+        while (maxTransits.peekFirst()[0] < nowMillis - JITTER_WINDOW_MS) {
+            maxTransits.pollFirst();
+        }
+    }
+
+    private void adjustClock(long nowMillis) {
+        long target = minTransits.peekFirst()[1] + desiredDelay();
+        long step = (long) ((nowMillis - lastAdjustMillis) * CLOCK_ADJUST_RATE);
+        if (step > 0) {
+            clockOffset += Math.max(-step, Math.min(step, target - clockOffset));
+            lastAdjustMillis = nowMillis;
+        }
+    }
+
+    private void dropOldestGop() {
+        // Up to the next key frame, so that what is left starts with one; the codec configuration stays
+        boolean first = true;
+        Iterator<SrsAccessUnit> it = units.iterator();
+        while (it.hasNext()) {
+            SrsAccessUnit unit = it.next();
+            if (unit.isConfig()) {
+                continue;
+            }
+            if (!first && unit.isVideo() && unit.isKeyFrame()) {
+                return;
+            }
+            it.remove();
+            droppedCount++;
+            first = false;
+        }
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
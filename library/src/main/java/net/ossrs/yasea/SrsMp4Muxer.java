@@ -9,10 +9,13 @@ import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.IsoTypeWriter;
 import com.coremedia.iso.boxes.AbstractMediaHeaderBox;
 import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
 import com.coremedia.iso.boxes.ContainerBox;
 import com.coremedia.iso.boxes.DataEntryUrlBox;
 import com.coremedia.iso.boxes.DataInformationBox;
 import com.coremedia.iso.boxes.DataReferenceBox;
+import com.coremedia.iso.boxes.EditBox;
+import com.coremedia.iso.boxes.EditListBox;
 import com.coremedia.iso.boxes.FileTypeBox;
 import com.coremedia.iso.boxes.HandlerBox;
 import com.coremedia.iso.boxes.MediaBox;
@@ -50,12 +53,13 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by LeoMa on 2016/5/21.
@@ -65,6 +69,11 @@ public class SrsMp4Muxer {
     private static final String TAG = "SrsMp4Muxer";
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
+    // samples kept for reuse at most, while waiting to be written.
+    private static final int ALLOC_POOL_MAX_BYTES = 2 * 1024 * 1024;
+    // samples waiting to be written at most, dropped beyond: about 8s of video and 11s of audio.
+    private static final int VIDEO_CACHE_SIZE = 256;
+    private static final int AUDIO_CACHE_SIZE = 512;
 
     private File mRecFile;
     private SrsRecordHandler mHandler;
@@ -72,7 +81,7 @@ public class SrsMp4Muxer {
     private MediaFormat videoFormat = null;
     private MediaFormat audioFormat = null;
 
-    private SrsRawH264Stream avc = new SrsRawH264Stream();
+    private final SrsAvcAccessUnitBuilder au = new SrsAvcAccessUnitBuilder();
     private Mp4Movie mp4Movie = new Mp4Movie();
 
     private boolean aacSpecConfig = false;
@@ -85,8 +94,11 @@ public class SrsMp4Muxer {
     private volatile boolean bRecording = false;
     private volatile boolean bPaused = false;
     private volatile boolean needToFindKeyFrame = true;
-    private final Object writeLock = new Object();
-    private ConcurrentLinkedQueue<SrsEsFrame> frameCache = new ConcurrentLinkedQueue<>();
+    // one ring per track, each encoder thread feeding its own. The encoder threads also publish the
+    // stream, a slow disk drops samples rather than holding them back.
+    private final SrsSpscRing<SrsEsFrame> videoFrameCache = new SrsSpscRing<>(VIDEO_CACHE_SIZE, SrsSpscRing.OverflowPolicy.DROP_NEWEST);
+    private final SrsSpscRing<SrsEsFrame> audioFrameCache = new SrsSpscRing<>(AUDIO_CACHE_SIZE, SrsSpscRing.OverflowPolicy.DROP_NEWEST);
+    private final SrsAllocator mAllocator = new SrsAllocator("mp4", ALLOC_POOL_MAX_BYTES);
 
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
 
@@ -117,6 +129,8 @@ public class SrsMp4Muxer {
             return false;
         }
 
+        // the samples offered while the previous recording was stopping are not for this one.
+        clearCache();
         mRecFile = outputFile;
         createMovie(mRecFile);
         mHandler.notifyRecordStarted(mRecFile.getPath());
@@ -126,25 +140,25 @@ public class SrsMp4Muxer {
         }
         mp4Movie.addTrack(audioFormat, true);
 
+        // set ahead of the worker, the samples written meanwhile are kept and a stop right away ends it.
+        bRecording = true;
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
-                bRecording = true;
-                while (bRecording) {
-                    // Keep at least one audio and video frame in cache to ensure monotonically increasing.
-                    while (!frameCache.isEmpty()) {
-                        SrsEsFrame frame = frameCache.poll();
-                        writeSampleData(frame.bb, frame.bi, frame.is_audio());
+                while (true) {
+                    // read first, the samples queued before the stop are still written.
+                    boolean recording = bRecording;
+                    // Interleave the tracks as they come, each sample is placed by its own offset.
+                    boolean written;
+                    do {
+                        written = writeCachedFrame(videoFrameCache.poll());
+                        written |= writeCachedFrame(audioFrameCache.poll());
+                    } while (written);
+                    if (!recording) {
+                        break;
                     }
                     // Waiting for next frame
-                    synchronized (writeLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            writeLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
-                    }
+                    SrsSpscRing.awaitAny(TimeUnit.MILLISECONDS.toNanos(500), videoFrameCache, audioFrameCache);
                 }
             }
         });
@@ -153,6 +167,15 @@ public class SrsMp4Muxer {
         return true;
     }
 
+    private boolean writeCachedFrame(SrsEsFrame frame) {
+        if (frame == null) {
+            return false;
+        }
+        writeSampleData(frame.bb, frame.bi, frame.dts, frame.is_audio());
+        mAllocator.release(frame.allocation);
+        return true;
+    }
+
     /**
      * pause recording.
      */
@@ -182,7 +205,6 @@ public class SrsMp4Muxer {
         bPaused = false;
         needToFindKeyFrame = true;
         aacSpecConfig = false;
-        frameCache.clear();
 
         if (worker != null) {
             try {
@@ -196,7 +218,18 @@ public class SrsMp4Muxer {
             finishMovie();
             mHandler.notifyRecordFinished(mRecFile.getPath());
         }
-        Log.i(TAG, "SrsMp4Muxer closed");
+        // The worker is gone, this thread is the consumer now.
+        clearCache();
+        mAllocator.trim();
+        Log.i(TAG, "SrsMp4Muxer closed, video cache " + videoFrameCache + ", audio cache " + audioFrameCache
+            + ", " + mAllocator);
+    }
+
+    private void clearCache() {
+        SrsEsFrame frame;
+        while ((frame = videoFrameCache.poll()) != null || (frame = audioFrameCache.poll()) != null) {
+            mAllocator.release(frame.allocation);
+        }
     }
 
     /**
@@ -215,6 +248,13 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * get the builder of the video samples, to keep or strip the AUD, SEI and filler data of the encoder.
+     */
+    public SrsAvcAccessUnitBuilder getAccessUnitBuilder() {
+        return au;
+    }
+
     /**
      * send the annexb frame to SRS over RTMP.
      *
@@ -223,8 +263,22 @@ public class SrsMp4Muxer {
      * @param bufferInfo The buffer information related to this sample.
      */
     public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        writeSampleData(trackIndex, byteBuf, bufferInfo, bufferInfo.presentationTimeUs);
+    }
+
+    /**
+     * record the annexb frame, decoded before its presentation time when the encoder reorders the
+     * pictures for B-frames.
+     *
+     * @param trackIndex   The track index for this sample.
+     * @param byteBuf      The encoded sample.
+     * @param bufferInfo   The buffer information related to this sample.
+     * @param decodeTimeUs The decoding timestamp of the video sample, in us, not after the presentation one.
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo,
+                                long decodeTimeUs) {
         if (VIDEO_TRACK == trackIndex) {
-            writeVideoSample(byteBuf, bufferInfo);
+            writeVideoSample(byteBuf, bufferInfo, decodeTimeUs);
         } else {
             writeAudioSample(byteBuf, bufferInfo);
         }
@@ -275,51 +329,70 @@ public class SrsMp4Muxer {
         public final static int CodedSliceExt = 20;
     }
 
-    private void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
-        int nal_unit_type = bb.get(4) & 0x1f;
-        if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
-            writeFrameByte(VIDEO_TRACK, bb, bi, nal_unit_type == SrsAvcNaluType.IDR);
-        } else {
-            while (bb.position() < bi.size) {
-                SrsEsFrameBytes frame = avc.annexb_demux(bb, bi);
-
-                if (avc.is_sps(frame)) {
-                    if (!frame.data.equals(h264_sps)) {
-                        byte[] sps = new byte[frame.size];
-                        frame.data.get(sps);
-                        h264_sps = ByteBuffer.wrap(sps);
-                        spsList.clear();
-                        spsList.add(sps);
-                    }
-                    continue;
-                }
+    private void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi, long decodeTimeUs) {
+        // each frame must prefixed by annexb format.
+        // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+        if (au.build(bb, bi.offset, bi.offset + bi.size) == 0) {
+            Log.e(TAG, "annexb not match.");
+            mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
+                String.format("annexb not match for %dB, offset=%d", bi.size, bi.offset)));
+            return;
+        }
 
-                if (avc.is_pps(frame)) {
-                    if (!frame.data.equals(h264_pps)) {
-                        byte[] pps = new byte[frame.size];
-                        frame.data.get(pps);
-                        h264_pps = ByteBuffer.wrap(pps);
-                        ppsList.clear();
-                        ppsList.add(pps);
-                    }
-                    continue;
-                }
+        // the codec config comes alone or ahead of a key frame.
+        int sps = au.getSpsIndex();
+        if (sps >= 0 && !isSameNalu(bb, sps, h264_sps)) {
+            h264_sps = copyNalu(bb, sps);
+            spsList.clear();
+            spsList.add(h264_sps.array());
+        }
+        int pps = au.getPpsIndex();
+        if (pps >= 0 && !isSameNalu(bb, pps, h264_pps)) {
+            h264_pps = copyNalu(bb, pps);
+            ppsList.clear();
+            ppsList.add(h264_pps.array());
+        }
+
+        if (au.getSliceCount() > 0) {
+            // a key frame if any slice is an IDR one.
+            writeFrameByte(VIDEO_TRACK, bb, bi, decodeTimeUs, au.isKeyFrame());
+        }
+    }
+
+    private boolean isSameNalu(ByteBuffer bb, int index, ByteBuffer nalu) {
+        SrsAnnexbScanner nalus = au.getNalus();
+        int size = nalus.getSize(index);
+        if (nalu == null || nalu.capacity() != size) {
+            return false;
+        }
+        int offset = nalus.getOffset(index);
+        for (int i = 0; i < size; i++) {
+            if (bb.get(offset + i) != nalu.get(i)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private ByteBuffer copyNalu(ByteBuffer bb, int index) {
+        byte[] nalu = new byte[au.getNalus().getSize(index)];
+        au.getNalus().copy(bb, index, nalu, 0);
+        return ByteBuffer.wrap(nalu);
     }
 
     private void writeAudioSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
         if (!aacSpecConfig) {
             aacSpecConfig = true;
         } else {
-            writeFrameByte(AUDIO_TRACK, bb, bi, false);
+            writeFrameByte(AUDIO_TRACK, bb, bi, bi.presentationTimeUs, false);
         }
     }
 
-    private void writeFrameByte(int track, ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isKeyFrame) {
+    private void writeFrameByte(int track, ByteBuffer bb, MediaCodec.BufferInfo bi, long dts, boolean isKeyFrame) {
         SrsEsFrame frame = new SrsEsFrame();
         frame.bb = bb;
         frame.bi = bi;
+        frame.dts = dts;
         frame.isKeyFrame = isKeyFrame;
         frame.track = track;
 
@@ -327,34 +400,51 @@ public class SrsMp4Muxer {
             if (needToFindKeyFrame) {
                 if (frame.isKeyFrame) {
                     needToFindKeyFrame = false;
-                    frameCache.add(frame);
-                    synchronized (writeLock) {
-                        writeLock.notifyAll();
-                    }
+                    cacheFrame(frame);
                 }
             } else {
-                frameCache.add(frame);
-                synchronized (writeLock) {
-                    writeLock.notifyAll();
-                }
+                cacheFrame(frame);
             }
         }
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
-    }
+    private void cacheFrame(SrsEsFrame frame) {
+        if (!bRecording) {
+            // stopped since writeFrameByte checked, the rings are drained already.
+            return;
+        }
+        // the encoder reuses its output buffer once the sample is handed over, keep a copy until written,
+        // the video one as the length prefixed NALUs of the access unit just built.
+        int size = frame.is_video() ? au.getAvccSize() : frame.bi.size;
+        frame.allocation = mAllocator.allocate(size);
+        if (frame.is_video()) {
+            au.writeAvcc(frame.bb, frame.allocation.array(), 0);
+        } else {
+            ByteBuffer sample = frame.bb.duplicate();
+            sample.limit(frame.bi.offset + frame.bi.size);
+            sample.position(frame.bi.offset);
+            sample.get(frame.allocation.array(), 0, frame.bi.size);
+        }
+        frame.allocation.appendOffset(size);
+        frame.bb = ByteBuffer.wrap(frame.allocation.array());
 
-    /**
-     * the demuxed tag frame.
-     */
-    private class SrsEsFrameBytes {
-        public ByteBuffer data;
-        public int size;
+        int flags = frame.bi.flags;
+        if (frame.is_video()) {
+            // the sync samples are the pictures with an IDR slice, whatever the encoder flagged.
+            flags = frame.isKeyFrame ? flags | MediaCodec.BUFFER_FLAG_SYNC_FRAME : flags & ~MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+        }
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.set(0, size, frame.bi.presentationTimeUs, flags);
+        frame.bi = bi;
+
+        SrsEsFrame dropped = (frame.is_video() ? videoFrameCache : audioFrameCache).offer(frame);
+        if (dropped != null) {
+            // the disk is behind, the video resumes at the next key frame.
+            mAllocator.release(dropped.allocation);
+            if (dropped.is_video()) {
+                needToFindKeyFrame = true;
+            }
+        }
     }
 
     /**
@@ -363,6 +453,10 @@ public class SrsMp4Muxer {
     private class SrsEsFrame {
         public ByteBuffer bb;
         public MediaCodec.BufferInfo bi;
+        // the decoding timestamp in us, the presentation one is in bi.
+        public long dts;
+        // the copy of the sample bb wraps.
+        public SrsAllocator.Allocation allocation;
         public int track;
         public boolean isKeyFrame;
 
@@ -375,87 +469,6 @@ public class SrsMp4Muxer {
         }
     }
 
-    /**
-     * the raw h.264 stream, in annexb.
-     */
-    private class SrsRawH264Stream {
-        public boolean is_sps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.SPS;
-        }
-
-        public boolean is_pps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
-        }
-
-        public SrsAnnexbSearch srs_avc_startswith_annexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsAnnexbSearch as = new SrsAnnexbSearch();
-            as.match = false;
-
-            int pos = bb.position();
-            while (pos < bi.size - 3) {
-                // not match.
-                if (bb.get(pos) != 0x00 || bb.get(pos + 1) != 0x00) {
-                    break;
-                }
-
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(pos + 2) == 0x01) {
-                    as.match = true;
-                    as.nb_start_code = pos + 3 - bb.position();
-                    break;
-                }
-
-                pos++;
-            }
-
-            return as;
-        }
-
-        public SrsEsFrameBytes annexb_demux(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsEsFrameBytes tbb = new SrsEsFrameBytes();
-
-            while (bb.position() < bi.size) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = srs_avc_startswith_annexb(bb, bi);
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                    mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
-                        String.format("annexb not match for %dB, pos=%d", bi.size, bb.position())));
-                }
-
-                // the start codes.
-                ByteBuffer tbbs = bb.slice();
-                for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                    bb.get();
-                }
-
-                // find out the frame size.
-                tbb.data = bb.slice();
-                int pos = bb.position();
-                while (bb.position() < bi.size) {
-                    SrsAnnexbSearch bsc = srs_avc_startswith_annexb(bb, bi);
-                    if (bsc.match) {
-                        break;
-                    }
-                    bb.get();
-                }
-
-                tbb.size = bb.position() - pos;
-                break;
-            }
-
-            return tbb;
-        }
-    }
-
     private class Sample {
         private long offset = 0;
         private long size = 0;
@@ -488,8 +501,13 @@ public class SrsMp4Muxer {
         private int width;
         private float volume = 0;
         private ArrayList<Long> sampleDurations = new ArrayList<>();
+        // pts - dts of the video samples, in the timescale.
+        private ArrayList<Integer> compositionOffsets = new ArrayList<>();
+        private boolean hasCompositionOffsets = false;
         private boolean isAudio = false;
-        private long lastPresentationTimeUs = 0;
+        private long firstDecodeTimeUs = 0;
+        private long lastDecodeTimeUs = 0;
+        private long lastDecodeTime = 0;
         private boolean first = true;
 
         public Track(int id, MediaFormat format, boolean audio) {
@@ -577,9 +595,10 @@ public class SrsMp4Muxer {
             }
         }
 
-        public void addSample(long offset, MediaCodec.BufferInfo bi) {
-            long delta = bi.presentationTimeUs - lastPresentationTimeUs;
-            if (delta < 0) {
+        public void addSample(long offset, MediaCodec.BufferInfo bi, long decodeTimeUs) {
+            if (first) {
+                firstDecodeTimeUs = decodeTimeUs;
+            } else if (decodeTimeUs < lastDecodeTimeUs) {
                 return;
             }
             boolean isSyncFrame = !isAudio && (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
@@ -588,13 +607,27 @@ public class SrsMp4Muxer {
                 syncSamples.add(samples.size());
             }
 
-            delta = (delta * timeScale + 500000L) / 1000000L;
-            lastPresentationTimeUs = bi.presentationTimeUs;
+            // the durations go by dts, rounded from the first sample not to drift.
+            long decodeTime = toTimeScale(decodeTimeUs);
             if (!first) {
+                long delta = decodeTime - lastDecodeTime;
                 sampleDurations.add(sampleDurations.size() - 1, delta);
                 duration += delta;
             }
+            lastDecodeTimeUs = decodeTimeUs;
+            lastDecodeTime = decodeTime;
             first = false;
+
+            if (!isAudio) {
+                // the B-frames are presented after the pictures decoded after them.
+                long cts = toTimeScale(bi.presentationTimeUs) - decodeTime;
+                compositionOffsets.add(cts > 0 ? (int) cts : 0);
+                hasCompositionOffsets |= cts > 0;
+            }
+        }
+
+        private long toTimeScale(long timeUs) {
+            return ((timeUs - firstDecodeTimeUs) * timeScale + 500000L) / 1000000L;
         }
 
         public void clearSample() {
@@ -602,6 +635,8 @@ public class SrsMp4Muxer {
             samples.clear();
             syncSamples.clear();
             sampleDurations.clear();
+            compositionOffsets.clear();
+            hasCompositionOffsets = false;
         }
 
         public ArrayList<Sample> getSamples() {
@@ -659,6 +694,13 @@ public class SrsMp4Muxer {
             return sampleDurations;
         }
 
+        /**
+         * @return the composition offset of each sample, null if all the samples are presented when decoded.
+         */
+        public ArrayList<Integer> getCompositionOffsets() {
+            return hasCompositionOffsets ? compositionOffsets : null;
+        }
+
         public boolean isAudio() {
             return isAudio;
         }
@@ -680,9 +722,9 @@ public class SrsMp4Muxer {
             return tracks;
         }
 
-        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi) {
+        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi, long decodeTimeUs) {
             Track track = tracks.get(trackIndex);
-            track.addSample(offset, bi);
+            track.addSample(offset, bi, decodeTimeUs);
         }
 
         public void addTrack(MediaFormat format, boolean isAudio) {
@@ -790,7 +832,7 @@ public class SrsMp4Muxer {
         }
     }
 
-    private void writeSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, boolean isAudio) {
+    private void writeSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, long decodeTimeUs, boolean isAudio) {
         int trackIndex = isAudio ? AUDIO_TRACK : VIDEO_TRACK;
         if (!mp4Movie.getTracks().containsKey(trackIndex)) {
             return;
@@ -805,16 +847,10 @@ public class SrsMp4Muxer {
                 mdat.first = false;
             }
 
-            mp4Movie.addSample(trackIndex, recFileSize, bi);
-            byteBuf.position(bi.offset + (isAudio ? 0 : 4));
+            mp4Movie.addSample(trackIndex, recFileSize, bi, decodeTimeUs);
+            // the video samples are length prefixed already.
+            byteBuf.position(bi.offset);
             byteBuf.limit(bi.offset + bi.size);
-            if (!isAudio) {
-                ByteBuffer size = ByteBuffer.allocate(4);
-                size.position(0);
-                size.putInt(bi.size - 4);
-                size.position(0);
-                recFileSize += fc.write(size);
-            }
             int writeBytes = fc.write(byteBuf);
 
             recFileSize += writeBytes;
@@ -941,6 +977,17 @@ public class SrsMp4Muxer {
 
         trackBox.addBox(tkhd);
 
+        // the presentation starts with the first picture, shown after the B-frames decoded first.
+        ArrayList<Integer> compositionOffsets = track.getCompositionOffsets();
+        if (compositionOffsets != null && compositionOffsets.get(0) > 0) {
+            EditBox edts = new EditBox();
+            EditListBox elst = new EditListBox();
+            elst.setEntries(Collections.singletonList(
+                new EditListBox.Entry(elst, tkhd.getDuration(), compositionOffsets.get(0), 1)));
+            edts.addBox(elst);
+            trackBox.addBox(edts);
+        }
+
         MediaBox mdia = new MediaBox();
         trackBox.addBox(mdia);
         MediaHeaderBox mdhd = new MediaHeaderBox();
@@ -978,6 +1025,7 @@ public class SrsMp4Muxer {
         SampleTableBox stbl = new SampleTableBox();
         createStsd(track, stbl);
         createStts(track, stbl);
+        createCtts(track, stbl);
         createStss(track, stbl);
         createStsc(track, stbl);
         createStsz(track, stbl);
@@ -1006,6 +1054,27 @@ public class SrsMp4Muxer {
         stbl.addBox(stts);
     }
 
+    private void createCtts(Track track, SampleTableBox stbl) {
+        ArrayList<Integer> compositionOffsets = track.getCompositionOffsets();
+        if (compositionOffsets == null) {
+            return;
+        }
+
+        CompositionTimeToSample.Entry lastEntry = null;
+        List<CompositionTimeToSample.Entry> entries = new ArrayList<>();
+        for (int offset : compositionOffsets) {
+            if (lastEntry != null && lastEntry.getOffset() == offset) {
+                lastEntry.setCount(lastEntry.getCount() + 1);
+            } else {
+                lastEntry = new CompositionTimeToSample.Entry(1, offset);
+                entries.add(lastEntry);
+            }
+        }
+        CompositionTimeToSample ctts = new CompositionTimeToSample();
+        ctts.setEntries(entries);
+        stbl.addBox(ctts);
+    }
+
     private void createStss(Track track, SampleTableBox stbl) {
         long[] syncSamples = track.getSyncSamples();
         if (syncSamples != null && syncSamples.length > 0) {
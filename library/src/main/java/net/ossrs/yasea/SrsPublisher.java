@@ -288,6 +288,91 @@ public class SrsPublisher {
         mEncoder.setVideoSmoothMode();
     }
 
+    /**
+     * Allow up to count B-frames between two references, 0 for none, the default. Better compression
+     * for as many frames of latency, set before starting the encoder.
+     */
+    public void setVideoBFrames(int count) {
+        mEncoder.setVideoBFrames(count);
+    }
+
+    /**
+     * Adapt the video bitrate to the uplink, pass null to keep it fixed.
+     */
+    public void setAdaptiveBitrate(SrsAbrController controller) {
+        mEncoder.setAbrController(controller);
+    }
+
+    /**
+     * Pace the RTMP output at a multiple of the encoding bitrate, 0 disables pacing.
+     */
+    public void setSendPacing(float multiplier, int burstBytes) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setPacing(multiplier, burstBytes);
+        }
+    }
+
+    /**
+     * Batch audio and small video frames into RTMP aggregate messages held at most budgetMillis, 0 disables it.
+     */
+    public void setSendAggregation(int budgetMillis) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setAggregation(budgetMillis);
+        }
+    }
+
+    /**
+     * Set up the RTMP connection in fewer round trips, and send the frames encoded meanwhile.
+     */
+    public void setFastStart(boolean enabled) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setFastStart(enabled);
+        }
+    }
+
+    /**
+     * Get the time from the start of publishing to the first video frame sent, -1 until then.
+     */
+    public int getTimeToFirstFrame() {
+        return mFlvMuxer == null ? -1 : mFlvMuxer.getTimeToFirstFrame();
+    }
+
+    /**
+     * Reconnect with exponential backoff when the connection fails, 0 as the maximum delay disables it.
+     */
+    public void setReconnectBackoff(int initialDelayMillis, int maxDelayMillis) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setReconnectBackoff(initialDelayMillis, maxDelayMillis);
+        }
+    }
+
+    /**
+     * Send a timed metadata event with the frames captured now, a score or a cue point for instance.
+     */
+    public void sendTimedMetadata(String name, String value) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.writeTimedMetadata(name, value, mEncoder.getPresentationTimeUs());
+        }
+    }
+
+    /**
+     * Send a timed metadata event with a number value with the frames captured now.
+     */
+    public void sendTimedMetadata(String name, double value) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.writeTimedMetadata(name, value, mEncoder.getPresentationTimeUs());
+        }
+    }
+
+    /**
+     * Mirror the timed metadata into the video as H.264 SEI, for the players which only see the video.
+     */
+    public void setTimedMetadataSei(boolean enabled) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setTimedMetadataSei(enabled);
+        }
+    }
+
     public void setSendVideoOnly(boolean flag) {
         if (mic != null) {
             if (flag) {
@@ -339,6 +424,19 @@ public class SrsPublisher {
         }
     }
 
+    /**
+     * Publish the same stream to another RTMP server too, from the same encoder.
+     */
+    public SrsFlvMuxer.SrsRtmpDestination addPublishDestination(String rtmpUrl, RtmpHandler handler) {
+        return mFlvMuxer == null ? null : mFlvMuxer.addDestination(rtmpUrl, handler);
+    }
+
+    public void removePublishDestination(SrsFlvMuxer.SrsRtmpDestination destination) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.removeDestination(destination);
+        }
+    }
+
     public void setRecordHandler(SrsRecordHandler handler) {
         mMp4Muxer = new SrsMp4Muxer(handler);
         if (mEncoder != null) {
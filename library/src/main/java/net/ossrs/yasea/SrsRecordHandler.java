@@ -3,6 +3,8 @@ package net.ossrs.yasea;
 import android.os.Handler;
 import android.os.Message;
 
+import com.github.faucamp.simplertmp.StreamingEventCoalescer;
+
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
@@ -21,20 +23,27 @@ public class SrsRecordHandler extends Handler {
     private static final int MSG_RECORD_IO_EXCEPTION = 5;
 
     private WeakReference<SrsRecordListener> mWeakListener;
+    // Pause and resume are reported on change only
+    private final StreamingEventCoalescer.Edge mPaused = new StreamingEventCoalescer.Edge();
 
     public SrsRecordHandler(SrsRecordListener listener) {
         mWeakListener = new WeakReference<>(listener);
     }
 
     public void notifyRecordPause() {
-        sendEmptyMessage(MSG_RECORD_PAUSE);
+        if (mPaused.set(true)) {
+            sendEmptyMessage(MSG_RECORD_PAUSE);
+        }
     }
 
     public void notifyRecordResume() {
-        sendEmptyMessage(MSG_RECORD_RESUME);
+        if (mPaused.set(false)) {
+            sendEmptyMessage(MSG_RECORD_RESUME);
+        }
     }
 
     public void notifyRecordStarted(String msg) {
+        mPaused.set(false);
         obtainMessage(MSG_RECORD_STARTED, msg).sendToTarget();
     }
 
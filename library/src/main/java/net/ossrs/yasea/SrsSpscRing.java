@@ -0,0 +1,282 @@
+package net.ossrs.yasea;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue handing elements from one producer thread to one consumer thread.
+ *
+ * The slots are allocated once; the producer and the consumer only share the head and tail indexes,
+ * and wake each other with park/unpark, only when the other one waits for the ring to turn non-empty
+ * or non-full. When full, the policy given decides: the producer waits for room, or the oldest or the
+ * newest element is dropped.
+ *
+ * It keeps the depth of the queue and the time the elements spent in it.
+ */
+public final class SrsSpscRing<E> {
+
+    /**
+     * what offering to a full ring does.
+     */
+    public enum OverflowPolicy {
+        // the producer waits for the consumer to take an element.
+        BLOCK,
+        // the oldest element queued is dropped for the new one.
+        DROP_OLDEST,
+        // the new element is dropped.
+        DROP_NEWEST
+    }
+
+    private final Object[] slots;
+    private final long[] enqueueNanos;
+    private final int mask;
+    private final OverflowPolicy policy;
+    // consumer index, advanced by the producer too when dropping the oldest element.
+    private final AtomicLong head = new AtomicLong();
+    // producer index.
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread consumerWaiting;
+    private volatile Thread producerWaiting;
+
+    // statistics, each one written by one side only.
+    private volatile int maxDepth;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long polled;
+    private volatile long totalWaitNanos;
+    private volatile long maxWaitNanos;
+
+    /**
+     * @param capacity the elements it holds at most, rounded up to a power of two.
+     * @param policy what offering to the full ring does.
+     */
+    public SrsSpscRing(int capacity, OverflowPolicy policy) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid ring capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        enqueueNanos = new long[size];
+        mask = size - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * add an element, from the producer thread.
+     * @return the element dropped to respect the capacity, the oldest or this one depending on the
+     * policy, null if none. With BLOCK, this one if interrupted while waiting for room.
+     */
+    public E offer(E element) {
+        long t = tail.get();
+        E drop = null;
+        if (t - head.get() > mask) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return element;
+                case DROP_OLDEST:
+                    for (long h = head.get(); t - h > mask; h = head.get()) {
+                        @SuppressWarnings("unchecked")
+                        E oldest = (E) slots[(int) h & mask];
+                        // the consumer may take it meanwhile, then there is room anyway.
+                        if (head.compareAndSet(h, h + 1)) {
+                            drop = oldest;
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                default:
+                    if (!awaitRoom(t)) {
+                        return element;
+                    }
+                    break;
+            }
+        }
+
+        int i = (int) t & mask;
+        slots[i] = element;
+        enqueueNanos[i] = System.nanoTime();
+        tail.set(t + 1);
+
+        int depth = (int) (t + 1 - head.get());
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        // a consumer parks only once it saw the ring empty, the offers after the first one find it
+        // woken already.
+        if (depth == 1) {
+            Thread consumer = consumerWaiting;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return drop;
+    }
+
+    /**
+     * take the oldest element, from the consumer thread.
+     * @return the element, null if empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        for (;;) {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int i = (int) h & mask;
+            E element = (E) slots[i];
+            long queuedNanos = enqueueNanos[i];
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                // the producer may drop it first, and reuse the slot right after.
+                if (!head.compareAndSet(h, h + 1)) {
+                    continue;
+                }
+            } else {
+                slots[i] = null;
+                head.set(h + 1);
+                // likewise a producer parks only once it saw the ring full.
+                if (tail.get() - h > mask) {
+                    Thread producer = producerWaiting;
+                    if (producer != null) {
+                        LockSupport.unpark(producer);
+                    }
+                }
+            }
+
+            long waitNanos = System.nanoTime() - queuedNanos;
+            polled++;
+            totalWaitNanos += waitNanos;
+            if (waitNanos > maxWaitNanos) {
+                maxWaitNanos = waitNanos;
+            }
+            return element;
+        }
+    }
+
+    /**
+     * take the oldest element, waiting for one if empty, from the consumer thread.
+     * @return the element, null if none came in time or if interrupted.
+     */
+    public E poll(long timeout, TimeUnit unit) {
+        E element = poll();
+        if (element == null && awaitAny(unit.toNanos(timeout), this)) {
+            element = poll();
+        }
+        return element;
+    }
+
+    /**
+     * wait until one of the rings has an element, from the thread consuming all of them.
+     * @return true if one has, false if the time is out or the thread interrupted.
+     */
+    public static boolean awaitAny(long timeoutNanos, SrsSpscRing<?>... rings) {
+        Thread me = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (SrsSpscRing<?> ring : rings) {
+            ring.consumerWaiting = me;
+        }
+        try {
+            for (;;) {
+                // checked after consumerWaiting is set, an element offered since will unpark us.
+                for (SrsSpscRing<?> ring : rings) {
+                    if (!ring.isEmpty()) {
+                        return true;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || me.isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(rings[0], remaining);
+            }
+        } finally {
+            for (SrsSpscRing<?> ring : rings) {
+                ring.consumerWaiting = null;
+            }
+        }
+    }
+
+    private boolean awaitRoom(long t) {
+        Thread me = Thread.currentThread();
+        producerWaiting = me;
+        try {
+            while (t - head.get() > mask) {
+                if (me.isInterrupted()) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.park(this);
+            }
+            return true;
+        } finally {
+            producerWaiting = null;
+        }
+    }
+
+    /**
+     * drop every element queued, from the consumer thread.
+     * @return the number of elements dropped.
+     */
+    public int clear() {
+        int count = 0;
+        while (poll() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return the elements queued.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return the most elements queued at once.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the elements dropped by the policy.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the mean time from offer to poll, in ns.
+     */
+    public long getMeanTimeInQueueNanos() {
+        long count = polled;
+        return count == 0 ? 0 : totalWaitNanos / count;
+    }
+
+    /**
+     * @return the longest time from offer to poll, in ns.
+     */
+    public long getMaxTimeInQueueNanos() {
+        return maxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth %d/%d max %d, dropped %d, time in queue mean %.2fms max %.2fms",
+            size(), capacity(), getMaxDepth(), getDroppedCount(),
+            getMeanTimeInQueueNanos() / 1e6, getMaxTimeInQueueNanos() / 1e6);
+    }
+}
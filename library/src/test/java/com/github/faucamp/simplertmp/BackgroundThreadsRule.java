@@ -0,0 +1,70 @@
+package com.github.faucamp.simplertmp;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.MultipleFailureException;
+import org.junit.runners.model.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails a test when a thread it started dies of an uncaught exception, even after the test itself
+ * returned: the threads started meanwhile are joined, for a while, once the test and its tear down
+ * are done. Apply it as a <code>@Rule</code>, which runs around <code>@Before</code> and
+ * <code>@After</code>.
+ */
+public class BackgroundThreadsRule implements TestRule {
+
+    private static final long JOIN_TIMEOUT_MS = 3000;
+
+    @Override
+    public Statement apply(final Statement base, Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                final List<Throwable> uncaught = new ArrayList<>();
+                Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+                Set<Thread> before = Thread.getAllStackTraces().keySet();
+                Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        synchronized (uncaught) {
+                            uncaught.add(new AssertionError("Uncaught in thread " + t.getName(), e));
+                        }
+                    }
+                });
+                List<Throwable> errors = new ArrayList<>();
+                try {
+                    base.evaluate();
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    joinStartedThreads(before);
+                    Thread.setDefaultUncaughtExceptionHandler(previous);
+                }
+                synchronized (uncaught) {
+                    errors.addAll(uncaught);
+                }
+                MultipleFailureException.assertEmpty(errors);
+            }
+        };
+    }
+
+    /** Joins the threads which are not daemons, those left running only cost the time out */
+    private static void joinStartedThreads(Set<Thread> before) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_TIMEOUT_MS);
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (before.contains(t) || t.isDaemon()) {
+                continue;
+            }
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                break;
+            }
+            t.join(left);
+        }
+    }
+}
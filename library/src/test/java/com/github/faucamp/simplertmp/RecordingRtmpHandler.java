@@ -0,0 +1,90 @@
+package com.github.faucamp.simplertmp;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records what a connection reports, the messages of the base class need a looper.
+ */
+public class RecordingRtmpHandler extends RtmpHandler {
+
+    private final List<Exception> exceptions = new ArrayList<>();
+    private volatile boolean connected;
+
+    public RecordingRtmpHandler() {
+        super(null);
+    }
+
+    /** @return true once a connection reported publishing */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /** @return a copy of the exceptions reported so far */
+    public synchronized List<Exception> getExceptions() {
+        return new ArrayList<>(exceptions);
+    }
+
+    @Override
+    public void notifyRtmpStreaming(StreamingEventCoalescer.Snapshot snapshot) {
+    }
+
+    @Override
+    public void notifyRtmpConnecting(String msg) {
+    }
+
+    @Override
+    public void notifyRtmpConnected(String msg) {
+        connected = true;
+    }
+
+    @Override
+    public void notifyRtmpVideoStreaming() {
+    }
+
+    @Override
+    public void notifyRtmpAudioStreaming() {
+    }
+
+    @Override
+    public void notifyRtmpStopped() {
+    }
+
+    @Override
+    public void notifyRtmpDisconnected() {
+    }
+
+    @Override
+    public void notifyRtmpVideoFpsChanged(double fps) {
+    }
+
+    @Override
+    public void notifyRtmpVideoBitrateChanged(double bitrate) {
+    }
+
+    @Override
+    public void notifyRtmpAudioBitrateChanged(double bitrate) {
+    }
+
+    @Override
+    public synchronized void notifyRtmpSocketException(SocketException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public synchronized void notifyRtmpIOException(IOException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public synchronized void notifyRtmpIllegalArgumentException(IllegalArgumentException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public synchronized void notifyRtmpIllegalStateException(IllegalStateException e) {
+        exceptions.add(e);
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.faucamp.simplertmp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapshots of frames counted at given times, and from several threads at once.
+ */
+public class StreamingEventCoalescerTest {
+
+    private final List<StreamingEventCoalescer.Snapshot> snapshots = new ArrayList<>();
+    private final StreamingEventCoalescer coalescer = new StreamingEventCoalescer(new StreamingEventCoalescer.Sink() {
+        @Override
+        public void onSnapshot(StreamingEventCoalescer.Snapshot snapshot) {
+            synchronized (snapshots) {
+                snapshots.add(snapshot);
+            }
+        }
+    });
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void snapshotsEveryInterval() {
+        // 25 fps of 1000 bytes, then 10 of 100 bytes, for 2 s
+        for (int frame = 0; frame <= 50; frame++) {
+            coalescer.onVideoFrame(1000, ms(frame * 40));
+            if (frame % 4 == 0) {
+                coalescer.onAudioFrame(100, ms(frame * 40 + 10));
+            }
+        }
+        assertEquals(2, snapshots.size());
+
+        // the first frame opens the interval, the one after it elapsed closes it, both counted
+        StreamingEventCoalescer.Snapshot first = snapshots.get(0);
+        assertEquals(1000, first.getDurationMillis());
+        assertEquals(26, first.getVideoFrames());
+        assertEquals(26, first.getVideoFps(), 0.001);
+        assertEquals(26 * 1000 * 8, first.getVideoBitrate(), 0.001);
+        assertEquals(7, first.getAudioFrames());
+        assertEquals(7 * 100 * 8, first.getAudioBitrate(), 0.001);
+
+        StreamingEventCoalescer.Snapshot second = snapshots.get(1);
+        assertEquals(1000, second.getDurationMillis());
+        assertEquals(25, second.getVideoFrames());
+        assertEquals(6, second.getAudioFrames());
+    }
+
+    @Test
+    public void snapshotsNothingWhileNoFrameIsSent() {
+        coalescer.setInterval(100);
+        coalescer.onVideoFrame(1000, ms(0));
+        coalescer.onVideoFrame(1000, ms(50));
+        assertTrue(snapshots.isEmpty());
+
+        // a pause: the frame after it closes a longer interval, rated over its whole length
+        coalescer.onVideoFrame(1000, ms(5000));
+        assertEquals(1, snapshots.size());
+        assertEquals(5000, snapshots.get(0).getDurationMillis());
+        assertEquals(3, snapshots.get(0).getVideoFrames());
+        assertEquals(3 / 5.0, snapshots.get(0).getVideoFps(), 0.001);
+
+        // a new connection starts over
+        coalescer.onVideoFrame(1000, ms(5010));
+        coalescer.reset();
+        coalescer.onVideoFrame(1000, ms(20000));
+        coalescer.onVideoFrame(1000, ms(20100));
+        assertEquals(2, snapshots.size());
+        assertEquals(100, snapshots.get(1).getDurationMillis());
+        assertEquals(2, snapshots.get(1).getVideoFrames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyInterval() {
+        coalescer.setInterval(0);
+    }
+
+    @Test
+    public void reportsTheChangesOfAStateOnly() {
+        StreamingEventCoalescer.Edge weak = new StreamingEventCoalescer.Edge();
+        assertFalse("not weak to start with", weak.set(false));
+        assertTrue(weak.set(true));
+        assertFalse("checked again for the next frames", weak.set(true));
+        assertFalse(weak.set(true));
+        assertTrue(weak.get());
+        assertTrue(weak.set(false));
+        assertFalse(weak.set(false));
+        assertFalse(weak.get());
+    }
+
+    @Test
+    public void reportsAChangeOnceWhateverTheThreads() throws InterruptedException {
+        final StreamingEventCoalescer.Edge edge = new StreamingEventCoalescer.Edge();
+        for (final boolean value : new boolean[] {true, false, true}) {
+            final AtomicInteger changes = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < 10000; i++) {
+                            if (edge.set(value)) {
+                                changes.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals("changes to " + value, 1, changes.get());
+        }
+    }
+
+    @Test
+    public void countsEveryFrameOfSeveralProducers() throws InterruptedException {
+        coalescer.setInterval(1);
+        final int threads = 4;
+        final int frames = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final boolean video = t % 2 == 0;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < frames; i++) {
+                        if (video) {
+                            coalescer.onVideoFrame(10, System.nanoTime());
+                        } else {
+                            coalescer.onAudioFrame(3, System.nanoTime());
+                        }
+                    }
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        // closes the last interval with what is left
+        coalescer.onVideoFrame(0, System.nanoTime() + ms(1000));
+
+        long videoFrames = 0;
+        long audioFrames = 0;
+        double videoBits = 0;
+        double audioBits = 0;
+        for (StreamingEventCoalescer.Snapshot snapshot : snapshots) {
+            assertTrue("closed before the interval elapsed", snapshot.getDurationMillis() >= 1);
+            videoFrames += snapshot.getVideoFrames();
+            audioFrames += snapshot.getAudioFrames();
+            // back from the rates to the bytes
+            videoBits += snapshot.getVideoBitrate() * snapshot.getDurationMillis() / 1000;
+            audioBits += snapshot.getAudioBitrate() * snapshot.getDurationMillis() / 1000;
+        }
+        assertTrue(snapshots.size() > 1);
+        assertEquals(threads / 2 * frames + 1, videoFrames);
+        assertEquals(threads / 2 * frames, audioFrames);
+        // the durations are truncated to the ms, the bytes come back within that
+        assertEquals(threads / 2 * frames * 10 * 8, videoBits, videoBits * 0.5);
+        assertEquals(threads / 2 * frames * 3 * 8, audioBits, audioBits * 0.5);
+    }
+}
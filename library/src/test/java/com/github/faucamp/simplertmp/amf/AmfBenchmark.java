@@ -0,0 +1,148 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Time and heap allocated per message for the same AMF0 commands encoded from an {@link AmfTemplate}
+ * and as an {@link AmfObject} tree, then decoded by {@link AmfReader} and by {@link AmfDecoder}.
+ * The allocation is only reported on JVMs which measure it per thread.
+ *
+ * Not a unit test, run it on its own: {@code java ... AmfBenchmark [messages]}
+ */
+public class AmfBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    private static final AmfTemplate CONNECT = new AmfTemplate.Builder()
+        .string("connect").numberParam()
+        .beginObject()
+        .key("app").stringParam()
+        .key("flashVer").string("LNX 11,2,202,233")
+        .key("swfUrl").stringParam()
+        .key("tcUrl").stringParam()
+        .key("fpad").bool(false)
+        .key("capabilities").number(239)
+        .key("audioCodecs").number(3575)
+        .key("videoCodecs").number(252)
+        .key("videoFunction").number(1)
+        .key("pageUrl").stringParam()
+        .key("objectEncoding").number(0)
+        .endObject()
+        .build();
+
+    /** A benchmarked operation, run once per message */
+    private interface Operation {
+        void run(int i) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        final AmfWriter writer = new AmfWriter();
+        final AmfTemplate.Values values = CONNECT.newValues();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] onStatus = onStatus();
+        final AmfReader reader = new AmfReader();
+
+        System.out.println("operation              ns/msg  bytes/msg (best of " + ROUNDS + ")");
+        run("encode template", messages, new Operation() {
+            @Override
+            public void run(int i) {
+                CONNECT.writeTo(writer.reset(), values.setNumber(0, i).setString(1, "live")
+                    .setString(2, "").setString(3, "rtmp://127.0.0.1:1935/live").setString(4, ""));
+            }
+        });
+        run("encode AmfObject", messages, new Operation() {
+            @Override
+            public void run(int i) throws IOException {
+                out.reset();
+                AmfString.writeStringTo(out, "connect", false);
+                AmfNumber.writeNumberTo(out, i);
+                AmfObject args = new AmfObject();
+                args.setProperty("app", "live");
+                args.setProperty("flashVer", "LNX 11,2,202,233");
+                args.setProperty("swfUrl", "");
+                args.setProperty("tcUrl", "rtmp://127.0.0.1:1935/live");
+                args.setProperty("fpad", false);
+                args.setProperty("capabilities", 239);
+                args.setProperty("audioCodecs", 3575);
+                args.setProperty("videoCodecs", 252);
+                args.setProperty("videoFunction", 1);
+                args.setProperty("pageUrl", "");
+                args.setProperty("objectEncoding", 0);
+                args.writeTo(out);
+            }
+        });
+        run("decode AmfReader", messages, new Operation() {
+            @Override
+            public void run(int i) throws IOException {
+                reader.reset(onStatus, 0, onStatus.length);
+                while (reader.hasRemaining()) {
+                    reader.readValue();
+                }
+            }
+        });
+        run("decode AmfDecoder", messages, new Operation() {
+            @Override
+            public void run(int i) throws IOException {
+                ByteArrayInputStream in = new ByteArrayInputStream(onStatus);
+                while (in.available() > 0) {
+                    AmfDecoder.readFrom(in);
+                }
+            }
+        });
+        // the command name and transaction id, the rest stepped over, as for the commands ignored
+        run("skip AmfReader", messages, new Operation() {
+            @Override
+            public void run(int i) throws IOException {
+                reader.reset(onStatus, 0, onStatus.length);
+                reader.readString();
+                reader.readNumber();
+                while (reader.hasRemaining()) {
+                    reader.skipValue();
+                }
+            }
+        });
+    }
+
+    /** onStatus(NetStream.Publish.Start), as SRS answers publish */
+    private static byte[] onStatus() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AmfString("onStatus").writeTo(out);
+        new AmfNumber(0).writeTo(out);
+        new AmfNull().writeTo(out);
+        AmfObject info = new AmfObject();
+        info.setProperty("level", "status");
+        info.setProperty("code", "NetStream.Publish.Start");
+        info.setProperty("description", "Started publishing stream.");
+        info.setProperty("clientid", "ASAICiss");
+        info.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void run(String name, int messages, Operation operation) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytesBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                operation.run(i);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            if (allocations != null) {
+                bestBytes = Math.min(bestBytes, allocations.getThreadAllocatedBytes(threadId) - bytesBefore);
+            }
+        }
+        System.out.printf("%-20s %8.1f  %9s%n", name, (double) bestNanos / messages,
+            allocations != null ? String.valueOf(bestBytes / messages) : "-");
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.faucamp.simplertmp.amf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commands encoded from templates, against the same commands built as {@link AmfData} trees.
+ */
+public class AmfTemplateTest {
+
+    private static final AmfTemplate CONNECT = new AmfTemplate.Builder()
+        .string("connect").numberParam()
+        .beginObject()
+        .key("app").stringParam()
+        .key("flashVer").string("LNX 11,2,202,233")
+        .key("tcUrl").stringParam()
+        .key("fpad").bool(false)
+        .key("audioCodecs").number(3575)
+        .key("objectEncoding").number(0)
+        .endObject()
+        .build();
+
+    private static final AmfTemplate ON_METADATA = new AmfTemplate.Builder()
+        .string("@setDataFrame").string("onMetaData")
+        .beginEcmaArray(3)
+        .key("width").numberParam()
+        .key("height").numberParam()
+        .key("stereo").booleanParam()
+        .endObject()
+        .build();
+
+    private static byte[] encode(AmfData... values) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (AmfData value : values) {
+            value.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(AmfTemplate template, AmfTemplate.Values values) {
+        AmfWriter writer = new AmfWriter(16);
+        template.writeTo(writer, values);
+        return Arrays.copyOf(writer.array(), writer.size());
+    }
+
+    private static AmfObject connectObject(String app, String tcUrl) {
+        AmfObject object = new AmfObject();
+        object.setProperty("app", app);
+        object.setProperty("flashVer", "LNX 11,2,202,233");
+        object.setProperty("tcUrl", tcUrl);
+        object.setProperty("fpad", false);
+        object.setProperty("audioCodecs", 3575);
+        object.setProperty("objectEncoding", 0);
+        return object;
+    }
+
+    @Test
+    public void matchesTheTreeEncoding() throws IOException {
+        AmfTemplate.Values values = CONNECT.newValues();
+        assertEquals(3, CONNECT.getParamCount());
+        // values are reused from one message to the next
+        for (int i = 1; i <= 3; i++) {
+            String tcUrl = "rtmp://127.0.0.1:1935/live" + i;
+            byte[] expected = encode(new AmfString("connect"), new AmfNumber(i), connectObject("live" + i, tcUrl));
+            byte[] actual = encode(CONNECT, values.setNumber(0, i).setString(1, "live" + i).setString(2, tcUrl));
+            assertArrayEquals(expected, actual);
+        }
+
+        AmfMap metadata = new AmfMap();
+        metadata.setProperty("width", 1280);
+        metadata.setProperty("height", 720);
+        metadata.setProperty("stereo", true);
+        assertArrayEquals(encode(new AmfString("@setDataFrame"), new AmfString("onMetaData"), metadata),
+            encode(ON_METADATA, ON_METADATA.newValues().setNumber(0, 1280).setNumber(1, 720).setBoolean(2, true)));
+    }
+
+    @Test
+    public void nullStringsAreAmfNull() throws IOException {
+        AmfTemplate template = new AmfTemplate.Builder().string("play").stringParam().build();
+        assertArrayEquals(encode(new AmfString("play"), new AmfNull()),
+            encode(template, template.newValues().setString(0, null)));
+    }
+
+    @Test
+    public void readsBackWhatItWrote() throws IOException {
+        byte[] connect = encode(CONNECT, CONNECT.newValues().setNumber(0, 1).setString(1, "live")
+            .setString(2, "rtmp://host/live"));
+        AmfReader reader = new AmfReader().reset(connect, 0, connect.length);
+        assertEquals("connect", reader.readString());
+        assertEquals(1, reader.readNumber(), 0);
+        AmfObject object = (AmfObject) reader.readValue();
+        assertFalse(reader.hasRemaining());
+        assertEquals("live", ((AmfString) object.getProperty("app")).getValue());
+        assertEquals("rtmp://host/live", ((AmfString) object.getProperty("tcUrl")).getValue());
+        assertFalse(((AmfBoolean) object.getProperty("fpad")).isValue());
+        assertEquals(3575, ((AmfNumber) object.getProperty("audioCodecs")).getValue(), 0);
+
+        // the tree decoder reads it the same
+        ByteArrayInputStream in = new ByteArrayInputStream(connect);
+        assertEquals("connect", ((AmfString) AmfDecoder.readFrom(in)).getValue());
+        assertEquals(1, ((AmfNumber) AmfDecoder.readFrom(in)).getValue(), 0);
+        AmfObject decoded = (AmfObject) AmfDecoder.readFrom(in);
+        assertEquals("live", ((AmfString) decoded.getProperty("app")).getValue());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void skipsEveryType() throws IOException {
+        AmfWriter writer = new AmfWriter(16);
+        ON_METADATA.writeTo(writer, ON_METADATA.newValues().setNumber(0, 640).setNumber(1, 480).setBoolean(2, false));
+        writer.beginObject().writeKey("nested").beginObject().writeKey("a").writeNumber(1).endObject()
+            .writeKey("s").writeString("x").writeKey("u").writeUndefined().endObject();
+        writer.writeNull();
+        writer.writeString("last");
+
+        AmfReader reader = new AmfReader().reset(writer.array(), 0, writer.size());
+        assertEquals(AmfType.STRING, reader.peekType());
+        reader.skipValue();
+        reader.skipValue();
+        assertEquals(AmfType.MAP, reader.peekType());
+        reader.skipValue();
+        assertEquals(AmfType.OBJECT, reader.peekType());
+        reader.skipValue();
+        assertEquals(AmfType.NULL, reader.peekType());
+        reader.skipValue();
+        assertEquals("last", reader.readString());
+        assertFalse(reader.hasRemaining());
+
+        // and reads the map as a tree
+        reader.reset(writer.array(), 0, writer.size());
+        reader.skipValue();
+        reader.skipValue();
+        AmfData metadata = reader.readValue();
+        assertTrue(metadata instanceof AmfMap);
+        assertEquals(480, ((AmfNumber) ((AmfMap) metadata).getProperty("height")).getValue(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAValueOfTheWrongType() {
+        CONNECT.newValues().setString(0, "1");
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Payloads written over a loopback connection: borrowed ones are written on commit, lent ones stay
+ * pending until the next flush, their owner retained meanwhile.
+ */
+public class ChannelOutputStreamTest {
+
+    private static final int PAYLOAD_SIZE = 1000;
+
+    /** Counts the references the stream takes and gives back */
+    private static class Owner implements RtmpPublisher.BufferOwner {
+        int retained;
+        int released;
+
+        @Override
+        public void retain() {
+            retained++;
+        }
+
+        @Override
+        public void release() {
+            released++;
+        }
+    }
+
+    private ServerSocketChannel server;
+    private SocketChannel channel;
+    private Socket peer;
+    private ChannelOutputStream out;
+
+    @Before
+    public void connect() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        peer = server.accept().socket();
+        peer.setSoTimeout(5000);
+        out = new ChannelOutputStream(channel);
+    }
+
+    @After
+    public void close() throws IOException {
+        channel.close();
+        peer.close();
+        server.close();
+    }
+
+    private static byte[] payload(int seed) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private byte[] read(int length) throws IOException {
+        byte[] received = new byte[length];
+        InputStream in = peer.getInputStream();
+        for (int n = 0; n < length; ) {
+            int read = in.read(received, n, length - n);
+            assertTrue("connection closed", read > 0);
+            n += read;
+        }
+        return received;
+    }
+
+    @Test
+    public void writesABorrowedPayloadOnCommit() throws IOException {
+        byte[] payload = payload(1);
+        out.write(7);
+        out.write(payload, 0, payload.length);
+        assertTrue(out.isBorrowing());
+
+        out.commit(null);
+        assertFalse(out.isBorrowing());
+        assertEquals(0, out.pendingLength());
+        // the caller reuses its array right away
+        Arrays.fill(payload, (byte) 0);
+        byte[] received = read(1 + PAYLOAD_SIZE);
+        assertEquals(7, received[0]);
+        assertArrayEquals(payload(1), Arrays.copyOfRange(received, 1, received.length));
+    }
+
+    @Test
+    public void keepsLentPayloadsUntilFlushed() throws IOException {
+        Owner first = new Owner();
+        Owner second = new Owner();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Owner owner : new Owner[] {first, second}) {
+            byte[] payload = payload(owner == first ? 1 : 2);
+            out.write(owner == first ? 1 : 2);
+            out.write(payload, 0, payload.length);
+            out.commit(owner);
+            expected.write(owner == first ? 1 : 2);
+            expected.write(payload, 0, payload.length);
+        }
+        assertFalse(out.isBorrowing());
+        assertEquals(2 * (1 + PAYLOAD_SIZE), out.pendingLength());
+        assertEquals(1, first.retained);
+        assertEquals(1, second.retained);
+        assertEquals(0, first.released + second.released);
+        assertEquals(0, peer.getInputStream().available());
+
+        out.flush();
+        assertEquals(1, first.released);
+        assertEquals(1, second.released);
+        assertArrayEquals(expected.toByteArray(), read(expected.size()));
+        // nothing released twice
+        out.flush();
+        out.discard();
+        assertEquals(1, first.released);
+        assertEquals(1, second.released);
+    }
+
+    @Test
+    public void releasesLentPayloadsDiscarded() throws IOException {
+        Owner owner = new Owner();
+        byte[] payload = payload(3);
+        out.write(payload, 0, payload.length);
+        out.commit(owner);
+        // nothing but copied bytes, so not lent
+        Owner unused = new Owner();
+        out.write(new byte[10], 0, 10);
+        out.commit(unused);
+        assertEquals(0, unused.retained);
+
+        channel.close();
+        out.discard();
+        assertEquals(1, owner.retained);
+        assertEquals(1, owner.released);
+        out.discard();
+        assertEquals(1, owner.released);
+    }
+}
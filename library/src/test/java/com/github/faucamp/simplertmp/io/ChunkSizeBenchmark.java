@@ -0,0 +1,66 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Bytes on the wire and CPU time of the publishing thread for the same stream sent in chunks of 128,
+ * 4096 and 65536 bytes, to the in-process {@link RtmpIngestServer} over the loopback interface.
+ *
+ * Not a unit test, run it on its own: {@code java ... ChunkSizeBenchmark [frames]}
+ */
+public class ChunkSizeBenchmark {
+
+    private static final int[] CHUNK_SIZES = {
+        RtmpConnection.MIN_CHUNK_SIZE, RtmpConnection.DEFAULT_CHUNK_SIZE, RtmpConnection.MAX_CHUNK_SIZE
+    };
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[] keyFrame = new byte[60000];
+        byte[] frame = new byte[6000];
+        keyFrame[0] = 0x17;
+        frame[0] = 0x27;
+        long payload = 0;
+        for (int i = 0; i < frames; i++) {
+            payload += i % 30 == 0 ? keyFrame.length : frame.length;
+        }
+
+        System.out.println("chunk size  wire bytes  overhead  cpu ms (best of " + ROUNDS + ")");
+        for (int chunkSize : CHUNK_SIZES) {
+            long bestCpu = Long.MAX_VALUE;
+            long wire = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                RtmpIngestServer server = new RtmpIngestServer();
+                server.start();
+                RtmpConnection connection = new RtmpConnection(new RecordingRtmpHandler());
+                connection.setChunkSize(chunkSize);
+                if (!connection.connect(server.getUrl("live", "bench")) || !connection.publish("live")) {
+                    throw new IllegalStateException("Could not publish");
+                }
+                server.awaitMessages(RtmpHeader.MessageType.DATA_AMF0, 1, 5000);
+                long bytesBefore = server.getBytesReceived();
+
+                long cpuBefore = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < frames; i++) {
+                    byte[] data = i % 30 == 0 ? keyFrame : frame;
+                    connection.publishVideoData(data, data.length, i * 33);
+                }
+                connection.flush();
+                bestCpu = Math.min(bestCpu, threads.getCurrentThreadCpuTime() - cpuBefore);
+
+                server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames, 30000);
+                wire = server.getBytesReceived() - bytesBefore;
+                connection.close();
+                server.stop();
+            }
+            System.out.printf("%10d  %10d  %7.3f%%  %6.1f%n", chunkSize, wire, 100.0 * (wire - payload) / payload,
+                bestCpu / 1e6);
+        }
+    }
+}
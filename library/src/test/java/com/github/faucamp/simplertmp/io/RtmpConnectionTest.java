@@ -0,0 +1,358 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.BackgroundThreadsRule;
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes to the in-process {@link RtmpIngestServer} over every transport.
+ */
+@RunWith(Parameterized.class)
+public class RtmpConnectionTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> transports() {
+        List<Object[]> types = new ArrayList<>();
+        for (RtmpTransport.Type type : RtmpTransport.Type.values()) {
+            types.add(new Object[] {type});
+        }
+        return types;
+    }
+
+    @Rule
+    public final BackgroundThreadsRule backgroundThreads = new BackgroundThreadsRule();
+
+    private final RtmpTransport.Type transportType;
+    private RtmpIngestServer server;
+    private RecordingRtmpHandler handler;
+    private RtmpConnection connection;
+
+    public RtmpConnectionTest(RtmpTransport.Type transportType) {
+        this.transportType = transportType;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtmpIngestServer();
+        server.start();
+        handler = new RecordingRtmpHandler();
+        connection = newConnection();
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+        server.stop();
+    }
+
+    private RtmpConnection newConnection() {
+        RtmpConnection c = new RtmpConnection(handler);
+        c.setTransportType(transportType);
+        return c;
+    }
+
+    /** FLV video tag body of an AVC NALU, the payload carries its own index */
+    private static byte[] videoTag(int index, int size) {
+        byte[] tag = new byte[size];
+        tag[0] = (byte) (index % 48 == 0 ? 0x17 : 0x27);
+        tag[1] = 1;
+        for (int i = 5; i < size; i++) {
+            tag[i] = (byte) (index * 31 + i);
+        }
+        return tag;
+    }
+
+    private static byte[] audioTag(int index) {
+        byte[] tag = new byte[200];
+        tag[0] = (byte) 0xaf;
+        tag[1] = 1;
+        Arrays.fill(tag, 2, tag.length, (byte) index);
+        return tag;
+    }
+
+    @Test
+    public void publishesEveryFrame() throws InterruptedException {
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+        assertTrue(connection.publish("live"));
+        assertTrue(handler.isConnected());
+
+        int frames = 100;
+        for (int i = 0; i < frames; i++) {
+            // key frames span many chunks, the others a few
+            byte[] video = videoTag(i, i % 48 == 0 ? 30000 : 700 + i);
+            connection.publishVideoData(video, video.length, i * 40);
+            byte[] audio = audioTag(i);
+            connection.publishAudioData(audio, audio.length, i * 40 + 10);
+        }
+        connection.flush();
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames, 5000));
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.AUDIO, frames, 5000));
+
+        List<String> commands = new ArrayList<>();
+        int video = 0;
+        int audio = 0;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getCommandName() != null) {
+                commands.add(message.getCommandName());
+            } else if (message.getType() == RtmpHeader.MessageType.VIDEO) {
+                assertEquals(video * 40, message.getTimestamp());
+                byte[] expected = videoTag(video, video % 48 == 0 ? 30000 : 700 + video);
+                assertArrayEquals("video " + video, expected, message.getData());
+                assertEquals(1, message.getMessageStreamId());
+                video++;
+            } else if (message.getType() == RtmpHeader.MessageType.AUDIO) {
+                assertEquals(audio * 40 + 10, message.getTimestamp());
+                assertArrayEquals("audio " + audio, audioTag(audio), message.getData());
+                audio++;
+            }
+        }
+        assertEquals(frames, video);
+        assertEquals(frames, audio);
+        assertEquals("connect", commands.get(0));
+        assertTrue(commands.contains("createStream"));
+        assertTrue(commands.contains("publish"));
+        assertTrue(handler.getExceptions().toString(), handler.getExceptions().isEmpty());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    private static int int24(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 16) | ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+    }
+
+    @Test
+    public void aggregatesSmallFramesWithinTheBudget() throws InterruptedException {
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+        assertTrue(connection.publish("live"));
+        int budget = 100;
+        connection.setAggregation(budget);
+
+        // in real time, flushed every 10 ms as a sender with nothing queued does
+        int frames = 25;
+        long[] publishedNanos = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            publishedNanos[i] = System.nanoTime();
+            byte[] video = videoTag(i, 700 + i);
+            connection.publishVideoData(video, video.length, i * 40);
+            byte[] audio = audioTag(i);
+            connection.publishAudioData(audio, audio.length, i * 40 + 10);
+            for (int j = 0; j < 4; j++) {
+                Thread.sleep(10);
+                connection.flush();
+            }
+        }
+        // the last tags go out once the budget elapsed, at the next flush
+        for (int j = 0; j < budget / 10; j++) {
+            Thread.sleep(10);
+            connection.flush();
+        }
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames, 5000));
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.AUDIO, frames, 5000));
+
+        int aggregates = 0;
+        int tags = 0;
+        int video = 0;
+        int audio = 0;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getType() == RtmpHeader.MessageType.AGGREGATE_MESSAGE) {
+                byte[] data = message.getData();
+                int pos = 0;
+                int first = -1;
+                while (pos < data.length) {
+                    int size = int24(data, pos + 1);
+                    int timestamp = int24(data, pos + 4) | ((data[pos + 7] & 0xff) << 24);
+                    if (first < 0) {
+                        first = timestamp;
+                        assertEquals("the message is stamped with its first tag", message.getTimestamp(), first);
+                    }
+                    assertTrue("tag at " + timestamp + " waited for a tag past the budget", timestamp - first <= budget);
+                    int backPointer = ((data[pos + 11 + size] & 0xff) << 24) | int24(data, pos + 12 + size);
+                    assertEquals("previous tag size", 11 + size, backPointer);
+                    pos += 15 + size;
+                    tags++;
+                }
+                assertEquals("no trailing bytes", data.length, pos);
+                long waited = TimeUnit.NANOSECONDS.toMillis(message.getReceivedNanos() - publishedNanos[first / 40]);
+                assertTrue("first tag waited " + waited + " ms", waited <= budget + 10 + 40);
+                aggregates++;
+            } else if (message.getType() == RtmpHeader.MessageType.VIDEO) {
+                // the messages carried, as split by the server, at their own timestamps
+                assertEquals(video * 40, message.getTimestamp());
+                assertArrayEquals("video " + video, videoTag(video, 700 + video), message.getData());
+                video++;
+            } else if (message.getType() == RtmpHeader.MessageType.AUDIO) {
+                assertEquals(audio * 40 + 10, message.getTimestamp());
+                assertArrayEquals("audio " + audio, audioTag(audio), message.getData());
+                audio++;
+            }
+        }
+        assertEquals(frames, video);
+        assertEquals(frames, audio);
+        assertEquals("every frame aggregated", 2 * frames, tags);
+        assertTrue(aggregates + " aggregates", aggregates > 1 && aggregates < frames);
+        assertTrue(handler.getExceptions().toString(), handler.getExceptions().isEmpty());
+    }
+
+    @Test
+    public void announcesTheChunkSizeBeforePublishing() throws InterruptedException {
+        int frames = 10;
+        int frameSize = 30000;
+        for (int chunkSize : new int[] {RtmpConnection.MIN_CHUNK_SIZE, RtmpConnection.DEFAULT_CHUNK_SIZE,
+            RtmpConnection.MAX_CHUNK_SIZE}) {
+            connection.close();
+            handler = new RecordingRtmpHandler();
+            connection = newConnection();
+            connection.setChunkSize(chunkSize);
+            server.clearMessages();
+            assertTrue(connection.connect(server.getUrl("live", "test")));
+            assertTrue(connection.publish("live"));
+            // the metadata is the last message before the media
+            assertTrue(server.awaitMessages(RtmpHeader.MessageType.DATA_AMF0, 1, 5000));
+            for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+                if ("connect".equals(message.getCommandName())) {
+                    assertEquals("connect goes before the chunk size", RtmpConnection.MIN_CHUNK_SIZE, message.getChunkSize());
+                } else if ("publish".equals(message.getCommandName())) {
+                    assertEquals("chunk size of publish", chunkSize, message.getChunkSize());
+                }
+            }
+
+            long bytesBefore = server.getBytesReceived();
+            for (int i = 0; i < frames; i++) {
+                byte[] video = videoTag(0, frameSize);
+                connection.publishVideoData(video, video.length, i * 40);
+            }
+            connection.flush();
+            assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames, 5000));
+            for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+                if (message.getType() == RtmpHeader.MessageType.VIDEO) {
+                    assertEquals(chunkSize, message.getChunkSize());
+                    assertArrayEquals(videoTag(0, frameSize), message.getData());
+                }
+            }
+            // a header of 1 to 12 bytes for the message, then one of a byte for every other chunk
+            long overhead = server.getBytesReceived() - bytesBefore - frames * frameSize;
+            int continuations = (frameSize - 1) / chunkSize;
+            String sizes = "overhead " + overhead + " with chunks of " + chunkSize;
+            assertTrue(sizes, overhead >= frames * (continuations + 1));
+            assertTrue(sizes, overhead <= frames * (continuations + 12));
+            assertTrue(handler.getExceptions().toString(), handler.getExceptions().isEmpty());
+        }
+    }
+
+    @Test
+    public void sendsAudioBetweenTheChunksOfAKeyFrame() throws InterruptedException {
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+        assertTrue(connection.publish("live"));
+        // 500 KB/s, a 200 KB key frame takes 400 ms to go out
+        connection.setPacing(1, RtmpConnection.DEFAULT_CHUNK_SIZE);
+        connection.setPacingTargetBitrate(4000 * 1000);
+        final int audioMillis = 23;
+        final long start = System.nanoTime();
+        final int[] nextAudio = {0};
+        // the audio encoder, a frame ready every 23 ms
+        connection.setAudioSource(new RtmpPublisher.AudioSource() {
+            @Override
+            public int peekAudioDts() {
+                int dts = nextAudio[0] * audioMillis;
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= dts ? dts : -1;
+            }
+
+            @Override
+            public void publishAudio() {
+                byte[] audio = audioTag(nextAudio[0]);
+                connection.publishAudioData(audio, audio.length, nextAudio[0]++ * audioMillis);
+            }
+        });
+
+        byte[] keyFrame = videoTag(0, 200 * 1000);
+        connection.publishVideoData(keyFrame, keyFrame.length, 0);
+        connection.flush();
+        int sentMeanwhile = nextAudio[0];
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, 1, 5000));
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.AUDIO, sentMeanwhile, 5000));
+        assertTrue("audio sent while the key frame went out: " + sentMeanwhile, sentMeanwhile >= 5);
+
+        int audio = 0;
+        boolean videoReceived = false;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getType() == RtmpHeader.MessageType.VIDEO) {
+                assertArrayEquals(keyFrame, message.getData());
+                videoReceived = true;
+            } else if (message.getType() == RtmpHeader.MessageType.AUDIO) {
+                assertFalse("audio " + audio + " waited for the key frame", videoReceived);
+                assertEquals(audio * audioMillis, message.getTimestamp());
+                assertArrayEquals(audioTag(audio), message.getData());
+                audio++;
+            }
+        }
+        assertEquals(sentMeanwhile, audio);
+        assertTrue(handler.getExceptions().toString(), handler.getExceptions().isEmpty());
+    }
+
+    @Test
+    public void reportsALostConnection() throws InterruptedException {
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+        assertTrue(connection.publish("live"));
+        byte[] video = videoTag(0, 30000);
+        connection.publishVideoData(video, video.length, 0);
+        connection.flush();
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, 1, 5000));
+
+        server.dropConnections();
+        // the rx side notices at once; sending notices at the latest on the next writes
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (int i = 1; connection.isPublishing() && System.nanoTime() < deadline; i++) {
+            connection.publishVideoData(video, video.length, i * 40);
+            Thread.sleep(10);
+        }
+        // a clean close is no error to report, a reset is
+        assertFalse("still publishing after the connection dropped", connection.isPublishing());
+
+        // a new connection publishes again, the way the muxer reconnects
+        connection.close();
+        connection = newConnection();
+        server.clearMessages();
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+        assertTrue(connection.publish("live"));
+        connection.publishVideoData(video, video.length, 1000);
+        connection.flush();
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, 1, 5000));
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void failsToConnectToARefusedPort() throws IOException {
+        // a port nobody listens on anymore
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = closed.getLocalPort();
+        closed.close();
+        assertFalse(connection.connect("rtmp://127.0.0.1:" + port + "/live/test"));
+        assertFalse(connection.isPublishing());
+        // and connects once the server is up
+        connection.close();
+        connection = newConnection();
+        assertTrue(connection.connect(server.getUrl("live", "test")));
+    }
+}
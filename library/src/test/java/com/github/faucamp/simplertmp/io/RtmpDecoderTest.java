@@ -0,0 +1,256 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Raw chunks, as a server sends them, fed to {@link RtmpDecoder} one at a time the way the event loop
+ * does: each chunk is first measured by {@link RtmpDecoder#peekChunkLength(byte[], int, int)}, then
+ * read by {@link RtmpDecoder#readPacket(java.io.InputStream)}, which must consume exactly that many
+ * bytes.
+ */
+public class RtmpDecoderTest {
+
+    private static final int VIDEO_CSID = ChunkStreamInfo.RTMP_CID_VIDEO;
+    private static final int AUDIO_CSID = ChunkStreamInfo.RTMP_CID_AUDIO;
+    private static final int MESSAGE_STREAM_ID = 1;
+
+    /** A received message, copied since the decoder reuses its audio and video packets */
+    private static class Message {
+        final RtmpHeader.MessageType type;
+        final int timestamp;
+        final byte[] data;
+
+        Message(RtmpPacket packet) {
+            type = packet.getHeader().getMessageType();
+            timestamp = packet.getHeader().getAbsoluteTimestamp();
+            data = packet instanceof ContentData
+                ? Arrays.copyOf(((ContentData) packet).array(), ((ContentData) packet).size()) : null;
+        }
+    }
+
+    /** Chunks written byte by byte, their headers as laid out in the RTMP specification */
+    private static class Chunks {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Integer> boundaries = new ArrayList<>();
+
+        Chunks type0(int csid, int timestamp, int length, RtmpHeader.MessageType type, int streamId) {
+            out.write(csid);
+            int24(Math.min(timestamp, 0xffffff));
+            int24(length);
+            out.write(type.getValue());
+            // message stream id, little endian
+            out.write(streamId);
+            out.write(streamId >>> 8);
+            out.write(streamId >>> 16);
+            out.write(streamId >>> 24);
+            if (timestamp >= 0xffffff) {
+                int32(timestamp);
+            }
+            return this;
+        }
+
+        Chunks type1(int csid, int delta, int length, RtmpHeader.MessageType type) {
+            out.write(0x40 | csid);
+            int24(delta);
+            int24(length);
+            out.write(type.getValue());
+            return this;
+        }
+
+        Chunks type3(int csid) {
+            out.write(0xc0 | csid);
+            return this;
+        }
+
+        Chunks extendedTimestamp(int timestamp) {
+            int32(timestamp);
+            return this;
+        }
+
+        /** Ends the chunk with these bytes of its message */
+        Chunks payload(byte[] message, int offset, int length) {
+            out.write(message, offset, length);
+            boundaries.add(out.size());
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void int24(int value) {
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        private void int32(int value) {
+            out.write(value >>> 24);
+            int24(value);
+        }
+    }
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (seed * 31 + i);
+        }
+        return message;
+    }
+
+    /** Feeds the chunks one at a time, checking each is measured as long as it is read */
+    private static List<Message> decode(RtmpDecoder decoder, Chunks chunks) throws IOException {
+        byte[] bytes = chunks.toByteArray();
+        List<Message> messages = new ArrayList<>();
+        int offset = 0;
+        for (int boundary : chunks.boundaries) {
+            assertEquals("chunk length at " + offset, boundary - offset,
+                decoder.peekChunkLength(bytes, offset, bytes.length - offset));
+            ByteArrayInputStream in = new ByteArrayInputStream(bytes, offset, boundary - offset);
+            RtmpPacket packet = decoder.readPacket(in);
+            assertEquals("bytes left in the chunk at " + offset, 0, in.available());
+            if (packet != null) {
+                messages.add(new Message(packet));
+            }
+            offset = boundary;
+        }
+        assertEquals(bytes.length, offset);
+        return messages;
+    }
+
+    @Test
+    public void reassemblesTwoInterleavedChunkStreams() throws IOException {
+        RtmpDecoder decoder = new RtmpDecoder(new RtmpSessionInfo());
+        byte[] video = message(300, 1);
+        byte[] audio = message(200, 2);
+        Chunks chunks = new Chunks()
+            .type0(VIDEO_CSID, 40, video.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(video, 0, 128)
+            .type0(AUDIO_CSID, 45, audio.length, RtmpHeader.MessageType.AUDIO, MESSAGE_STREAM_ID).payload(audio, 0, 128)
+            .type3(VIDEO_CSID).payload(video, 128, 128)
+            .type3(AUDIO_CSID).payload(audio, 128, 72)
+            .type3(VIDEO_CSID).payload(video, 256, 44);
+
+        List<Message> messages = decode(decoder, chunks);
+        assertEquals(2, messages.size());
+        assertEquals(RtmpHeader.MessageType.AUDIO, messages.get(0).type);
+        assertEquals(45, messages.get(0).timestamp);
+        assertArrayEquals(audio, messages.get(0).data);
+        assertEquals(RtmpHeader.MessageType.VIDEO, messages.get(1).type);
+        assertEquals(40, messages.get(1).timestamp);
+        assertArrayEquals(video, messages.get(1).data);
+    }
+
+    @Test
+    public void continuationsKeepTheTimestampOfTheirMessage() throws IOException {
+        RtmpDecoder decoder = new RtmpDecoder(new RtmpSessionInfo());
+        byte[] first = message(200, 1);
+        byte[] second = message(300, 2);
+        byte[] third = message(300, 3);
+        Chunks chunks = new Chunks()
+            .type0(VIDEO_CSID, 1000, first.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(first, 0, 128)
+            .type3(VIDEO_CSID).payload(first, 128, 72)
+            .type1(VIDEO_CSID, 40, second.length, RtmpHeader.MessageType.VIDEO).payload(second, 0, 128)
+            .type3(VIDEO_CSID).payload(second, 128, 128)
+            .type3(VIDEO_CSID).payload(second, 256, 44)
+            // a type 3 chunk starting a message repeats the previous delta
+            .type3(VIDEO_CSID).payload(third, 0, 128)
+            .type3(VIDEO_CSID).payload(third, 128, 128)
+            .type3(VIDEO_CSID).payload(third, 256, 44);
+
+        List<Message> messages = decode(decoder, chunks);
+        assertEquals(3, messages.size());
+        assertEquals(1000, messages.get(0).timestamp);
+        assertEquals(1040, messages.get(1).timestamp);
+        assertEquals(1080, messages.get(2).timestamp);
+        assertArrayEquals(first, messages.get(0).data);
+        assertArrayEquals(second, messages.get(1).data);
+        assertArrayEquals(third, messages.get(2).data);
+    }
+
+    @Test
+    public void readsTheExtendedTimestampOfType3Chunks() throws IOException {
+        RtmpDecoder decoder = new RtmpDecoder(new RtmpSessionInfo());
+        // past 4h39m, the 24 bits timestamp field is saturated
+        int timestamp = 0x1000000 + 40;
+        byte[] video = message(300, 1);
+        Chunks chunks = new Chunks()
+            .type0(VIDEO_CSID, timestamp, video.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(video, 0, 128)
+            .type3(VIDEO_CSID).extendedTimestamp(timestamp).payload(video, 128, 128)
+            .type3(VIDEO_CSID).extendedTimestamp(timestamp).payload(video, 256, 44);
+
+        List<Message> messages = decode(decoder, chunks);
+        assertEquals(1, messages.size());
+        assertEquals(timestamp, messages.get(0).timestamp);
+        assertArrayEquals(video, messages.get(0).data);
+    }
+
+    @Test
+    public void appliesASetChunkSizeToTheFollowingChunks() throws IOException {
+        RtmpSessionInfo sessionInfo = new RtmpSessionInfo();
+        RtmpDecoder decoder = new RtmpDecoder(sessionInfo);
+        byte[] before = message(200, 1);
+        byte[] after = message(3000, 2);
+        byte[] audio = message(200, 3);
+        byte[] setChunkSize = {0, 0, 0x10, 0};
+        Chunks chunks = new Chunks()
+            .type0(VIDEO_CSID, 0, before.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(before, 0, 128)
+            .type0(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL, 0, setChunkSize.length,
+                RtmpHeader.MessageType.SET_CHUNK_SIZE, 0).payload(setChunkSize, 0, setChunkSize.length)
+            // the rest of a message started before goes on in chunks of the new size
+            .type3(VIDEO_CSID).payload(before, 128, 72)
+            .type0(VIDEO_CSID, 40, after.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(after, 0, 3000)
+            .type0(AUDIO_CSID, 45, audio.length, RtmpHeader.MessageType.AUDIO, MESSAGE_STREAM_ID).payload(audio, 0, 200);
+
+        List<Message> messages = decode(decoder, chunks);
+        assertEquals(4096, sessionInfo.getRxChunkSize());
+        assertEquals(3, messages.size());
+        assertArrayEquals(before, messages.get(0).data);
+        assertArrayEquals(after, messages.get(1).data);
+        assertEquals(40, messages.get(1).timestamp);
+        assertArrayEquals(audio, messages.get(2).data);
+    }
+
+    @Test
+    public void measuresNoChunkUntilItIsComplete() throws IOException {
+        RtmpDecoder decoder = new RtmpDecoder(new RtmpSessionInfo());
+        int timestamp = 0x1000000;
+        byte[] video = message(300, 1);
+        Chunks chunks = new Chunks()
+            .type0(VIDEO_CSID, timestamp, video.length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID).payload(video, 0, 128)
+            .type3(VIDEO_CSID).extendedTimestamp(timestamp).payload(video, 128, 128)
+            .type1(AUDIO_CSID, 10, 1, RtmpHeader.MessageType.AUDIO).payload(new byte[] {(byte) 0xaf}, 0, 1);
+        byte[] bytes = chunks.toByteArray();
+
+        try {
+            decoder.peekChunkLength(new byte[] {(byte) (0xc0 | VIDEO_CSID)}, 0, 1);
+            fail("type 3 chunk measured without a previous header");
+        } catch (IOException e) {
+            // expected
+        }
+        int offset = 0;
+        for (int boundary : chunks.boundaries) {
+            // every prefix, down to an empty one, including the header cut before its extended timestamp
+            for (int len = 0; len < boundary - offset; len++) {
+                assertEquals("prefix of " + len + " at " + offset, -1, decoder.peekChunkLength(bytes, offset, len));
+            }
+            assertEquals(boundary - offset, decoder.peekChunkLength(bytes, offset, boundary - offset));
+            decoder.readPacket(new ByteArrayInputStream(bytes, offset, boundary - offset));
+            offset = boundary;
+        }
+    }
+}
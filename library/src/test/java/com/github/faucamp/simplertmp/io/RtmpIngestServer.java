@@ -0,0 +1,836 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.amf.AmfUndefined;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.Video;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal RTMP ingest server running in-process, to run the publisher against in integration tests and
+ * benchmarks without a media server.
+ *
+ * It listens on the loopback interface, answers connect, createStream and publish the way SRS does,
+ * acknowledges every window the client asks for and answers its pings. Each message received is
+ * recorded with its RTMP timestamp and its arrival time. The link to the clients can be throttled to a
+ * bandwidth and delayed by a latency in both directions, to reproduce a mobile uplink; both settings
+ * can be changed while streaming.
+ *
+ * Streams published can be played by other connections, from their sequence headers and next key
+ * frame on, to exercise {@link RtmpPlayConnection}. The bandwidth only applies to what is received.
+ *
+ * It is built on the packet classes of the client, and understands what they do: AMF0 commands, the
+ * handshake without digest. SetChunkSize is applied by the decoder and not recorded, each message is
+ * recorded with the chunk size it was received in instead. Aggregate messages are recorded, then each
+ * audio/video message they carry as if it was received on its own. They are relayed that way too, or
+ * passed through as they came, as some servers do.
+ */
+public class RtmpIngestServer {
+
+    private static final String TAG = "RtmpIngestServer";
+
+    /** Acknowledgement window and peer bandwidth sent on connect by default, the values of SRS */
+    private static final int PEER_BANDWIDTH = 2500000;
+    /** Socket receive buffer, kept small so that the sender feels the throttling rather than the buffer */
+    private static final int RECEIVE_BUFFER_SIZE = 16 * 1024;
+    /** Bytes read from the socket at once */
+    private static final int LINK_READ_SIZE = 4096;
+
+    /** A message received from a client */
+    public static final class ReceivedMessage {
+        private final int connection;
+        private final RtmpHeader.MessageType type;
+        private final int messageStreamId;
+        private final int timestamp;
+        private final int size;
+        private final int chunkSize;
+        private final long receivedNanos;
+        private final byte[] data;
+        private final RtmpPacket packet;
+
+        ReceivedMessage(int connection, RtmpPacket packet, int chunkSize, long receivedNanos) {
+            RtmpHeader header = packet.getHeader();
+            this.connection = connection;
+            this.type = header.getMessageType();
+            this.messageStreamId = header.getMessageStreamId();
+            this.timestamp = header.getAbsoluteTimestamp();
+            this.size = header.getPacketLength();
+            this.chunkSize = chunkSize;
+            this.receivedNanos = receivedNanos;
+            if (packet instanceof ContentData) {
+                // Audio and video packets are reused by the decoder
+                ContentData content = (ContentData) packet;
+                this.data = Arrays.copyOf(content.getData(), content.size());
+                this.packet = null;
+            } else {
+                this.data = null;
+                this.packet = packet;
+            }
+        }
+
+        /** @return index of the connection it came on, from 0 in order of arrival */
+        public int getConnection() {
+            return connection;
+        }
+
+        public RtmpHeader.MessageType getType() {
+            return type;
+        }
+
+        public int getMessageStreamId() {
+            return messageStreamId;
+        }
+
+        /** @return RTMP timestamp, in milliseconds */
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return message length, in bytes */
+        public int getSize() {
+            return size;
+        }
+
+        /** @return the size of the chunks the message was received in, as set by the client */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /** @return {@link System#nanoTime()} when the message was complete */
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        /** @return copy of the payload of audio and video messages, null for the others */
+        public byte[] getData() {
+            return data;
+        }
+
+        /** @return the decoded packet of messages other than audio and video, null for these */
+        public RtmpPacket getPacket() {
+            return packet;
+        }
+
+        /** @return the command name of AMF0 commands, null for the other messages */
+        public String getCommandName() {
+            return packet instanceof Command ? ((Command) packet).getCommandName() : null;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + connection + " " + type + " ts: " + timestamp + " size: " + size
+                + (packet instanceof Command ? " " + getCommandName() : "");
+        }
+    }
+
+    private final List<ReceivedMessage> messages = new ArrayList<>();
+    private final List<Session> sessions = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile int bandwidth;
+    private volatile long latencyNanos;
+    private volatile int peerBandwidth = PEER_BANDWIDTH;
+    private volatile boolean relayAggregates;
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * set the bandwidth of the link from the clients
+     * @param bytesPerSecond the rate data is read at, 0 for as fast as possible
+     */
+    public void setBandwidth(int bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * set the latency of the link, added in each direction
+     * @param oneWayMillis delay of data on its way, half the round trip time it adds
+     */
+    public void setLatency(int oneWayMillis) {
+        latencyNanos = TimeUnit.MILLISECONDS.toNanos(oneWayMillis);
+    }
+
+    /**
+     * set the acknowledgement window and peer bandwidth sent on connect, which the client sizes its
+     * send buffer after
+     * @param bytes the window, for the connections accepted from now on
+     */
+    public void setPeerBandwidth(int bytes) {
+        peerBandwidth = bytes;
+    }
+
+    /**
+     * pass the aggregate messages of the publishers through to the players instead of the messages
+     * they carry, whatever the key frame a player waits for
+     */
+    public void setRelayAggregates(boolean relay) {
+        relayAggregates = relay;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface.
+     *
+     * @return the port listened on
+     */
+    public synchronized int start() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        serverSocket = new ServerSocket();
+        // Inherited by accepted sockets, must be set before listening
+        serverSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        final ServerSocket listening = serverSocket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!listening.isClosed()) {
+                    try {
+                        accept(listening.accept());
+                    } catch (IOException ioe) {
+                        if (!listening.isClosed()) {
+                            Log.e(TAG, "Caught exception while accepting connection: " + ioe.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "RtmpIngestAccept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.i(TAG, "Listening on port " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    /** Closes the listening socket and all connections. */
+    public void stop() {
+        List<Session> closing;
+        synchronized (this) {
+            if (serverSocket == null) {
+                return;
+            }
+            try {
+                serverSocket.close();
+            } catch (IOException ioe) {
+                // Closing anyway
+            }
+            serverSocket = null;
+            closing = new ArrayList<>(sessions);
+        }
+        for (Session session : closing) {
+            session.close();
+        }
+        try {
+            acceptThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        acceptThread = null;
+    }
+
+    /** Closes the connections, as a network loss would, while still accepting new ones. */
+    public void dropConnections() {
+        List<Session> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(sessions);
+        }
+        for (Session session : closing) {
+            session.close();
+        }
+    }
+
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /** @return the URL to publish to */
+    public String getUrl(String app, String stream) {
+        return "rtmp://127.0.0.1:" + getPort() + "/" + app + "/" + stream;
+    }
+
+    /** @return how many connections were accepted so far */
+    public synchronized int getConnectionCount() {
+        return sessions.size();
+    }
+
+    /** @return bytes read from all connections, handshakes included */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /** @return a copy of the messages received so far, in order of arrival */
+    public List<ReceivedMessage> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+
+    public void clearMessages() {
+        synchronized (messages) {
+            messages.clear();
+        }
+    }
+
+    /**
+     * Waits until enough messages of a type were received.
+     *
+     * @param type message type to count, null for all of them
+     * @return true if they were received in time
+     */
+    public boolean awaitMessages(RtmpHeader.MessageType type, int count, long timeoutMillis)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (messages) {
+            while (true) {
+                int received = 0;
+                for (ReceivedMessage message : messages) {
+                    if (type == null || message.getType() == type) {
+                        received++;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (received >= count) {
+                    return true;
+                } else if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(messages, remaining);
+            }
+        }
+    }
+
+    private void accept(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        Session session;
+        synchronized (this) {
+            if (serverSocket == null) {
+                socket.close();
+                return;
+            }
+            session = new Session(sessions.size(), socket);
+            sessions.add(session);
+        }
+        Log.i(TAG, "Accepted connection #" + session.index + " from " + socket.getRemoteSocketAddress());
+        Thread thread = new Thread(session, "RtmpIngest #" + session.index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized List<Session> sessionsSnapshot() {
+        return new ArrayList<>(sessions);
+    }
+
+    private void record(ReceivedMessage message) {
+        synchronized (messages) {
+            messages.add(message);
+            messages.notifyAll();
+        }
+    }
+
+    /** One client connection, served by its own thread */
+    private class Session implements Runnable {
+
+        private final int index;
+        private final Socket socket;
+        private final RtmpSessionInfo rtmpSessionInfo = new RtmpSessionInfo();
+        private final RtmpDecoder rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
+        private InputStream in;
+        private DelayedOutputStream out;
+        private long bytesRead;
+        private long lastAckBytes;
+        private int ackWindow;
+        private int nextStreamId = 1;
+        // set once publishing, with the last sequence headers received
+        private volatile String publishedName;
+        private volatile byte[] videoSequenceHeader;
+        private volatile byte[] audioSequenceHeader;
+        // set once playing
+        private volatile String playedName;
+        private int playStreamId;
+        private boolean waitingForKeyFrame;
+
+        Session(int index, Socket socket) {
+            this.index = index;
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                in = new BufferedInputStream(new FilterInputStream(new DelayedInputStream(throttle(socket.getInputStream()))) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            onBytesRead(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = super.read(b, off, len);
+                        if (read > 0) {
+                            onBytesRead(read);
+                        }
+                        return read;
+                    }
+                });
+                out = new DelayedOutputStream(socket.getOutputStream());
+
+                Handshake handshake = new Handshake();
+                handshake.readC0(in);
+                handshake.readC1(in);
+                handshake.writeS0(out);
+                handshake.writeS1(out);
+                handshake.writeS2(out);
+                out.flush();
+                handshake.readC2(in);
+
+                while (!socket.isClosed()) {
+                    RtmpPacket rtmpPacket = rtmpDecoder.readPacket(in);
+                    if (rtmpPacket instanceof Aggregate) {
+                        long receivedNanos = System.nanoTime();
+                        record(new ReceivedMessage(index, rtmpPacket, rtmpSessionInfo.getRxChunkSize(), receivedNanos));
+                        // Throws if a tag or its back-pointer is wrong
+                        boolean relayed = relayAggregates && publishedName != null;
+                        for (ContentData content : ((Aggregate) rtmpPacket).split()) {
+                            receive(content, receivedNanos, !relayed);
+                        }
+                        if (relayed) {
+                            relayAggregate((Aggregate) rtmpPacket);
+                        }
+                    } else if (rtmpPacket != null) {
+                        receive(rtmpPacket, System.nanoTime(), true);
+                    }
+                    if (ackWindow > 0 && bytesRead - lastAckBytes >= ackWindow) {
+                        lastAckBytes = bytesRead;
+                        send(new Acknowledgement((int) bytesRead));
+                    }
+                    flush();
+                }
+            } catch (IOException ioe) {
+                if (!socket.isClosed()) {
+                    Log.i(TAG, "Connection #" + index + " ended: " + ioe.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void receive(RtmpPacket rtmpPacket, long receivedNanos, boolean relayed) throws IOException {
+            ReceivedMessage message = new ReceivedMessage(index, rtmpPacket, rtmpSessionInfo.getRxChunkSize(), receivedNanos);
+            record(message);
+            handlePacket(rtmpPacket);
+            if (message.getData() != null && publishedName != null) {
+                relay(message, relayed);
+            }
+        }
+
+        private void onBytesRead(int count) {
+            bytesRead += count;
+            bytesReceived.addAndGet(count);
+        }
+
+        private void handlePacket(RtmpPacket rtmpPacket) throws IOException {
+            switch (rtmpPacket.getHeader().getMessageType()) {
+                case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                    ackWindow = ((WindowAckSize) rtmpPacket).getAcknowledgementWindowSize();
+                    break;
+                case USER_CONTROL_MESSAGE:
+                    UserControl user = (UserControl) rtmpPacket;
+                    if (user.getType() == UserControl.Type.PING_REQUEST) {
+                        send(new UserControl(user, chunkStream(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                    }
+                    break;
+                case COMMAND_AMF0:
+                    handleCommand((Command) rtmpPacket);
+                    break;
+                default:
+                    // Recorded only
+                    break;
+            }
+        }
+
+        private void handleCommand(Command command) throws IOException {
+            String commandName = command.getCommandName();
+            if (commandName.equals("connect")) {
+                ChunkStreamInfo control = chunkStream(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+                send(new WindowAckSize(peerBandwidth, control));
+                send(new SetPeerBandwidth(peerBandwidth, SetPeerBandwidth.LimitType.DYNAMIC, control));
+
+                Command result = new Command("_result", command.getTransactionId(), chunkStream(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION));
+                AmfObject properties = new AmfObject();
+                properties.setProperty("fmsVer", "FMS/3,5,3,888");
+                properties.setProperty("capabilities", 127);
+                properties.setProperty("mode", 1);
+                result.addData(properties);
+                result.addData(status("NetConnection.Connect.Success", "Connection succeeded."));
+                send(result);
+            } else if (commandName.equals("releaseStream") || commandName.equals("FCPublish")) {
+                Command result = new Command("_result", command.getTransactionId(), chunkStream(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION));
+                result.addData(new AmfNull());
+                result.addData(new AmfUndefined());
+                send(result);
+            } else if (commandName.equals("createStream")) {
+                Command result = new Command("_result", command.getTransactionId(), chunkStream(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION));
+                result.addData(new AmfNull());
+                result.addData(nextStreamId++);
+                send(result);
+            } else if (commandName.equals("publish")) {
+                int streamId = command.getHeader().getMessageStreamId();
+                UserControl streamBegin = new UserControl(UserControl.Type.STREAM_BEGIN, chunkStream(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL));
+                streamBegin.setEventData(streamId);
+                send(streamBegin);
+
+                Command onStatus = new Command("onStatus", 0, chunkStream(ChunkStreamInfo.RTMP_CID_OVER_STREAM));
+                onStatus.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+                onStatus.getHeader().setMessageStreamId(streamId);
+                onStatus.addData(new AmfNull());
+                onStatus.addData(status("NetStream.Publish.Start", "Start publishing."));
+                send(onStatus);
+                publishedName = ((AmfString) command.getData().get(1)).getValue();
+            } else if (commandName.equals("play")) {
+                int streamId = command.getHeader().getMessageStreamId();
+                send(new SetChunkSize(RtmpConnection.DEFAULT_CHUNK_SIZE));
+                rtmpSessionInfo.setTxChunkSize(RtmpConnection.DEFAULT_CHUNK_SIZE);
+                UserControl streamBegin = new UserControl(UserControl.Type.STREAM_BEGIN, chunkStream(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL));
+                streamBegin.setEventData(streamId);
+                send(streamBegin);
+
+                Command onStatus = new Command("onStatus", 0, chunkStream(ChunkStreamInfo.RTMP_CID_OVER_STREAM));
+                onStatus.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+                onStatus.getHeader().setMessageStreamId(streamId);
+                onStatus.addData(new AmfNull());
+                onStatus.addData(status("NetStream.Play.Start", "Start playing."));
+                send(onStatus);
+                startPlaying(((AmfString) command.getData().get(1)).getValue(), streamId);
+            } else {
+                // FCUnpublish, closeStream, deleteStream... need no answer
+                Log.d(TAG, "handleCommand(): Not answering '" + commandName + "'");
+            }
+        }
+
+        private AmfObject status(String code, String description) {
+            AmfObject info = new AmfObject();
+            info.setProperty("level", "status");
+            info.setProperty("code", code);
+            info.setProperty("description", description);
+            info.setProperty("objectEncoding", 0);
+            return info;
+        }
+
+        private ChunkStreamInfo chunkStream(int chunkStreamId) {
+            return rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+        }
+
+        // Media relayed by the publishers' sessions are written along with the own replies
+        private synchronized void send(RtmpPacket rtmpPacket) throws IOException {
+            ChunkStreamInfo chunkStreamInfo = chunkStream(rtmpPacket.getHeader().getChunkStreamId());
+            rtmpPacket.writeTo(out, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+        }
+
+        private synchronized void flush() {
+            out.flush();
+        }
+
+        private synchronized void startPlaying(String name, int streamId) throws IOException {
+            playStreamId = streamId;
+            waitingForKeyFrame = true;
+            playedName = name;
+            for (Session publisher : sessionsSnapshot()) {
+                if (name.equals(publisher.publishedName)) {
+                    byte[] header = publisher.videoSequenceHeader;
+                    if (header != null) {
+                        sendMedia(RtmpHeader.MessageType.VIDEO, header, 0);
+                    }
+                    header = publisher.audioSequenceHeader;
+                    if (header != null) {
+                        sendMedia(RtmpHeader.MessageType.AUDIO, header, 0);
+                    }
+                }
+            }
+        }
+
+        private void relay(ReceivedMessage message, boolean relayed) {
+            byte[] data = message.getData();
+            boolean sequenceHeader = data.length > 1 && data[1] == 0;
+            if (sequenceHeader && message.getType() == RtmpHeader.MessageType.VIDEO) {
+                videoSequenceHeader = data;
+            } else if (sequenceHeader && message.getType() == RtmpHeader.MessageType.AUDIO) {
+                audioSequenceHeader = data;
+            }
+            if (!relayed) {
+                // the sequence headers are still kept for the players to come
+                return;
+            }
+            for (Session player : sessionsSnapshot()) {
+                if (publishedName.equals(player.playedName)) {
+                    player.relayMedia(message.getType(), data, message.getTimestamp());
+                }
+            }
+        }
+
+        private void relayAggregate(Aggregate aggregate) {
+            byte[] data = Arrays.copyOf(aggregate.getData(), aggregate.size());
+            for (Session player : sessionsSnapshot()) {
+                if (publishedName.equals(player.playedName)) {
+                    player.relayAggregate(data, aggregate.getHeader().getAbsoluteTimestamp());
+                }
+            }
+        }
+
+        private synchronized void relayAggregate(byte[] data, int timestamp) {
+            waitingForKeyFrame = false;
+            Aggregate aggregate = new Aggregate();
+            aggregate.setData(data, data.length);
+            aggregate.getHeader().setAbsoluteTimestamp(timestamp);
+            aggregate.getHeader().setMessageStreamId(playStreamId);
+            try {
+                send(aggregate);
+                out.flush();
+            } catch (IOException ioe) {
+                // The player's own thread finds out
+            }
+        }
+
+        private synchronized void relayMedia(RtmpHeader.MessageType type, byte[] data, int timestamp) {
+            if (waitingForKeyFrame) {
+                // Sequence headers and audio go through, video waits for a key frame
+                if (type == RtmpHeader.MessageType.VIDEO && data[1] != 0 && (data[0] >> 4) != 1) {
+                    return;
+                }
+                waitingForKeyFrame = type != RtmpHeader.MessageType.VIDEO || data[1] == 0;
+            }
+            try {
+                sendMedia(type, data, timestamp);
+                out.flush();
+            } catch (IOException ioe) {
+                // The player's own thread finds out
+            }
+        }
+
+        private void sendMedia(RtmpHeader.MessageType type, byte[] data, int timestamp) throws IOException {
+            ContentData media = type == RtmpHeader.MessageType.VIDEO ? new Video() : new Audio();
+            media.setData(data, data.length);
+            media.getHeader().setAbsoluteTimestamp(timestamp);
+            media.getHeader().setMessageStreamId(playStreamId);
+            send(media);
+        }
+
+        void close() {
+            playedName = null;
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // Closing anyway
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /** Reads at most at the configured bandwidth */
+    private InputStream throttle(InputStream socketIn) {
+        return new FilterInputStream(socketIn) {
+            private long nextReadNanos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int rate = bandwidth;
+                if (rate <= 0) {
+                    return super.read(b, off, len);
+                }
+                long wait = nextReadNanos - System.nanoTime();
+                if (wait > 0) {
+                    sleep(wait);
+                }
+                int read = super.read(b, off, Math.min(len, LINK_READ_SIZE));
+                if (read > 0) {
+                    // No credit for the time spent idle
+                    long now = System.nanoTime();
+                    nextReadNanos = Math.max(nextReadNanos, now) + TimeUnit.SECONDS.toNanos(read) / rate;
+                }
+                return read;
+            }
+        };
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Bytes on their way through the link, each segment held back until the latency has passed.
+     * Latency changes apply to the segments sent afterwards, which never overtake the earlier ones.
+     */
+    private class DelayLine {
+        private final LinkedBlockingQueue<Object[]> segments = new LinkedBlockingQueue<>();
+        private byte[] segment;
+        private int position;
+
+        void put(byte[] data, int off, int len) {
+            segments.add(new Object[]{System.nanoTime() + latencyNanos, Arrays.copyOfRange(data, off, off + len)});
+        }
+
+        void putEnd() {
+            segments.add(new Object[]{System.nanoTime(), null});
+        }
+
+        /** Blocks until data is due, returns -1 once the end is */
+        int take(byte[] b, int off, int len) throws IOException {
+            if (segment == null || position == segment.length) {
+                Object[] next;
+                try {
+                    next = segments.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                long wait = (Long) next[0] - System.nanoTime();
+                if (wait > 0) {
+                    sleep(wait);
+                }
+                if (next[1] == null) {
+                    // Seen by any later take too
+                    segments.add(next);
+                    return -1;
+                }
+                segment = (byte[]) next[1];
+                position = 0;
+            }
+            int count = Math.min(len, segment.length - position);
+            System.arraycopy(segment, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    /** Delays what is read from the client, read ahead by a thread of its own while latency is set */
+    private class DelayedInputStream extends InputStream {
+        private final InputStream source;
+        private final DelayLine line = new DelayLine();
+
+        DelayedInputStream(InputStream source) {
+            this.source = source;
+            Thread pump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[LINK_READ_SIZE];
+                    try {
+                        int read;
+                        while ((read = DelayedInputStream.this.source.read(buffer)) != -1) {
+                            line.put(buffer, 0, read);
+                        }
+                    } catch (IOException ioe) {
+                        // Ends the line as well
+                    }
+                    line.putEnd();
+                }
+            }, "RtmpIngestLink");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return line.take(b, off, len);
+        }
+    }
+
+    /** Delays what is written to the client, each flush being sent once the latency has passed */
+    private class DelayedOutputStream extends OutputStream {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DelayLine line = new DelayLine();
+
+        DelayedOutputStream(final OutputStream sink) {
+            Thread pump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[64 * 1024];
+                    try {
+                        int read;
+                        while ((read = line.take(buffer, 0, buffer.length)) != -1) {
+                            sink.write(buffer, 0, read);
+                        }
+                    } catch (IOException ioe) {
+                        // The session notices on its side
+                    }
+                }
+            }, "RtmpIngestLink");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        @Override
+        public void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (pending.size() > 0) {
+                line.put(pending.toByteArray(), 0, pending.size());
+                pending.reset();
+            }
+        }
+
+        /** Ends the line, what was not flushed is lost */
+        @Override
+        public void close() {
+            line.putEnd();
+        }
+    }
+}
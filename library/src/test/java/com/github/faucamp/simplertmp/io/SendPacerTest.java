@@ -0,0 +1,173 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds a GOP-structured stream through the pacer into a bottleneck link, on a virtual clock.
+ */
+public class SendPacerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final int FPS = 24;
+    private static final int GOP = 48;
+    private static final int BITRATE = 1000 * 1000;
+    private static final int CHUNK_SIZE = 4096;
+    private static final int BURST_BYTES = 16 * 1024;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** Link draining at a fixed rate, the queue builds up in front of it */
+    private static class Bottleneck {
+        final double bytesPerNano;
+        double queuedBytes;
+        long lastNanos;
+        double maxQueuedBytes;
+
+        Bottleneck(long bitsPerSecond) {
+            bytesPerNano = (double) bitsPerSecond / 8 / SECOND;
+        }
+
+        void offer(int bytes, long nowNanos) {
+            queuedBytes = Math.max(0, queuedBytes - (nowNanos - lastNanos) * bytesPerNano) + bytes;
+            lastNanos = nowNanos;
+            maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+        }
+
+        long maxQueuingMillis() {
+            return (long) (maxQueuedBytes / bytesPerNano / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /** Result of a run */
+    private static class Run {
+        long sentBytes;
+        long lastSendNanos;
+        /** Most bytes sent within any window of {@link #WINDOW_NANOS} */
+        long maxWindowBytes;
+        long maxFrameDelayNanos;
+    }
+
+    /** Key frames are ten times as large as the others, the average being the bitrate */
+    private static int frameSize(int index) {
+        int average = BITRATE / 8 / FPS;
+        int small = average * GOP / (GOP + 9);
+        return index % GOP == 0 ? small * 10 : small;
+    }
+
+    private static Run send(SendPacer pacer, Bottleneck link, int frames) {
+        Run run = new Run();
+        long[] window = new long[frames * 64];
+        long[] windowBytes = new long[window.length];
+        int windowStart = 0;
+        int windowEnd = 0;
+        long windowSum = 0;
+        long now = 0;
+        for (int i = 0; i < frames; i++) {
+            long captured = i * SECOND / FPS;
+            now = Math.max(now, captured);
+            int remaining = frameSize(i);
+            while (remaining > 0) {
+                long delay = pacer.delayNanos(now);
+                if (delay > 0) {
+                    now += delay;
+                    continue;
+                }
+                int length = Math.min(CHUNK_SIZE, remaining);
+                pacer.consume(length, now);
+                link.offer(length, now);
+                remaining -= length;
+                run.sentBytes += length;
+
+                window[windowEnd] = now;
+                windowBytes[windowEnd++] = length;
+                windowSum += length;
+                while (window[windowStart] <= now - WINDOW_NANOS) {
+                    windowSum -= windowBytes[windowStart++];
+                }
+                run.maxWindowBytes = Math.max(run.maxWindowBytes, windowSum);
+            }
+            run.maxFrameDelayNanos = Math.max(run.maxFrameDelayNanos, now - captured);
+        }
+        run.lastSendNanos = now;
+        return run;
+    }
+
+    @Test
+    public void paceKeyFramesUnderABottleneck() {
+        SendPacer pacer = new SendPacer();
+        pacer.setRate(BITRATE * 3 / 2, BURST_BYTES);
+        Bottleneck link = new Bottleneck(BITRATE * 2);
+        Run paced = send(pacer, link, GOP * 20);
+
+        Bottleneck unpacedLink = new Bottleneck(BITRATE * 2);
+        Run unpaced = send(new SendPacer(), unpacedLink, GOP * 20);
+        assertEquals(unpaced.sentBytes, paced.sentBytes);
+
+        // never faster than the pacing rate plus the burst allowance over a window
+        long allowed = (long) (BITRATE * 3 / 2 / 8 * ((double) WINDOW_NANOS / SECOND)) + BURST_BYTES + CHUNK_SIZE;
+        assertTrue("sent " + paced.maxWindowBytes + " bytes within 200 ms, allowed " + allowed,
+            paced.maxWindowBytes <= allowed);
+        assertTrue(unpaced.maxWindowBytes > allowed);
+
+        // the stream keeps up with real time, a key frame is spread over a few frame intervals
+        assertTrue("finished at " + paced.lastSendNanos, paced.lastSendNanos < 41 * SECOND);
+        assertTrue("a frame waited " + paced.maxFrameDelayNanos / 1000000 + " ms",
+            paced.maxFrameDelayNanos < SECOND / 2);
+
+        // since it is slower than the bottleneck, nothing queues up in front of the link
+        assertTrue("queued " + link.maxQueuingMillis() + " ms", link.maxQueuingMillis() <= 100);
+        assertTrue("unpaced queued " + unpacedLink.maxQueuingMillis() + " ms",
+            unpacedLink.maxQueuingMillis() > 2 * link.maxQueuingMillis());
+    }
+
+    @Test
+    public void averageRateMatchesThePacingRate() {
+        SendPacer pacer = new SendPacer();
+        pacer.setRate(800 * 1000, BURST_BYTES);
+        long now = SECOND;
+        long sent = 0;
+        // a sender that always has data: the pacer alone sets the rate
+        while (now < 11 * SECOND) {
+            long delay = pacer.delayNanos(now);
+            if (delay > 0) {
+                now += delay;
+            } else {
+                pacer.consume(CHUNK_SIZE, now);
+                sent += CHUNK_SIZE;
+            }
+        }
+        double rate = sent * 8 / 10.0;
+        assertTrue("paced at " + rate + " bps", rate >= 800 * 1000 * 0.98 && rate <= 800 * 1000 * 1.02 + BURST_BYTES * 8 / 10.0);
+    }
+
+    @Test
+    public void debtIsPaidBeforeTheNextSend() {
+        SendPacer pacer = new SendPacer();
+        pacer.setRate(8 * 1000 * 1000, 1000);
+        assertEquals(0, pacer.delayNanos(SECOND));
+        // a million bytes per second: the bucket starts empty, 10000 bytes take 10 ms to pay back
+        pacer.consume(10000, SECOND);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), pacer.delayNanos(SECOND), 1000);
+        assertEquals(0, pacer.delayNanos(SECOND + TimeUnit.MILLISECONDS.toNanos(10)));
+        // idle time does not pile up more than the burst
+        pacer.consume(0, 10 * SECOND);
+        pacer.consume(2000, 10 * SECOND);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), pacer.delayNanos(10 * SECOND), 1000);
+    }
+
+    @Test
+    public void disabledPacerNeverWaits() {
+        SendPacer pacer = new SendPacer();
+        assertTrue(!pacer.isEnabled());
+        pacer.consume(1000000, SECOND);
+        assertEquals(0, pacer.delayNanos(SECOND));
+        pacer.setRate(1000 * 1000, BURST_BYTES);
+        assertTrue(pacer.isEnabled());
+        pacer.setRate(0, BURST_BYTES);
+        assertEquals(0, pacer.delayNanos(2 * SECOND));
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Throughput of each {@link RtmpTransport.Type} publishing the same stream to the in-process
+ * {@link RtmpIngestServer} over the loopback interface, as fast as the transport goes: the time until
+ * the server received the last frame, and the CPU time of the publishing thread.
+ *
+ * Not a unit test, run it on its own: {@code java ... TransportBenchmark [frames]}
+ */
+public class TransportBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[] keyFrame = new byte[60000];
+        byte[] frame = new byte[6000];
+        byte[] audio = new byte[200];
+        keyFrame[0] = 0x17;
+        frame[0] = 0x27;
+        audio[0] = (byte) 0xaf;
+        long payload = 0;
+        for (int i = 0; i < frames; i++) {
+            payload += (i % 30 == 0 ? keyFrame.length : frame.length) + audio.length;
+        }
+
+        System.out.println("transport     MB/s  frames/s  cpu ms (best of " + ROUNDS + ")");
+        for (RtmpTransport.Type type : RtmpTransport.Type.values()) {
+            long bestNanos = Long.MAX_VALUE;
+            long bestCpu = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                RtmpIngestServer server = new RtmpIngestServer();
+                server.start();
+                RtmpConnection connection = new RtmpConnection(new RecordingRtmpHandler());
+                connection.setTransportType(type);
+                if (!connection.connect(server.getUrl("live", "bench")) || !connection.publish("live")) {
+                    throw new IllegalStateException("Could not publish over " + type);
+                }
+
+                long start = System.nanoTime();
+                long cpuBefore = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < frames; i++) {
+                    byte[] data = i % 30 == 0 ? keyFrame : frame;
+                    connection.publishVideoData(data, data.length, i * 33);
+                    connection.publishAudioData(audio, audio.length, i * 33);
+                }
+                connection.flush();
+                bestCpu = Math.min(bestCpu, threads.getCurrentThreadCpuTime() - cpuBefore);
+                if (!server.awaitMessages(RtmpHeader.MessageType.AUDIO, frames, 60000)) {
+                    throw new IllegalStateException("Frames lost over " + type);
+                }
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                connection.close();
+                server.stop();
+            }
+            System.out.printf("%-10s %7.1f  %8.0f  %6.1f%n", type, payload / (bestNanos / 1e3),
+                frames / (bestNanos / 1e9), bestCpu / 1e6);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.faucamp.simplertmp.packets;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Audio/video messages are chunked straight from the frame buffer, through one packet reused for every frame.
+ */
+public class ContentDataTest {
+
+    private static final int CHUNK_SIZE = 128;
+
+    /** Records the arrays handed to the stream, so a copy of the payload shows up as a foreign array. */
+    private static class RecordingOutputStream extends OutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] payload;
+        int payloadWrites;
+        int foreignWrites;
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (b == payload) {
+                payloadWrites++;
+            } else {
+                foreignWrites++;
+            }
+            bytes.write(b, off, len);
+        }
+    }
+
+    /** Discards everything, it does not allocate on the measured path. */
+    private static class NullOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static byte[] frame(int length, int capacity, int seed) {
+        byte[] data = new byte[capacity];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void chunksFromTheFrameBuffer() throws IOException {
+        ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+        RecordingOutputStream out = new RecordingOutputStream();
+        Video video = new Video();
+        video.getHeader().setMessageStreamId(1);
+
+        int[] lengths = {300, 128, 129, 1, 300};
+        byte[][] frames = new byte[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            // the frame buffer may be longer than the frame it holds
+            frames[i] = frame(lengths[i], lengths[i] + 64, i * 7);
+            out.payload = frames[i];
+            video.getHeader().setAbsoluteTimestamp(i * 40);
+            video.setData(frames[i], lengths[i]);
+            video.writeTo(out, CHUNK_SIZE, chunkStreamInfo);
+            assertEquals("chunks of frame " + i, (lengths[i] + CHUNK_SIZE - 1) / CHUNK_SIZE, out.payloadWrites);
+            assertEquals(0, out.foreignWrites);
+            out.payloadWrites = 0;
+        }
+
+        // read back as the peer does, a chunk at a time
+        InputStream in = new ByteArrayInputStream(out.bytes.toByteArray());
+        RtmpHeader rx = new RtmpHeader();
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] body = new byte[lengths[i]];
+            int pos = 0;
+            do {
+                rx.readFrom(in, in.read(), pos > 0);
+                int length = Math.min(CHUNK_SIZE, lengths[i] - pos);
+                assertEquals(length, in.read(body, pos, length));
+                pos += length;
+            } while (pos < lengths[i]);
+            assertEquals("timestamp of frame " + i, i * 40, rx.getAbsoluteTimestamp());
+            assertEquals(lengths[i], rx.getPacketLength());
+            assertEquals(RtmpHeader.MessageType.VIDEO, rx.getMessageType());
+            byte[] expected = new byte[lengths[i]];
+            System.arraycopy(frames[i], 0, expected, 0, lengths[i]);
+            assertArrayEquals("payload of frame " + i, expected, body);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void previousHeaderIsACopy() throws IOException {
+        ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+        Video video = new Video();
+        video.setData(frame(10, 10, 0), 10);
+        video.writeTo(new NullOutputStream(), CHUNK_SIZE, chunkStreamInfo);
+        assertTrue(chunkStreamInfo.getPrevHeaderTx() != video.getHeader());
+
+        RtmpHeader prev = chunkStreamInfo.getPrevHeaderTx();
+        video.getHeader().setAbsoluteTimestamp(40);
+        video.writeTo(new NullOutputStream(), CHUNK_SIZE, chunkStreamInfo);
+        assertSame("the copy is updated in place", prev, chunkStreamInfo.getPrevHeaderTx());
+        assertEquals(40, prev.getAbsoluteTimestamp());
+        assertEquals(40, video.getHeader().getTimestampDelta());
+    }
+
+    @Test
+    public void publishesWithoutAllocating() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        ChunkStreamInfo videoChunkStream = new ChunkStreamInfo();
+        ChunkStreamInfo audioChunkStream = new ChunkStreamInfo();
+        NullOutputStream out = new NullOutputStream();
+        Video video = new Video();
+        Audio audio = new Audio();
+        byte[] videoFrame = frame(20000, 32768, 1);
+        byte[] audioFrame = frame(300, 512, 2);
+
+        // warm up, so class loading and compilation are not counted
+        publish(video, audio, videoFrame, audioFrame, videoChunkStream, audioChunkStream, out, 0, 2000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        publish(video, audio, videoFrame, audioFrame, videoChunkStream, audioChunkStream, out, 2000, 1000);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(out.count > 1000L * 20000);
+        // a single copy of a frame per message would be over 20 MB
+        assertTrue("allocated " + allocated + " bytes for 1000 frames", allocated < 64 * 1024);
+    }
+
+    private static void publish(Video video, Audio audio, byte[] videoFrame, byte[] audioFrame,
+                                ChunkStreamInfo videoChunkStream, ChunkStreamInfo audioChunkStream,
+                                OutputStream out, int first, int count) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            video.getHeader().setAbsoluteTimestamp(i * 40);
+            video.setData(videoFrame, 20000 - (i & 15));
+            video.writeTo(out, CHUNK_SIZE, videoChunkStream);
+            audio.getHeader().setAbsoluteTimestamp(i * 40 + 3);
+            audio.setData(audioFrame, 300);
+            audio.writeTo(out, CHUNK_SIZE, audioChunkStream);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.faucamp.simplertmp.packets;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Chunk header compression against the previous message of the chunk stream, read back as a peer does.
+ */
+public class RtmpHeaderTest {
+
+    private static final int CHUNK_STREAM_ID = 6;
+    private static final int MESSAGE_STREAM_ID = 1;
+
+    private final RtmpHeader prevTx = new RtmpHeader();
+    private boolean hasPrevTx;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private RtmpHeader.ChunkType send(int timestamp, int length, RtmpHeader.MessageType type, int messageStreamId)
+        throws IOException {
+        RtmpHeader header = new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, CHUNK_STREAM_ID, type);
+        header.setAbsoluteTimestamp(timestamp);
+        header.setPacketLength(length);
+        header.setMessageStreamId(messageStreamId);
+        RtmpHeader.ChunkType chunkType = header.compress(hasPrevTx ? prevTx : null);
+        header.writeTo(out, chunkType);
+        prevTx.copyFrom(header);
+        hasPrevTx = true;
+        return chunkType;
+    }
+
+    private RtmpHeader.ChunkType send(int timestamp, int length) throws IOException {
+        return send(timestamp, length, RtmpHeader.MessageType.VIDEO, MESSAGE_STREAM_ID);
+    }
+
+    @Test
+    public void picksTheSmallestHeader() throws IOException {
+        assertEquals(RtmpHeader.ChunkType.TYPE_0_FULL, send(0, 100));
+        // a type 3 header after a type 0 one is ambiguous, the delta is stated once
+        assertEquals(RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY, send(40, 100));
+        assertEquals(RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, send(80, 100));
+        assertEquals(RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, send(120, 100));
+        assertEquals(RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY, send(161, 100));
+        assertEquals(RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE, send(201, 250));
+        assertEquals(RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE, send(241, 250, RtmpHeader.MessageType.AUDIO, MESSAGE_STREAM_ID));
+        assertEquals(RtmpHeader.ChunkType.TYPE_0_FULL, send(281, 250, RtmpHeader.MessageType.AUDIO, MESSAGE_STREAM_ID + 1));
+        // timestamps going backwards cannot be a delta
+        assertEquals(RtmpHeader.ChunkType.TYPE_0_FULL, send(100, 250, RtmpHeader.MessageType.AUDIO, MESSAGE_STREAM_ID + 1));
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        int[] timestamps = {0, 40, 80, 120, 161, 161, 200, 0xfffffe, 0xffffff, 0x1000020, 0x1000060, 0x20000000,
+            0x20000000 + 0x1000000, 0x20000000 + 0x2000000, 0x20000000 + 0x2000010};
+        int[] lengths = {100, 100, 100, 100, 100, 30, 30, 30, 30, 30, 4000, 4000, 4000, 4000, 4000};
+        RtmpHeader.MessageType[] types = new RtmpHeader.MessageType[timestamps.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = i % 5 == 4 ? RtmpHeader.MessageType.AUDIO : RtmpHeader.MessageType.VIDEO;
+            send(timestamps[i], lengths[i], types[i], MESSAGE_STREAM_ID);
+        }
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        RtmpHeader rx = new RtmpHeader();
+        for (int i = 0; i < timestamps.length; i++) {
+            rx.readFrom(in, in.read(), false);
+            assertEquals("chunk stream of message " + i, CHUNK_STREAM_ID, rx.getChunkStreamId());
+            assertEquals("timestamp of message " + i, timestamps[i], rx.getAbsoluteTimestamp());
+            assertEquals("length of message " + i, lengths[i], rx.getPacketLength());
+            assertEquals("type of message " + i, types[i], rx.getMessageType());
+            assertEquals("stream of message " + i, MESSAGE_STREAM_ID, rx.getMessageStreamId());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void continuationChunksRepeatTheExtendedTimestamp() throws IOException {
+        send(0x1000000, 300);
+        RtmpHeader first = new RtmpHeader();
+        first.copyFrom(prevTx);
+        // the second chunk of the same message
+        first.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        // next message, same length and delta as none was stated: a type 2 one
+        send(0x1000000 + 0x1000000, 300);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        RtmpHeader rx = new RtmpHeader();
+        rx.readFrom(in, in.read(), false);
+        assertEquals(0x1000000, rx.getAbsoluteTimestamp());
+        rx.readFrom(in, in.read(), true);
+        assertEquals(RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, rx.getChunkType());
+        assertEquals("a continuation does not advance the timestamp", 0x1000000, rx.getAbsoluteTimestamp());
+        rx.readFrom(in, in.read(), false);
+        assertEquals(0x2000000, rx.getAbsoluteTimestamp());
+        assertEquals(-1, in.read());
+    }
+}
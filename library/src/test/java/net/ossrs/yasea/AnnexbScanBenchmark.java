@@ -0,0 +1,144 @@
+package net.ossrs.yasea;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Annexb frames rewritten length prefixed, the NAL units found by {@link SrsAnnexbScanner} then copied
+ * by {@link SrsAnnexbScanner#writeAvcc}, against the byte by byte search for 00 00 01 with a copy of
+ * each NAL unit through a slice, as the FLV muxer did before. Heap and direct buffers both, as the
+ * encoders hand out either.
+ *
+ * The frames are a key frame of 100KB with its SPS and PPS, then inter frames of 10KB in four slices,
+ * of random bytes with emulation prevention.
+ *
+ * Not a unit test, run it on its own: {@code java ... AnnexbScanBenchmark [frames]}
+ */
+public class AnnexbScanBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int GOP = 30;
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(1);
+        byte[] keyFrame = frame(random, new int[] {20, 4, 100000}, new int[] {0x67, 0x68, 0x65});
+        byte[] interFrame = frame(random, new int[] {2500, 2500, 2500, 2500}, new int[] {0x41, 0x41, 0x41, 0x41});
+        long bytes = 0;
+        for (int i = 0; i < frames; i++) {
+            bytes += i % GOP == 0 ? keyFrame.length : interFrame.length;
+        }
+
+        System.out.println("buffer  search           MB/s  (best of " + ROUNDS + ")");
+        for (boolean direct : new boolean[] {false, true}) {
+            ByteBuffer key = wrap(keyFrame, direct);
+            ByteBuffer inter = wrap(interFrame, direct);
+            byte[] dst = new byte[keyFrame.length + 64];
+            SrsAnnexbScanner nalus = new SrsAnnexbScanner();
+            int[] indexes = new int[16];
+            for (ByteBuffer bb : new ByteBuffer[] {key, inter}) {
+                byte[] expected = new byte[dst.length];
+                int size = byteByByte(bb, expected);
+                if (scanAndCopy(nalus, indexes, bb, dst) != size
+                    || !Arrays.equals(Arrays.copyOf(dst, size), Arrays.copyOf(expected, size))) {
+                    throw new IllegalStateException("The searches do not agree");
+                }
+            }
+            for (boolean scanner : new boolean[] {true, false}) {
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < frames; i++) {
+                        ByteBuffer bb = i % GOP == 0 ? key : inter;
+                        if (scanner) {
+                            scanAndCopy(nalus, indexes, bb, dst);
+                        } else {
+                            byteByByte(bb, dst);
+                        }
+                    }
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%-7s %-12s %8.1f%n", direct ? "direct" : "heap",
+                    scanner ? "scanner" : "byte by byte", bytes / (best / 1e3));
+            }
+        }
+    }
+
+    /** NAL units of random bytes, each after a 4 bytes start code and its header byte */
+    private static byte[] frame(Random random, int[] sizes, int[] headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int n = 0; n < sizes.length; n++) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(headers[n]);
+            int zeros = 0;
+            for (int i = 0; i < sizes[n]; i++) {
+                int b = random.nextInt(256);
+                // emulation_prevention_three_byte, no 00 00 0x with x <= 3 in the payload
+                if (zeros == 2 && b <= 3) {
+                    out.write(3);
+                    zeros = 0;
+                }
+                out.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            // not ending on a zero byte, which would be taken for a trailing zero
+            out.write(0x80);
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer wrap(byte[] frame, boolean direct) {
+        if (!direct) {
+            return ByteBuffer.wrap(frame);
+        }
+        ByteBuffer bb = ByteBuffer.allocateDirect(frame.length);
+        bb.put(frame).flip();
+        return bb;
+    }
+
+    private static int scanAndCopy(SrsAnnexbScanner nalus, int[] indexes, ByteBuffer bb, byte[] dst) {
+        int count = nalus.scan(bb, 0, bb.limit());
+        for (int j = 0; j < count; j++) {
+            indexes[j] = j;
+        }
+        return nalus.writeAvcc(bb, indexes, count, dst, 0);
+    }
+
+    /** The former search: every byte read through the buffer, each NAL unit copied after its length */
+    private static int byteByByte(ByteBuffer bb, byte[] dst) {
+        int end = bb.limit();
+        int pos = 0;
+        int nalu = -1;
+        for (int i = 0; i + 2 < end; i++) {
+            if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00 || bb.get(i + 2) != 0x01) {
+                continue;
+            }
+            if (nalu >= 0) {
+                pos = append(bb, nalu, i, dst, pos);
+            }
+            nalu = i + 3;
+            i += 2;
+        }
+        return nalu >= 0 ? append(bb, nalu, end, dst, pos) : pos;
+    }
+
+    private static int append(ByteBuffer bb, int start, int end, byte[] dst, int pos) {
+        while (end > start && bb.get(end - 1) == 0) {
+            end--;
+        }
+        int size = end - start;
+        dst[pos] = (byte) (size >>> 24);
+        dst[pos + 1] = (byte) (size >>> 16);
+        dst[pos + 2] = (byte) (size >>> 8);
+        dst[pos + 3] = (byte) size;
+        ByteBuffer slice = bb.duplicate();
+        slice.limit(end).position(start);
+        slice.slice().get(dst, pos + 4, size);
+        return pos + 4 + size;
+    }
+}
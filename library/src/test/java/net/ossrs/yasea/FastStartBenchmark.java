@@ -0,0 +1,79 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.io.RtmpIngestServer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Time from {@link SrsFlvMuxer#start(String)} to the first video frame sent, with and without fast
+ * start, against the in-process {@link RtmpIngestServer} delayed by a latency in each direction. The
+ * stream is encoded in real time from the start on, from a key frame as a new encoder does.
+ *
+ * Not a unit test, run it on its own: {@code java ... FastStartBenchmark [one way latency ms...]}
+ */
+public class FastStartBenchmark {
+
+    private static final int FPS = 30;
+    private static final int GOP = 30;
+    private static final int ROUNDS = 5;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2, 3, 0, 0, 0, 1, 0x68, 0x11, 0x22};
+
+    public static void main(String[] args) throws Exception {
+        int[] latencies = {0, 25, 50, 100};
+        if (args.length > 0) {
+            latencies = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                latencies[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("latency ms  normal ms  fast start ms  (median of " + ROUNDS + ")");
+        for (int latency : latencies) {
+            System.out.printf("%10d  %9d  %13d%n", latency, measure(latency, false), measure(latency, true));
+        }
+    }
+
+    private static int measure(int latency, boolean fastStart) throws Exception {
+        int[] times = new int[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            RtmpIngestServer server = new RtmpIngestServer();
+            server.start();
+            server.setLatency(latency);
+            SrsFlvMuxer muxer = new SrsFlvMuxer(new RecordingRtmpHandler());
+            muxer.setFastStart(fastStart);
+            muxer.start(server.getUrl("live", "bench"));
+
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            write(muxer, bufferInfo, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            // the encoder starts along with the connection
+            int frame = 0;
+            long start = System.nanoTime();
+            while (muxer.getTimeToFirstFrame() < 0 && frame < 10 * GOP) {
+                byte[] video = new byte[frame % GOP == 0 ? 30000 : 3000];
+                video[3] = 1;
+                video[4] = (byte) (frame % GOP == 0 ? 0x65 : 0x41);
+                write(muxer, bufferInfo, video, frame * 1000 / FPS, frame % GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                frame++;
+                long next = start + frame * 1000000000L / FPS;
+                Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1000000));
+            }
+            times[round] = muxer.getTimeToFirstFrame();
+            muxer.stop();
+            server.stop();
+        }
+        Arrays.sort(times);
+        return times[ROUNDS / 2];
+    }
+
+    private static void write(SrsFlvMuxer muxer, MediaCodec.BufferInfo bufferInfo, byte[] sample, int pts, int flags) {
+        bufferInfo.offset = 0;
+        bufferInfo.size = sample.length;
+        bufferInfo.presentationTimeUs = pts * 1000L;
+        bufferInfo.flags = flags;
+        muxer.writeSampleData(SrsFlvMuxer.VIDEO_TRACK, ByteBuffer.wrap(sample), bufferInfo);
+    }
+}
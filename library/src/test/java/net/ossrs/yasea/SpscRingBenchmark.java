@@ -0,0 +1,145 @@
+package net.ossrs.yasea;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hand-off from an encoder thread to a muxer thread, through {@link SrsSpscRing} as the MP4 muxer
+ * does now, and through a ConcurrentLinkedQueue with wait(500)/notifyAll() as it did before:
+ *
+ * - throughput, the producer offering as fast as it can;
+ * - latency from offer to poll, the producer offering one element every 1 ms, the consumer
+ *   waiting for each.
+ *
+ * Not a unit test, run it on its own: {@code java ... SpscRingBenchmark [elements]}
+ */
+public class SpscRingBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int CAPACITY = 256;
+    private static final long PACING_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** One side of the hand-off each, the consumer returning null when nothing came in time */
+    private interface HandOff {
+        void offer(Integer element);
+
+        Integer take();
+    }
+
+    private static class Ring implements HandOff {
+        private final SrsSpscRing<Integer> ring = new SrsSpscRing<>(CAPACITY, SrsSpscRing.OverflowPolicy.BLOCK);
+
+        @Override
+        public void offer(Integer element) {
+            ring.offer(element);
+        }
+
+        @Override
+        public Integer take() {
+            return ring.poll(500, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The former worker loop: drained until empty, then a wait(500) woken by the producer */
+    private static class WaitNotify implements HandOff {
+        private final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<>();
+        private final Object lock = new Object();
+
+        @Override
+        public void offer(Integer element) {
+            queue.add(element);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public Integer take() {
+            Integer element = queue.poll();
+            if (element == null) {
+                synchronized (lock) {
+                    try {
+                        lock.wait(500);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                element = queue.poll();
+            }
+            return element;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int paced = 3000;
+        Integer[] boxed = new Integer[Math.max(elements, paced)];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
+
+        System.out.println("hand-off     Melem/s  p50 us  p99 us  max us  (best of " + ROUNDS + ")");
+        for (String name : new String[] {"ring", "wait/notify"}) {
+            long bestNanos = Long.MAX_VALUE;
+            long[] bestLatency = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                bestNanos = Math.min(bestNanos, run(newHandOff(name), boxed, elements, 0, null));
+                long[] latency = new long[paced];
+                run(newHandOff(name), boxed, paced, PACING_NANOS, latency);
+                Arrays.sort(latency);
+                if (bestLatency == null || latency[paced * 99 / 100] < bestLatency[paced * 99 / 100]) {
+                    bestLatency = latency;
+                }
+            }
+            System.out.printf("%-11s %8.2f  %6.1f  %6.1f  %6.1f%n", name, elements / (bestNanos / 1e3),
+                bestLatency[paced / 2] / 1e3, bestLatency[paced * 99 / 100] / 1e3, bestLatency[paced - 1] / 1e3);
+        }
+    }
+
+    private static HandOff newHandOff(String name) {
+        return "ring".equals(name) ? new Ring() : new WaitNotify();
+    }
+
+    /**
+     * @param pacingNanos time between two offers, 0 for none
+     * @param latency filled with the time from offer to take of each element, null not to measure it
+     * @return the time until the consumer took the last element, in ns
+     */
+    private static long run(final HandOff handOff, final Integer[] boxed, final int count,
+                            final long pacingNanos, final long[] latency) throws InterruptedException {
+        final long[] offered = new long[count];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    if (pacingNanos > 0) {
+                        next += pacingNanos;
+                        for (long now = System.nanoTime(); now < next; now = System.nanoTime()) {
+                            LockSupport.parkNanos(next - now);
+                        }
+                        offered[i] = System.nanoTime();
+                    }
+                    handOff.offer(boxed[i]);
+                }
+            }
+        }, "producer");
+
+        long start = System.nanoTime();
+        producer.start();
+        for (int taken = 0; taken < count; ) {
+            Integer element = handOff.take();
+            if (element != null) {
+                if (latency != null) {
+                    latency[element] = System.nanoTime() - offered[element];
+                }
+                taken++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return elapsed;
+    }
+}
@@ -0,0 +1,131 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays uplink bandwidth traces through the control law, with a send queue drained at the link rate.
+ */
+public class SrsAbrControllerTest {
+
+    private static final int FLOOR = 300 * 1000;
+    private static final int CEILING = 4000 * 1000;
+    private static final int FPS = 24;
+    private static final int TICK_MILLIS = 200;
+
+    /** Send queue fed at the encoder bitrate and drained at the link bandwidth */
+    private static class Link {
+        final SrsAbrController abr = new SrsAbrController(FLOOR, CEILING, 2000 * 1000, SrsEncoder.VGOP / 4);
+        long nowMillis;
+        double queuedBits;
+        int maxQueuedMillis;
+
+        /** @return the bitrate the encoder ran at over the tick */
+        int tick(int bandwidth) {
+            int bitrate = abr.getBitrate();
+            queuedBits += bitrate * TICK_MILLIS / 1000.0;
+            double sent = Math.min(queuedBits, bandwidth * TICK_MILLIS / 1000.0);
+            queuedBits -= sent;
+            nowMillis += TICK_MILLIS;
+
+            int queuedMillis = (int) (queuedBits * 1000 / bitrate);
+            maxQueuedMillis = Math.max(maxQueuedMillis, queuedMillis);
+            abr.update(nowMillis, queuedMillis * FPS / 1000, queuedMillis, sent * 1000 / TICK_MILLIS);
+            return bitrate;
+        }
+
+        int queuedMillis() {
+            return (int) (queuedBits * 1000 / abr.getBitrate());
+        }
+    }
+
+    @Test
+    public void followsABandwidthDrop() {
+        Link link = new Link();
+        for (int i = 0; i < 50; i++) {
+            link.tick(3000 * 1000);
+        }
+        assertTrue("probes up on a wide link", link.abr.getBitrate() > 2000 * 1000);
+
+        // the uplink collapses to 800 kbps for a minute
+        int settledMillis = -1;
+        for (int t = 0; t < 60000; t += TICK_MILLIS) {
+            link.tick(800 * 1000);
+            if (settledMillis < 0 && link.abr.getBitrate() <= 800 * 1000 && link.queuedMillis() < 100) {
+                settledMillis = t;
+            }
+            if (settledMillis >= 0) {
+                assertTrue("no congestion once settled, queued " + link.queuedMillis() + " ms at " + t,
+                    link.queuedMillis() < 500 || link.abr.getBitrate() < 800 * 1000);
+            }
+        }
+        assertTrue("settles under the bottleneck, took " + settledMillis + " ms",
+            settledMillis >= 0 && settledMillis <= 5000);
+        assertTrue("uses most of the bottleneck: " + link.abr.getBitrate(), link.abr.getBitrate() >= 500 * 1000);
+        assertTrue("queue stayed bounded: " + link.maxQueuedMillis, link.maxQueuedMillis < 2500);
+
+        // and comes back, carefully past the bitrate that congested
+        int bottleneck = link.abr.getBitrate();
+        for (int t = 0; t < 120000; t += TICK_MILLIS) {
+            link.tick(5000 * 1000);
+        }
+        assertTrue("recovers after the bottleneck: " + link.abr.getBitrate(), link.abr.getBitrate() > 2 * bottleneck);
+        for (int t = 0; t < 120000; t += TICK_MILLIS) {
+            link.tick(5000 * 1000);
+        }
+        assertEquals(CEILING, link.abr.getBitrate());
+    }
+
+    @Test
+    public void holdsTheFloorOnADeadLink() {
+        Link link = new Link();
+        for (int t = 0; t < 20000; t += TICK_MILLIS) {
+            link.tick(50 * 1000);
+            assertTrue(link.abr.getBitrate() >= FLOOR);
+        }
+        assertEquals(FLOOR, link.abr.getBitrate());
+    }
+
+    @Test
+    public void steadyLinkIsUsedWithoutFlapping() {
+        Link link = new Link();
+        // warm up on a 1.5 Mbps link, then look at the next five minutes
+        for (int t = 0; t < 30000; t += TICK_MILLIS) {
+            link.tick(1500 * 1000);
+        }
+        int stepDowns = 0;
+        long bits = 0;
+        int previous = link.abr.getBitrate();
+        for (int t = 0; t < 300000; t += TICK_MILLIS) {
+            bits += link.tick(1500 * 1000) * TICK_MILLIS / 1000;
+            if (link.abr.getBitrate() < previous) {
+                stepDowns++;
+            }
+            previous = link.abr.getBitrate();
+        }
+        // every probe over the link costs a step down, probing near the last congestion is slow
+        assertTrue("stepped down " + stepDowns + " times", stepDowns <= 15);
+        double usage = bits / 300.0 / (1500 * 1000);
+        assertTrue("used " + usage + " of the link", usage >= 0.7 && usage <= 1.05);
+    }
+
+    @Test
+    public void waitsForTheQueueToSettle() {
+        SrsAbrController abr = new SrsAbrController(FLOOR, CEILING, 2000 * 1000, 12);
+        assertEquals(1400 * 1000, abr.update(0, 12, 0, -1));
+        // stepping down again within the hold time would overshoot
+        assertEquals(1400 * 1000, abr.update(500, 20, 800, -1));
+        assertEquals((int) (1400 * 1000 * 0.7), abr.update(1000, 20, 800, -1));
+        // the delivered bitrate takes it straight down
+        assertEquals((int) (400 * 1000 * 0.85), abr.update(2000, 20, 800, 400 * 1000));
+        // a few queued frames are no congestion
+        assertEquals((int) (400 * 1000 * 0.85), abr.update(3000, 11, 400, 400 * 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyRange() {
+        new SrsAbrController(2000 * 1000, 1000 * 1000, 1500 * 1000, 12);
+    }
+}
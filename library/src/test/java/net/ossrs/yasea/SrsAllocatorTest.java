@@ -0,0 +1,220 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Size classes, the cap on idle bytes, the statistics and the leak detection of the pool.
+ */
+public class SrsAllocatorTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void roundsUpToAPowerOfTwoClass() {
+        SrsAllocator allocator = new SrsAllocator("test", 64 * MB);
+        assertEquals(256, allocator.allocate(0).array().length);
+        assertEquals(256, allocator.allocate(1).array().length);
+        assertEquals(256, allocator.allocate(256).array().length);
+        assertEquals(512, allocator.allocate(257).array().length);
+        assertEquals(128 * 1024, allocator.allocate(100000).array().length);
+        assertEquals(8 * MB, allocator.allocate(8 * MB).array().length);
+
+        // too large to pool, exactly the size asked for and never kept
+        SrsAllocator.Allocation large = allocator.allocate(8 * MB + 1);
+        assertEquals(8 * MB + 1, large.array().length);
+        allocator.release(large);
+        assertEquals(1, allocator.getEvictionCount());
+        assertEquals(0, allocator.getPooledBytes());
+        assertEquals(0, allocator.getHitCount());
+        assertEquals(7, allocator.getMissCount());
+    }
+
+    @Test
+    public void reusesTheBuffersOfTheSameClass() {
+        SrsAllocator allocator = new SrsAllocator("test", MB);
+        SrsAllocator.Allocation first = allocator.allocate(1000);
+        first.put((byte) 1);
+        allocator.release(first);
+        assertEquals(1024, allocator.getPooledBytes());
+
+        SrsAllocator.Allocation again = allocator.allocate(600);
+        assertSame(first.array(), again.array());
+        assertEquals("empty again", 0, again.size());
+        assertEquals(0, allocator.getPooledBytes());
+        assertNotSame(first.array(), allocator.allocate(2000).array());
+        assertEquals(1, allocator.getHitCount());
+        assertEquals(2, allocator.getMissCount());
+    }
+
+    @Test
+    public void keepsNoMoreThanTheCapIdle() {
+        SrsAllocator allocator = new SrsAllocator("test", 3000);
+        // the cap bounds the idle bytes only, allocations always succeed
+        List<SrsAllocator.Allocation> allocations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            allocations.add(allocator.allocate(1024));
+        }
+        assertEquals(10 * 1024, allocator.getInUseBytes());
+
+        for (SrsAllocator.Allocation allocation : allocations) {
+            allocator.release(allocation);
+        }
+        assertEquals("two buffers of 1KB fit in 3000B", 2048, allocator.getPooledBytes());
+        assertEquals(8, allocator.getEvictionCount());
+        // no slot for a class larger than the cap
+        allocator.release(allocator.allocate(4096));
+        assertEquals(9, allocator.getEvictionCount());
+        assertEquals(2048, allocator.getPooledBytes());
+
+        allocator.trim();
+        assertEquals(0, allocator.getPooledBytes());
+        allocator.allocate(1024);
+        assertEquals("trimmed", 12, allocator.getMissCount());
+    }
+
+    @Test
+    public void tracksTheBytesInUseAndTheirHighWater() {
+        SrsAllocator allocator = new SrsAllocator("test", MB);
+        SrsAllocator.Allocation a = allocator.allocate(256);
+        SrsAllocator.Allocation b = allocator.allocate(1024);
+        assertEquals(1280, allocator.getInUseBytes());
+        assertEquals(1280, allocator.getHighWaterBytes());
+
+        allocator.release(a);
+        assertEquals(1024, allocator.getInUseBytes());
+        assertEquals(1280, allocator.getHighWaterBytes());
+        SrsAllocator.Allocation c = allocator.allocate(100);
+        assertEquals("the released one", 1, allocator.getHitCount());
+        SrsAllocator.Allocation d = allocator.allocate(512);
+        assertEquals(1792, allocator.getInUseBytes());
+        assertEquals(1792, allocator.getHighWaterBytes());
+
+        allocator.release(b);
+        allocator.release(c);
+        allocator.release(d);
+        assertEquals(0, allocator.getInUseBytes());
+        assertEquals(1792, allocator.getHighWaterBytes());
+        assertEquals(1792, allocator.getPooledBytes());
+    }
+
+    @Test
+    public void refusesToReleaseTwice() {
+        SrsAllocator allocator = new SrsAllocator("test", MB);
+        allocator.setLeakDetection(false);
+        SrsAllocator.Allocation allocation = allocator.allocate(1000);
+        allocator.release(allocation);
+        // logged and ignored in release builds, the pool is not corrupted
+        allocator.release(allocation);
+        assertEquals(0, allocator.getInUseBytes());
+        assertEquals(1024, allocator.getPooledBytes());
+        allocator.allocate(1000);
+        assertEquals(1, allocator.getHitCount());
+        assertEquals("a single buffer pooled", 0, allocator.getPooledBytes());
+
+        allocator.setLeakDetection(true);
+        allocation = allocator.allocate(1000);
+        allocator.release(allocation);
+        try {
+            allocator.release(allocation);
+            fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** Allocates and drops the allocation, out of the scope of the caller */
+    private static void leak(SrsAllocator allocator, int size) {
+        allocator.allocate(size).put((byte) 1);
+    }
+
+    @Test(timeout = 30000)
+    public void countsTheAllocationsCollectedWithoutBeingReleased() throws InterruptedException {
+        SrsAllocator allocator = new SrsAllocator("test", MB);
+        allocator.setLeakDetection(true);
+        SrsAllocator.Allocation held = allocator.allocate(1000);
+        allocator.release(allocator.allocate(2000));
+        leak(allocator, 3000);
+        assertEquals(0, allocator.getLeakCount());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (allocator.getLeakCount() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(20);
+            allocator.reportLeaks();
+        }
+        assertEquals("the dropped one only", 1, allocator.getLeakCount());
+        // still counted as in use, the pool never got it back
+        assertEquals(1024 + 4096, allocator.getInUseBytes());
+
+        // found by the next allocation as well, each leak counted once
+        leak(allocator, 3000);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (allocator.getLeakCount() == 1 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(20);
+            allocator.release(allocator.allocate(100));
+        }
+        assertEquals(2, allocator.getLeakCount());
+        assertEquals(0, allocator.reportLeaks());
+        allocator.release(held);
+    }
+
+    @Test(timeout = 60000)
+    public void sharesTheBuffersBetweenThreads() throws Throwable {
+        final SrsAllocator allocator = new SrsAllocator("test", 64 * 1024);
+        allocator.setLeakDetection(false);
+        final int rounds = 100000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SrsAllocator.Allocation[] held = new SrsAllocator.Allocation[4];
+                        for (int i = 0; i < rounds; i++) {
+                            int slot = i % held.length;
+                            if (held[slot] != null) {
+                                // nobody else wrote to the buffer meanwhile
+                                assertEquals((byte) (seed + slot), held[slot].array()[0]);
+                                allocator.release(held[slot]);
+                            }
+                            held[slot] = allocator.allocate(256 << (i % 5));
+                            held[slot].put((byte) (seed + slot));
+                        }
+                        for (SrsAllocator.Allocation allocation : held) {
+                            allocator.release(allocation);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        assertEquals(0, allocator.getInUseBytes());
+        assertEquals(threads.length * rounds, allocator.getHitCount() + allocator.getMissCount());
+        assertTrue(allocator.getHitCount() > allocator.getMissCount());
+        assertTrue(allocator.getPooledBytes() <= 64 * 1024);
+        assertTrue(allocator.getHighWaterBytes() <= threads.length * 4 * 4096);
+    }
+}
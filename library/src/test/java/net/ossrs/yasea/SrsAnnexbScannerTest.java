@@ -0,0 +1,164 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The word-at-a-time start code search against a byte-by-byte one, on heap, sliced and direct
+ * buffers of both byte orders.
+ */
+public class SrsAnnexbScannerTest {
+
+    private static int naiveFindStartCode(byte[] data, int offset, int end) {
+        for (int i = offset; i + 2 < end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The buffers the encoder may hand over, all holding data from index 0 */
+    private static ByteBuffer[] buffers(byte[] data) {
+        ByteBuffer heap = ByteBuffer.wrap(data.clone());
+        ByteBuffer little = ByteBuffer.wrap(data.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        // a slice starts at an odd offset of its array, the words are not aligned
+        byte[] larger = new byte[data.length + 5];
+        System.arraycopy(data, 0, larger, 5, data.length);
+        ByteBuffer sliced = ByteBuffer.wrap(larger, 5, data.length).slice();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).clear();
+        ByteBuffer directLittle = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN);
+        directLittle.put(data).clear();
+        return new ByteBuffer[] {heap, little, sliced, direct, directLittle};
+    }
+
+    @Test
+    public void findsStartCodesAcrossWords() {
+        // a start code at every position relative to the words, searched from every offset
+        for (int length = 3; length <= 40; length++) {
+            for (int at = 0; at + 3 <= length; at++) {
+                byte[] data = new byte[length];
+                Arrays.fill(data, (byte) 0x5a);
+                data[at] = 0;
+                data[at + 1] = 0;
+                data[at + 2] = 1;
+                for (ByteBuffer bb : buffers(data)) {
+                    for (int offset = 0; offset <= length; offset++) {
+                        for (int end = offset; end <= length; end++) {
+                            assertEquals("start code at " + at + " of " + length + " in [" + offset + ", " + end
+                                    + ") of " + bb, naiveFindStartCode(data, offset, end),
+                                SrsAnnexbScanner.findStartCode(bb, offset, end));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheByteSearchOnZeroRichData() {
+        // zero bytes everywhere, some runs of them, 01 bytes after some: most words hold candidates
+        Random random = new Random(20261018);
+        for (int round = 0; round < 2000; round++) {
+            byte[] data = new byte[1 + random.nextInt(100)];
+            for (int i = 0; i < data.length; i++) {
+                int r = random.nextInt(8);
+                data[i] = (byte) (r < 4 ? 0 : r == 4 ? 1 : r == 5 ? 0x80 : random.nextInt(256));
+            }
+            for (ByteBuffer bb : buffers(data)) {
+                int offset = random.nextInt(data.length);
+                int end = offset + random.nextInt(data.length - offset + 1);
+                // every start code, one after the other
+                int expected = naiveFindStartCode(data, offset, end);
+                int actual = SrsAnnexbScanner.findStartCode(bb, offset, end);
+                assertEquals(expected, actual);
+                while (expected >= 0) {
+                    expected = naiveFindStartCode(data, expected + 1, end);
+                    actual = SrsAnnexbScanner.findStartCode(bb, actual + 1, end);
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    private static byte[] annexb(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, pos, part.length);
+            pos += part.length;
+        }
+        return data;
+    }
+
+    @Test
+    public void splitsAndRewritesNalus() {
+        byte[] sps = {0x67, 0x42, (byte) 0xc0, 0x1e, 0x11};
+        byte[] pps = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+        byte[] idr = new byte[300];
+        idr[0] = 0x65;
+        for (int i = 1; i < idr.length; i++) {
+            // emulation prevented payload: 00 00 03, never 00 00 01
+            idr[i] = (byte) (i % 3 == 0 ? 3 : i % 7 == 0 ? 0 : i);
+        }
+        byte[] data = annexb(new byte[] {0, 0, 0, 1}, sps, new byte[] {0, 0, 1}, pps,
+            // trailing zeros, then an empty NAL unit
+            new byte[] {0, 0, 0, 0, 0, 1, 0, 0, 1}, idr, new byte[] {0, 0});
+
+        SrsAnnexbScanner scanner = new SrsAnnexbScanner();
+        for (ByteBuffer bb : buffers(data)) {
+            assertEquals(3, scanner.scan(bb, 0, data.length));
+            assertEquals(4, scanner.getOffset(0));
+            assertEquals(sps.length, scanner.getSize(0));
+            assertEquals(7, scanner.getNaluType(bb, 0));
+            assertEquals(pps.length, scanner.getSize(1));
+            assertEquals(8, scanner.getNaluType(bb, 1));
+            assertEquals(idr.length, scanner.getSize(2));
+            assertEquals(5, scanner.getNaluType(bb, 2));
+
+            byte[] payload = new byte[idr.length + 2];
+            scanner.copy(bb, 2, payload, 2);
+            assertArrayEquals(idr, Arrays.copyOfRange(payload, 2, payload.length));
+
+            int[] indexes = {2, 0};
+            int size = scanner.getAvccSize(indexes, 2);
+            assertEquals(8 + idr.length + sps.length, size);
+            byte[] avcc = new byte[size + 1];
+            assertEquals(size, scanner.writeAvcc(bb, indexes, 2, avcc, 1));
+            byte[] expected = annexb(new byte[] {0, 0, 0x01, 0x2c}, idr, new byte[] {0, 0, 0, 5}, sps);
+            assertArrayEquals(expected, Arrays.copyOfRange(avcc, 1, avcc.length));
+        }
+    }
+
+    @Test
+    public void reusesItsArraysForManyNalus() {
+        // more NAL units than the arrays hold at first
+        byte[] data = new byte[100 * 5];
+        for (int i = 0; i < 100; i++) {
+            data[i * 5 + 2] = 1;
+            data[i * 5 + 3] = 0x41;
+            data[i * 5 + 4] = (byte) (i + 1);
+        }
+        SrsAnnexbScanner scanner = new SrsAnnexbScanner();
+        for (ByteBuffer bb : buffers(data)) {
+            assertEquals(100, scanner.scan(bb, 0, data.length));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i * 5 + 3, scanner.getOffset(i));
+                assertEquals(2, scanner.getSize(i));
+            }
+        }
+        assertEquals(0, scanner.scan(ByteBuffer.wrap(new byte[] {0x41, 0, 0}), 0, 3));
+    }
+}
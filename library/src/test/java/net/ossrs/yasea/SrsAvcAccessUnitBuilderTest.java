@@ -0,0 +1,173 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Access units of pictures coded in several slices, with the NAL units encoders put around them.
+ */
+public class SrsAvcAccessUnitBuilderTest {
+
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+    private static final byte[] SEI = {0x06, 0x05, 0x02, 0x11, 0x22, (byte) 0x80};
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] FILLER = {0x0c, (byte) 0xff, (byte) 0xff, (byte) 0x80};
+
+    /** A slice of the type and nal_ref_idc given, its payload tells it apart from the others */
+    private static byte[] slice(int type, int refIdc, int index, int size) {
+        byte[] nalu = new byte[size];
+        nalu[0] = (byte) (refIdc << 5 | type);
+        for (int i = 1; i < size; i++) {
+            nalu[i] = (byte) (index * 16 + (i & 0xf) | 0x80);
+        }
+        return nalu;
+    }
+
+    private static ByteBuffer annexb(byte[]... nalus) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < nalus.length; i++) {
+            // the 4 bytes start code for the first one, as encoders do
+            out.write(new byte[] {0, 0, 0, 1}, i == 0 ? 0 : 1, i == 0 ? 4 : 3);
+            out.write(nalus[i], 0, nalus[i].length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static byte[] avcc(byte[]... nalus) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nalu : nalus) {
+            out.write(nalu.length >>> 24);
+            out.write(nalu.length >>> 16);
+            out.write(nalu.length >>> 8);
+            out.write(nalu.length);
+            out.write(nalu, 0, nalu.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] written(SrsAvcAccessUnitBuilder builder, ByteBuffer bb) {
+        byte[] dst = new byte[builder.getAvccSize() + 3];
+        assertEquals(builder.getAvccSize(), builder.writeAvcc(bb, dst, 3));
+        return Arrays.copyOfRange(dst, 3, dst.length);
+    }
+
+    @Test
+    public void keyFrameInFourSlices() {
+        byte[][] slices = new byte[4][];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = slice(5, 3, i, 200 + i * 50);
+        }
+        ByteBuffer bb = annexb(AUD, SEI, SPS, PPS, slices[0], slices[1], slices[2], slices[3], FILLER);
+        SrsAvcAccessUnitBuilder builder = new SrsAvcAccessUnitBuilder();
+
+        assertEquals(9, builder.build(bb, 0, bb.limit()));
+        assertEquals(4, builder.getSliceCount());
+        assertTrue(builder.isKeyFrame());
+        assertFalse(builder.isDisposable());
+        assertEquals(2, builder.getSpsIndex());
+        assertEquals(3, builder.getPpsIndex());
+        assertEquals(SPS.length, builder.getNalus().getSize(builder.getSpsIndex()));
+        assertEquals(PPS.length, builder.getNalus().getSize(builder.getPpsIndex()));
+        // every slice, with the SEI; the parameter sets go to the codec configuration
+        assertArrayEquals(avcc(SEI, slices[0], slices[1], slices[2], slices[3]), written(builder, bb));
+    }
+
+    @Test
+    public void keepsWhatThePolicyAsksFor() {
+        byte[] first = slice(5, 3, 0, 100);
+        byte[] second = slice(5, 3, 1, 100);
+        ByteBuffer bb = annexb(AUD, SEI, SPS, PPS, first, second, FILLER);
+        SrsAvcAccessUnitBuilder builder = new SrsAvcAccessUnitBuilder();
+
+        builder.setKeepAud(true);
+        builder.setKeepFiller(true);
+        builder.build(bb, 0, bb.limit());
+        assertArrayEquals(avcc(AUD, SEI, first, second, FILLER), written(builder, bb));
+
+        builder.setKeepAud(false);
+        builder.setKeepSei(false);
+        builder.setKeepFiller(false);
+        builder.build(bb, 0, bb.limit());
+        assertArrayEquals(avcc(first, second), written(builder, bb));
+        assertEquals(2, builder.getSliceCount());
+    }
+
+    @Test
+    public void interFramesAndDisposability() {
+        SrsAvcAccessUnitBuilder builder = new SrsAvcAccessUnitBuilder();
+
+        // a reference picture, its slices do not all need to say so
+        ByteBuffer reference = annexb(AUD, slice(1, 2, 0, 80), slice(1, 0, 1, 80), slice(1, 2, 2, 80));
+        builder.build(reference, 0, reference.limit());
+        assertEquals(3, builder.getSliceCount());
+        assertFalse(builder.isKeyFrame());
+        assertFalse(builder.isDisposable());
+        assertEquals(-1, builder.getSpsIndex());
+        assertEquals(-1, builder.getPpsIndex());
+
+        // a B-frame nothing refers to
+        byte[] b0 = slice(1, 0, 0, 60);
+        byte[] b1 = slice(1, 0, 1, 60);
+        ByteBuffer nonReference = annexb(b0, b1);
+        builder.build(nonReference, 0, nonReference.limit());
+        assertTrue(builder.isDisposable());
+        assertFalse(builder.isKeyFrame());
+        assertArrayEquals(avcc(b0, b1), written(builder, nonReference));
+
+        // an IDR slice among others makes it a key frame
+        ByteBuffer mixed = annexb(slice(1, 2, 0, 60), slice(5, 3, 1, 60));
+        builder.build(mixed, 0, mixed.limit());
+        assertTrue(builder.isKeyFrame());
+        assertFalse(builder.isDisposable());
+    }
+
+    @Test
+    public void codecConfigurationAlone() {
+        ByteBuffer bb = annexb(SPS, PPS);
+        SrsAvcAccessUnitBuilder builder = new SrsAvcAccessUnitBuilder();
+        assertEquals(2, builder.build(bb, 0, bb.limit()));
+        assertEquals(0, builder.getSliceCount());
+        assertFalse(builder.isKeyFrame());
+        // no picture, nothing to drop
+        assertFalse(builder.isDisposable());
+        assertEquals(0, builder.getAvccSize());
+        assertEquals(0, builder.getSpsIndex());
+        assertEquals(1, builder.getPpsIndex());
+
+        // and nothing at all without a start code
+        ByteBuffer garbage = ByteBuffer.wrap(new byte[] {0x65, 0x11, 0x22});
+        assertEquals(0, builder.build(garbage, 0, garbage.limit()));
+        assertEquals(0, builder.getSliceCount());
+        assertEquals(-1, builder.getSpsIndex());
+    }
+
+    @Test
+    public void manySlicesFromADirectBufferRange() {
+        // more slices than the index arrays hold at first, in a direct buffer at an offset
+        byte[][] slices = new byte[40][];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = slice(1, 2, i, 30 + i);
+        }
+        ByteBuffer heap = annexb(slices);
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.limit() + 16);
+        direct.position(8);
+        direct.put(heap);
+        direct.put(new byte[] {0, 0, 1, 0x41, 0x7f});
+        direct.clear();
+
+        SrsAvcAccessUnitBuilder builder = new SrsAvcAccessUnitBuilder();
+        // the slice after the range is not part of it
+        assertEquals(40, builder.build(direct, 8, 8 + heap.limit()));
+        assertEquals(40, builder.getSliceCount());
+        assertArrayEquals(avcc(slices), written(builder, direct));
+    }
+}
@@ -0,0 +1,82 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Derives the dts of a hardware encoder putting a B-frame between two references, IPBPB...
+ */
+public class SrsDtsQueueTest {
+
+    private static final long FRAME_US = 1000000L / 24;
+
+    private final SrsDtsQueue queue = new SrsDtsQueue();
+
+    private static long pts(int frame) {
+        return 1000000 + frame * FRAME_US;
+    }
+
+    private long next(long pts, int flags) {
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.presentationTimeUs = pts;
+        bi.flags = flags;
+        return queue.next(bi);
+    }
+
+    /** the output order of one B-frame between two references: 0 2 1 4 3 6 5... */
+    private static int outputFrame(int n) {
+        return n == 0 ? 0 : n % 2 == 1 ? n + 1 : n - 1;
+    }
+
+    @Test
+    public void keepsThePtsWithoutReordering() {
+        queue.reset(0);
+        for (int frame = 0; frame < 10; frame++) {
+            queue.queue(pts(frame));
+            assertEquals(pts(frame), next(pts(frame), frame == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0));
+        }
+    }
+
+    @Test
+    public void lagsThePtsInInputOrderByTheReorderDelay() {
+        queue.reset(FRAME_US);
+        assertEquals("the codec config consumes no frame", 0, next(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        int frames = 20;
+        long lastDts = -1;
+        for (int n = 0; n < frames; n++) {
+            queue.queue(pts(n));
+            if (n == 0) {
+                // held back until the next reference is in
+                continue;
+            }
+            int out = outputFrame(n - 1);
+            long dts = next(pts(out), out == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            assertTrue("dts " + dts + " after " + lastDts, dts > lastDts);
+            assertTrue("not after the pts", dts <= pts(out));
+            if (n > 2) {
+                assertEquals(pts(n - 1) - FRAME_US, dts);
+            }
+            lastDts = dts;
+        }
+    }
+
+    @Test
+    public void forgetsTheFramesDroppedBeforeAnIdr() {
+        queue.reset(FRAME_US);
+        for (int frame = 0; frame < 4; frame++) {
+            queue.queue(pts(frame));
+        }
+        // frames 0 to 2 never come out, the encoder restarts with an IDR at frame 3
+        long dts = next(pts(3), MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertEquals(pts(3) - FRAME_US, dts);
+
+        queue.queue(pts(4));
+        queue.queue(pts(5));
+        assertEquals(pts(4) - FRAME_US, next(pts(5), 0));
+        assertEquals(pts(5) - FRAME_US, next(pts(4), 0));
+    }
+}
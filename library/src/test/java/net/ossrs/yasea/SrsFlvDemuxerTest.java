@@ -0,0 +1,187 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import com.github.faucamp.simplertmp.BackgroundThreadsRule;
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.io.RtmpIngestServer;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes to the in-process {@link RtmpIngestServer}, which relays the stream to the demuxer playing it.
+ */
+public class SrsFlvDemuxerTest {
+
+    private static final int FPS = 24;
+    private static final int GOP = 24;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2, 3, 0, 0, 0, 1, 0x68, 0x11, 0x22};
+    private static final byte[] AAC_CONFIG = {0x12, 0x10};
+
+    @Rule
+    public final BackgroundThreadsRule backgroundThreads = new BackgroundThreadsRule();
+
+    private final RtmpIngestServer server = new RtmpIngestServer();
+    private final RecordingRtmpHandler publisherHandler = new RecordingRtmpHandler();
+    private final SrsFlvMuxer muxer = new SrsFlvMuxer(publisherHandler);
+    private final SrsFlvDemuxer demuxer = new SrsFlvDemuxer(new RecordingRtmpHandler());
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private int audioFrames;
+
+    @Before
+    public void setUp() throws Exception {
+        server.start();
+        // released as soon as they come, there is no jitter on the loopback
+        demuxer.setDelay(0, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        demuxer.stop();
+        server.stop();
+    }
+
+    private static int dts(int frame) {
+        return frame * 1000 / FPS;
+    }
+
+    private static int audioDts(int frame) {
+        return (int) (frame * 1024L * 1000 / 44100);
+    }
+
+    private void writeSample(int track, byte[] sample, int pts, int flags) {
+        bufferInfo.offset = 0;
+        bufferInfo.size = sample.length;
+        bufferInfo.presentationTimeUs = pts * 1000L;
+        bufferInfo.flags = flags;
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), bufferInfo);
+    }
+
+    /** a key frame every GOP, small enough to be aggregated, then the AAC frames up to its time */
+    private void writeFrame(int frame) {
+        boolean key = frame % GOP == 0;
+        byte[] video = new byte[key ? 3000 : 1000];
+        Arrays.fill(video, (byte) (frame % 100 + 1));
+        video[0] = video[1] = video[2] = 0;
+        video[3] = 1;
+        video[4] = (byte) (key ? 0x65 : 0x41);
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, video, dts(frame), key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        for (; audioDts(audioFrames) <= dts(frame); audioFrames++) {
+            byte[] audio = new byte[300];
+            Arrays.fill(audio, (byte) audioFrames);
+            writeSample(SrsFlvMuxer.AUDIO_TRACK, audio, audioDts(audioFrames), 0);
+        }
+    }
+
+    private void publish(int frames) throws Exception {
+        String url = server.getUrl("live", "test");
+        demuxer.start(url);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!demuxer.isPlaying() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(demuxer.isPlaying());
+
+        muxer.start(url);
+        while (!publisherHandler.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(publisherHandler.isConnected());
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        writeSample(SrsFlvMuxer.AUDIO_TRACK, AAC_CONFIG, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        for (int frame = 0; frame < frames; frame++) {
+            writeFrame(frame);
+            Thread.sleep(1000 / FPS / 4);
+        }
+    }
+
+    /** Reads what the demuxer plays out until the video frames came, or the time runs out */
+    private List<SrsAccessUnit> play(int frames) throws InterruptedException {
+        List<SrsAccessUnit> units = new ArrayList<>();
+        int videoFrames = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (videoFrames < frames && System.currentTimeMillis() < deadline) {
+            SrsAccessUnit unit = demuxer.readAccessUnit(100);
+            if (unit != null) {
+                units.add(unit);
+                if (unit.isVideo() && !unit.isConfig()) {
+                    videoFrames++;
+                }
+            }
+        }
+        return units;
+    }
+
+    private void assertStream(List<SrsAccessUnit> units, int frames) {
+        int videoFrame = 0;
+        int audioFrame = 0;
+        boolean videoConfig = false;
+        boolean audioConfig = false;
+        for (SrsAccessUnit unit : units) {
+            byte[] data = unit.getData();
+            if (unit.isConfig()) {
+                videoConfig |= unit.isVideo();
+                audioConfig |= unit.isAudio();
+            } else if (unit.isVideo()) {
+                assertEquals("frame " + videoFrame, dts(videoFrame), unit.getDts());
+                assertEquals(videoFrame % GOP == 0, unit.isKeyFrame());
+                // the slice comes last, after the SPS and PPS of a key frame
+                assertEquals(videoFrame % 100 + 1, data[data.length - 1]);
+                videoFrame++;
+            } else {
+                assertEquals("audio " + audioFrame, audioDts(audioFrame), unit.getDts());
+                assertEquals(300, data.length);
+                assertEquals((byte) audioFrame, data[0]);
+                audioFrame++;
+            }
+        }
+        assertTrue(videoConfig);
+        assertTrue(audioConfig);
+        assertEquals(frames, videoFrame);
+        // the audio of the last frame may still be on its way
+        assertTrue(audioFrame >= audioFrames - 2);
+        assertEquals(0, demuxer.getJitterBuffer().getDroppedCount());
+    }
+
+    private int aggregateCount() {
+        int count = 0;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getType() == RtmpHeader.MessageType.AGGREGATE_MESSAGE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void playsWhatIsPublished() throws Exception {
+        int frames = 2 * GOP;
+        publish(frames);
+        assertStream(play(frames), frames);
+        assertEquals(0, aggregateCount());
+    }
+
+    @Test
+    public void playsTheAggregatesPassedThrough() throws Exception {
+        server.setRelayAggregates(true);
+        muxer.setAggregation(100);
+        int frames = 2 * GOP;
+        publish(frames);
+        assertStream(play(frames), frames);
+        // split by the player, not by the server
+        assertTrue(aggregateCount() > 0);
+    }
+}
@@ -0,0 +1,186 @@
+package net.ossrs.yasea;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The send queue of a destination falling behind: disposable frames go beyond half the latency, the
+ * rest of the GOP beyond all of it, audio and sequence headers never.
+ */
+public class SrsFlvFrameQueueTest {
+
+    // E.4.1 FLV Tags, TagType
+    private static final int AUDIO = 8;
+    private static final int VIDEO = 9;
+    // E.4.3.1 VIDEODATA, FrameType
+    private static final int KEY_FRAME = 1;
+    private static final int INTER_FRAME = 2;
+    // AVCPacketType, 0 for the sequence header
+    private static final int SEQUENCE_HEADER = 0;
+    private static final int NALU = 1;
+    private static final int MAX_LATENCY = 800;
+    private static final int FRAME_MILLIS = 40;
+
+    private final SrsFlvMuxer muxer = new SrsFlvMuxer(new RtmpHandler(null));
+    private final AtomicInteger cached = new AtomicInteger();
+    private final SrsFlvMuxer.SrsFlvFrameQueue queue = muxer.new SrsFlvFrameQueue(cached);
+
+    @After
+    public void tearDown() {
+        queue.clear();
+        assertEquals("video frames counted in the publisher", 0, cached.get());
+        assertEquals("every tag released", 0, muxer.getAllocator().getInUseBytes());
+    }
+
+    private SrsFlvMuxer.SrsFlvFrame frame(int type, int frameType, int avcAacType, boolean disposable, int dts) {
+        SrsFlvMuxer.SrsFlvFrame frame = muxer.new SrsFlvFrame();
+        frame.flvTag = muxer.getAllocator().allocate(64);
+        frame.type = type;
+        frame.frame_type = frameType;
+        frame.avc_aac_type = avcAacType;
+        frame.disposable = disposable;
+        frame.dts = dts;
+        return frame;
+    }
+
+    private void addVideo(int frameType, boolean disposable, int dts) {
+        queue.add(frame(VIDEO, frameType, NALU, disposable, dts));
+    }
+
+    private void addAudio(int dts) {
+        queue.add(frame(AUDIO, 0, 1, false, dts));
+    }
+
+    private List<SrsFlvMuxer.SrsFlvFrame> drain() {
+        List<SrsFlvMuxer.SrsFlvFrame> frames = new ArrayList<>();
+        SrsFlvMuxer.SrsFlvFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frames.add(frame);
+            if (frame.isVideo()) {
+                cached.decrementAndGet();
+            }
+        }
+        return frames;
+    }
+
+    private void release(List<SrsFlvMuxer.SrsFlvFrame> frames) {
+        for (SrsFlvMuxer.SrsFlvFrame frame : frames) {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void keepsEverythingWithinHalfTheLatency() {
+        for (int dts = 0; dts <= MAX_LATENCY / 2; dts += FRAME_MILLIS) {
+            addVideo(dts == 0 ? KEY_FRAME : INTER_FRAME, dts % (2 * FRAME_MILLIS) != 0, dts);
+            addAudio(dts);
+        }
+        assertEquals(MAX_LATENCY / 2, queue.getVideoDuration());
+        assertEquals(0, queue.getDroppedDisposableFrames());
+        assertEquals(0, queue.getDroppedGops());
+        assertEquals(MAX_LATENCY / 2 / FRAME_MILLIS + 1, cached.get());
+    }
+
+    @Test
+    public void dropsDisposableFramesBeyondHalfTheLatency() {
+        int disposables = 0;
+        int dts = 0;
+        for (; dts <= MAX_LATENCY / 2 + FRAME_MILLIS; dts += FRAME_MILLIS) {
+            boolean disposable = dts % (2 * FRAME_MILLIS) != 0;
+            disposables += disposable ? 1 : 0;
+            addVideo(dts == 0 ? KEY_FRAME : INTER_FRAME, disposable, dts);
+            addAudio(dts);
+        }
+        assertEquals("every disposable frame queued goes", disposables, queue.getDroppedDisposableFrames());
+        assertEquals("not the GOP", 0, queue.getDroppedGops());
+
+        List<SrsFlvMuxer.SrsFlvFrame> frames = drain();
+        int audio = 0;
+        int video = 0;
+        for (SrsFlvMuxer.SrsFlvFrame frame : frames) {
+            if (frame.isAudio()) {
+                assertEquals(audio++ * FRAME_MILLIS, frame.dts);
+            } else {
+                assertFalse(frame.disposable);
+                assertEquals(video++ * 2 * FRAME_MILLIS, frame.dts);
+            }
+        }
+        assertEquals("audio is never dropped", dts / FRAME_MILLIS, audio);
+        assertTrue(frames.get(0).isKeyFrame());
+        release(frames);
+    }
+
+    @Test
+    public void dropsTheGopBeyondTheLatency() {
+        queue.add(frame(VIDEO, KEY_FRAME, SEQUENCE_HEADER, false, 0));
+        queue.add(frame(AUDIO, 0, SEQUENCE_HEADER, false, 0));
+        int dts = 0;
+        for (; dts <= MAX_LATENCY; dts += FRAME_MILLIS) {
+            addVideo(dts == 0 ? KEY_FRAME : INTER_FRAME, false, dts);
+            addAudio(dts);
+        }
+        assertEquals("within the latency", 0, queue.getDroppedGops());
+
+        // one frame more, and no key frame to resume at: the queued video goes, then until the next key frame
+        addVideo(INTER_FRAME, false, dts);
+        addAudio(dts);
+        assertEquals(1, queue.getDroppedGops());
+        assertEquals(MAX_LATENCY / FRAME_MILLIS + 2, queue.getDroppedGopFrames());
+        assertEquals("only the sequence header is left", 1, cached.get());
+        for (dts += FRAME_MILLIS; dts < 1200; dts += FRAME_MILLIS) {
+            addVideo(INTER_FRAME, false, dts);
+            addAudio(dts);
+        }
+        long dropped = queue.getDroppedGopFrames();
+        assertEquals(MAX_LATENCY / FRAME_MILLIS + 2 + (1200 - MAX_LATENCY - 2 * FRAME_MILLIS) / FRAME_MILLIS, dropped);
+        addVideo(KEY_FRAME, false, dts);
+        addVideo(INTER_FRAME, false, dts + FRAME_MILLIS);
+        assertEquals("sent again from the key frame", dropped, queue.getDroppedGopFrames());
+
+        List<SrsFlvMuxer.SrsFlvFrame> frames = drain();
+        assertTrue("sequence headers are kept", frames.get(0).isSequenceHeader() && frames.get(0).isVideo());
+        assertTrue(frames.get(1).isSequenceHeader() && frames.get(1).isAudio());
+        int audio = 0;
+        List<Integer> video = new ArrayList<>();
+        for (SrsFlvMuxer.SrsFlvFrame frame : frames.subList(2, frames.size())) {
+            if (frame.isAudio()) {
+                assertEquals(audio++ * FRAME_MILLIS, frame.dts);
+            } else {
+                video.add(frame.dts);
+            }
+        }
+        assertEquals(dts / FRAME_MILLIS, audio);
+        assertEquals(2, video.size());
+        assertEquals(dts, (int) video.get(0));
+        release(frames);
+    }
+
+    @Test
+    public void resumesAtTheNewestKeyFrameWithinTheLatency() {
+        int key = 600;
+        int dts = 0;
+        for (; dts <= MAX_LATENCY + FRAME_MILLIS; dts += FRAME_MILLIS) {
+            addVideo(dts == 0 || dts == key ? KEY_FRAME : INTER_FRAME, false, dts);
+        }
+        assertEquals(1, queue.getDroppedGops());
+        assertEquals(key / FRAME_MILLIS, queue.getDroppedGopFrames());
+        // no frame is lost after the key frame
+        addVideo(INTER_FRAME, false, dts);
+
+        List<SrsFlvMuxer.SrsFlvFrame> frames = drain();
+        assertTrue(frames.get(0).isKeyFrame());
+        assertEquals(key, frames.get(0).dts);
+        assertEquals((dts - key) / FRAME_MILLIS + 1, frames.size());
+        release(frames);
+    }
+}
@@ -0,0 +1,526 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import com.github.faucamp.simplertmp.BackgroundThreadsRule;
+import com.github.faucamp.simplertmp.RecordingRtmpHandler;
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfReader;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.io.RtmpIngestServer;
+import com.github.faucamp.simplertmp.io.RtmpTransport;
+import com.github.faucamp.simplertmp.packets.Data;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes annexb video and AAC to the in-process {@link RtmpIngestServer}, over every transport.
+ */
+@RunWith(Parameterized.class)
+public class SrsFlvMuxerTest {
+
+    private static final int FPS = 24;
+    private static final int GOP = 48;
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2, 3, 0, 0, 0, 1, 0x68, 0x11, 0x22};
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> transports() {
+        List<Object[]> types = new ArrayList<>();
+        for (RtmpTransport.Type type : RtmpTransport.Type.values()) {
+            types.add(new Object[] {type});
+        }
+        return types;
+    }
+
+    @Rule
+    public final BackgroundThreadsRule backgroundThreads = new BackgroundThreadsRule();
+
+    private final RtmpTransport.Type transportType;
+    private final List<RtmpIngestServer> servers = new ArrayList<>();
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private SrsFlvMuxer muxer;
+    private int audioFrames;
+
+    public SrsFlvMuxerTest(RtmpTransport.Type transportType) {
+        this.transportType = transportType;
+    }
+
+    @Before
+    public void setUp() {
+        muxer = new SrsFlvMuxer(new RecordingRtmpHandler());
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        for (RtmpIngestServer server : servers) {
+            server.stop();
+        }
+    }
+
+    private RtmpIngestServer startServer() throws IOException {
+        RtmpIngestServer server = new RtmpIngestServer();
+        server.start();
+        servers.add(server);
+        return server;
+    }
+
+    private static int dts(int frame) {
+        return frame * 1000 / FPS;
+    }
+
+    private void writeSample(int track, byte[] sample, int pts, int flags) {
+        bufferInfo.offset = 0;
+        bufferInfo.size = sample.length;
+        bufferInfo.presentationTimeUs = pts * 1000L;
+        bufferInfo.flags = flags;
+        muxer.writeSampleData(track, ByteBuffer.wrap(sample), bufferInfo);
+    }
+
+    /** a key frame every GOP, then the AAC frames up to its time, the first one taken for the config */
+    private void writeFrame(int frame) {
+        boolean key = frame % GOP == 0;
+        byte[] video = new byte[key ? 100000 : 15000];
+        // no start code nor trailing zeros in the slice
+        Arrays.fill(video, (byte) (frame % 100 + 1));
+        video[0] = video[1] = video[2] = 0;
+        video[3] = 1;
+        video[4] = (byte) (key ? 0x65 : 0x41);
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, video, dts(frame), key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        for (; audioFrames * 1024L * 1000 / 44100 <= dts(frame); audioFrames++) {
+            byte[] audio = new byte[300];
+            audio[0] = 0x12;
+            audio[1] = 0x10;
+            writeSample(SrsFlvMuxer.AUDIO_TRACK, audio, (int) (audioFrames * 1024L * 1000 / 44100), 0);
+        }
+    }
+
+    private static List<RtmpIngestServer.ReceivedMessage> video(RtmpIngestServer server) {
+        List<RtmpIngestServer.ReceivedMessage> video = new ArrayList<>();
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getType() == RtmpHeader.MessageType.VIDEO) {
+                video.add(message);
+            }
+        }
+        return video;
+    }
+
+    private static boolean isKeyFrame(RtmpIngestServer.ReceivedMessage message) {
+        return (message.getData()[0] >> 4) == 1;
+    }
+
+    private static boolean isSequenceHeader(RtmpIngestServer.ReceivedMessage message) {
+        return message.getData()[1] == 0;
+    }
+
+    @Test
+    public void aSlowDestinationDropsItsOwnGops() throws Exception {
+        RtmpIngestServer fast = startServer();
+        RtmpIngestServer slow = startServer();
+        slow.setBandwidth(64 * 1024);
+        // the send buffer follows the window, not to take in the whole stream
+        slow.setPeerBandwidth(64 * 1024);
+        RecordingRtmpHandler slowHandler = new RecordingRtmpHandler();
+        muxer.setTransportType(transportType);
+        muxer.setMaxQueueLatency(60000);
+        muxer.start(fast.getUrl("live", "fast"));
+        SrsFlvMuxer.SrsRtmpDestination backup = muxer.addDestination(slow.getUrl("live", "slow"), slowHandler);
+        backup.setTransportType(transportType);
+        backup.setMaxQueueLatency(500);
+        // the destinations join the stream from its first key frame on
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        // 10s of stream at four times the real time, 1.6MB/s over a 64KB/s link
+        int frames = 10 * FPS;
+        for (int frame = 0; frame < frames; frame++) {
+            writeFrame(frame);
+            Thread.sleep(1000 / FPS / 4);
+        }
+        assertTrue("the fast destination is not held back",
+            fast.awaitMessages(RtmpHeader.MessageType.VIDEO, frames + 1, 2000));
+        assertTrue(fast.awaitMessages(RtmpHeader.MessageType.AUDIO, audioFrames, 2000));
+
+        List<RtmpIngestServer.ReceivedMessage> video = video(fast);
+        assertTrue(isSequenceHeader(video.get(0)));
+        for (int frame = 0; frame < frames; frame++) {
+            RtmpIngestServer.ReceivedMessage message = video.get(frame + 1);
+            assertEquals(dts(frame), message.getTimestamp());
+            assertEquals(frame % GOP == 0, isKeyFrame(message));
+        }
+        assertEquals(0, muxer.getDroppedGopCount());
+        assertEquals(0, muxer.getDroppedDisposableFrameCount());
+
+        assertTrue(backup.getDroppedGopCount() > 0);
+        assertTrue(slowHandler.isConnected());
+        // what goes through is the stream with whole GOPs missing
+        List<RtmpIngestServer.ReceivedMessage> slowVideo = video(slow);
+        assertTrue(isSequenceHeader(slowVideo.get(0)));
+        assertTrue(isKeyFrame(slowVideo.get(1)));
+        for (int i = 2; i < slowVideo.size(); i++) {
+            int gap = slowVideo.get(i).getTimestamp() - slowVideo.get(i - 1).getTimestamp();
+            assertTrue("timestamps go on", gap > 0);
+            if (gap > 1000 / FPS + 1) {
+                assertTrue("resumed at a key frame", isKeyFrame(slowVideo.get(i)));
+            }
+        }
+        assertTrue(slowVideo.size() < frames);
+
+        // not held until the slow link drained
+        long stopStart = System.nanoTime();
+        muxer.stop();
+        assertTrue(System.nanoTime() - stopStart < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, muxer.getVideoFrameCacheNumber().get());
+        assertEquals(0, backup.getVideoFrameCacheNumber().get());
+        assertEquals("every tag released", 0, muxer.getAllocator().getInUseBytes());
+    }
+
+    /** the slice of an inter frame starts with its frame number */
+    private static boolean isFrame(RtmpIngestServer.ReceivedMessage message, int frame) {
+        return !isKeyFrame(message) && message.getData()[10] == (byte) (frame % 100 + 1);
+    }
+
+    @Test
+    public void resumesWithMonotonicTimestampsAfterReconnecting() throws Exception {
+        RtmpIngestServer server = startServer();
+        RecordingRtmpHandler handler = new RecordingRtmpHandler();
+        muxer = new SrsFlvMuxer(handler);
+        muxer.setTransportType(transportType);
+        muxer.setReconnectBackoff(50, 200);
+        muxer.start(server.getUrl("live", "test"));
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        // lost in the middle of the second GOP, which is replayed from its key frame
+        int frames = 5 * FPS;
+        for (int frame = 0; frame < frames; frame++) {
+            if (frame == GOP + GOP / 4) {
+                server.dropConnections();
+            }
+            writeFrame(frame);
+            Thread.sleep(1000 / FPS / 4);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        List<RtmpIngestServer.ReceivedMessage> video = video(server);
+        while (!isFrame(video.get(video.size() - 1), frames - 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            video = video(server);
+        }
+        assertTrue("the last frame is sent on the new connection", isFrame(video.get(video.size() - 1), frames - 1));
+        assertEquals(1, video.get(video.size() - 1).getConnection());
+        assertEquals(1, muxer.getReconnectCount());
+
+        int lastVideo = -1;
+        int lastAudio = -1;
+        int connection = 0;
+        boolean keyFrameSent = false;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (message.getConnection() != connection) {
+                connection = message.getConnection();
+                keyFrameSent = false;
+            }
+            if (message.getType() == RtmpHeader.MessageType.VIDEO && !isSequenceHeader(message)) {
+                assertTrue(message + " after " + lastVideo, message.getTimestamp() > lastVideo);
+                assertTrue("from a key frame on", keyFrameSent || isKeyFrame(message));
+                keyFrameSent = true;
+                lastVideo = message.getTimestamp();
+            } else if (message.getType() == RtmpHeader.MessageType.AUDIO && !isSequenceHeader(message)) {
+                assertTrue(message + " after " + lastAudio, message.getTimestamp() >= lastAudio);
+                lastAudio = message.getTimestamp();
+            }
+        }
+
+        muxer.stop();
+        assertEquals(0, muxer.getVideoFrameCacheNumber().get());
+        assertEquals("every tag released", 0, muxer.getAllocator().getInUseBytes());
+    }
+
+    @Test
+    public void sendsWhatWasEncodedWhileConnectingFromItsKeyFrame() throws Exception {
+        RtmpIngestServer server = startServer();
+        // the handshake, connect with createStream, then publish: three round trips of 100ms
+        int latency = 50;
+        server.setLatency(latency);
+        muxer.setTransportType(transportType);
+        muxer.setFastStart(true);
+        muxer.start(server.getUrl("live", "test"));
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        // encoding starts along with the connection, a few frames before a key frame
+        int first = GOP - FPS / 4;
+        int last = GOP + FPS;
+        long keyFrameWritten = 0;
+        for (int frame = first; frame <= last; frame++) {
+            writeFrame(frame);
+            if (frame == GOP) {
+                keyFrameWritten = System.nanoTime();
+            }
+            Thread.sleep(1000 / FPS / 2);
+        }
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, last - GOP + 2, 5000));
+
+        List<RtmpIngestServer.ReceivedMessage> video = video(server);
+        assertTrue(isSequenceHeader(video.get(0)));
+        assertEquals("from the key frame on", last - GOP + 2, video.size());
+        for (int frame = GOP; frame <= last; frame++) {
+            RtmpIngestServer.ReceivedMessage message = video.get(frame - GOP + 1);
+            assertEquals(dts(frame), message.getTimestamp());
+            assertEquals(frame == GOP, isKeyFrame(message));
+        }
+        // the key frame was encoded before publishing was allowed, and kept instead of waiting a GOP
+        long published = 0;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if ("publish".equals(message.getCommandName())) {
+                published = message.getReceivedNanos();
+            }
+        }
+        assertTrue(published > 0);
+        assertTrue("encoded before publish", keyFrameWritten < published);
+        assertTrue("sent after publish", video.get(1).getReceivedNanos() >= published);
+
+        int timeToFirstFrame = muxer.getTimeToFirstFrame();
+        assertTrue("time to first frame " + timeToFirstFrame, timeToFirstFrame >= 3 * 2 * latency);
+        assertTrue("time to first frame " + timeToFirstFrame, timeToFirstFrame < 3000);
+        assertEquals(0, muxer.getDroppedGopCount());
+    }
+
+    @Test
+    public void carriesTheCompositionTimeOfBFrames() throws Exception {
+        RtmpIngestServer server = startServer();
+        RecordingRtmpHandler handler = new RecordingRtmpHandler();
+        muxer = new SrsFlvMuxer(handler);
+        muxer.setTransportType(transportType);
+        muxer.start(server.getUrl("live", "test"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!handler.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+
+        // a B-frame between two references, decoded in the order 0 2 1 4 3..., presented a frame later
+        int frames = 2 * GOP;
+        int frameMillis = 40;
+        for (int n = 0; n < frames; n++) {
+            int frame = n == 0 ? 0 : n % 2 == 1 ? n + 1 : n - 1;
+            boolean key = frame % GOP == 0;
+            byte[] video = new byte[100];
+            Arrays.fill(video, (byte) (frame + 1));
+            video[0] = video[1] = video[2] = 0;
+            video[3] = 1;
+            video[4] = (byte) (key ? 0x65 : 0x41);
+            bufferInfo.offset = 0;
+            bufferInfo.size = video.length;
+            bufferInfo.presentationTimeUs = (frame + 1) * frameMillis * 1000L;
+            bufferInfo.flags = key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            muxer.writeSampleData(SrsFlvMuxer.VIDEO_TRACK, ByteBuffer.wrap(video), bufferInfo, n * frameMillis * 1000L);
+            Thread.sleep(frameMillis / 4);
+        }
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames + 1, 5000));
+
+        List<RtmpIngestServer.ReceivedMessage> video = video(server);
+        byte[] sequenceHeader = video.get(0).getData();
+        assertEquals("no composition time", 0, sequenceHeader[2] | sequenceHeader[3] | sequenceHeader[4]);
+        for (int n = 0; n < frames; n++) {
+            RtmpIngestServer.ReceivedMessage message = video.get(n + 1);
+            byte[] data = message.getData();
+            int frame = data[data.length - 1] - 1;
+            assertEquals("sent at the dts", n * frameMillis, message.getTimestamp());
+            // SI24, pts - dts
+            int cts = (data[2] << 16) | ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+            assertEquals((frame + 1 - n) * frameMillis, cts);
+        }
+    }
+
+    /** a frame of 100 bytes every frameMillis, sent when connected, its payload ending with its number */
+    private void writeSmallFrames(RecordingRtmpHandler handler, int frames, int frameMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!handler.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writeSample(SrsFlvMuxer.VIDEO_TRACK, SPS_PPS, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        for (int frame = 0; frame < frames; frame++) {
+            boolean key = frame % GOP == 0;
+            byte[] video = new byte[100];
+            Arrays.fill(video, (byte) (frame + 1));
+            video[0] = video[1] = video[2] = 0;
+            video[3] = 1;
+            video[4] = (byte) (key ? 0x65 : 0x41);
+            writeSample(SrsFlvMuxer.VIDEO_TRACK, video, frame * frameMillis, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            Thread.sleep(frameMillis / 4);
+        }
+    }
+
+    private static boolean isTimedMetadata(RtmpIngestServer.ReceivedMessage message) {
+        return message.getType() == RtmpHeader.MessageType.DATA_AMF0
+            && SrsFlvMuxer.TIMED_METADATA_HANDLER.equals(((Data) message.getPacket()).getType());
+    }
+
+    private static void assertEvent(AmfData event, String name, int time, String text, double number) {
+        AmfObject object = (AmfObject) event;
+        assertEquals(name, ((AmfString) object.getProperty("name")).getValue());
+        assertEquals(time, ((AmfNumber) object.getProperty("time")).getValue(), 0);
+        if (text != null) {
+            assertEquals(text, ((AmfString) object.getProperty("value")).getValue());
+        } else {
+            assertEquals(number, ((AmfNumber) object.getProperty("value")).getValue(), 0);
+        }
+    }
+
+    @Test
+    public void sendsTheTimedMetadataDueByEachFrameInOneTag() throws Exception {
+        RtmpIngestServer server = startServer();
+        RecordingRtmpHandler handler = new RecordingRtmpHandler();
+        muxer = new SrsFlvMuxer(handler);
+        muxer.setTransportType(transportType);
+        muxer.start(server.getUrl("live", "test"));
+        int frameMillis = 40;
+        // two events between frames 2 and 3, one at frame 5, then two written out of order
+        muxer.writeTimedMetadata("a", "one", 81 * 1000L);
+        muxer.writeTimedMetadata("b", 0, 82 * 1000L);
+        muxer.writeTimedMetadata("c", "at five", 5 * frameMillis * 1000L);
+        muxer.writeTimedMetadata("e", 2, 290 * 1000L);
+        muxer.writeTimedMetadata("d", 1, 250 * 1000L);
+        int frames = 10;
+        writeSmallFrames(handler, frames, frameMillis);
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames + 1, 5000));
+
+        List<RtmpIngestServer.ReceivedMessage> tags = new ArrayList<>();
+        int lastTimestamp = -1;
+        RtmpIngestServer.ReceivedMessage pending = null;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            boolean timedMetadata = isTimedMetadata(message);
+            if (!timedMetadata && message.getType() != RtmpHeader.MessageType.VIDEO) {
+                continue;
+            }
+            assertTrue(message + " after " + lastTimestamp, message.getTimestamp() >= lastTimestamp);
+            lastTimestamp = message.getTimestamp();
+            if (timedMetadata) {
+                assertEquals("one tag per frame", null, pending);
+                pending = message;
+                tags.add(message);
+            } else if (pending != null) {
+                // right before the frame it is due by, and not before the previous one
+                int frame = message.getData()[message.getData().length - 1] - 1;
+                assertTrue(pending + " before frame " + frame, pending.getTimestamp() > (frame - 1) * frameMillis);
+                pending = null;
+            }
+        }
+
+        assertEquals(4, tags.size());
+        assertEquals(81, tags.get(0).getTimestamp());
+        List<AmfData> events = ((Data) tags.get(0).getPacket()).getData();
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), "a", 81, "one", 0);
+        assertEvent(events.get(1), "b", 82, null, 0);
+        assertEquals(200, tags.get(1).getTimestamp());
+        assertEvent(((Data) tags.get(1).getPacket()).getData().get(0), "c", 200, "at five", 0);
+        assertEquals(250, tags.get(2).getTimestamp());
+        assertEvent(((Data) tags.get(2).getPacket()).getData().get(0), "d", 250, null, 1);
+        assertEquals(290, tags.get(3).getTimestamp());
+        assertEvent(((Data) tags.get(3).getPacket()).getData().get(0), "e", 290, null, 2);
+    }
+
+    @Test
+    public void mirrorsTheTimedMetadataInAnSei() throws Exception {
+        RtmpIngestServer server = startServer();
+        RecordingRtmpHandler handler = new RecordingRtmpHandler();
+        muxer = new SrsFlvMuxer(handler);
+        muxer.setTransportType(transportType);
+        muxer.setTimedMetadataSei(true);
+        muxer.start(server.getUrl("live", "test"));
+        // a payload over 510 bytes, its size coded on three bytes, and the zero bytes of the numbers
+        char[] text = new char[600];
+        Arrays.fill(text, 'x');
+        muxer.writeTimedMetadata("long", new String(text), 81 * 1000L);
+        muxer.writeTimedMetadata("zero", 0, 82 * 1000L);
+        int frames = 5;
+        writeSmallFrames(handler, frames, 40);
+        assertTrue(server.awaitMessages(RtmpHeader.MessageType.VIDEO, frames + 1, 5000));
+
+        Data tag = null;
+        byte[] sei = null;
+        for (RtmpIngestServer.ReceivedMessage message : server.getMessages()) {
+            if (isTimedMetadata(message)) {
+                tag = (Data) message.getPacket();
+            } else if (message.getType() == RtmpHeader.MessageType.VIDEO && !isSequenceHeader(message)) {
+                // the AVC NALUs, each after its length, follow the 5 bytes of the tag header; 6 is SEI
+                byte[] data = message.getData();
+                for (int offset = 5; offset < data.length; ) {
+                    int size = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                        | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+                    if ((data[offset + 4] & 0x1f) == 6) {
+                        assertEquals("a single SEI", null, sei);
+                        assertEquals("in the frame the events are due by", 120, message.getTimestamp());
+                        sei = Arrays.copyOfRange(data, offset + 4, offset + 4 + size);
+                    }
+                    offset += 4 + size;
+                }
+            }
+        }
+        assertTrue(tag != null);
+        assertTrue(sei != null);
+
+        // no start code emulated, then the RBSP with the emulation prevention bytes taken out
+        ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        int zeros = 0;
+        for (byte b : sei) {
+            if (zeros == 2) {
+                assertTrue("00 00 0" + b, (b & 0xff) > 3 || b == 3);
+                zeros = 0;
+                if (b == 3) {
+                    continue;
+                }
+            }
+            rbsp.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        byte[] bytes = rbsp.toByteArray();
+        assertTrue("emulation prevention", bytes.length < sei.length);
+        // nal_unit_type 6, nal_ref_idc 0
+        assertEquals(6, bytes[0]);
+        // user_data_unregistered, its size as 0xff bytes then the rest
+        assertEquals(5, bytes[1]);
+        int offset = 2;
+        int payloadSize = 0;
+        while ((bytes[offset] & 0xff) == 0xff) {
+            payloadSize += 255;
+            offset++;
+        }
+        payloadSize += bytes[offset++] & 0xff;
+        assertEquals(3, offset - 2);
+        assertEquals("the payload, then the rbsp trailing bits", bytes.length - offset - 1, payloadSize);
+        assertEquals((byte) 0x80, bytes[bytes.length - 1]);
+        assertArrayEquals(SrsFlvMuxer.TIMED_METADATA_SEI_UUID,
+            Arrays.copyOfRange(bytes, offset, offset + SrsFlvMuxer.TIMED_METADATA_SEI_UUID.length));
+        offset += SrsFlvMuxer.TIMED_METADATA_SEI_UUID.length;
+
+        // the same AMF0 message as the tag
+        Data mirrored = new Data(new RtmpHeader());
+        mirrored.readBody(new AmfReader().reset(bytes, offset, bytes.length - 1 - offset));
+        assertEquals(tag.getType(), mirrored.getType());
+        assertEquals(2, mirrored.getData().size());
+        assertEvent(mirrored.getData().get(0), "long", 81, new String(text), 0);
+        assertEvent(mirrored.getData().get(1), "zero", 82, null, 0);
+        assertEvent(tag.getData().get(0), "long", 81, new String(text), 0);
+        assertEvent(tag.getData().get(1), "zero", 82, null, 0);
+    }
+}
@@ -0,0 +1,155 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays arrival traces through the buffer, one millisecond at a time, decoding whatever is due.
+ */
+public class SrsJitterBufferTest {
+
+    private static final int FRAME_MS = 40;
+
+    private final SrsJitterBuffer buffer = new SrsJitterBuffer();
+    // {arrival, dts} in arrival order
+    private final List<long[]> arrivals = new ArrayList<>();
+    private int nextArrival;
+    private long now;
+    // release time of each dts
+    private final Map<Integer, Long> released = new HashMap<>();
+
+    private void arrive(long arrivalMillis, int dts) {
+        arrivals.add(new long[]{arrivalMillis, dts});
+    }
+
+    private static SrsAccessUnit frame(int dts) {
+        return new SrsAccessUnit(SrsAccessUnit.TYPE_VIDEO, new byte[0], dts, dts, dts == 0, false);
+    }
+
+    /** Replays the trace up to this time, polling every millisecond */
+    private void replayUntil(long untilMillis) {
+        for (; now <= untilMillis; now++) {
+            while (nextArrival < arrivals.size() && arrivals.get(nextArrival)[0] == now) {
+                buffer.offer(frame((int) arrivals.get(nextArrival++)[1]), now);
+            }
+            SrsAccessUnit unit;
+            while ((unit = buffer.poll(now)) != null) {
+                released.put(unit.getDts(), now);
+            }
+        }
+    }
+
+    @Test
+    public void playsASmoothNetworkAtTheTargetDelay() {
+        buffer.setDelay(300, 3000);
+        for (int i = 0; i < 100; i++) {
+            arrive(1050 + i * FRAME_MS, i * FRAME_MS);
+        }
+        replayUntil(1050 + 100 * FRAME_MS + 300);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("frame " + i, 1050 + i * FRAME_MS + 300, (long) released.get(i * FRAME_MS));
+        }
+        assertEquals(300, buffer.getDelayMillis());
+        assertEquals(0, buffer.getJitterMillis());
+        assertEquals(0, buffer.getStallCount());
+        assertEquals(300, buffer.getEndToEndDelayMillis());
+    }
+
+    @Test
+    public void followsTheJitterAfterTheFirstStall() {
+        buffer.setDelay(100, 400);
+        // every other frame takes 300 ms longer
+        int frames = 250;
+        for (int i = 0; i < frames; i++) {
+            arrive(i * FRAME_MS + (i % 2 == 0 ? 50 : 350), i * FRAME_MS);
+        }
+        // the odd frames arrive after the next even one
+        Collections.sort(arrivals, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        replayUntil(frames * FRAME_MS + 1000);
+
+        // the clock started at the target delay, the first slow frame ran it dry by 390 - (40 + 150) ms
+        assertEquals(1, buffer.getStallCount());
+        assertEquals(200, buffer.getStallMillis());
+        // then rebuffered above the jitter and came down to it
+        assertEquals(300, buffer.getJitterMillis());
+        assertEquals(300, buffer.getDelayMillis());
+        long lastRelease = -1;
+        for (int i = 0; i < frames; i++) {
+            long release = released.get(i * FRAME_MS);
+            assertTrue("frame " + i + " before its arrival", release >= i * FRAME_MS + (i % 2 == 0 ? 50 : 350));
+            // the even frames were played without waiting for the odd ones until the first of these came
+            // late, the rebuffer keeps the frames after in order
+            assertTrue("frame " + i + " out of order", i < 10 || release >= lastRelease);
+            lastRelease = release;
+        }
+        assertEquals("played at the jitter behind the fastest arrivals", (frames - 1) * FRAME_MS + 50 + 300, lastRelease);
+    }
+
+    @Test
+    public void rebuffersAfterAStall() {
+        buffer.setDelay(300, 3000);
+        for (int i = 0; i < 50; i++) {
+            arrive(i * FRAME_MS + 50, i * FRAME_MS);
+        }
+        // the network stops for a second, then delivers what it held at once
+        long burst = 50 * FRAME_MS + 50 + 1000;
+        for (int i = 50; i < 60; i++) {
+            arrive(burst, i * FRAME_MS);
+        }
+        replayUntil(burst - 1);
+        assertEquals(0, buffer.getStallCount());
+        assertEquals(0, buffer.getDepth());
+
+        replayUntil(burst + 3000);
+        assertEquals(1, buffer.getStallCount());
+        // frame 50 was due at 2000 + 350
+        assertEquals(burst - (50 * FRAME_MS + 350), buffer.getStallMillis());
+        // not played out as it came, but after the whole delay again, the jitter of the stall included
+        long first = released.get(50 * FRAME_MS);
+        assertTrue("rebuffered " + (first - burst) + " ms", first - burst >= 300 + 500);
+        for (int i = 51; i < 60; i++) {
+            assertTrue("frame " + i, released.get(i * FRAME_MS) >= first + (i - 50) * FRAME_MS * 9 / 10);
+        }
+    }
+
+    @Test
+    public void restartsTheClockAtADiscontinuity() {
+        buffer.setDelay(300, 3000);
+        for (int i = 0; i < 10; i++) {
+            arrive(i * FRAME_MS + 50, i * FRAME_MS);
+        }
+        // a new publishing session, its timestamps a minute ahead
+        long restart = 10 * FRAME_MS + 50;
+        arrive(restart, 60000);
+        arrive(restart + FRAME_MS, 60000 + FRAME_MS);
+        replayUntil(restart - 1);
+        int waiting = buffer.getDepth();
+        assertTrue(waiting > 0);
+
+        replayUntil(restart + 1000);
+        assertEquals("the units of the old session are dropped", waiting, buffer.getDroppedCount());
+        for (int i = 10 - waiting; i < 10; i++) {
+            assertNull(released.get(i * FRAME_MS));
+        }
+        assertEquals(restart + 300, (long) released.get(60000));
+        assertEquals(restart + FRAME_MS + 300, (long) released.get(60000 + FRAME_MS));
+        assertEquals(0, buffer.getStallCount());
+        assertEquals(300, buffer.getDelayMillis());
+    }
+}
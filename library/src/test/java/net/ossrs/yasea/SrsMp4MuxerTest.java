@@ -0,0 +1,190 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records B-frames, decoded ahead of their presentation, and reads the boxes back from the file.
+ */
+public class SrsMp4MuxerTest {
+
+    private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 1, 2, 3, 0, 0, 0, 1, 0x68, 0x11, 0x22};
+    private static final int GOP = 12;
+    private static final int FRAME_MS = 40;
+    // the video timescale of the muxer.
+    private static final int FRAME_TICKS = 90000 * FRAME_MS / 1000;
+
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private SrsMp4Muxer muxer;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        muxer = new SrsMp4Muxer(new SrsRecordHandler(null));
+        file = File.createTempFile("yasea", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        file.delete();
+    }
+
+    private void writeSample(int track, byte[] data, long ptsUs, long dtsUs, int flags) {
+        bufferInfo.offset = 0;
+        bufferInfo.size = data.length;
+        bufferInfo.presentationTimeUs = ptsUs;
+        bufferInfo.flags = flags;
+        muxer.writeSampleData(track, ByteBuffer.wrap(data), bufferInfo, dtsUs);
+    }
+
+    private int videoTrack;
+    private int audioTrack;
+
+    private void addTracks() {
+        MediaFormat videoFormat = new MediaFormat();
+        videoFormat.setString(MediaFormat.KEY_MIME, SrsEncoder.VCODEC);
+        videoFormat.setInteger(MediaFormat.KEY_WIDTH, 640);
+        videoFormat.setInteger(MediaFormat.KEY_HEIGHT, 360);
+        MediaFormat audioFormat = new MediaFormat();
+        audioFormat.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
+        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 2);
+        videoTrack = muxer.addTrack(videoFormat);
+        audioTrack = muxer.addTrack(audioFormat);
+        writeSample(videoTrack, SPS_PPS, 0, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
+    /** the AAC specific config, then a sample for the audio track not to be empty */
+    private void writeAudio() {
+        writeSample(audioTrack, new byte[] {0x12, 0x10}, 0, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        writeSample(audioTrack, new byte[16], 0, 0, 0);
+    }
+
+    /** frames in presentation order, a key frame every GOP */
+    private void writeFrames(int first, int count) {
+        for (int frame = first; frame < first + count; frame++) {
+            boolean key = frame % GOP == 0;
+            byte[] video = new byte[100];
+            Arrays.fill(video, (byte) (frame + 1));
+            video[0] = video[1] = video[2] = 0;
+            video[3] = 1;
+            video[4] = (byte) (key ? 0x65 : 0x41);
+            writeSample(videoTrack, video, frame * FRAME_MS * 1000L, frame * FRAME_MS * 1000L,
+                key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+    }
+
+    /** the sample_count of the first stsz box, the video track's */
+    private int videoSampleCount() throws IOException {
+        ByteBuffer stsz = box(readFile(), "stsz");
+        stsz.getInt();
+        stsz.getInt();
+        return stsz.getInt();
+    }
+
+    @Test
+    public void recordsTheCompositionOffsetsOfBFrames() throws Exception {
+        addTracks();
+        assertTrue(muxer.record(file));
+        writeAudio();
+
+        // a B-frame between two references, decoded in the order 0 2 1 4 3..., presented a frame later
+        int frames = 2 * GOP;
+        int[] decoded = new int[frames];
+        for (int n = 0; n < frames; n++) {
+            int frame = n == 0 ? 0 : n % 2 == 1 ? n + 1 : n - 1;
+            decoded[n] = frame;
+            boolean key = frame % GOP == 0;
+            byte[] video = new byte[100];
+            Arrays.fill(video, (byte) (frame + 1));
+            video[0] = video[1] = video[2] = 0;
+            video[3] = 1;
+            video[4] = (byte) (key ? 0x65 : 0x41);
+            writeSample(videoTrack, video, (frame + 1) * FRAME_MS * 1000L, n * FRAME_MS * 1000L,
+                key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        }
+        muxer.stop();
+
+        byte[] mp4 = readFile();
+        // the entries run-length coded, pts - dts of each sample.
+        ByteBuffer ctts = box(mp4, "ctts");
+        ctts.getInt();
+        List<Integer> offsets = new ArrayList<>();
+        for (int entries = ctts.getInt(); entries > 0; entries--) {
+            int count = ctts.getInt();
+            int offset = ctts.getInt();
+            for (int i = 0; i < count; i++) {
+                offsets.add(offset);
+            }
+        }
+        assertEquals(frames, offsets.size());
+        for (int n = 0; n < frames; n++) {
+            assertEquals("sample " + n, (decoded[n] + 1 - n) * FRAME_TICKS, (int) offsets.get(n));
+        }
+
+        // the presentation starts at the first picture, not at the dts of the first sample.
+        ByteBuffer elst = box(mp4, "elst");
+        assertEquals("version 0", 0, elst.getInt());
+        assertEquals(1, elst.getInt());
+        elst.getInt();
+        assertEquals("media time", FRAME_TICKS, elst.getInt());
+        assertEquals("rate", 1 << 16, elst.getInt());
+    }
+
+    @Test
+    public void recordsNothingOfThePreviousRecording() throws Exception {
+        addTracks();
+        assertTrue(muxer.record(file));
+        writeAudio();
+        writeFrames(0, GOP + 3);
+        muxer.stop();
+        assertEquals(GOP + 3, videoSampleCount());
+
+        // written while stopped, then a new recording from the next key frame on
+        writeFrames(GOP + 3, 5);
+        assertTrue(muxer.record(file));
+        writeAudio();
+        writeFrames(GOP + 8, 2 * GOP);
+        muxer.stop();
+        assertEquals("from frame " + 2 * GOP, GOP + 8, videoSampleCount());
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** the content of the first box of this type, which the muxer writes once for the video track */
+    private static ByteBuffer box(byte[] mp4, String type) {
+        byte[] fourcc = type.getBytes();
+        for (int i = 4; i + 4 <= mp4.length; i++) {
+            if (mp4[i] == fourcc[0] && mp4[i + 1] == fourcc[1] && mp4[i + 2] == fourcc[2] && mp4[i + 3] == fourcc[3]) {
+                int size = ByteBuffer.wrap(mp4, i - 4, 4).getInt();
+                return ByteBuffer.wrap(mp4, i + 4, size - 8).slice();
+            }
+        }
+        throw new AssertionError("no " + type + " box");
+    }
+}
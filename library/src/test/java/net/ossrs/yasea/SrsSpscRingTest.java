@@ -0,0 +1,199 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Producer and consumer threads racing on small rings: every element is taken once, in order, or
+ * dropped once by the policy.
+ */
+public class SrsSpscRingTest {
+
+    private static final int COUNT = 1000000;
+
+    /** Offers 0 to COUNT - 1, and records the elements handed back as dropped */
+    private static class Producer extends Thread {
+        final SrsSpscRing<Integer> ring;
+        final BitSet dropped = new BitSet(COUNT);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Producer(SrsSpscRing<Integer> ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < COUNT; i++) {
+                    Integer drop = ring.offer(i);
+                    if (drop != null) {
+                        assertFalse("dropped twice: " + drop, dropped.get(drop));
+                        dropped.set(drop);
+                    }
+                    if ((i & 0xffff) == 0) {
+                        // let the consumer catch up, and fall behind again
+                        Thread.yield();
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }
+    }
+
+    /** Takes elements until the last one, or none came for a while */
+    private static BitSet consume(SrsSpscRing<Integer> ring) {
+        BitSet received = new BitSet(COUNT);
+        int last = -1;
+        for (;;) {
+            Integer element = ring.poll(1, TimeUnit.SECONDS);
+            if (element == null) {
+                break;
+            }
+            assertTrue("out of order: " + element + " after " + last, element > last);
+            assertFalse(received.get(element));
+            received.set(element);
+            last = element;
+            if (last == COUNT - 1) {
+                break;
+            }
+            if ((element & 0x3ff) == 0) {
+                // fall behind now and then
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+            }
+        }
+        assertTrue(ring.getMaxDepth() <= ring.capacity());
+        return received;
+    }
+
+    private static void join(Producer producer) throws Throwable {
+        producer.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse("producer stuck", producer.isAlive());
+        if (producer.failure.get() != null) {
+            throw producer.failure.get();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void blockLosesNothing() throws Throwable {
+        SrsSpscRing<Integer> ring = new SrsSpscRing<>(16, SrsSpscRing.OverflowPolicy.BLOCK);
+        Producer producer = new Producer(ring);
+        producer.start();
+        BitSet received = consume(ring);
+        join(producer);
+
+        assertEquals(COUNT, received.cardinality());
+        assertEquals(0, producer.dropped.cardinality());
+        assertEquals(0, ring.getDroppedCount());
+        assertEquals(16, ring.getMaxDepth());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void dropOldestAccountsForEveryElement() throws Throwable {
+        SrsSpscRing<Integer> ring = new SrsSpscRing<>(8, SrsSpscRing.OverflowPolicy.DROP_OLDEST);
+        Producer producer = new Producer(ring);
+        producer.start();
+        BitSet received = consume(ring);
+        join(producer);
+
+        assertTrue("nothing dropped, the consumer was never behind", producer.dropped.cardinality() > 0);
+        assertFalse("taken and dropped", received.intersects(producer.dropped));
+        BitSet all = (BitSet) received.clone();
+        all.or(producer.dropped);
+        assertEquals(COUNT, all.cardinality());
+        assertEquals(producer.dropped.cardinality(), ring.getDroppedCount());
+        // the newest element is never the one dropped
+        assertTrue(received.get(COUNT - 1));
+    }
+
+    @Test(timeout = 60000)
+    public void dropNewestKeepsTheQueued() throws Throwable {
+        SrsSpscRing<Integer> ring = new SrsSpscRing<>(8, SrsSpscRing.OverflowPolicy.DROP_NEWEST);
+        Producer producer = new Producer(ring);
+        producer.start();
+        BitSet received = new BitSet(COUNT);
+        int last = -1;
+        while (producer.isAlive() || !ring.isEmpty()) {
+            Integer element = ring.poll(10, TimeUnit.MILLISECONDS);
+            if (element != null) {
+                assertTrue(element > last);
+                received.set(element);
+                last = element;
+                if ((element & 0x3ff) == 0) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+                }
+            }
+        }
+        join(producer);
+
+        assertTrue(producer.dropped.cardinality() > 0);
+        assertFalse(received.intersects(producer.dropped));
+        assertEquals(COUNT, received.cardinality() + producer.dropped.cardinality());
+        assertEquals(producer.dropped.cardinality(), ring.getDroppedCount());
+        // the first ones always get in
+        assertTrue(received.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void awaitsAnyOfSeveralRings() throws InterruptedException {
+        final SrsSpscRing<String> video = new SrsSpscRing<>(4, SrsSpscRing.OverflowPolicy.BLOCK);
+        final SrsSpscRing<String> audio = new SrsSpscRing<>(4, SrsSpscRing.OverflowPolicy.BLOCK);
+        assertFalse(SrsSpscRing.awaitAny(TimeUnit.MILLISECONDS.toNanos(20), video, audio));
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                audio.offer("aac");
+            }
+        });
+        producer.start();
+        long start = System.nanoTime();
+        assertTrue(SrsSpscRing.awaitAny(TimeUnit.SECONDS.toNanos(5), video, audio));
+        assertTrue("woken by the offer", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertNull(video.poll());
+        assertEquals("aac", audio.poll());
+        producer.join();
+    }
+
+    @Test
+    public void policiesOnAFullRing() {
+        SrsSpscRing<String> oldest = new SrsSpscRing<>(3, SrsSpscRing.OverflowPolicy.DROP_OLDEST);
+        assertEquals(4, oldest.capacity());
+        String a = "a";
+        assertNull(oldest.offer(a));
+        oldest.offer("b");
+        oldest.offer("c");
+        oldest.offer("d");
+        assertSame(a, oldest.offer("e"));
+        assertEquals("b", oldest.poll());
+        assertEquals(3, oldest.size());
+
+        SrsSpscRing<String> newest = new SrsSpscRing<>(2, SrsSpscRing.OverflowPolicy.DROP_NEWEST);
+        newest.offer("a");
+        newest.offer("b");
+        assertEquals("c", newest.offer("c"));
+        assertEquals("a", newest.poll());
+        assertEquals(1, newest.getDroppedCount());
+
+        SrsSpscRing<String> block = new SrsSpscRing<>(1, SrsSpscRing.OverflowPolicy.BLOCK);
+        block.offer("a");
+        // an interrupted producer gives up instead of waiting for room
+        Thread.currentThread().interrupt();
+        assertEquals("b", block.offer("b"));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, block.getDroppedCount());
+        assertEquals(1, block.clear());
+    }
+}